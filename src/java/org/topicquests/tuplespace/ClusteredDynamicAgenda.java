@@ -0,0 +1,593 @@
+/*
+ * Copyright 2024 TopicQuests Foundation
+ *  This source code is available under the terms of the Affero General Public License v3.
+ *  Please see LICENSE.txt for full license terms, including the availability of proprietary exceptions.
+ */
+package org.topicquests.tuplespace;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.BiConsumer;
+
+import org.topicquests.tuplespace.api.IDynamicAgenda;
+import org.topicquests.tuplespace.api.IQueryPlan;
+import org.topicquests.tuplespace.api.ISubscription;
+import org.topicquests.tuplespace.api.ITemplate;
+import org.topicquests.tuplespace.api.ITuple;
+import org.topicquests.tuplespace.api.ITupleSpace;
+import org.topicquests.tuplespace.api.ITupleSpaceListener;
+import org.topicquests.tuplespace.impl.TemplateImpl;
+import org.topicquests.tuplespace.impl.TupleImpl;
+
+/**
+ * An {@link IDynamicAgenda} that spreads its channels over several node
+ * agendas, local {@link DynamicAgenda}s or, through
+ * <code>RemoteDynamicAgenda</code>, other processes.
+ * <p>Each channel lives whole on one node, found by hashing its name
+ * onto a {@link HashRing}, and every call on it goes there. When a node
+ * joins or leaves, only the channels whose owner changes are moved:
+ * created on the new owner with the indexes asked for through this
+ * agenda, then taken from the old one and put on the new in batches.
+ * Moves run under a write lock that calls hold for reading, so no call
+ * sees a channel half moved. A waiting take or read waits on the
+ * owner in slices of at most {@link #WAIT_SLICE} milliseconds, and asks
+ * the owner again after each, so it follows its channel when it moves
+ * and holds up a move by at most a slice.</p>
+ * <p>A move that fails puts the batch in hand, and the batches already
+ * moved, back on the old owner, and the join or leave stops there with
+ * the failure. A join stays joined and a leave is undone; each channel
+ * not on its owner by the ring is pinned to the node holding it, and
+ * moves on at the next join or leave that succeeds.</p>
+ * <p>Only channels created through this agenda are moved. Subscriptions
+ * stay with the node they were made on, and {@link #getChannel(String)}
+ * hands out the owner's own space, which a move leaves behind.</p>
+ * @author jackpark
+ */
+public class ClusteredDynamicAgenda implements IDynamicAgenda {
+	public static final int DEFAULT_VIRTUAL_NODES = 128;
+	/**
+	 * Longest a waiting call waits on one node before asking again
+	 */
+	public static final long WAIT_SLICE = 100;
+	private static final int MOVE_BATCH = 1024;
+
+	private final int virtualNodes;
+	/**
+	 * Node agendas by name, in the order they joined; guarded by lock
+	 */
+	private final Map<String, IDynamicAgenda> nodes = new LinkedHashMap<String, IDynamicAgenda>();
+	private volatile HashRing ring;
+	/**
+	 * Channels a failed move left off their owner on the ring, and the
+	 * nodes that hold them; guarded by lock
+	 */
+	private final Map<String, String> pinned = new HashMap<String, String>();
+	/**
+	 * Channels created through this agenda
+	 */
+	private final Map<String, ChannelInfo> channels = new ConcurrentHashMap<String, ChannelInfo>();
+	/**
+	 * Held for reading by calls, for writing by moves
+	 */
+	private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+	/**
+	 * Asks again for waiting calls, off the nodes' own threads
+	 */
+	private final ExecutorService waiters = Executors.newSingleThreadExecutor(new ThreadFactory() {
+		public Thread newThread(Runnable r) {
+			Thread t = new Thread(r, "tuplespace-cluster-wait");
+			t.setDaemon(true);
+			return t;
+		}
+	});
+
+	/**
+	 * What a moved channel is recreated with
+	 */
+	private static class ChannelInfo {
+		final boolean durable;
+		final List<String> sortedFields = new ArrayList<String>();
+		final List<String> bitmapFields = new ArrayList<String>();
+
+		ChannelInfo(boolean durable) {
+			this.durable = durable;
+		}
+	}
+
+	public ClusteredDynamicAgenda() {
+		this(DEFAULT_VIRTUAL_NODES);
+	}
+
+	/**
+	 * @param virtualNodes points per node on the ring
+	 */
+	public ClusteredDynamicAgenda(int virtualNodes) {
+		this.virtualNodes = virtualNodes;
+		this.ring = new HashRing(nodes.keySet(), virtualNodes);
+	}
+
+	//////////////////////
+	// Membership
+	//////////////////////
+
+	/**
+	 * Add a node and move to it the channels it now owns
+	 * @param name unique among the nodes
+	 * @param node
+	 * @return how many channels moved
+	 */
+	public int addNode(String name, IDynamicAgenda node) {
+		lock.writeLock().lock();
+		try {
+			if (nodes.containsKey(name))
+				throw new IllegalArgumentException("Node "+name+" is already in the cluster");
+			nodes.put(name, node);
+			return rebalance();
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Move a node's channels to their new owners, then drop it;
+	 * the node must still answer
+	 * @param name
+	 * @return how many channels moved
+	 */
+	public int removeNode(String name) {
+		lock.writeLock().lock();
+		try {
+			if (!nodes.containsKey(name))
+				throw new IllegalArgumentException("No node "+name);
+			IDynamicAgenda node = nodes.remove(name);
+			// the ring still places the node's channels on it
+			return rebalance(name, node);
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	private int rebalance() {
+		return rebalance(null, null);
+	}
+
+	/**
+	 * Move every channel whose owner differs on the ring for the current
+	 * nodes. Caller holds the write lock.
+	 * @param gone a node just removed, or {@code null}
+	 * @param goneNode its agenda
+	 * @throws RuntimeException from a move that failed, once the
+	 *  channels are pinned where they are, and a node removed is back
+	 */
+	private int rebalance(String gone, IDynamicAgenda goneNode) {
+		HashRing next = new HashRing(nodes.keySet(), virtualNodes);
+		// where each channel moved so far now is
+		Map<String, String> moved = new HashMap<String, String>();
+		Iterator<Map.Entry<String, ChannelInfo>> itr = channels.entrySet().iterator();
+		Map.Entry<String, ChannelInfo> e;
+		String from, to;
+		try {
+			while (itr.hasNext()) {
+				e = itr.next();
+				from = ownerName(e.getKey());
+				to = next.owner(e.getKey());
+				if (from == null || from.equals(to))
+					continue;
+				if (to == null)
+					throw new IllegalStateException("No node left for channel "+e.getKey());
+				move(e.getKey(), e.getValue(), from.equals(gone) ? goneNode : nodes.get(from), nodes.get(to));
+				moved.put(e.getKey(), to);
+			}
+		} catch (RuntimeException x) {
+			if (gone != null) {
+				nodes.put(gone, goneNode);
+				settle(ring, moved);
+			} else
+				settle(next, moved);
+			throw x;
+		}
+		pinned.clear();
+		ring = next;
+		return moved.size();
+	}
+
+	/**
+	 * After a failed move: route by <code>settled</code>, pinning each
+	 * channel it does not place where its tuples are
+	 * @param moved channels moved, and where to
+	 */
+	private void settle(HashRing settled, Map<String, String> moved) {
+		Map<String, String> pins = new HashMap<String, String>();
+		Iterator<String> itr = channels.keySet().iterator();
+		String channel, holder;
+		while (itr.hasNext()) {
+			channel = itr.next();
+			holder = moved.get(channel);
+			if (holder == null)
+				holder = ownerName(channel);
+			if (holder != null && !holder.equals(settled.owner(channel)))
+				pins.put(channel, holder);
+		}
+		pinned.clear();
+		pinned.putAll(pins);
+		ring = settled;
+	}
+
+	/**
+	 * Recreate a channel on <code>to</code> and move its tuples there,
+	 * in priority order. If a batch cannot be taken or put, the batch
+	 * in hand and those moved before it go back to <code>from</code>.
+	 */
+	private void move(String channel, ChannelInfo info, IDynamicAgenda from, IDynamicAgenda to) {
+		to.createChannel(channel, info.durable);
+		Iterator<String> itr = info.sortedFields.iterator();
+		while (itr.hasNext())
+			to.addSortedIndex(channel, itr.next());
+		itr = info.bitmapFields.iterator();
+		while (itr.hasNext())
+			to.addBitmapIndex(channel, itr.next());
+		TemplateImpl all = new TemplateImpl();
+		all.compile();
+		List<ITuple> batch = null;
+		try {
+			while (!(batch = from.takeN(channel, all, MOVE_BATCH, 0)).isEmpty()) {
+				to.putAll(channel, batch);
+				batch = null;
+			}
+		} catch (RuntimeException e) {
+			try {
+				if (batch != null)
+					from.putAll(channel, batch);
+				while (!(batch = to.takeN(channel, all, MOVE_BATCH, 0)).isEmpty())
+					from.putAll(channel, batch);
+			} catch (RuntimeException x) {
+				// what could not go back stays where it is
+				e.addSuppressed(x);
+			}
+			throw e;
+		}
+	}
+
+	/**
+	 * @param channelName
+	 * @return the name of the node that owns the channel, or {@code null}
+	 *  if there are no nodes
+	 */
+	public String nodeFor(String channelName) {
+		lock.readLock().lock();
+		try {
+			return ownerName(channelName);
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Caller holds the lock
+	 * @return the name of the node holding the channel, or {@code null}
+	 */
+	private String ownerName(String channelName) {
+		String name = pinned.get(channelName);
+		return (name != null) ? name : ring.owner(channelName);
+	}
+
+	/**
+	 * Caller holds the read lock
+	 */
+	private IDynamicAgenda owner(String channelName) {
+		String name = ownerName(channelName);
+		if (name == null)
+			throw new IllegalStateException("The cluster has no nodes");
+		return nodes.get(name);
+	}
+
+	/**
+	 * A copy of the nodes, under the read lock
+	 */
+	private List<IDynamicAgenda> allNodes() {
+		lock.readLock().lock();
+		try {
+			return new ArrayList<IDynamicAgenda>(nodes.values());
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	//////////////////////
+	// Waiting calls
+	//////////////////////
+
+	/**
+	 * A take or read that waits on its channel's owner a slice at a time
+	 */
+	private CompletableFuture<ITuple> await(String channelName, ITemplate template,
+			boolean take, long waitTime) {
+		long now = System.currentTimeMillis();
+		long deadline = (waitTime >= Long.MAX_VALUE - now) ? Long.MAX_VALUE : now + waitTime;
+		CompletableFuture<ITuple> result = new CompletableFuture<ITuple>();
+		slice(channelName, template, take, deadline, result);
+		return result;
+	}
+
+	private void slice(final String channelName, final ITemplate template, final boolean take,
+			final long deadline, final CompletableFuture<ITuple> result) {
+		long wait = Math.min(WAIT_SLICE, deadline - System.currentTimeMillis());
+		CompletableFuture<ITuple> f;
+		lock.readLock().lock();
+		try {
+			IDynamicAgenda node = owner(channelName);
+			if (wait <= 0)
+				f = CompletableFuture.completedFuture(take ?
+						node.take(channelName, template, 0) : node.read(channelName, template, 0));
+			else
+				f = take ? node.takeAsync(channelName, template, wait) :
+					node.readAsync(channelName, template, wait);
+		} catch (RuntimeException e) {
+			result.completeExceptionally(e);
+			return;
+		} finally {
+			lock.readLock().unlock();
+		}
+		if (wait <= 0) {
+			result.complete(f.getNow(null));
+			return;
+		}
+		f.whenCompleteAsync(new BiConsumer<ITuple, Throwable>() {
+			public void accept(ITuple t, Throwable ex) {
+				if (ex != null)
+					result.completeExceptionally(ex);
+				else if (t != null) {
+					// a take the caller gave up on goes back
+					if (!result.complete(t) && take)
+						put(channelName, t);
+				} else if (!result.isDone())
+					slice(channelName, template, take, deadline, result);
+			}
+		}, (Executor)waiters);
+	}
+
+	private static <T> T get(CompletableFuture<T> f) {
+		try {
+			return f.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			f.cancel(false);
+			return null;
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof RuntimeException)
+				throw (RuntimeException)e.getCause();
+			throw new RuntimeException(e.getCause());
+		}
+	}
+
+	//////////////////////
+	// IDynamicAgenda
+	//////////////////////
+
+	@Override
+	public void createChannel(String name) {
+		createChannel(name, false);
+	}
+
+	@Override
+	public void createChannel(String name, boolean durable) {
+		lock.readLock().lock();
+		try {
+			owner(name).createChannel(name, durable);
+			channels.put(name, new ChannelInfo(durable));
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * @return the owning node's space; it does not follow a move
+	 */
+	@Override
+	public ITupleSpace getChannel(String name) {
+		lock.readLock().lock();
+		try {
+			return owner(name).getChannel(name);
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	@Override
+	public ITuple newTuple(String channelName) {
+		return new TupleImpl(channelName);
+	}
+
+	@Override
+	public ITemplate newTemplate() {
+		return new TemplateImpl();
+	}
+
+	@Override
+	public ITuple newTuple(String channelName, Map<String, Object> properties) {
+		return new TupleImpl(channelName, properties);
+	}
+
+	@Override
+	public void put(String channelName, ITuple tuple) {
+		lock.readLock().lock();
+		try {
+			owner(channelName).put(channelName, tuple);
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	@Override
+	public void putAll(String channelName, Collection<? extends ITuple> tuples) {
+		lock.readLock().lock();
+		try {
+			owner(channelName).putAll(channelName, tuples);
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	@Override
+	public ITuple read(String channelName, ITemplate template, long waitTime) {
+		return get(readAsync(channelName, template, waitTime));
+	}
+
+	@Override
+	public ITuple take(String channelName, ITemplate template, long waitTime) {
+		return get(takeAsync(channelName, template, waitTime));
+	}
+
+	@Override
+	public List<ITuple> takeN(String channelName, ITemplate template, int n, long waitTime) {
+		List<ITuple> result;
+		lock.readLock().lock();
+		try {
+			result = owner(channelName).takeN(channelName, template, n, 0);
+		} finally {
+			lock.readLock().unlock();
+		}
+		if (result.isEmpty() && n > 0 && waitTime > 0) {
+			ITuple first = take(channelName, template, waitTime);
+			if (first != null) {
+				result = new ArrayList<ITuple>();
+				result.add(first);
+				result.addAll(takeN(channelName, template, n - 1, 0));
+			}
+		}
+		return result;
+	}
+
+	@Override
+	public List<ITuple> collect(String channelName, ITemplate template, int limit) {
+		lock.readLock().lock();
+		try {
+			return owner(channelName).collect(channelName, template, limit);
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	@Override
+	public CompletableFuture<ITuple> readAsync(String channelName, ITemplate template, long waitTime) {
+		return await(channelName, template, false, waitTime);
+	}
+
+	@Override
+	public CompletableFuture<ITuple> takeAsync(String channelName, ITemplate template, long waitTime) {
+		return await(channelName, template, true, waitTime);
+	}
+
+	/**
+	 * The subscription stays on the node that owns the channel now
+	 */
+	@Override
+	public ISubscription subscribe(String channelName, ITemplate template, ITupleSpaceListener listener) {
+		lock.readLock().lock();
+		try {
+			return owner(channelName).subscribe(channelName, template, listener);
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	@Override
+	public Iterator<ITuple> listTuples(String channelName) {
+		lock.readLock().lock();
+		try {
+			return owner(channelName).listTuples(channelName);
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	@Override
+	public void addSortedIndex(String channelName, String field) {
+		lock.readLock().lock();
+		try {
+			owner(channelName).addSortedIndex(channelName, field);
+			ChannelInfo info = channels.get(channelName);
+			if (info != null) {
+				synchronized (info) {
+					info.sortedFields.add(field);
+				}
+			}
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	@Override
+	public void addBitmapIndex(String channelName, String field) {
+		lock.readLock().lock();
+		try {
+			owner(channelName).addBitmapIndex(channelName, field);
+			ChannelInfo info = channels.get(channelName);
+			if (info != null) {
+				synchronized (info) {
+					info.bitmapFields.add(field);
+				}
+			}
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	@Override
+	public IQueryPlan explain(String channelName, ITemplate template) {
+		lock.readLock().lock();
+		try {
+			return owner(channelName).explain(channelName, template);
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	@Override
+	public void decayAll(int howMuch) {
+		Iterator<IDynamicAgenda> itr = allNodes().iterator();
+		while (itr.hasNext())
+			itr.next().decayAll(howMuch);
+	}
+
+	@Override
+	public void addValue(String channelName, ITemplate template, int howMuch) {
+		lock.readLock().lock();
+		try {
+			owner(channelName).addValue(channelName, template, howMuch);
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	@Override
+	public void checkpointAll() {
+		Iterator<IDynamicAgenda> itr = allNodes().iterator();
+		while (itr.hasNext())
+			itr.next().checkpointAll();
+	}
+
+	/**
+	 * Shut down every node
+	 */
+	@Override
+	public void shutDown() {
+		waiters.shutdownNow();
+		Iterator<IDynamicAgenda> itr = allNodes().iterator();
+		while (itr.hasNext())
+			itr.next().shutDown();
+	}
+}
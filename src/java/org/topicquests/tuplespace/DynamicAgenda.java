@@ -5,16 +5,29 @@
  */
 package org.topicquests.tuplespace;
 
+import java.io.File;
+import java.io.UnsupportedEncodingException;
+import java.net.URLEncoder;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.Iterator;
 import java.util.List;
-import java.util.ArrayList;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 
 import org.topicquests.tuplespace.api.IDynamicAgenda;
+import org.topicquests.tuplespace.api.IQueryPlan;
+import org.topicquests.tuplespace.api.ISubscription;
 import org.topicquests.tuplespace.api.ITemplate;
 import org.topicquests.tuplespace.api.ITuple;
 import org.topicquests.tuplespace.api.ITupleSpace;
+import org.topicquests.tuplespace.api.ITupleSpaceListener;
 import org.topicquests.tuplespace.impl.TemplateImpl;
 import org.topicquests.tuplespace.impl.TupleImpl;
 import org.topicquests.tuplespace.impl.TupleSpaceImpl;
@@ -24,22 +37,84 @@ import org.topicquests.tuplespace.impl.TupleSpaceImpl;
  */
 public class DynamicAgenda implements IDynamicAgenda{
 	private Map<String, ITupleSpace> channels;
+	/**
+	 * Where durable channels keep their logs, or {@code null}
+	 */
+	private File dataDir = null;
+	/**
+	 * Runs periodic checkpoints, or {@code null}
+	 */
+	private ScheduledExecutorService checkpointer = null;
 	
 	
 	public DynamicAgenda() {
 		channels = new ConcurrentHashMap<String, ITupleSpace>();
 	}
 
+	/**
+	 * @param dataDir where durable channels keep their logs;
+	 *  created if it does not exist
+	 */
+	public DynamicAgenda(File dataDir) {
+		this();
+		this.dataDir = dataDir;
+		dataDir.mkdirs();
+	}
+
+	/**
+	 * @param dataDir where durable channels keep their logs and checkpoints
+	 * @param checkpointMillis how often to checkpoint every durable channel
+	 */
+	public DynamicAgenda(File dataDir, long checkpointMillis) {
+		this(dataDir);
+		checkpointer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "tuplespace-checkpoint");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		checkpointer.scheduleWithFixedDelay(new Runnable() {
+			public void run() {
+				checkpointAll();
+			}
+		}, checkpointMillis, checkpointMillis, TimeUnit.MILLISECONDS);
+	}
+
 	@Override
 	public void createChannel(String name) {
 		channels.put(name, new TupleSpaceImpl(name) );
 	}
 
+	@Override
+	public void createChannel(String name, boolean durable) {
+		if (!durable) {
+			createChannel(name);
+			return;
+		}
+		if (dataDir == null)
+			throw new IllegalStateException("No data directory for durable channel "+name);
+		try {
+			String file = URLEncoder.encode(name, "UTF-8");
+			channels.put(name, new TupleSpaceImpl(name, new File(dataDir, file+".wal"),
+					new File(dataDir, file+".ckpt")));
+		} catch (UnsupportedEncodingException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
 	@Override
 	public ITupleSpace getChannel(String name) {
 		return channels.get(name);
 	}
 
+	/**
+	 * @return the names of the channels, as they change
+	 */
+	public Set<String> channelNames() {
+		return Collections.unmodifiableSet(channels.keySet());
+	}
+
 	@Override
 	public ITuple newTuple(String channelName) {
 		return new TupleImpl(channelName);
@@ -56,6 +131,12 @@ public class DynamicAgenda implements IDynamicAgenda{
 		c.insert(tuple);
 	}
 
+	@Override
+	public void putAll(String channelName, Collection<? extends ITuple> tuples) {
+		ITupleSpace c = getChannel(channelName);
+		c.putAll(tuples);
+	}
+
 	@Override
 	public ITuple read(String channelName, ITemplate template, long waitTime) {
 		ITupleSpace c = getChannel(channelName);
@@ -68,6 +149,54 @@ public class DynamicAgenda implements IDynamicAgenda{
 		return c.take(template, waitTime);
 	}
 
+	@Override
+	public List<ITuple> takeN(String channelName, ITemplate template, int n, long waitTime) {
+		ITupleSpace c = getChannel(channelName);
+		return c.takeN(template, n, waitTime);
+	}
+
+	@Override
+	public List<ITuple> collect(String channelName, ITemplate template, int limit) {
+		ITupleSpace c = getChannel(channelName);
+		return c.collect(template, limit);
+	}
+
+	@Override
+	public CompletableFuture<ITuple> readAsync(String channelName, ITemplate template, long waitTime) {
+		ITupleSpace c = getChannel(channelName);
+		return c.readAsync(template, waitTime);
+	}
+
+	@Override
+	public CompletableFuture<ITuple> takeAsync(String channelName, ITemplate template, long waitTime) {
+		ITupleSpace c = getChannel(channelName);
+		return c.takeAsync(template, waitTime);
+	}
+
+	@Override
+	public ISubscription subscribe(String channelName, ITemplate template, ITupleSpaceListener listener) {
+		ITupleSpace c = getChannel(channelName);
+		return c.subscribe(template, listener);
+	}
+
+	@Override
+	public void addSortedIndex(String channelName, String field) {
+		ITupleSpace c = getChannel(channelName);
+		c.addSortedIndex(field);
+	}
+
+	@Override
+	public void addBitmapIndex(String channelName, String field) {
+		ITupleSpace c = getChannel(channelName);
+		c.addBitmapIndex(field);
+	}
+
+	@Override
+	public IQueryPlan explain(String channelName, ITemplate template) {
+		ITupleSpace c = getChannel(channelName);
+		return c.explain(template);
+	}
+
 	@Override
 	public Iterator<ITuple> listTuples(String channelName) {
 		ITupleSpace c = getChannel(channelName);
@@ -79,52 +208,71 @@ public class DynamicAgenda implements IDynamicAgenda{
 		return new TemplateImpl();
 	}
 
+	/**
+	 * Read-only replicas are skipped: they decay when their primary
+	 * does, as the change is replicated
+	 */
 	@Override
 	public void decayAll(int howMuch) {
-		ITupleSpace ts;
-		ITuple t;
 		Iterator<ITupleSpace> itr = channels.values().iterator();
-		Iterator<ITuple> itx, ditr;
-		List<ITuple> did, torem;
+		ITupleSpace c;
 		while (itr.hasNext()) {
-			System.out.println("A");
-			torem = new ArrayList<ITuple>();
-			did = new ArrayList<ITuple>();
-			ts = itr.next();
-			itx =ts.tuples();
-			while (itx.hasNext()) {
-				System.out.println("B");
-				t = itx.next();
-				torem.add(t);
-				int p = t.getPriority() ;
-				p -= howMuch;
-				t.setPriority(p);
-				did.add(t);
-			}
-			ditr = torem.iterator();
-			while (ditr.hasNext())
-				ts.internalRemove(ditr.next());
-
-			ditr = did.iterator();
-			while (ditr.hasNext())
-				ts.insert(ditr.next());
+			c = itr.next();
+			if (!isReadOnly(c))
+				c.decay(howMuch);
 		}
 	}
 
+	/**
+	 * With a channel, waits for a match; with {@code null}, changes a
+	 * match in each writable channel that has one now, skipping
+	 * read-only replicas
+	 * @throws IllegalStateException if the channel is a read-only replica
+	 */
 	@Override
 	public void addValue(String channelName, ITemplate template, int howMuch) {
+		if (channelName == null) {
+			boolean changed = false;
+			Iterator<ITupleSpace> itr = channels.values().iterator();
+			ITupleSpace c;
+			ITuple t;
+			while (itr.hasNext()) {
+				c = itr.next();
+				if (isReadOnly(c) || (t = c.noWaitRead(template)) == null)
+					continue;
+				if (c.changePriority(t, t.getPriority() + howMuch))
+					changed = true;
+			}
+			if (!changed)
+				throw new RuntimeException("Add Value missing tuple match "+template.toString());
+			return;
+		}
 		ITupleSpace c = getChannel(channelName);
+		if (isReadOnly(c))
+			throw new IllegalStateException("Channel "+channelName+" is a read-only replica");
 		ITuple t = c.read(template, 10000);
-		if (t != null) {
-			boolean rem = c.internalRemove(t);
-			int p = t.getPriority();
-			System.out.println("Pbefore "+rem+p);
-			p += howMuch;
-			System.out.println("Pafter "+p);
-			t.setPriority(p);
-			c.insert(t);
-		}
-		else throw new RuntimeException("Add Value missing tuple match "+template.toString());
+		if (t == null || !c.changePriority(t, t.getPriority() + howMuch))
+			throw new RuntimeException("Add Value missing tuple match "+template.toString());
+	}
+
+	private static boolean isReadOnly(ITupleSpace c) {
+		return (c instanceof TupleSpaceImpl) && ((TupleSpaceImpl)c).isReadOnly();
+	}
+
+	@Override
+	public void checkpointAll() {
+		Iterator<ITupleSpace> itr = channels.values().iterator();
+		while (itr.hasNext())
+			itr.next().checkpoint();
+	}
+
+	@Override
+	public void shutDown() {
+		if (checkpointer != null)
+			checkpointer.shutdownNow();
+		Iterator<ITupleSpace> itr = channels.values().iterator();
+		while (itr.hasNext())
+			itr.next().close();
 	}
 
 }
@@ -0,0 +1,94 @@
+/*
+ * Copyright 2024 TopicQuests Foundation
+ *  This source code is available under the terms of the Affero General Public License v3.
+ *  Please see LICENSE.txt for full license terms, including the availability of proprietary exceptions.
+ */
+package org.topicquests.tuplespace;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.Iterator;
+
+/**
+ * An immutable consistent-hash ring: each node sits at many points on
+ * a 64 bit circle, and a key belongs to the node at the first point at
+ * or after the key's hash. Adding a node takes keys only from their
+ * neighbours on the circle, about one key in n, and removing one hands
+ * only its own keys on. Points are kept in a sorted array and found by
+ * binary search.
+ * @author jackpark
+ */
+final class HashRing {
+	private final long [] points;
+	private final String [] owners;
+
+	/**
+	 * @param nodes node names
+	 * @param virtualNodes points per node; more spread keys more evenly
+	 */
+	HashRing(Collection<String> nodes, int virtualNodes) {
+		int n = nodes.size() * virtualNodes;
+		long [] p = new long[n];
+		String [] o = new String[n];
+		Iterator<String> itr = nodes.iterator();
+		String node;
+		int k = 0;
+		while (itr.hasNext()) {
+			node = itr.next();
+			for (int i = 0; i < virtualNodes; i++) {
+				p[k] = hash(node+"#"+i);
+				o[k++] = node;
+			}
+		}
+		// sort the points, carrying their owners
+		Integer [] order = new Integer[n];
+		for (int i = 0; i < n; i++)
+			order[i] = i;
+		final long [] unsorted = p;
+		Arrays.sort(order, new Comparator<Integer>() {
+			public int compare(Integer a, Integer b) {
+				return Long.compare(unsorted[a], unsorted[b]);
+			}
+		});
+		points = new long[n];
+		owners = new String[n];
+		for (int i = 0; i < n; i++) {
+			points[i] = p[order[i]];
+			owners[i] = o[order[i]];
+		}
+	}
+
+	/**
+	 * @param key
+	 * @return the node <code>key</code> belongs to, or {@code null} if there are none
+	 */
+	String owner(String key) {
+		if (points.length == 0)
+			return null;
+		int i = Arrays.binarySearch(points, hash(key));
+		if (i < 0)
+			i = -i - 1;
+		return owners[i == points.length ? 0 : i];
+	}
+
+	/**
+	 * 64 bit FNV-1a over the UTF-8 bytes, then the murmur3 finalizer so
+	 * that similar names spread over the whole circle
+	 */
+	static long hash(String s) {
+		byte [] b = s.getBytes(StandardCharsets.UTF_8);
+		long h = 0xcbf29ce484222325L;
+		for (int i = 0; i < b.length; i++) {
+			h ^= (b[i] & 0xff);
+			h *= 0x100000001b3L;
+		}
+		h ^= h >>> 33;
+		h *= 0xff51afd7ed558ccdL;
+		h ^= h >>> 33;
+		h *= 0xc4ceb9fe1a85ec53L;
+		h ^= h >>> 33;
+		return h;
+	}
+}
@@ -0,0 +1,28 @@
+/*
+ * Copyright 2024 TopicQuests Foundation
+ *  This source code is available under the terms of the Affero General Public License v3.
+ *  Please see LICENSE.txt for full license terms, including the availability of proprietary exceptions.
+ */
+package org.topicquests.tuplespace.api;
+
+/**
+ * Receives every change to a space, in order, naming stored tuples by
+ * the id the space gave them; what a replica needs to stay in step.
+ * Calls are made under the space lock, so they must not block.
+ * @author jackpark
+ */
+public interface IChangeListener {
+
+	/**
+	 * @param id
+	 * @param tuple frozen
+	 * @param priority its priority as stored
+	 */
+	void inserted(long id, ITuple tuple, int priority);
+
+	void removed(long id);
+
+	void priorityChanged(long id, int newPriority);
+
+	void decayed(int howMuch);
+}
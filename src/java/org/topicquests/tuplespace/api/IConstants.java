@@ -79,6 +79,49 @@ public interface IConstants {
    * be in active memory)
    */
    public static final String LIST ="list";
+  /**
+   * Create a channel unless it exists;
+   * the header's <code>durable</code> field asks for a durable one
+   */
+  public static final String CREATE = "create";
+  /**
+   * Decay every channel, or the channel named, by the header's <code>amount</code>
+   */
+  public static final String DECAY = "decay";
+  /**
+   * Add the header's <code>amount</code> to the priority of a tuple
+   * matching the template, waiting for one as a local agenda does
+   */
+  public static final String ADD_VALUE = "addvalue";
+  /**
+   * Index the header's <code>field</code> in the channel: a bitmap index
+   * if the header's <code>bitmap</code> field is true, else a sorted one
+   */
+  public static final String INDEX = "index";
+  /**
+   * Checkpoint every durable channel, or the channel named
+   */
+  public static final String CHECKPOINT = "checkpoint";
+  /**
+   * Give up the parked twait, rwait or addvalue, or the subscription,
+   * whose request id is the header's <code>target</code>; a parked
+   * request is answered as if it timed out, unless it was answered first
+   */
+  public static final String CANCEL = "cancel";
+  /**
+   * Subscribe to the template: after the response, each matching tuple
+   * inserted comes in a <code>matched</code> frame under the request's
+   * id, until a <code>cancel</code> names it
+   */
+  public static final String SUBSCRIBE = "subscribe";
+  /**
+   * A tuple a subscription matched, sent by the server
+   */
+  public static final String MATCHED = "matched";
+  /**
+   * Describe how a read or take with the template would search the channel
+   */
+  public static final String EXPLAIN = "explain";
   /////////////
   // TSX XML tags
   /////////////
@@ -95,5 +138,16 @@ public interface IConstants {
   public static final String VALUE = "value";
   public static final String PRIORITY = "priority"; // special for The Scholar's Companion
   public static final String PARTIAL_MATCH = "partialMatch";
+  /////////////
+  // Wire protocol: fields of a <message> header
+  /////////////
+  public static final String WAIT = "wait"; // milliseconds a twait, rwait, tpost or rpost may wait
+  public static final String LIMIT = "limit"; // most tuples a collect returns
+  public static final String ERROR = "error"; // why a request failed
+  public static final String DURABLE = "durable"; // Boolean: create a durable channel
+  public static final String AMOUNT = "amount"; // Integer: how much a decay or addvalue changes priorities
+  public static final String BITMAP = "bitmap"; // Boolean: index with a bitmap index
+  public static final String TARGET = "target"; // String: the request id a cancel gives up
+  public static final String DROPPED = "dropped"; // Long: matches a subscription has lost
 
 }
\ No newline at end of file
@@ -5,8 +5,11 @@
  */
 package org.topicquests.tuplespace.api;
 
+import java.util.Collection;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
 
 /**
  * @author jackpark
@@ -21,6 +24,16 @@ public interface IDynamicAgenda {
 	 * @param name
 	 */
 	void createChannel(String name);
+
+	/**
+	 * Creates a Channel which, if <code>durable</code>, logs its changes
+	 * and checkpoints to the agenda's data directory and is restored
+	 * from there when created again
+	 * @param name
+	 * @param durable
+	 * @throws IllegalStateException if durable and the agenda has no data directory
+	 */
+	void createChannel(String name, boolean durable);
 	
 	ITupleSpace getChannel(String name);
 	
@@ -45,12 +58,19 @@ public interface IDynamicAgenda {
 	/**
 	 * 
 	 * @param channelName
-	 * @param properties instance of ConcurrentHashMap
+	 * @param properties copied into the tuple
 	 * @return
 	 */
 	ITuple newTuple(String channelName, Map<String, Object> properties);
 	
 	void put(String channelNamee, ITuple tuple);
+
+	/**
+	 * Put a batch of tuples with one lock acquisition
+	 * @param channelName
+	 * @param tuples
+	 */
+	void putAll(String channelName, Collection<? extends ITuple> tuples);
 	
 	/**
 	 * 
@@ -69,9 +89,79 @@ public interface IDynamicAgenda {
 	 * @return can return {@code null}
 	 */
 	ITuple take(String channelName, ITemplate template, long waitTime);
+
+	/**
+	 * 
+	 * @param channelName
+	 * @param template
+	 * @param n most tuples to take
+	 * @param waitTime if nothing matches, how long to wait for a first match
+	 * @return matches in priority order; can be empty
+	 */
+	List<ITuple> takeN(String channelName, ITemplate template, int n, long waitTime);
+
+	/**
+	 * 
+	 * @param channelName
+	 * @param template
+	 * @param limit
+	 * @return the <code>limit</code> best matches in priority order
+	 */
+	List<ITuple> collect(String channelName, ITemplate template, int limit);
+
+	/**
+	 * 
+	 * @param channelName
+	 * @param template
+	 * @param waitTime
+	 * @return completes with the match, or {@code null} on timeout
+	 */
+	CompletableFuture<ITuple> readAsync(String channelName, ITemplate template, long waitTime);
+
+	/**
+	 * 
+	 * @param channelName
+	 * @param template
+	 * @param waitTime
+	 * @return completes with the match, or {@code null} on timeout
+	 */
+	CompletableFuture<ITuple> takeAsync(String channelName, ITemplate template, long waitTime);
+
+	/**
+	 * 
+	 * @param channelName
+	 * @param template
+	 * @param listener called with each matching tuple inserted from now on
+	 * @return the subscription, for cancelling it
+	 */
+	ISubscription subscribe(String channelName, ITemplate template, ITupleSpaceListener listener);
 	
 	Iterator<ITuple> listTuples(String channelName);
 
+	/**
+	 * Keep an ordered index on <code>field</code> in a channel,
+	 * for comparison tests
+	 * @param channelName
+	 * @param field
+	 */
+	void addSortedIndex(String channelName, String field);
+
+	/**
+	 * Keep a bitmap index on a low-cardinality <code>field</code>
+	 * in a channel
+	 * @param channelName
+	 * @param field
+	 */
+	void addBitmapIndex(String channelName, String field);
+
+	/**
+	 * 
+	 * @param channelName
+	 * @param template
+	 * @return how a read or take with <code>template</code> would search
+	 */
+	IQueryPlan explain(String channelName, ITemplate template);
+
 	//////////////////////
 	// Priority
 	// uses ITuple.get/setPriority
@@ -91,4 +181,15 @@ public interface IDynamicAgenda {
 	 */
 	void addValue(String channelName, ITemplate template, int howMuch);
 
+	/**
+	 * Checkpoint every durable channel, so a restart replays
+	 * only the changes made after now
+	 */
+	void checkpointAll();
+
+	/**
+	 * Close every channel; durable channels flush and close their logs
+	 */
+	void shutDown();
+
 }
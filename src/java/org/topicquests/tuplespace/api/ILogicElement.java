@@ -5,6 +5,8 @@
  */
 package org.topicquests.tuplespace.api;
 
+import java.util.List;
+
 /**
  * ILogicElement.java
  *
@@ -33,6 +35,19 @@ public interface ILogicElement {
 	public static final int EQUALS = 3;
 	public static final int LITERAL = 4;
 	public static final int FETCH = 5;
+	/**
+	 * Comparisons: field (or first operand) against literal (or second
+	 * operand). Numbers compare by value; other values only with values
+	 * of the same Comparable class. A missing or unordered value fails.
+	 */
+	public static final int LT = 6;
+	public static final int LE = 7;
+	public static final int GT = 8;
+	public static final int GE = 9;
+	/**
+	 * Literal &lt;= field &lt;= upper literal
+	 */
+	public static final int BETWEEN = 10;
 	
 	/**
 	 * Type Setters
@@ -43,16 +58,40 @@ public interface ILogicElement {
 	void isEqualsType();
 	void isLiteralType();
 	void isFetchType();
+	void isLessThanType();
+	void isLessOrEqualType();
+	void isGreaterThanType();
+	void isGreaterOrEqualType();
+	void isBetweenType();
+	/**
+	 * Return the type set by one of the type setters
+	 * @return int one of the local IConstants, or -1 if not set
+	 */
+	int getLogicType();
 	/**
 	 * The interpreter
 	 */
 	boolean eval(ITuple inTuple);
+
+	/**
+	 * The value of an operand element
+	 * @param inTuple
+	 * @return the literal of a LITERAL, the named field of <code>inTuple</code>
+	 *  for a FETCH, or {@code null} for other types
+	 */
+	Object evalOperand(ITuple inTuple);
 	
 	/**
 	 * Add element to operand list
 	 * @param Object is ILogicElement
 	 */
 	void addElement(Object operand);
+
+	/**
+	 * Return the operand list
+	 * @return List of operands, usually ILogicElement
+	 */
+	List<Object> getElements();
 	
 	/**
 	 * Set a literal value
@@ -63,6 +102,13 @@ public interface ILogicElement {
 	 * @return java.lang.Object, a literal value
 	 */
 	Object getLiteral();
+
+	/**
+	 * Set the upper bound of a BETWEEN
+	 */
+	void setUpperLiteral(Object inObject);
+
+	Object getUpperLiteral();
 	
 	/**
 	 * Return true if this element is a literal object
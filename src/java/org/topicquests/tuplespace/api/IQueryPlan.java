@@ -0,0 +1,55 @@
+/*
+ * Copyright 2024 TopicQuests Foundation
+ *  This source code is available under the terms of the Affero General Public License v3.
+ *  Please see LICENSE.txt for full license terms, including the availability of proprietary exceptions.
+ */
+package org.topicquests.tuplespace.api;
+
+/**
+ * How an ITupleSpace will look for the best match to a template.
+ * See {@link ITupleSpace#explain(ITemplate)}
+ * @author jackpark
+ */
+public interface IQueryPlan {
+	/**
+	 * Walk the space in priority order
+	 */
+	public static final String SCAN = "SCAN";
+	/**
+	 * Start from the posting list of one EQUALS test
+	 */
+	public static final String INDEX = "INDEX";
+	/**
+	 * Start from a range of a sorted index
+	 */
+	public static final String RANGE = "RANGE";
+	/**
+	 * Combine bitmap indexes, then pick from the resulting tuples
+	 */
+	public static final String BITMAP = "BITMAP";
+	/**
+	 * Nothing can match
+	 */
+	public static final String EMPTY = "EMPTY";
+
+	/**
+	 * @return one of the access paths above
+	 */
+	String getAccessPath();
+
+	/**
+	 * @return the test whose index drives the search, the first of
+	 *  the tests answered from bitmaps, or {@code null} for SCAN and EMPTY
+	 */
+	ILogicElement getDrivingTest();
+
+	/**
+	 * @return estimated number of tuples tested
+	 */
+	long getEstimatedExamined();
+
+	/**
+	 * @return estimated number of matching tuples in the space
+	 */
+	long getEstimatedMatches();
+}
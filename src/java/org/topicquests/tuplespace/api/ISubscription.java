@@ -0,0 +1,28 @@
+/*
+ * Copyright 2024 TopicQuests Foundation
+ *  This source code is available under the terms of the Affero General Public License v3.
+ *  Please see LICENSE.txt for full license terms, including the availability of proprietary exceptions.
+ */
+package org.topicquests.tuplespace.api;
+
+/**
+ * A standing template registered with an ITupleSpace
+ * @author jackpark
+ */
+public interface ISubscription {
+
+	ITemplate getTemplate();
+
+	/**
+	 * Stop delivery; tuples already queued are discarded
+	 */
+	void cancel();
+
+	boolean isCancelled();
+
+	/**
+	 * @return how many matching tuples were dropped because
+	 *  this subscriber's queue was full
+	 */
+	long getDroppedCount();
+}
@@ -12,10 +12,20 @@ public interface ITemplate extends ITuple {
 
 	/**
 	 * Get ILogicElement for matching
-	 * @return IConstraint -- a class containing FOL for matching
+	 * @return IConstraint -- a class containing FOL for matching;
+	 *  it is frozen, and throws IllegalStateException if changed
 	 */
 	ILogicElement getConstraint();
 	
+	/**
+	 * Use a hand-built ILogicElement tree, e.g. with OR or NOT,
+	 * in place of the one <code>compile()</code> derives. The template
+	 * keeps a frozen copy, so later changes to <code>constraint</code>
+	 * do not reach it; set it again to use them
+	 * @param constraint
+	 */
+	void setConstraint(ILogicElement constraint);
+
 	/**
 	 * Compile an ILogicElement from the tuple's properties
 	 */
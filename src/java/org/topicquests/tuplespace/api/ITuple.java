@@ -93,9 +93,19 @@ public interface ITuple extends Comparable {
 	/**
 	* Returns a copy of the ITuple. Essentially the same
 	* as clone(), but I needed to specify it in the interface.
+	* The copy is never frozen.
 	* @return an exact replica of this ITuple
 	*/
 	ITuple copy();
+
+	/**
+	 * Tuples stored in, or read from, an ITupleSpace are frozen:
+	 * their setters throw IllegalStateException. Use <code>copy()</code>
+	 * to get a tuple that can be changed. A taken tuple is already
+	 * such a copy, so it can be changed and put back.
+	 * @return <code>true</code> if this tuple cannot be modified
+	 */
+	boolean isFrozen();
     
 	/**
 	* Gets the tag associated with this ITuple.
@@ -1,4 +1,5 @@
 package org.topicquests.tuplespace.api;
+import java.util.Collection;
 import java.util.List;
 /*
  * Copyright (c) 2001 Sun Microsystems, Inc.  All rights
@@ -58,26 +59,154 @@ import java.util.List;
  */
 
 import java.util.Iterator;
+import java.util.concurrent.CompletableFuture;
 
+/**
+ * A space stores a frozen copy of each tuple inserted, and reads hand
+ * out the stored instances themselves; see {@link ITuple#isFrozen()}.
+ * The caller's own tuple is left as it was, free to change and insert
+ * again.
+ */
 public interface ITupleSpace
 {
 
+    /**
+     * @param tuple copied; not changed by this call
+     */
     public void insert(ITuple tuple);
 
+    /**
+     * Insert a batch under one lock acquisition
+     * @param tuples each copied, as by <code>insert</code>
+     */
+    void putAll(Collection<? extends ITuple> tuples);
+
     /**
      * @param antiTuple to match
      * @return ITuple or null
      */
     ITuple noWaitRead(ITemplate template);
 
+    /**
+     * Return the best match, waiting for one to be inserted
+     * if none is present
+     * @param template
+     * @param waitTime milliseconds; <code>0</code> or less does not wait
+     * @return ITuple or null
+     */
     ITuple read(ITemplate template, long waitTime);
 
-
+    /**
+     * Remove and return the best match, waiting for one to be inserted
+     * if none is present
+     * @param template
+     * @param waitTime milliseconds; <code>0</code> or less does not wait
+     * @return ITuple or null
+     */
     ITuple take(ITemplate template, long waitTime);
 
+    /**
+     * Remove up to <code>n</code> matches at once
+     * @param template
+     * @param n
+     * @param waitTime if nothing matches, how long to wait for a first match
+     * @return matches in priority order; can be empty
+     */
+    List<ITuple> takeN(ITemplate template, int n, long waitTime);
+
+    /**
+     * Like <code>read</code>, without holding a thread while waiting
+     * @param template
+     * @param waitTime milliseconds; <code>0</code> or less does not wait
+     * @return a future completed with the match, or with {@code null}
+     *  on timeout; cancelling it withdraws the request
+     */
+    CompletableFuture<ITuple> readAsync(ITemplate template, long waitTime);
+
+    /**
+     * Like <code>take</code>, without holding a thread while waiting
+     * @param template
+     * @param waitTime milliseconds; <code>0</code> or less does not wait
+     * @return a future completed with the match, or with {@code null}
+     *  on timeout; cancelling it withdraws the request
+     */
+    CompletableFuture<ITuple> takeAsync(ITemplate template, long waitTime);
+
+    /**
+     * Register a standing template: every tuple inserted from now on
+     * which matches it, including tuples handed straight to a waiting
+     * <code>take</code>, is passed to <code>listener</code>.
+     * Delivery is asynchronous and through a bounded queue; a listener
+     * which falls too far behind loses tuples rather than slowing inserts.
+     * @param template
+     * @param listener
+     * @return the subscription, for cancelling it
+     */
+    ISubscription subscribe(ITemplate template, ITupleSpaceListener listener);
+
+    /**
+     * Keep an ordered index on <code>field</code>, so LT, LE, GT, GE and
+     * BETWEEN tests on it are answered without scanning the space.
+     * Idempotent; indexes the tuples already stored.
+     * @param field
+     */
+    void addSortedIndex(String field);
+
+    /**
+     * Keep a bitmap index on <code>field</code>, so AND, OR and NOT over
+     * its EQUALS tests are answered by bitwise operations. Meant for
+     * fields with few distinct values. Idempotent; indexes the tuples
+     * already stored.
+     * @param field
+     */
+    void addBitmapIndex(String field);
+
+    /**
+     * Describe how a <code>read</code> or <code>take</code> with
+     * <code>template</code> would search this space right now
+     * @param template
+     * @return the plan
+     */
+    IQueryPlan explain(ITemplate template);
+
     boolean internalRemove(ITuple tuple);
+
+    /**
+     * Move a stored tuple to a new priority in O(log n), without
+     * removing and reinserting it
+     * @param tuple the stored tuple, or a copy returned by this space
+     * @param newPriority
+     * @return <code>false</code> if the tuple is no longer in this space
+     */
+    boolean changePriority(ITuple tuple, int newPriority);
+
+    /**
+     * Lower the priority of every tuple in this space by <code>howMuch</code>.
+     * Ordering is unchanged, so this costs O(1) regardless of size.
+     * @param howMuch can be negative
+     */
+    void decay(int howMuch);
+
+    /**
+     * Release the space's resources. A durable space makes its
+     * changes durable and closes its log; later changes are not logged.
+     */
+    void close();
+
+    /**
+     * Save a durable space's contents so that a restart replays
+     * only the changes made after it; other spaces ignore it
+     */
+    void checkpoint();
     
     Iterator<ITuple> tuples();
     
     List<ITuple> collect(ITemplate template); 
+
+    /**
+     * @param template
+     * @param limit
+     * @return the <code>limit</code> best matches in priority order
+     */
+    List<ITuple> collect(ITemplate template, int limit);
 }
@@ -0,0 +1,21 @@
+/*
+ * Copyright 2024 TopicQuests Foundation
+ *  This source code is available under the terms of the Affero General Public License v3.
+ *  Please see LICENSE.txt for full license terms, including the availability of proprietary exceptions.
+ */
+package org.topicquests.tuplespace.api;
+
+/**
+ * Receives tuples matching a standing template as they are inserted.
+ * See {@link ITupleSpace#subscribe(ITemplate, ITupleSpaceListener)}
+ * @author jackpark
+ */
+public interface ITupleSpaceListener {
+
+	/**
+	 * Called on the space's executor, never on the inserting thread,
+	 * and never concurrently for one subscription
+	 * @param tuple the inserted tuple; frozen
+	 */
+	void tupleInserted(ITuple tuple);
+}
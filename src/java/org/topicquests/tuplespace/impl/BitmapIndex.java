@@ -0,0 +1,359 @@
+/*
+ * Copyright 2024 TopicQuests Foundation
+ *  This source code is available under the terms of the Affero General Public License v3.
+ *  Please see LICENSE.txt for full license terms, including the availability of proprietary exceptions.
+ */
+package org.topicquests.tuplespace.impl;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.Predicate;
+
+import org.topicquests.tuplespace.api.ILogicElement;
+import org.topicquests.tuplespace.api.ITuple;
+
+/**
+ * Optional bitmap indexes for a TupleSpace, meant for fields with a
+ * handful of values such as states or kinds.
+ * <p>Every stored tuple gets a dense slot number, recycled on removal,
+ * and each (field, value) a bitmap over the slots. AND, OR and NOT over
+ * EQUALS tests on those fields then become word-at-a-time operations on
+ * the bitmaps; NOT is taken against the bitmap of occupied slots.
+ * Slot numbers stay dense because they are reused, which keeps the
+ * plain bitmaps compact. That is why these are plain bitmaps rather
+ * than compressed ones: over slots this dense, compression would save
+ * little and would cost a dependency and slower word operations.</p>
+ * <p>The owning TupleSpace serializes changes; evaluation needs no
+ * lock. Bitmaps are words read atomically and copied out, so an
+ * evaluation sees a weakly consistent view, like a FieldIndex lookup:
+ * a slot may have been freed, or reused by another tuple, while it ran,
+ * so callers check {@link TupleHandle#live} and match what they get.</p>
+ * @author jackpark
+ */
+class BitmapIndex {
+	/**
+	 * field name -> value -> slots
+	 */
+	private final Map<String, Map<Object, Bits>> fields;
+	private final Bits occupied;
+	/**
+	 * slot -> handle; replaced, not changed in size, when it grows
+	 */
+	private volatile AtomicReferenceArray<TupleHandle> handles;
+	/**
+	 * Lowest possibly free slot; writer only
+	 */
+	private int nextFree = 0;
+
+	BitmapIndex() {
+		fields = new ConcurrentHashMap<String, Map<Object, Bits>>();
+		occupied = new Bits();
+		handles = new AtomicReferenceArray<TupleHandle>(64);
+	}
+
+	/**
+	 * A bitmap one writer changes while readers copy it out without a
+	 * lock: each word is read and written atomically, and the array is
+	 * replaced when it grows
+	 */
+	private static final class Bits {
+		private volatile AtomicLongArray words = new AtomicLongArray(1);
+		/**
+		 * Bits set; writer only
+		 */
+		private int count = 0;
+
+		void set(int i) {
+			int w = i >>> 6;
+			AtomicLongArray a = words;
+			if (w >= a.length()) {
+				AtomicLongArray b = new AtomicLongArray(Math.max(w + 1, a.length() * 2));
+				for (int k = 0; k < a.length(); k++)
+					b.set(k, a.get(k));
+				words = a = b;
+			}
+			long old = a.get(w), v = old | (1L << i);
+			if (v != old) {
+				a.set(w, v);
+				count++;
+			}
+		}
+
+		void clear(int i) {
+			int w = i >>> 6;
+			AtomicLongArray a = words;
+			if (w >= a.length())
+				return;
+			long old = a.get(w), v = old & ~(1L << i);
+			if (v != old) {
+				a.set(w, v);
+				count--;
+			}
+		}
+
+		boolean isEmpty() {
+			return count == 0;
+		}
+
+		/**
+		 * Writer only
+		 * @return the first clear bit at or after <code>from</code>
+		 */
+		int nextClear(int from) {
+			AtomicLongArray a = words;
+			for (int w = from >>> 6; w < a.length(); w++) {
+				long free = ~a.get(w);
+				if (w == (from >>> 6))
+					free &= -1L << from;
+				if (free != 0)
+					return (w << 6) + Long.numberOfTrailingZeros(free);
+			}
+			return Math.max(from, a.length() << 6);
+		}
+
+		/**
+		 * @return a copy to combine with others
+		 */
+		BitSet snapshot() {
+			AtomicLongArray a = words;
+			long [] w = new long[a.length()];
+			for (int k = 0; k < w.length; k++)
+				w[k] = a.get(k);
+			return BitSet.valueOf(w);
+		}
+
+		void clearAll() {
+			words = new AtomicLongArray(1);
+			count = 0;
+		}
+	}
+
+	boolean isEmpty() {
+		return fields.isEmpty();
+	}
+
+	boolean isIndexed(String field) {
+		return fields.containsKey(field);
+	}
+
+	/**
+	 * @return the indexed fields
+	 */
+	List<String> fieldNames() {
+		return new ArrayList<String>(fields.keySet());
+	}
+
+	/**
+	 * Start indexing <code>field</code>; the first field also
+	 * assigns slots to the <code>existing</code> handles
+	 * @param field
+	 * @param existing
+	 */
+	void addField(String field, Iterator<TupleHandle> existing) {
+		if (fields.containsKey(field))
+			return;
+		boolean first = fields.isEmpty();
+		fields.put(field, new ConcurrentHashMap<Object, Bits>());
+		TupleHandle h;
+		while (existing.hasNext()) {
+			h = existing.next();
+			if (first)
+				assign(h);
+			set(field, h);
+		}
+	}
+
+	void add(TupleHandle h) {
+		if (fields.isEmpty())
+			return;
+		assign(h);
+		Iterator<String> itr = fields.keySet().iterator();
+		while (itr.hasNext())
+			set(itr.next(), h);
+	}
+
+	void remove(TupleHandle h) {
+		int slot = h.slot;
+		if (slot < 0)
+			return;
+		Iterator<Map.Entry<String, Map<Object, Bits>>> itr = fields.entrySet().iterator();
+		Map.Entry<String, Map<Object, Bits>> e;
+		Object val;
+		Bits bits;
+		while (itr.hasNext()) {
+			e = itr.next();
+			val = h.tuple.get(e.getKey());
+			if (val == null)
+				continue;
+			bits = e.getValue().get(val);
+			if (bits == null)
+				continue;
+			bits.clear(slot);
+			if (bits.isEmpty())
+				e.getValue().remove(val);
+		}
+		occupied.clear(slot);
+		handles.set(slot, null);
+		h.slot = -1;
+		if (slot < nextFree)
+			nextFree = slot;
+	}
+
+	private void assign(TupleHandle h) {
+		int slot = occupied.nextClear(nextFree);
+		nextFree = slot + 1;
+		AtomicReferenceArray<TupleHandle> hs = handles;
+		if (slot >= hs.length()) {
+			AtomicReferenceArray<TupleHandle> grown =
+				new AtomicReferenceArray<TupleHandle>(Math.max(slot + 1, hs.length() * 2));
+			for (int i = 0; i < hs.length(); i++)
+				grown.set(i, hs.get(i));
+			handles = hs = grown;
+		}
+		hs.set(slot, h);
+		occupied.set(slot);
+		h.slot = slot;
+	}
+
+	private void set(String field, TupleHandle h) {
+		Object val = h.tuple.get(field);
+		if (val == null)
+			return;
+		Map<Object, Bits> values = fields.get(field);
+		Bits bits = values.get(val);
+		if (bits == null) {
+			bits = new Bits();
+			values.put(val, bits);
+		}
+		bits.set(h.slot);
+	}
+
+	/**
+	 * @param el
+	 * @return <code>true</code> if <code>el</code> can be evaluated
+	 *  entirely on bitmaps
+	 */
+	boolean covers(ILogicElement el) {
+		switch (el.getLogicType()) {
+		case ILogicElement.EQUALS:
+			return el.getFieldName() != null && el.getLiteral() != null &&
+					fields.containsKey(el.getFieldName());
+		case ILogicElement.AND:
+		case ILogicElement.OR:
+		case ILogicElement.NOT:
+			Iterator<Object> itr = el.getElements().iterator();
+			Object o;
+			while (itr.hasNext()) {
+				o = itr.next();
+				if (!(o instanceof ILogicElement) || !covers((ILogicElement)o))
+					return false;
+			}
+			return true;
+		default:
+			return false;
+		}
+	}
+
+	/**
+	 * @param tests each covered; ANDed together
+	 * @return slots of the tuples passing every test; a new bitmap
+	 */
+	BitSet eval(List<ILogicElement> tests) {
+		BitSet result = null;
+		Iterator<ILogicElement> itr = tests.iterator();
+		while (itr.hasNext()) {
+			if (result == null)
+				result = eval(itr.next());
+			else
+				result.and(eval(itr.next()));
+			if (result.isEmpty())
+				break;
+		}
+		return (result == null) ? occupied.snapshot() : result;
+	}
+
+	/**
+	 * @param el covered
+	 * @return a new bitmap
+	 */
+	private BitSet eval(ILogicElement el) {
+		BitSet result;
+		Iterator<Object> itr;
+		switch (el.getLogicType()) {
+		case ILogicElement.EQUALS:
+			Map<Object, Bits> values = fields.get(el.getFieldName());
+			Bits bits = (values == null) ? null : values.get(el.getLiteral());
+			return (bits == null) ? new BitSet() : bits.snapshot();
+		case ILogicElement.OR:
+			result = new BitSet();
+			itr = el.getElements().iterator();
+			while (itr.hasNext())
+				result.or(eval((ILogicElement)itr.next()));
+			return result;
+		case ILogicElement.AND:
+		case ILogicElement.NOT:
+			result = occupied.snapshot();
+			itr = el.getElements().iterator();
+			while (itr.hasNext() && !result.isEmpty())
+				result.and(eval((ILogicElement)itr.next()));
+			if (el.getLogicType() == ILogicElement.AND)
+				return result;
+			// NOT is true unless all of its operands are, and false with none
+			if (el.getElements().isEmpty())
+				return new BitSet();
+			BitSet not = occupied.snapshot();
+			not.andNot(result);
+			return not;
+		default:
+			return new BitSet();
+		}
+	}
+
+	/**
+	 * @param slots
+	 * @return the handles in <code>slots</code>, which may include
+	 *  some removed meanwhile
+	 */
+	List<TupleHandle> handles(BitSet slots) {
+		AtomicReferenceArray<TupleHandle> hs = handles;
+		List<TupleHandle> result = new ArrayList<TupleHandle>(slots.cardinality());
+		TupleHandle h;
+		for (int i = slots.nextSetBit(0); i >= 0 && i < hs.length(); i = slots.nextSetBit(i + 1)) {
+			h = hs.get(i);
+			if (h != null)
+				result.add(h);
+		}
+		return result;
+	}
+
+	/**
+	 * @param slots
+	 * @param matcher checks each tuple, as a slot may have been reused
+	 * @return the handle of the highest priority live, matching tuple
+	 *  in <code>slots</code>
+	 */
+	TupleHandle best(BitSet slots, Predicate<ITuple> matcher) {
+		AtomicReferenceArray<TupleHandle> hs = handles;
+		TupleHandle result = null, h;
+		for (int i = slots.nextSetBit(0); i >= 0 && i < hs.length(); i = slots.nextSetBit(i + 1)) {
+			h = hs.get(i);
+			if (h != null && h.live && (result == null || TupleQueue.before(h, result)) &&
+					matcher.test(h.tuple))
+				result = h;
+		}
+		return result;
+	}
+
+	void clear() {
+		fields.clear();
+		occupied.clearAll();
+		handles = new AtomicReferenceArray<TupleHandle>(64);
+		nextFree = 0;
+	}
+}
@@ -0,0 +1,170 @@
+/*
+ * Copyright 2024 TopicQuests Foundation
+ *  This source code is available under the terms of the Affero General Public License v3.
+ *  Please see LICENSE.txt for full license terms, including the availability of proprietary exceptions.
+ */
+package org.topicquests.tuplespace.impl;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * A durable space's tuples as of one log record, so that a restart
+ * loads them and replays only the log records after it.
+ * <p>The file holds a header (magic, version, the lsn covered and the
+ * sorted and bitmap index fields), then each tuple, in insertion order,
+ * as its log id, length and {@link TupleCodec} encoding, at the priority
+ * it had as of that lsn. Tuples are decoded straight from the mapping. It is
+ * written beside its final name and moved over it, so a crash leaves
+ * the previous checkpoint in place, and is read back by mapping it.</p>
+ * @author jackpark
+ */
+final class Checkpoint {
+	private static final int MAGIC = 0x54534350, VERSION = 2;
+
+	/**
+	 * The lsn the checkpoint covers
+	 */
+	final long lsn;
+	final long [] ids;
+	final TupleImpl [] tuples;
+	final int [] priorities;
+	final List<String> sortedFields;
+	final List<String> bitmapFields;
+
+	/**
+	 * A snapshot, read without the space lock; the tuples are
+	 * frozen, so they are encoded later without it too
+	 * @param lsn
+	 * @param ids each tuple's log id
+	 * @param tuples
+	 * @param priorities each tuple's effective priority
+	 * @param sortedFields
+	 * @param bitmapFields
+	 */
+	Checkpoint(long lsn, long [] ids, TupleImpl [] tuples, int [] priorities,
+			List<String> sortedFields, List<String> bitmapFields) {
+		this.lsn = lsn;
+		this.ids = ids;
+		this.tuples = tuples;
+		this.priorities = priorities;
+		this.sortedFields = sortedFields;
+		this.bitmapFields = bitmapFields;
+	}
+
+	/**
+	 * Write the snapshot to <code>file</code>, replacing any earlier one
+	 * once it is durable
+	 * @param file
+	 * @throws IOException
+	 */
+	void write(File file) throws IOException {
+		File tmp = new File(file.getPath()+".tmp");
+		FileOutputStream fos = new FileOutputStream(tmp);
+		try {
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fos, 64 * 1024));
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeLong(lsn);
+			writeStrings(out, sortedFields);
+			writeStrings(out, bitmapFields);
+			out.writeInt(tuples.length);
+			TupleCodec codec = new TupleCodec();
+			ByteBuffer b = ByteBuffer.allocate(4096);
+			for (int i = 0; i < tuples.length; i++) {
+				while (true) {
+					b.clear();
+					try {
+						codec.encode(tuples[i], priorities[i], b);
+						break;
+					} catch (BufferOverflowException e) {
+						b = ByteBuffer.allocate(b.capacity() * 2);
+					}
+				}
+				out.writeLong(ids[i]);
+				out.writeInt(b.position());
+				out.write(b.array(), 0, b.position());
+			}
+			out.flush();
+			fos.getChannel().force(true);
+		} finally {
+			fos.close();
+		}
+		Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+				StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	private static void writeStrings(DataOutputStream out, List<String> strings) throws IOException {
+		out.writeInt(strings.size());
+		Iterator<String> itr = strings.iterator();
+		byte [] b;
+		while (itr.hasNext()) {
+			b = itr.next().getBytes(StandardCharsets.UTF_8);
+			out.writeInt(b.length);
+			out.write(b);
+		}
+	}
+
+	/**
+	 * Map <code>file</code> and hand its tuples, in order, to <code>replay</code>
+	 * @param file need not exist
+	 * @param replay receives each tuple with its log id
+	 * @param sortedFields receives the sorted index fields
+	 * @param bitmapFields receives the bitmap index fields
+	 * @return the lsn the checkpoint covers, or 0 if there is none
+	 * @throws IOException if the file is not a checkpoint
+	 */
+	static long load(File file, WriteAheadLog.Replay replay,
+			List<String> sortedFields, List<String> bitmapFields) throws IOException {
+		if (!file.exists())
+			return 0;
+		FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+		try {
+			MappedByteBuffer in = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+			if (in.getInt() != MAGIC || in.getInt() != VERSION)
+				throw new IOException("Not a checkpoint: "+file);
+			long lsn = in.getLong();
+			readStrings(in, sortedFields);
+			readStrings(in, bitmapFields);
+			int n = in.getInt();
+			TupleCodec codec = new TupleCodec();
+			long id;
+			int end;
+			TupleImpl t;
+			for (int i = 0; i < n; i++) {
+				id = in.getLong();
+				end = in.getInt() + in.position();
+				t = codec.decode(in);
+				if (in.position() != end)
+					throw new IOException("Damaged checkpoint: "+file);
+				replay.insert(id, t);
+			}
+			return lsn;
+		} finally {
+			channel.close();
+		}
+	}
+
+	private static void readStrings(MappedByteBuffer in, List<String> strings) {
+		int n = in.getInt();
+		byte [] b;
+		for (int i = 0; i < n; i++) {
+			b = new byte[in.getInt()];
+			in.get(b);
+			strings.add(new String(b, StandardCharsets.UTF_8));
+		}
+	}
+}
@@ -0,0 +1,150 @@
+/*
+ * Copyright 2024 TopicQuests Foundation
+ *  This source code is available under the terms of the Affero General Public License v3.
+ *  Please see LICENSE.txt for full license terms, including the availability of proprietary exceptions.
+ */
+package org.topicquests.tuplespace.impl;
+
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.topicquests.tuplespace.api.ITuple;
+
+/**
+ * Secondary index for a TupleSpace: maps (field name, value)
+ * to the handles of stored tuples carrying that value.
+ * <p>Built from concurrent maps and sets so lookups need no lock;
+ * the owning TupleSpace serializes <code>add</code> and
+ * <code>remove</code>. A lookup may still see a handle that is being
+ * removed, so readers check {@link TupleHandle#live}.</p>
+ * @author jackpark
+ */
+class FieldIndex {
+	/**
+	 * field name -> value -> posting list
+	 */
+	private Map<String, Map<Object, Set<TupleHandle>>> postings;
+	/**
+	 * field name -> number of indexed tuples carrying it
+	 */
+	private Map<String, AtomicInteger> carrying;
+
+	FieldIndex() {
+		postings = new ConcurrentHashMap<String, Map<Object, Set<TupleHandle>>>();
+		carrying = new ConcurrentHashMap<String, AtomicInteger>();
+	}
+
+	/**
+	 * Index every non-null field of <code>h</code>'s tuple
+	 * @param h
+	 */
+	void add(TupleHandle h) {
+		ITuple tup = h.tuple;
+		Iterator<String> itr = tup.fieldNames().iterator();
+		String name;
+		Object val;
+		Map<Object, Set<TupleHandle>> values;
+		Set<TupleHandle> posting;
+		while (itr.hasNext()) {
+			name = itr.next();
+			val = tup.get(name);
+			if (val == null)
+				continue;
+			values = postings.get(name);
+			if (values == null) {
+				values = new ConcurrentHashMap<Object, Set<TupleHandle>>();
+				postings.put(name, values);
+			}
+			posting = values.get(val);
+			if (posting == null) {
+				posting = ConcurrentHashMap.newKeySet();
+				values.put(val, posting);
+			}
+			if (posting.add(h)) {
+				AtomicInteger n = carrying.get(name);
+				if (n == null) {
+					n = new AtomicInteger();
+					carrying.put(name, n);
+				}
+				n.incrementAndGet();
+			}
+		}
+	}
+
+	/**
+	 * Remove <code>h</code> from every posting list it is on
+	 * @param h
+	 */
+	void remove(TupleHandle h) {
+		ITuple tup = h.tuple;
+		Iterator<String> itr = tup.fieldNames().iterator();
+		String name;
+		Object val;
+		Map<Object, Set<TupleHandle>> values;
+		Set<TupleHandle> posting;
+		while (itr.hasNext()) {
+			name = itr.next();
+			val = tup.get(name);
+			if (val == null)
+				continue;
+			values = postings.get(name);
+			if (values == null)
+				continue;
+			posting = values.get(val);
+			if (posting == null)
+				continue;
+			if (posting.remove(h)) {
+				AtomicInteger n = carrying.get(name);
+				if (n != null && n.decrementAndGet() == 0)
+					carrying.remove(name);
+			}
+			if (posting.isEmpty()) {
+				values.remove(val);
+				if (values.isEmpty())
+					postings.remove(name);
+			}
+		}
+	}
+
+	/**
+	 * @param name
+	 * @param value
+	 * @return the posting list for (name, value); empty, never {@code null}
+	 */
+	Set<TupleHandle> lookup(String name, Object value) {
+		Map<Object, Set<TupleHandle>> values = postings.get(name);
+		if (values == null)
+			return Collections.emptySet();
+		Set<TupleHandle> result = values.get(value);
+		if (result == null)
+			return Collections.emptySet();
+		return result;
+	}
+
+	/**
+	 * @param name
+	 * @return how many stored tuples carry a non-null <code>name</code>
+	 */
+	int carrying(String name) {
+		AtomicInteger result = carrying.get(name);
+		return (result == null) ? 0 : result.get();
+	}
+
+	/**
+	 * @param name
+	 * @return how many distinct values <code>name</code> has
+	 */
+	int distinct(String name) {
+		Map<Object, Set<TupleHandle>> values = postings.get(name);
+		return (values == null) ? 0 : values.size();
+	}
+
+	void clear() {
+		postings.clear();
+		carrying.clear();
+	}
+}
@@ -13,6 +13,9 @@ package org.topicquests.tuplespace.impl;
  */
 
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
 
 import org.topicquests.tuplespace.api.ILogicElement;
 import org.topicquests.tuplespace.api.ITuple;
@@ -26,25 +29,82 @@ public class LogicElementImpl implements ILogicElement {
 	 * literal object
 	 */
 	private Object literal = null;
+	/**
+	 * upper bound of a BETWEEN
+	 */
+	private Object upperLiteral = null;
 	
 	private String fieldKey = null;
 	/**
 	 * What type of ILogicElement am I?
 	 */
 	private int myLogicType = -1;
+	/**
+	 * Set once a template holds this element: it has been compiled,
+	 * and changing it would leave the compiled matcher stale
+	 */
+	private boolean frozen = false;
 	/**
 	 * Constructor. 
 	 */
 	public LogicElementImpl() {}
+
+	/**
+	 * @param el
+	 * @return a frozen deep copy of <code>el</code>; operands which
+	 *  are not elements are shared
+	 */
+	static LogicElementImpl frozenCopy(ILogicElement el) {
+		LogicElementImpl result = new LogicElementImpl();
+		result.myLogicType = el.getLogicType();
+		result.fieldKey = el.getFieldName();
+		result.literal = el.getLiteral();
+		result.upperLiteral = el.getUpperLiteral();
+		Iterator<Object> itr = el.getElements().iterator();
+		Object o;
+		while (itr.hasNext()) {
+			o = itr.next();
+			result.elements.add((o instanceof ILogicElement) ? frozenCopy((ILogicElement)o) : o);
+		}
+		result.frozen = true;
+		return result;
+	}
+
+	/**
+	 * Freeze this element and the elements under it
+	 */
+	void freeze() {
+		frozen = true;
+		Iterator<Object> itr = elements.iterator();
+		Object o;
+		while (itr.hasNext()) {
+			o = itr.next();
+			if (o instanceof LogicElementImpl)
+				((LogicElementImpl)o).freeze();
+		}
+	}
+
+	private void checkMutable() {
+		if (frozen)
+			throw new IllegalStateException("LogicElement is frozen; build a new one and set it again");
+	}
+
 	/**
 	 * Type Setters
 	 */
-	public void isOrType() { this.myLogicType=OR; }
-	public void isAndType() { this.myLogicType=AND; }
-	public void isNotType() { this.myLogicType=NOT; }
-	public void isEqualsType() { this.myLogicType=EQUALS; }
-	public void isLiteralType() { this.myLogicType=LITERAL; }
-	public void isFetchType() { this.myLogicType=FETCH; }
+	public void isOrType() { checkMutable(); this.myLogicType=OR; }
+	public void isAndType() { checkMutable(); this.myLogicType=AND; }
+	public void isNotType() { checkMutable(); this.myLogicType=NOT; }
+	public void isEqualsType() { checkMutable(); this.myLogicType=EQUALS; }
+	public void isLiteralType() { checkMutable(); this.myLogicType=LITERAL; }
+	public void isFetchType() { checkMutable(); this.myLogicType=FETCH; }
+	public void isLessThanType() { checkMutable(); this.myLogicType=LT; }
+	public void isLessOrEqualType() { checkMutable(); this.myLogicType=LE; }
+	public void isGreaterThanType() { checkMutable(); this.myLogicType=GT; }
+	public void isGreaterOrEqualType() { checkMutable(); this.myLogicType=GE; }
+	public void isBetweenType() { checkMutable(); this.myLogicType=BETWEEN; }
+
+	public int getLogicType() { return this.myLogicType; }
 
 	//////////////////////////
 	// Interpreters
@@ -62,6 +122,8 @@ public class LogicElementImpl implements ILogicElement {
 			return evalNOT(inTuple);
 		else if (myLogicType==EQUALS)
 			return evalEQUALS(inTuple);
+		else if (myLogicType>=LT && myLogicType<=BETWEEN)
+			return evalCOMPARE(inTuple);
 		//FIXME: need some error message if we fall out here
 		return false;
 	}
@@ -109,6 +171,7 @@ public class LogicElementImpl implements ILogicElement {
 	 *	all elements must be literals or fetchliterals
 	 *	eval fails if any element is not a literal or fetchliteral
 	 *	eval fails if any element not equal
+	 *	eval fails if the tuple lacks the field
 	 * @return boolean true if match occurs
 	 */
 	public boolean evalEQUALS(ITuple inTuple) {
@@ -116,26 +179,89 @@ public class LogicElementImpl implements ILogicElement {
 		String fieldKey = null;
 		// setup first field
 		fieldKey = this.getFieldName(); //.getFieldName();
+		if (fieldKey == null && elements.size() > 1) {
+			// operand form: all operand values equal
+			Object first = operand(0, inTuple);
+			if (first == null)
+				return false;
+			for (int i = 1; i < elements.size(); i++)
+				if (!first.equals(operand(i, inTuple)))
+					return false;
+			return true;
+		}
 		obj2 = inTuple.get(fieldKey);
-		return (obj2.equals(this.getLiteral()));
+		// a tuple without the field does not match
+		return (obj2 != null && obj2.equals(this.getLiteral()));
+	}
+
+	/**
+	 * The LT, LE, GT, GE and BETWEEN interpreter
+	 * Compares the field against the literal (and upper literal),
+	 * or, with no field name, the first operand against the second
+	 * (and third)
+	 * @return boolean true if match occurs
+	 */
+	public boolean evalCOMPARE(ITuple inTuple) {
+		Object value, low, high;
+		if (fieldKey != null) {
+			value = inTuple.get(fieldKey);
+			low = literal;
+			high = upperLiteral;
+		} else {
+			value = operand(0, inTuple);
+			low = operand(1, inTuple);
+			high = operand(2, inTuple);
+		}
+		if (!ValueOrder.comparable(value, low))
+			return false;
+		int cmp = ValueOrder.compare(value, low);
+		switch (myLogicType) {
+		case LT: return cmp < 0;
+		case LE: return cmp <= 0;
+		case GT: return cmp > 0;
+		case GE: return cmp >= 0;
+		default:
+			return cmp >= 0 && ValueOrder.comparable(value, high) &&
+					ValueOrder.compare(value, high) <= 0;
+		}
+	}
+
+	public Object evalOperand(ITuple inTuple) {
+		if (myLogicType==LITERAL)
+			return literal;
+		if (myLogicType==FETCH)
+			return (fieldKey == null) ? null : inTuple.get(fieldKey);
+		return null;
+	}
+
+	/**
+	 * @param i
+	 * @param inTuple
+	 * @return the value of operand <code>i</code>; a raw object
+	 *  operand is its own value
+	 */
+	private Object operand(int i, ITuple inTuple) {
+		if (i >= elements.size())
+			return null;
+		Object o = elements.get(i);
+		return (o instanceof ILogicElement) ? ((ILogicElement)o).evalOperand(inTuple) : o;
 	}
 	/**
 	 * The NOT interpreter
+	 *	true if any element fails, i.e. NOT of the AND of the elements
 	 *	This will fail if any element is a literal or fetchliteral
 	 * @return boolean true if match occurs
 	 */
 	public boolean evalNOT(ITuple inTuple) {
-		boolean result = false;
 		int elementLength = elements.size();
 		ILogicElement op1 = null;
 		for (int i = 0; i < elementLength; i++) {
 			// setup second op
 			op1 = (ILogicElement)elements.get(i);
-			result = op1.eval(inTuple);
-			if (!result)
+			if (!op1.eval(inTuple))
 				return true;
 		}
-		return result;
+		return false;
 	}
 	//////////////
 	// support methods
@@ -145,21 +271,35 @@ public class LogicElementImpl implements ILogicElement {
 	 * @param Object is LogicElement
 	 */
 	public void addElement(Object operand) {
+		checkMutable();
 		this.elements.add(operand);
 	}
 
+	/**
+	 * Return the operand list
+	 * @return List of operands; unmodifiable if frozen
+	 */
+	public List<Object> getElements() {
+		if (frozen)
+			return Collections.unmodifiableList(this.elements);
+		return this.elements;
+	}
+
 	/**
 	 * Clear elements -- for recycling
 	 */
 	public void clearElements() {
+		checkMutable();
 		this.elements.clear();
 		this.literal = null;
+		this.upperLiteral = null;
 	}
 
 	/**
 	 * Set a literal value
 	 */
 	public void setLiteral(Object inObject) {
+		checkMutable();
 		this.literal = inObject;
 	}
 	/**
@@ -169,6 +309,15 @@ public class LogicElementImpl implements ILogicElement {
 	public Object getLiteral() {
 		return this.literal;
 	}
+	public void setUpperLiteral(Object inObject) {
+		checkMutable();
+		this.upperLiteral = inObject;
+	}
+
+	public Object getUpperLiteral() {
+		return this.upperLiteral;
+	}
+
 	/**
 	 * Return true if this element is a literal object
 	 * @return boolean
@@ -179,6 +328,7 @@ public class LogicElementImpl implements ILogicElement {
 	 * @param String literal name--a field name in a Tuple
 	 */
 	public void setFieldName(String fieldName) {
+		checkMutable();
 		this.fieldKey=fieldName;
 	}
 	/**
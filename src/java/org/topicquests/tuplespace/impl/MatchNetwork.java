@@ -0,0 +1,223 @@
+/*
+ * Copyright 2024 TopicQuests Foundation
+ *  This source code is available under the terms of the Affero General Public License v3.
+ *  Please see LICENSE.txt for full license terms, including the availability of proprietary exceptions.
+ */
+package org.topicquests.tuplespace.impl;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.topicquests.tuplespace.api.ILogicElement;
+import org.topicquests.tuplespace.api.ITemplate;
+import org.topicquests.tuplespace.api.ITuple;
+
+/**
+ * Discrimination network over standing templates: the waiters or
+ * subscribers of a TupleSpace.
+ * <p>Each template is filed under one of its EQUALS tests, by field name
+ * and then literal value; templates without one go on a residual list.
+ * An inserted tuple is tested once per field name in the network,
+ * by a single hash probe on its value which serves every template
+ * testing that field, so it only reaches the templates that can match
+ * it. Those candidates must still be matched in full.</p>
+ * <p>Not thread safe; the owning TupleSpace guards it with its lock.</p>
+ * @author jackpark
+ * @param <T> the object registered with each template
+ */
+class MatchNetwork<T> {
+	private static final Comparator<Entry<?>> BY_SEQ = new Comparator<Entry<?>>() {
+		public int compare(Entry<?> a, Entry<?> b) {
+			return (a.seq < b.seq) ? -1 : (a.seq == b.seq ? 0 : 1);
+		}
+	};
+
+	/**
+	 * A registered template
+	 */
+	static final class Entry<T> {
+		final long seq;
+		final ITemplate template;
+		final T value;
+		/**
+		 * The EQUALS test it is filed under; {@code null} if residual
+		 */
+		final String field;
+		final Object literal;
+
+		Entry(long seq, ITemplate template, T value, String field, Object literal) {
+			this.seq = seq;
+			this.template = template;
+			this.value = value;
+			this.field = field;
+			this.literal = literal;
+		}
+	}
+
+	/**
+	 * field name -> literal -> entries in registration order
+	 */
+	private final Map<String, Map<Object, Set<Entry<T>>>> tests;
+	private final Set<Entry<T>> residual;
+	private long nextSeq = 0;
+	private int size = 0;
+
+	MatchNetwork() {
+		tests = new HashMap<String, Map<Object, Set<Entry<T>>>>();
+		residual = new LinkedHashSet<Entry<T>>();
+	}
+
+	/**
+	 * @param template
+	 * @param value
+	 * @return the entry, for <code>remove</code>
+	 */
+	Entry<T> add(ITemplate template, T value) {
+		ILogicElement test = discriminator(template.getConstraint());
+		Entry<T> result;
+		if (test == null) {
+			result = new Entry<T>(nextSeq++, template, value, null, null);
+			residual.add(result);
+		} else {
+			result = new Entry<T>(nextSeq++, template, value, test.getFieldName(), test.getLiteral());
+			Map<Object, Set<Entry<T>>> values = tests.get(result.field);
+			if (values == null) {
+				values = new HashMap<Object, Set<Entry<T>>>();
+				tests.put(result.field, values);
+			}
+			Set<Entry<T>> entries = values.get(result.literal);
+			if (entries == null) {
+				entries = new LinkedHashSet<Entry<T>>();
+				values.put(result.literal, entries);
+			}
+			entries.add(result);
+		}
+		size++;
+		return result;
+	}
+
+	/**
+	 * @param e
+	 * @return <code>false</code> if <code>e</code> was already removed
+	 */
+	boolean remove(Entry<T> e) {
+		boolean result;
+		if (e.field == null)
+			result = residual.remove(e);
+		else {
+			result = false;
+			Map<Object, Set<Entry<T>>> values = tests.get(e.field);
+			if (values != null) {
+				Set<Entry<T>> entries = values.get(e.literal);
+				if (entries != null) {
+					result = entries.remove(e);
+					if (entries.isEmpty()) {
+						values.remove(e.literal);
+						if (values.isEmpty())
+							tests.remove(e.field);
+					}
+				}
+			}
+		}
+		if (result)
+			size--;
+		return result;
+	}
+
+	boolean isEmpty() {
+		return size == 0;
+	}
+
+	int size() {
+		return size;
+	}
+
+	/**
+	 * @param tup
+	 * @return entries whose filed test <code>tup</code> passes,
+	 *  in registration order
+	 */
+	List<Entry<T>> candidates(ITuple tup) {
+		List<Entry<T>> result = new ArrayList<Entry<T>>();
+		if (size == 0)
+			return result;
+		int sources = 0;
+		Iterator<Map.Entry<String, Map<Object, Set<Entry<T>>>>> itr = tests.entrySet().iterator();
+		Map.Entry<String, Map<Object, Set<Entry<T>>>> field;
+		Object v;
+		Set<Entry<T>> entries;
+		while (itr.hasNext()) {
+			field = itr.next();
+			v = tup.get(field.getKey());
+			if (v == null)
+				continue;
+			entries = field.getValue().get(v);
+			if (entries != null) {
+				result.addAll(entries);
+				sources++;
+			}
+		}
+		if (!residual.isEmpty()) {
+			result.addAll(residual);
+			sources++;
+		}
+		// each source is in order already; only a mix needs sorting
+		if (sources > 1)
+			Collections.sort(result, BY_SEQ);
+		return result;
+	}
+
+	/**
+	 * Pick the EQUALS test to file a template under: the constraint
+	 * itself, or a child of a top-level AND. The most selective child
+	 * wins, judged by how many templates already share its test; on a
+	 * tie, one on a field already in the network, so inserts probe as
+	 * few fields as possible.
+	 * @param root
+	 * @return an EQUALS element, or {@code null}
+	 */
+	private ILogicElement discriminator(ILogicElement root) {
+		if (root == null)
+			return null;
+		if (isTest(root))
+			return root;
+		if (root.getLogicType() != ILogicElement.AND)
+			return null;
+		ILogicElement result = null;
+		int best = Integer.MAX_VALUE, shared;
+		boolean bestKnown = false, known;
+		Iterator<Object> itr = root.getElements().iterator();
+		Object o;
+		ILogicElement el;
+		Map<Object, Set<Entry<T>>> values;
+		Set<Entry<T>> entries;
+		while (itr.hasNext()) {
+			o = itr.next();
+			if (!(o instanceof ILogicElement) || !isTest((ILogicElement)o))
+				continue;
+			el = (ILogicElement)o;
+			values = tests.get(el.getFieldName());
+			known = values != null;
+			entries = known ? values.get(el.getLiteral()) : null;
+			shared = (entries == null) ? 0 : entries.size();
+			if (shared < best || (shared == best && known && !bestKnown)) {
+				result = el;
+				best = shared;
+				bestKnown = known;
+			}
+		}
+		return result;
+	}
+
+	private static boolean isTest(ILogicElement el) {
+		return el.getLogicType() == ILogicElement.EQUALS &&
+				el.getFieldName() != null && el.getLiteral() != null;
+	}
+}
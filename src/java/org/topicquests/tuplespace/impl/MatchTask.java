@@ -0,0 +1,73 @@
+/*
+ * Copyright 2024 TopicQuests Foundation
+ *  This source code is available under the terms of the Affero General Public License v3.
+ *  Please see LICENSE.txt for full license terms, including the availability of proprietary exceptions.
+ */
+package org.topicquests.tuplespace.impl;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.function.Predicate;
+
+import org.topicquests.tuplespace.api.ITuple;
+
+/**
+ * Fork/join match over a snapshot of handles: the snapshot is split
+ * in halves down to chunks of {@link #CHUNK}, each chunk is matched
+ * on its own worker, and the hits are joined back in snapshot order.
+ * A snapshot taken in priority order therefore yields hits in
+ * priority order without a merge.
+ * @author jackpark
+ */
+class MatchTask extends RecursiveTask<List<TupleHandle>> {
+	private static final long serialVersionUID = 1L;
+	/**
+	 * Handles matched sequentially by one task
+	 */
+	static final int CHUNK = 2048;
+
+	private final TupleHandle [] handles;
+	private final int from, to;
+	private final Predicate<ITuple> matcher;
+
+	MatchTask(TupleHandle [] handles, int from, int to, Predicate<ITuple> matcher) {
+		this.handles = handles;
+		this.from = from;
+		this.to = to;
+		this.matcher = matcher;
+	}
+
+	/**
+	 * @param handles
+	 * @param matcher
+	 * @return the live handles whose tuples <code>matcher</code>
+	 *  accepts, in their order in <code>handles</code>
+	 */
+	static List<TupleHandle> match(List<TupleHandle> handles, Predicate<ITuple> matcher) {
+		TupleHandle [] hs = handles.toArray(new TupleHandle[handles.size()]);
+		return ForkJoinPool.commonPool().invoke(new MatchTask(hs, 0, hs.length, matcher));
+	}
+
+	@Override
+	protected List<TupleHandle> compute() {
+		if (to - from <= CHUNK) {
+			List<TupleHandle> result = new ArrayList<TupleHandle>();
+			TupleHandle h;
+			for (int i = from; i < to; i++) {
+				h = handles[i];
+				if (h.live && matcher.test(h.tuple))
+					result.add(h);
+			}
+			return result;
+		}
+		int mid = (from + to) >>> 1;
+		MatchTask left = new MatchTask(handles, from, mid, matcher);
+		left.fork();
+		List<TupleHandle> right = new MatchTask(handles, mid, to, matcher).compute();
+		List<TupleHandle> result = left.join();
+		result.addAll(right);
+		return result;
+	}
+}
@@ -0,0 +1,130 @@
+/*
+ * Copyright 2024 TopicQuests Foundation
+ *  This source code is available under the terms of the Affero General Public License v3.
+ *  Please see LICENSE.txt for full license terms, including the availability of proprietary exceptions.
+ */
+package org.topicquests.tuplespace.impl;
+
+import java.util.List;
+import java.util.function.Predicate;
+
+import org.topicquests.tuplespace.api.ILogicElement;
+import org.topicquests.tuplespace.api.IQueryPlan;
+import org.topicquests.tuplespace.api.ITuple;
+
+/**
+ * A template planned against one space's statistics. Cached on the
+ * template and reused until the space's size drifts; the index lists
+ * themselves are looked up again on every use.
+ * <p>As an IQueryPlan it describes a single-match search,
+ * as by <code>read</code> or <code>take</code>.</p>
+ * @author jackpark
+ */
+class QueryPlan implements IQueryPlan {
+	final QueryPlanner planner;
+	/**
+	 * Space size when planned
+	 */
+	final int size;
+	/**
+	 * INDEX, RANGE, BITMAP, EMPTY, or SCAN if no index applies
+	 */
+	final String access;
+	/**
+	 * Test whose index drives an INDEX or RANGE search
+	 */
+	final ILogicElement driver;
+	/**
+	 * EQUALS tests whose posting lists must also hold a candidate
+	 */
+	final List<ILogicElement> postings;
+	/**
+	 * Tests answered from bitmaps, ANDed, for a BITMAP plan
+	 */
+	final List<ILogicElement> bitmapTests;
+	/**
+	 * <code>true</code> if the bitmaps answer the whole constraint, so
+	 * no other index is consulted; their tuples are still matched, as
+	 * bitmaps are read without the space lock
+	 */
+	final boolean exact;
+	/**
+	 * Estimated candidates the driver yields
+	 */
+	final long driverRows;
+	final long matches;
+	/**
+	 * The constraint compiled with its operands ordered by selectivity
+	 */
+	final Predicate<ITuple> matcher;
+
+	QueryPlan(QueryPlanner planner, int size, String access, ILogicElement driver,
+			List<ILogicElement> postings, List<ILogicElement> bitmapTests, boolean exact,
+			long driverRows, long matches, Predicate<ITuple> matcher) {
+		this.planner = planner;
+		this.size = size;
+		this.access = access;
+		this.driver = driver;
+		this.postings = postings;
+		this.bitmapTests = bitmapTests;
+		this.exact = exact;
+		this.driverRows = driverRows;
+		this.matches = matches;
+		this.matcher = matcher;
+	}
+
+	/**
+	 * @param limit matches wanted
+	 * @param n space size
+	 * @return <code>true</code> if walking the space in priority order,
+	 *  which can stop after <code>limit</code> hits, beats the index
+	 */
+	boolean scans(int limit, int n) {
+		if (access == SCAN)
+			return true;
+		if (access == EMPTY)
+			return false;
+		return scanned(limit, n) < driverRows;
+	}
+
+	/**
+	 * @return estimated tuples a scan tests before finding <code>limit</code> hits
+	 */
+	long scanned(int limit, int n) {
+		if (matches <= 0)
+			return n;
+		double result = (double)limit * n / matches;
+		return (result >= n) ? n : (long)Math.ceil(result);
+	}
+
+	@Override
+	public String getAccessPath() {
+		return scans(1, size) ? SCAN : access;
+	}
+
+	@Override
+	public ILogicElement getDrivingTest() {
+		return scans(1, size) ? null : driver;
+	}
+
+	@Override
+	public long getEstimatedExamined() {
+		return scans(1, size) ? scanned(1, size) : driverRows;
+	}
+
+	@Override
+	public long getEstimatedMatches() {
+		return matches;
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder buf = new StringBuilder(getAccessPath());
+		ILogicElement d = getDrivingTest();
+		if (d != null)
+			buf.append(" on "+((d.getFieldName() != null) ? d.getFieldName() : "compound test"));
+		buf.append(": examine ~"+getEstimatedExamined()+" of "+size+
+				", ~"+matches+" matching");
+		return buf.toString();
+	}
+}
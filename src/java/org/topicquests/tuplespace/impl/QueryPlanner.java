@@ -0,0 +1,228 @@
+/*
+ * Copyright 2024 TopicQuests Foundation
+ *  This source code is available under the terms of the Affero General Public License v3.
+ *  Please see LICENSE.txt for full license terms, including the availability of proprietary exceptions.
+ */
+package org.topicquests.tuplespace.impl;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+
+import org.topicquests.tuplespace.api.ILogicElement;
+import org.topicquests.tuplespace.api.IQueryPlan;
+import org.topicquests.tuplespace.api.ITemplate;
+
+/**
+ * Plans template searches for one TupleSpace from the statistics its
+ * indexes keep: posting list sizes, the number of tuples carrying each
+ * field, and the size of the space.
+ * <p>The plan picks the cheapest index to drive a search, bitmaps
+ * included, or a scan in priority order when that should reach the
+ * wanted matches sooner, and compiles the constraint with its AND, OR and NOT operands ordered
+ * by estimated selectivity and cost.</p>
+ * @author jackpark
+ */
+class QueryPlanner implements TemplateCompiler.Estimator {
+	/**
+	 * Assumed fraction of a field's values inside a comparison's range,
+	 * when its sorted index cannot say
+	 */
+	static final double RANGE_SELECTIVITY = 1.0 / 3;
+	/**
+	 * Assumed selectivity when nothing better is known
+	 */
+	static final double UNKNOWN_SELECTIVITY = 0.5;
+	/**
+	 * Replan a cached plan once the space has grown or shrunk
+	 * by this factor, plus a little slack for small spaces
+	 */
+	private static final int DRIFT = 2, SLACK = 64;
+
+	private final TupleQueue tuples;
+	private final FieldIndex index;
+	private final SortedIndex sorted;
+	private final BitmapIndex bitmaps;
+
+	QueryPlanner(TupleQueue tuples, FieldIndex index, SortedIndex sorted, BitmapIndex bitmaps) {
+		this.tuples = tuples;
+		this.index = index;
+		this.sorted = sorted;
+		this.bitmaps = bitmaps;
+	}
+
+	/**
+	 * @param template
+	 * @return the template's cached plan, or a new one
+	 */
+	QueryPlan plan(ITemplate template) {
+		int n = tuples.size();
+		TemplateImpl t = (template instanceof TemplateImpl) ? (TemplateImpl)template : null;
+		QueryPlan result = (t == null) ? null : t.getPlan();
+		if (result != null && result.planner == this &&
+				n <= DRIFT * result.size + SLACK && result.size <= DRIFT * n + SLACK)
+			return result;
+		result = build(template.getConstraint(), n);
+		if (t != null)
+			t.setPlan(result);
+		return result;
+	}
+
+	private QueryPlan build(ILogicElement root, int n) {
+		if (root == null)
+			return new QueryPlan(this, n, IQueryPlan.EMPTY, null,
+					Collections.<ILogicElement>emptyList(), null, false, 0, 0, TemplateCompiler.NEVER);
+		Iterator<Object> itr;
+		if (root.getLogicType() == ILogicElement.AND)
+			itr = root.getElements().iterator();
+		else
+			itr = Collections.<Object>singletonList(root).iterator();
+		List<ILogicElement> equals = new ArrayList<ILogicElement>();
+		String access = IQueryPlan.SCAN;
+		ILogicElement driver = null;
+		long rows = Long.MAX_VALUE, r;
+		Object o;
+		ILogicElement el;
+		while (itr.hasNext()) {
+			o = itr.next();
+			if (!(o instanceof ILogicElement))
+				continue;
+			el = (ILogicElement)o;
+			if (isIndexedEquals(el)) {
+				equals.add(el);
+				r = index.lookup(el.getFieldName(), el.getLiteral()).size();
+				if (r < rows) {
+					driver = el;
+					rows = r;
+					access = (r == 0) ? IQueryPlan.EMPTY : IQueryPlan.INDEX;
+				}
+			} else if (isRange(el) && el.getFieldName() != null &&
+					sorted.isIndexed(el.getFieldName()) && ValueOrder.isIndexable(el.getLiteral())) {
+				r = (long)Math.ceil(index.carrying(el.getFieldName()) * rangeFraction(el));
+				if (r < rows) {
+					driver = el;
+					rows = r;
+					access = IQueryPlan.RANGE;
+				}
+			}
+		}
+		List<ILogicElement> bits = null;
+		boolean exact = false;
+		if (!bitmaps.isEmpty()) {
+			// bitmaps can answer OR and NOT as well, where the other indexes cannot
+			bits = bitmapTests(root);
+			exact = bits != null && bits.size() == 1 && bits.get(0) == root;
+			if (bits != null) {
+				r = Math.round(conjunction(bits) * n);
+				if (r < rows) {
+					driver = bits.get(0);
+					rows = r;
+					access = IQueryPlan.BITMAP;
+				} else {
+					bits = null;
+					exact = false;
+				}
+			}
+		}
+		equals.remove(driver);
+		long matches = Math.round(selectivity(root) * n);
+		return new QueryPlan(this, n, access, driver, equals, bits, exact,
+				(driver == null) ? n : rows, matches, TemplateCompiler.compile(root, this));
+	}
+
+	/**
+	 * @param root
+	 * @return <code>root</code> if bitmaps cover it, else the covered
+	 *  operands of a top-level AND; {@code null} if none
+	 */
+	private List<ILogicElement> bitmapTests(ILogicElement root) {
+		List<ILogicElement> result = new ArrayList<ILogicElement>();
+		if (bitmaps.covers(root))
+			result.add(root);
+		else if (root.getLogicType() == ILogicElement.AND) {
+			Iterator<Object> itr = root.getElements().iterator();
+			Object o;
+			while (itr.hasNext()) {
+				o = itr.next();
+				if (o instanceof ILogicElement && bitmaps.covers((ILogicElement)o))
+					result.add((ILogicElement)o);
+			}
+		}
+		return result.isEmpty() ? null : result;
+	}
+
+	private double conjunction(List<ILogicElement> tests) {
+		double result = 1;
+		Iterator<ILogicElement> itr = tests.iterator();
+		while (itr.hasNext())
+			result *= selectivity(itr.next());
+		return result;
+	}
+
+	@Override
+	public double selectivity(ILogicElement el) {
+		int n = tuples.size();
+		if (n == 0)
+			return UNKNOWN_SELECTIVITY;
+		double result;
+		Iterator<Object> itr;
+		Object o;
+		switch (el.getLogicType()) {
+		case ILogicElement.EQUALS:
+			if (!isIndexedEquals(el))
+				return UNKNOWN_SELECTIVITY;
+			return (double)index.lookup(el.getFieldName(), el.getLiteral()).size() / n;
+		case ILogicElement.LT:
+		case ILogicElement.LE:
+		case ILogicElement.GT:
+		case ILogicElement.GE:
+		case ILogicElement.BETWEEN:
+			if (el.getFieldName() == null)
+				return RANGE_SELECTIVITY;
+			return rangeFraction(el) * index.carrying(el.getFieldName()) / n;
+		case ILogicElement.AND:
+		case ILogicElement.NOT:
+			result = 1;
+			itr = el.getElements().iterator();
+			while (itr.hasNext()) {
+				o = itr.next();
+				result *= (o instanceof ILogicElement) ? selectivity((ILogicElement)o) : 0;
+			}
+			// NOT is true unless all of its operands are
+			if (el.getLogicType() == ILogicElement.NOT)
+				return el.getElements().isEmpty() ? 0 : 1 - result;
+			return result;
+		case ILogicElement.OR:
+			result = 1;
+			itr = el.getElements().iterator();
+			while (itr.hasNext()) {
+				o = itr.next();
+				if (o instanceof ILogicElement)
+					result *= 1 - selectivity((ILogicElement)o);
+			}
+			return 1 - result;
+		default:
+			return UNKNOWN_SELECTIVITY;
+		}
+	}
+
+	/**
+	 * @param el a comparison on a field
+	 * @return estimated fraction of the field's values in range
+	 */
+	private double rangeFraction(ILogicElement el) {
+		double result = sorted.fraction(el);
+		return (result < 0) ? RANGE_SELECTIVITY : result;
+	}
+
+	private static boolean isIndexedEquals(ILogicElement el) {
+		return el.getLogicType() == ILogicElement.EQUALS &&
+				el.getFieldName() != null && el.getLiteral() != null;
+	}
+
+	static boolean isRange(ILogicElement el) {
+		int type = el.getLogicType();
+		return type >= ILogicElement.LT && type <= ILogicElement.BETWEEN;
+	}
+}
@@ -0,0 +1,214 @@
+/*
+ * Copyright 2024 TopicQuests Foundation
+ *  This source code is available under the terms of the Affero General Public License v3.
+ *  Please see LICENSE.txt for full license terms, including the availability of proprietary exceptions.
+ */
+package org.topicquests.tuplespace.impl;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+import org.topicquests.tuplespace.api.ILogicElement;
+
+/**
+ * Optional ordered indexes for a TupleSpace: for each chosen field,
+ * a skip list from value to the handles of stored tuples carrying it,
+ * so comparison tests are answered in O(log n + k).
+ * <p>Like FieldIndex, readers need no lock and must check
+ * {@link TupleHandle#live}; the owning TupleSpace serializes writes.
+ * Values which cannot be ordered are not indexed; no comparison
+ * test can match them anyway.</p>
+ * @author jackpark
+ */
+class SortedIndex {
+	/**
+	 * field name -> value -> posting list
+	 */
+	private Map<String, ConcurrentSkipListMap<Object, Set<TupleHandle>>> fields;
+
+	SortedIndex() {
+		fields = new ConcurrentHashMap<String, ConcurrentSkipListMap<Object, Set<TupleHandle>>>();
+	}
+
+	boolean isEmpty() {
+		return fields.isEmpty();
+	}
+
+	boolean isIndexed(String field) {
+		return fields.containsKey(field);
+	}
+
+	/**
+	 * @return the indexed fields
+	 */
+	List<String> fieldNames() {
+		return new ArrayList<String>(fields.keySet());
+	}
+
+	/**
+	 * Start indexing <code>field</code> over <code>existing</code> handles
+	 * @param field
+	 * @param existing
+	 */
+	void addField(String field, Iterator<TupleHandle> existing) {
+		if (fields.containsKey(field))
+			return;
+		ConcurrentSkipListMap<Object, Set<TupleHandle>> values =
+				new ConcurrentSkipListMap<Object, Set<TupleHandle>>(ValueOrder.KEYS);
+		while (existing.hasNext())
+			add(values, field, existing.next());
+		fields.put(field, values);
+	}
+
+	void add(TupleHandle h) {
+		if (fields.isEmpty())
+			return;
+		Iterator<Map.Entry<String, ConcurrentSkipListMap<Object, Set<TupleHandle>>>> itr =
+				fields.entrySet().iterator();
+		Map.Entry<String, ConcurrentSkipListMap<Object, Set<TupleHandle>>> e;
+		while (itr.hasNext()) {
+			e = itr.next();
+			add(e.getValue(), e.getKey(), h);
+		}
+	}
+
+	private void add(ConcurrentSkipListMap<Object, Set<TupleHandle>> values, String field, TupleHandle h) {
+		Object val = h.tuple.get(field);
+		if (!ValueOrder.isIndexable(val))
+			return;
+		Set<TupleHandle> posting = values.get(val);
+		if (posting == null) {
+			posting = ConcurrentHashMap.newKeySet();
+			values.put(val, posting);
+		}
+		posting.add(h);
+	}
+
+	void remove(TupleHandle h) {
+		if (fields.isEmpty())
+			return;
+		Iterator<Map.Entry<String, ConcurrentSkipListMap<Object, Set<TupleHandle>>>> itr =
+				fields.entrySet().iterator();
+		Map.Entry<String, ConcurrentSkipListMap<Object, Set<TupleHandle>>> e;
+		Object val;
+		Set<TupleHandle> posting;
+		while (itr.hasNext()) {
+			e = itr.next();
+			val = h.tuple.get(e.getKey());
+			if (!ValueOrder.isIndexable(val))
+				continue;
+			posting = e.getValue().get(val);
+			if (posting == null)
+				continue;
+			posting.remove(h);
+			if (posting.isEmpty())
+				e.getValue().remove(val);
+		}
+	}
+
+	/**
+	 * Handles whose value may pass comparison test <code>el</code>.
+	 * The key order puts numbers, strings and other families of classes
+	 * in separate runs; an open-ended range is walked outward from its
+	 * bound and stops at the edge of the bound's run, passing over keys
+	 * in the run the bound does not compare with.
+	 * @param el an LT, LE, GT, GE or BETWEEN on a field
+	 * @return candidates, or {@code null} if this index cannot answer
+	 */
+	List<TupleHandle> range(ILogicElement el) {
+		String field = el.getFieldName();
+		Object low = el.getLiteral();
+		if (field == null || !ValueOrder.isIndexable(low))
+			return null;
+		ConcurrentSkipListMap<Object, Set<TupleHandle>> values = fields.get(field);
+		if (values == null)
+			return null;
+		NavigableMap<Object, Set<TupleHandle>> sub;
+		switch (el.getLogicType()) {
+		case ILogicElement.LT: sub = values.headMap(low, false).descendingMap(); break;
+		case ILogicElement.LE: sub = values.headMap(low, true).descendingMap(); break;
+		case ILogicElement.GT: sub = values.tailMap(low, false); break;
+		case ILogicElement.GE: sub = values.tailMap(low, true); break;
+		case ILogicElement.BETWEEN:
+			Object high = el.getUpperLiteral();
+			if (!ValueOrder.isIndexable(high))
+				return null;
+			if (ValueOrder.KEYS.compare(low, high) > 0)
+				return new ArrayList<TupleHandle>();
+			sub = values.subMap(low, true, high, true);
+			break;
+		default:
+			return null;
+		}
+		List<TupleHandle> result = new ArrayList<TupleHandle>();
+		Iterator<Map.Entry<Object, Set<TupleHandle>>> itr = sub.entrySet().iterator();
+		Map.Entry<Object, Set<TupleHandle>> e;
+		while (itr.hasNext()) {
+			e = itr.next();
+			if (!ValueOrder.sameRun(e.getKey(), low))
+				break;
+			if (ValueOrder.comparable(e.getKey(), low))
+				result.addAll(e.getValue());
+		}
+		return result;
+	}
+
+	/**
+	 * Estimate the fraction of a numeric field's values passing
+	 * <code>el</code>, assuming them spread evenly between the
+	 * smallest and largest indexed value
+	 * @param el an LT, LE, GT, GE or BETWEEN on a field
+	 * @return a fraction, or -1 if there is no basis for one
+	 */
+	double fraction(ILogicElement el) {
+		String field = el.getFieldName();
+		if (field == null || !(el.getLiteral() instanceof Number))
+			return -1;
+		ConcurrentSkipListMap<Object, Set<TupleHandle>> values = fields.get(field);
+		if (values == null)
+			return -1;
+		// numbers sort first, so the last number is the last key before any string
+		Map.Entry<Object, Set<TupleHandle>> first = values.firstEntry();
+		Object last = values.lowerKey("");
+		if (first == null || !(first.getKey() instanceof Number) || !(last instanceof Number))
+			return -1;
+		double lo = ((Number)first.getKey()).doubleValue(), hi = ((Number)last).doubleValue();
+		double x = ((Number)el.getLiteral()).doubleValue(), y;
+		double width = hi - lo;
+		double result;
+		switch (el.getLogicType()) {
+		case ILogicElement.LT:
+		case ILogicElement.LE:
+			result = (width <= 0) ? (lo <= x ? 1 : 0) : (x - lo) / width;
+			break;
+		case ILogicElement.GT:
+		case ILogicElement.GE:
+			result = (width <= 0) ? (lo >= x ? 1 : 0) : (hi - x) / width;
+			break;
+		case ILogicElement.BETWEEN:
+			if (!(el.getUpperLiteral() instanceof Number))
+				return -1;
+			y = ((Number)el.getUpperLiteral()).doubleValue();
+			if (width <= 0)
+				result = (lo >= x && lo <= y) ? 1 : 0;
+			else
+				result = (Math.min(y, hi) - Math.max(x, lo)) / width;
+			break;
+		default:
+			return -1;
+		}
+		if (Double.isNaN(result))
+			return -1;
+		return Math.max(0, Math.min(1, result));
+	}
+
+	void clear() {
+		fields.clear();
+	}
+}
@@ -0,0 +1,140 @@
+/*
+ * Copyright 2024 TopicQuests Foundation
+ *  This source code is available under the terms of the Affero General Public License v3.
+ *  Please see LICENSE.txt for full license terms, including the availability of proprietary exceptions.
+ */
+package org.topicquests.tuplespace.impl;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.topicquests.tuplespace.api.ISubscription;
+import org.topicquests.tuplespace.api.ITemplate;
+import org.topicquests.tuplespace.api.ITuple;
+import org.topicquests.tuplespace.api.ITupleSpaceListener;
+
+/**
+ * A listener on a standing template, with its own bounded queue.
+ * <p><code>offer</code> never blocks: when the queue is full the tuple
+ * is dropped and counted, so a slow listener cannot stall inserts.
+ * At most one drain task per subscription runs on the executor at a
+ * time, so the listener sees tuples one at a time, in insert order.
+ * A listener that throws is logged, and gets the next tuple.</p>
+ * @author jackpark
+ */
+class Subscription implements ISubscription, Runnable {
+	private static final Logger LOG = Logger.getLogger(Subscription.class.getName());
+	/**
+	 * Tuples a subscriber may fall behind by before inserts start dropping
+	 */
+	static final int DEFAULT_CAPACITY = 1024;
+
+	/**
+	 * Runs listeners for all spaces
+	 */
+	static final ExecutorService DELIVERY = Executors.newCachedThreadPool(new ThreadFactory() {
+		public Thread newThread(Runnable r) {
+			Thread t = new Thread(r, "tuplespace-delivery");
+			t.setDaemon(true);
+			return t;
+		}
+	});
+
+	/**
+	 * Drain at most this many tuples per executor task,
+	 * so one busy subscription does not hog a pool thread
+	 */
+	private static final int BATCH = 256;
+
+	private final ITemplate template;
+	private final ITupleSpaceListener listener;
+	private final Executor executor;
+	private final BlockingQueue<ITuple> queue;
+	private final AtomicBoolean scheduled = new AtomicBoolean(false);
+	private final AtomicLong dropped = new AtomicLong();
+	private final TupleSpaceImpl space;
+	private volatile boolean cancelled = false;
+	/**
+	 * Where the subscription is registered; set under the space lock
+	 */
+	MatchNetwork.Entry<Subscription> entry;
+
+	Subscription(TupleSpaceImpl space, ITemplate template, ITupleSpaceListener listener,
+			Executor executor, int capacity) {
+		this.space = space;
+		this.template = template;
+		this.listener = listener;
+		this.executor = executor;
+		this.queue = new ArrayBlockingQueue<ITuple>(capacity);
+	}
+
+	/**
+	 * Queue <code>tup</code> for delivery without blocking
+	 * @param tup
+	 */
+	void offer(ITuple tup) {
+		if (cancelled)
+			return;
+		if (!queue.offer(tup))
+			dropped.incrementAndGet();
+		schedule();
+	}
+
+	private void schedule() {
+		if (!queue.isEmpty() && scheduled.compareAndSet(false, true))
+			executor.execute(this);
+	}
+
+	/**
+	 * Drain task
+	 */
+	@Override
+	public void run() {
+		ITuple t;
+		int n = 0;
+		try {
+			while (!cancelled && n++ < BATCH && (t = queue.poll()) != null) {
+				try {
+					listener.tupleInserted(t);
+				} catch (RuntimeException e) {
+					LOG.log(Level.WARNING, "listener failed on "+t, e);
+				}
+			}
+		} finally {
+			scheduled.set(false);
+		}
+		// an offer may have landed after the last poll
+		if (!cancelled)
+			schedule();
+	}
+
+	@Override
+	public ITemplate getTemplate() {
+		return template;
+	}
+
+	@Override
+	public void cancel() {
+		cancelled = true;
+		queue.clear();
+		space.unsubscribe(this);
+	}
+
+	@Override
+	public boolean isCancelled() {
+		return cancelled;
+	}
+
+	@Override
+	public long getDroppedCount() {
+		return dropped.get();
+	}
+}
@@ -0,0 +1,198 @@
+/*
+ * Copyright 2024 TopicQuests Foundation
+ *  This source code is available under the terms of the Affero General Public License v3.
+ *  Please see LICENSE.txt for full license terms, including the availability of proprietary exceptions.
+ */
+package org.topicquests.tuplespace.impl;
+
+import java.io.InputStream;
+import java.io.Reader;
+import java.util.Base64;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+import org.topicquests.tuplespace.api.IConstants;
+import org.topicquests.tuplespace.api.ITuple;
+
+/**
+ * Pull parser for TSX, the tuple XML of {@link IConstants}: reads
+ * <code>&lt;tuple&gt;</code> elements one at a time from a stream, at any
+ * depth, for example inside a <code>&lt;message&gt;</code>. No document
+ * is built, so memory does not grow with the document.
+ * <p>A <code>&lt;value&gt;</code> with no <code>type</code> attribute is a
+ * string; {@link TSXWriter} adds the attribute for other types. Unknown
+ * elements are skipped. DTDs and external entities are not processed.</p>
+ * @author jackpark
+ */
+public class TSXReader implements IConstants {
+	/**
+	 * <code>type</code> attribute values of <code>&lt;value&gt;</code>
+	 */
+	public static final String
+		TYPE	= "type",
+		T_NULL	= "null",
+		T_LONG	= "long",
+		T_INT	= "int",
+		T_DOUBLE	= "double",
+		T_FLOAT	= "float",
+		T_BOOLEAN	= "boolean",
+		T_BYTES	= "base64";
+
+	private static final XMLInputFactory FACTORY = newFactory();
+	private final XMLStreamReader in;
+
+	/**
+	 * @param in the encoding is taken from the XML declaration
+	 * @throws XMLStreamException
+	 */
+	public TSXReader(InputStream in) throws XMLStreamException {
+		this.in = FACTORY.createXMLStreamReader(in);
+	}
+
+	public TSXReader(Reader in) throws XMLStreamException {
+		this.in = FACTORY.createXMLStreamReader(in);
+	}
+
+	private static XMLInputFactory newFactory() {
+		XMLInputFactory f = XMLInputFactory.newInstance();
+		f.setProperty(XMLInputFactory.SUPPORT_DTD, Boolean.FALSE);
+		f.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, Boolean.FALSE);
+		f.setProperty(XMLInputFactory.IS_COALESCING, Boolean.TRUE);
+		return f;
+	}
+
+	/**
+	 * @return the next tuple in the document, or {@code null} at its end
+	 * @throws XMLStreamException if the document is not well formed
+	 *  or a value does not parse as its type
+	 */
+	public ITuple next() throws XMLStreamException {
+		while (in.hasNext()) {
+			if (in.next() == XMLStreamConstants.START_ELEMENT && TUPLE.equals(in.getLocalName()))
+				return readTuple();
+		}
+		return null;
+	}
+
+	/**
+	 * Release the parser; does not close the underlying stream
+	 */
+	public void close() throws XMLStreamException {
+		in.close();
+	}
+
+	/**
+	 * Positioned on <code>&lt;tuple&gt;</code>; returns positioned on its end
+	 */
+	private TupleImpl readTuple() throws XMLStreamException {
+		String tag = null, id = null, space = null, command = null, requestId = null;
+		int priority = -1;
+		boolean partial = false;
+		Map<String, Object> fields = new LinkedHashMap<String, Object>();
+		String el;
+		while (in.nextTag() == XMLStreamConstants.START_ELEMENT) {
+			el = in.getLocalName();
+			if (GROUP.equals(el))
+				tag = in.getElementText();
+			else if (ID.equals(el))
+				id = in.getElementText();
+			else if (SPACE.equals(el))
+				space = in.getElementText();
+			else if (DO.equals(el))
+				command = in.getElementText();
+			else if (REQUEST_ID.equals(el))
+				requestId = in.getElementText();
+			else if (PRIORITY.equals(el))
+				priority = parseInt(in.getElementText());
+			else if (PARTIAL_MATCH.equals(el)) {
+				partial = true;
+				skip();
+			} else if (FIELD.equals(el))
+				readField(fields);
+			else
+				skip();
+		}
+		TupleImpl t = new TupleImpl(tag, fields);
+		t.setID(id);
+		t.setSpace(space);
+		t.setCommand(command);
+		t.setRequestId(requestId);
+		t.setPriority(priority);
+		t.allowPartialMatch = partial;
+		return t;
+	}
+
+	/**
+	 * Positioned on <code>&lt;field&gt;</code>; returns positioned on its end
+	 */
+	private void readField(Map<String, Object> fields) throws XMLStreamException {
+		String name = null;
+		Object value = null;
+		String el;
+		while (in.nextTag() == XMLStreamConstants.START_ELEMENT) {
+			el = in.getLocalName();
+			if (NAME.equals(el))
+				name = in.getElementText();
+			else if (VALUE.equals(el)) {
+				String type = in.getAttributeValue(null, TYPE);
+				value = parse(type, in.getElementText());
+			} else
+				skip();
+		}
+		if (name == null)
+			throw new XMLStreamException("Field without a name", in.getLocation());
+		fields.put(name, value);
+	}
+
+	private Object parse(String type, String text) throws XMLStreamException {
+		try {
+			if (type == null)
+				return text;
+			if (T_NULL.equals(type))
+				return null;
+			if (T_LONG.equals(type))
+				return Long.valueOf(text.trim());
+			if (T_INT.equals(type))
+				return Integer.valueOf(text.trim());
+			if (T_DOUBLE.equals(type))
+				return Double.valueOf(text.trim());
+			if (T_FLOAT.equals(type))
+				return Float.valueOf(text.trim());
+			if (T_BOOLEAN.equals(type))
+				return Boolean.valueOf(text.trim());
+			if (T_BYTES.equals(type))
+				return Base64.getDecoder().decode(text.trim());
+		} catch (IllegalArgumentException e) {
+			// includes NumberFormatException
+			throw new XMLStreamException("Bad "+type+" value: "+text, in.getLocation(), e);
+		}
+		throw new XMLStreamException("Unknown value type "+type, in.getLocation());
+	}
+
+	private int parseInt(String text) throws XMLStreamException {
+		try {
+			return Integer.parseInt(text.trim());
+		} catch (NumberFormatException e) {
+			throw new XMLStreamException("Bad priority: "+text, in.getLocation(), e);
+		}
+	}
+
+	/**
+	 * Skip the current element and its content
+	 */
+	private void skip() throws XMLStreamException {
+		int depth = 1;
+		while (depth > 0) {
+			int ev = in.next();
+			if (ev == XMLStreamConstants.START_ELEMENT)
+				depth++;
+			else if (ev == XMLStreamConstants.END_ELEMENT)
+				depth--;
+		}
+	}
+}
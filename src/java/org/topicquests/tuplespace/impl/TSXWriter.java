@@ -0,0 +1,148 @@
+/*
+ * Copyright 2024 TopicQuests Foundation
+ *  This source code is available under the terms of the Affero General Public License v3.
+ *  Please see LICENSE.txt for full license terms, including the availability of proprietary exceptions.
+ */
+package org.topicquests.tuplespace.impl;
+
+import java.io.BufferedWriter;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.Iterator;
+import java.util.Map;
+
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamWriter;
+
+import org.topicquests.tuplespace.api.IConstants;
+import org.topicquests.tuplespace.api.ITuple;
+
+/**
+ * Streaming writer for TSX, the tuple XML {@link TSXReader} reads.
+ * Tuples are written as they are handed over, optionally inside a
+ * <code>&lt;message&gt;</code>; text is escaped, and values other
+ * than strings carry a <code>type</code> attribute so they read
+ * back as the same type.
+ * @author jackpark
+ */
+public class TSXWriter implements IConstants {
+	private static final XMLOutputFactory FACTORY = XMLOutputFactory.newInstance();
+	private final XMLStreamWriter out;
+	private boolean inMessage = false;
+
+	/**
+	 * @param out written as UTF-8
+	 * @throws XMLStreamException
+	 */
+	public TSXWriter(OutputStream out) throws XMLStreamException {
+		// the stream writer's own encoder writes unbuffered
+		this.out = FACTORY.createXMLStreamWriter(new BufferedWriter(
+				new OutputStreamWriter(out, StandardCharsets.UTF_8), 8192));
+		this.out.writeStartDocument("UTF-8", "1.0");
+	}
+
+	public TSXWriter(Writer out) throws XMLStreamException {
+		this.out = FACTORY.createXMLStreamWriter(out);
+		this.out.writeStartDocument();
+	}
+
+	/**
+	 * Open a <code>&lt;message&gt;</code> to hold a batch of tuples;
+	 * {@link #close()} ends it
+	 */
+	public void startMessage() throws XMLStreamException {
+		out.writeStartElement(MESSAGE);
+		inMessage = true;
+	}
+
+	/**
+	 * @param t
+	 * @throws XMLStreamException
+	 * @throws IllegalArgumentException for a field value TSX has no type for
+	 */
+	public void write(ITuple t) throws XMLStreamException {
+		out.writeStartElement(TUPLE);
+		element(ID, t.getID());
+		element(SPACE, t.getSpace());
+		element(GROUP, t.getTag());
+		if (t instanceof TupleImpl) {
+			TupleImpl ti = (TupleImpl)t;
+			element(DO, ti.getCommand());
+			element(REQUEST_ID, ti.getRequestId());
+			if (ti.allowPartialMatch)
+				out.writeEmptyElement(PARTIAL_MATCH);
+		}
+		Iterator<Map.Entry<String, Object>> itr = t.getFields().entrySet().iterator();
+		Map.Entry<String, Object> e;
+		while (itr.hasNext()) {
+			e = itr.next();
+			out.writeStartElement(FIELD);
+			element(NAME, e.getKey());
+			value(e.getKey(), e.getValue());
+			out.writeEndElement();
+		}
+		element(PRIORITY, Integer.toString(t.getPriority()));
+		out.writeEndElement();
+	}
+
+	private void element(String name, String text) throws XMLStreamException {
+		if (text == null)
+			return;
+		out.writeStartElement(name);
+		out.writeCharacters(text);
+		out.writeEndElement();
+	}
+
+	private void value(String field, Object v) throws XMLStreamException {
+		String type, text;
+		if (v == null) {
+			out.writeEmptyElement(VALUE);
+			out.writeAttribute(TSXReader.TYPE, TSXReader.T_NULL);
+			return;
+		}
+		if (v instanceof String) {
+			element(VALUE, (String)v);
+			return;
+		}
+		text = v.toString();
+		if (v instanceof Long)
+			type = TSXReader.T_LONG;
+		else if (v instanceof Integer)
+			type = TSXReader.T_INT;
+		else if (v instanceof Double)
+			type = TSXReader.T_DOUBLE;
+		else if (v instanceof Float)
+			type = TSXReader.T_FLOAT;
+		else if (v instanceof Boolean)
+			type = TSXReader.T_BOOLEAN;
+		else if (v instanceof byte[]) {
+			type = TSXReader.T_BYTES;
+			text = Base64.getEncoder().encodeToString((byte[])v);
+		} else
+			throw new IllegalArgumentException("No TSX type for field "+field+" of type "+v.getClass().getName());
+		out.writeStartElement(VALUE);
+		out.writeAttribute(TSXReader.TYPE, type);
+		out.writeCharacters(text);
+		out.writeEndElement();
+	}
+
+	public void flush() throws XMLStreamException {
+		out.flush();
+	}
+
+	/**
+	 * End the message, if one was started, and the document;
+	 * does not close the underlying stream
+	 */
+	public void close() throws XMLStreamException {
+		if (inMessage)
+			out.writeEndElement();
+		out.writeEndDocument();
+		out.flush();
+		out.close();
+	}
+}
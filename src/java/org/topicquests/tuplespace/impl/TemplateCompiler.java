@@ -0,0 +1,422 @@
+/*
+ * Copyright 2024 TopicQuests Foundation
+ *  This source code is available under the terms of the Affero General Public License v3.
+ *  Please see LICENSE.txt for full license terms, including the availability of proprietary exceptions.
+ */
+package org.topicquests.tuplespace.impl;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.function.Predicate;
+
+import org.topicquests.tuplespace.api.ILogicElement;
+import org.topicquests.tuplespace.api.ITuple;
+
+/**
+ * Turns an ILogicElement tree into a flat Predicate, so matching a
+ * tuple no longer dispatches on logic type or casts operands.
+ * <p>An AND whose operands are all EQUALS becomes a single loop over
+ * parallel name and value arrays; other nodes become small closures over
+ * their compiled children, and a comparison against a literal becomes a
+ * closure over its bounds. Elements the compiler does not know how to
+ * specialize are wrapped and interpreted with <code>eval</code>.</p>
+ * <p>The whole predicate first checks a TupleImpl's shape for the
+ * fields the constraint cannot match without, so tuples lacking one
+ * are rejected without evaluating anything.</p>
+ * <p>Semantics follow LogicElementImpl.</p>
+ * @author jackpark
+ */
+public class TemplateCompiler {
+
+	/**
+	 * Selectivity estimates, used to order the operands of AND, OR and NOT
+	 */
+	interface Estimator {
+		/**
+		 * @param el
+		 * @return estimated fraction of tuples <code>el</code> is true for
+		 */
+		double selectivity(ILogicElement el);
+	}
+
+	/**
+	 * @param root may be {@code null}
+	 * @return a predicate, never {@code null}
+	 */
+	public static Predicate<ITuple> compile(ILogicElement root) {
+		return compile(root, null);
+	}
+
+	/**
+	 * Compile with operands ordered by <code>est</code>: an AND or NOT
+	 * tests first what most cheaply rules a tuple out, an OR what most
+	 * cheaply lets it in
+	 * @param root may be {@code null}
+	 * @param est {@code null} to keep operands in their given order
+	 * @return a predicate, never {@code null}
+	 */
+	static Predicate<ITuple> compile(ILogicElement root, Estimator est) {
+		if (root == null)
+			return NEVER;
+		// tuples missing a needed field are rejected on their shape
+		return presenceGuard(requiredMask(root), compileTree(root, est));
+	}
+
+	private static Predicate<ITuple> compileTree(ILogicElement root, Estimator est) {
+		switch (root.getLogicType()) {
+		case ILogicElement.EQUALS:
+			if (root.getFieldName() == null && !root.getElements().isEmpty())
+				return evalMatcher(root);
+			return equalsMatcher(root.getFieldName(), root.getLiteral());
+		case ILogicElement.LT:
+		case ILogicElement.LE:
+		case ILogicElement.GT:
+		case ILogicElement.GE:
+		case ILogicElement.BETWEEN:
+			if (root.getFieldName() == null)
+				return evalMatcher(root);
+			return compareMatcher(root.getLogicType(), root.getFieldName(),
+					root.getLiteral(), root.getUpperLiteral());
+		case ILogicElement.AND:
+			if (allEquals(root))
+				return new EqualsAllMatcher(ordered(root, est, false));
+			return andMatcher(compileAll(root, est, false));
+		case ILogicElement.OR:
+			return orMatcher(compileAll(root, est, true));
+		case ILogicElement.NOT:
+			return notMatcher(compileAll(root, est, false));
+		case ILogicElement.LITERAL:
+		case ILogicElement.FETCH:
+			// operands, not tests; eval() answers false for these
+			return NEVER;
+		default:
+			return evalMatcher(root);
+		}
+	}
+
+	/**
+	 * @param root
+	 * @return presence bits of the fields every tuple matching
+	 *  <code>root</code> must carry; 0 if none are known
+	 */
+	static long requiredMask(ILogicElement root) {
+		long result;
+		Iterator<Object> itr;
+		Object o;
+		switch (root.getLogicType()) {
+		case ILogicElement.EQUALS:
+			return (root.getFieldName() == null || root.getLiteral() == null) ? 0 :
+				TupleShape.knownMask(root.getFieldName());
+		case ILogicElement.LT:
+		case ILogicElement.LE:
+		case ILogicElement.GT:
+		case ILogicElement.GE:
+		case ILogicElement.BETWEEN:
+			return (root.getFieldName() == null) ? 0 : TupleShape.knownMask(root.getFieldName());
+		case ILogicElement.AND:
+			result = 0;
+			itr = root.getElements().iterator();
+			while (itr.hasNext()) {
+				o = itr.next();
+				if (o instanceof ILogicElement)
+					result |= requiredMask((ILogicElement)o);
+			}
+			return result;
+		case ILogicElement.OR:
+			// only what every alternative needs
+			result = -1L;
+			itr = root.getElements().iterator();
+			while (itr.hasNext()) {
+				o = itr.next();
+				result &= (o instanceof ILogicElement) ? requiredMask((ILogicElement)o) : 0;
+			}
+			return (result == -1L) ? 0 : result;
+		default:
+			return 0;
+		}
+	}
+
+	/**
+	 * Reject, on its shape alone, a TupleImpl lacking a required field
+	 * @param required from <code>requiredMask</code>
+	 * @param matcher
+	 * @return <code>matcher</code> if nothing is required
+	 */
+	static Predicate<ITuple> presenceGuard(final long required, final Predicate<ITuple> matcher) {
+		if (required == 0)
+			return matcher;
+		return new Predicate<ITuple>() {
+			public boolean test(ITuple t) {
+				if (t instanceof TupleImpl && !((TupleImpl)t).getShape().hasAll(required))
+					return false;
+				return matcher.test(t);
+			}
+		};
+	}
+
+	private static Predicate<ITuple> evalMatcher(final ILogicElement el) {
+		return new Predicate<ITuple>() {
+			public boolean test(ITuple t) { return el.eval(t); }
+		};
+	}
+
+	static final Predicate<ITuple> NEVER = new Predicate<ITuple>() {
+		public boolean test(ITuple t) { return false; }
+	};
+
+	static final Predicate<ITuple> ALWAYS = new Predicate<ITuple>() {
+		public boolean test(ITuple t) { return true; }
+	};
+
+	/**
+	 * AND of EQUALS tests: one loop over flat arrays.
+	 * For TupleImpls the slot of each name is cached against the
+	 * last shape seen, so a field fetch is an array access.
+	 */
+	static final class EqualsAllMatcher implements Predicate<ITuple> {
+		final String [] names;
+		final Object [] values;
+		private volatile SlotCache cache = null;
+
+		EqualsAllMatcher(List<Object> els) {
+			int len = els.size();
+			names = new String[len];
+			values = new Object[len];
+			ILogicElement el;
+			for (int i = 0; i < len; i++) {
+				el = (ILogicElement)els.get(i);
+				names[i] = el.getFieldName();
+				values[i] = el.getLiteral();
+			}
+		}
+
+		@Override
+		public boolean test(ITuple t) {
+			Object v;
+			if (t instanceof TupleImpl) {
+				TupleImpl tup = ((TupleImpl)t).fieldSnapshot();
+				TupleShape shape = tup.getShape();
+				SlotCache c = cache;
+				if (c == null || c.shape != shape) {
+					c = new SlotCache(shape, names);
+					cache = c;
+				}
+				int slot;
+				for (int i = 0; i < names.length; i++) {
+					slot = c.slots[i];
+					if (slot < 0)
+						return false;
+					v = tup.valueAt(slot);
+					if (v == null || !v.equals(values[i]))
+						return false;
+				}
+				return true;
+			}
+			for (int i = 0; i < names.length; i++) {
+				v = t.get(names[i]);
+				if (v == null || !v.equals(values[i]))
+					return false;
+			}
+			return true;
+		}
+	}
+
+	/**
+	 * Slots of a list of names in one shape
+	 */
+	static final class SlotCache {
+		final TupleShape shape;
+		final int [] slots;
+
+		SlotCache(TupleShape shape, String [] names) {
+			this.shape = shape;
+			slots = new int[names.length];
+			for (int i = 0; i < names.length; i++)
+				slots[i] = shape.slotOf(names[i]);
+		}
+	}
+
+	private static boolean allEquals(ILogicElement root) {
+		Iterator<Object> itr = root.getElements().iterator();
+		Object o;
+		ILogicElement el;
+		while (itr.hasNext()) {
+			o = itr.next();
+			if (!(o instanceof ILogicElement))
+				return false;
+			el = (ILogicElement)o;
+			if (el.getLogicType() != ILogicElement.EQUALS || el.getFieldName() == null)
+				return false;
+		}
+		return true;
+	}
+
+	@SuppressWarnings({"unchecked", "rawtypes"})
+	private static Predicate<ITuple> [] compileAll(ILogicElement root, Estimator est, boolean isOr) {
+		List<Predicate<ITuple>> result = new ArrayList<Predicate<ITuple>>();
+		Iterator<Object> itr = ordered(root, est, isOr).iterator();
+		Object o;
+		while (itr.hasNext()) {
+			o = itr.next();
+			// eval() would fail on a non-element operand; it never matches
+			result.add((o instanceof ILogicElement) ? compileTree((ILogicElement)o, est) : NEVER);
+		}
+		return result.toArray(new Predicate[result.size()]);
+	}
+
+	/**
+	 * @param root
+	 * @param est
+	 * @param isOr
+	 * @return <code>root</code>'s operands, best first for an OR if
+	 *  <code>isOr</code> and otherwise for an AND; as given if
+	 *  <code>est</code> is {@code null}
+	 */
+	private static List<Object> ordered(ILogicElement root, final Estimator est, final boolean isOr) {
+		List<Object> els = root.getElements();
+		if (est == null || els.size() < 2)
+			return els;
+		final double [] rank = new double[els.size()];
+		Integer [] idx = new Integer[rank.length];
+		Object o;
+		double sel;
+		for (int i = 0; i < rank.length; i++) {
+			o = els.get(i);
+			// a non-element operand is free and never true
+			sel = (o instanceof ILogicElement) ? est.selectivity((ILogicElement)o) : 0;
+			rank[i] = (isOr ? sel : 1 - sel) / cost(o);
+			idx[i] = i;
+		}
+		// highest rank first; stable, so ties keep their given order
+		Arrays.sort(idx, new Comparator<Integer>() {
+			public int compare(Integer a, Integer b) {
+				return Double.compare(rank[b], rank[a]);
+			}
+		});
+		List<Object> result = new ArrayList<Object>(rank.length);
+		for (int i = 0; i < rank.length; i++)
+			result.add(els.get(idx[i]));
+		return result;
+	}
+
+	/**
+	 * Relative cost of testing <code>o</code> against one tuple
+	 */
+	static double cost(Object o) {
+		if (!(o instanceof ILogicElement))
+			return 0.1;
+		ILogicElement el = (ILogicElement)o;
+		switch (el.getLogicType()) {
+		case ILogicElement.EQUALS:
+			return (el.getFieldName() != null) ? 1 : 4;
+		case ILogicElement.LT:
+		case ILogicElement.LE:
+		case ILogicElement.GT:
+		case ILogicElement.GE:
+		case ILogicElement.BETWEEN:
+			return (el.getFieldName() != null) ? 2 : 4;
+		case ILogicElement.AND:
+		case ILogicElement.OR:
+		case ILogicElement.NOT:
+			double result = 1;
+			Iterator<Object> itr = el.getElements().iterator();
+			while (itr.hasNext())
+				result += cost(itr.next());
+			return result;
+		default:
+			return 4;
+		}
+	}
+
+	private static Predicate<ITuple> equalsMatcher(final String name, final Object value) {
+		if (name == null)
+			return NEVER;
+		return new Predicate<ITuple>() {
+			public boolean test(ITuple t) {
+				Object v = t.get(name);
+				return v != null && v.equals(value);
+			}
+		};
+	}
+
+	private static Predicate<ITuple> compareMatcher(final int type, final String name,
+			final Object low, final Object high) {
+		if (low == null)
+			return NEVER;
+		return new Predicate<ITuple>() {
+			public boolean test(ITuple t) {
+				Object v = t.get(name);
+				if (!ValueOrder.comparable(v, low))
+					return false;
+				int cmp = ValueOrder.compare(v, low);
+				switch (type) {
+				case ILogicElement.LT: return cmp < 0;
+				case ILogicElement.LE: return cmp <= 0;
+				case ILogicElement.GT: return cmp > 0;
+				case ILogicElement.GE: return cmp >= 0;
+				default:
+					return cmp >= 0 && ValueOrder.comparable(v, high) &&
+							ValueOrder.compare(v, high) <= 0;
+				}
+			}
+		};
+	}
+
+	private static Predicate<ITuple> andMatcher(final Predicate<ITuple> [] ops) {
+		if (ops.length == 0)
+			return ALWAYS;
+		if (ops.length == 1)
+			return ops[0];
+		if (ops.length == 2) {
+			final Predicate<ITuple> a = ops[0], b = ops[1];
+			return new Predicate<ITuple>() {
+				public boolean test(ITuple t) { return a.test(t) && b.test(t); }
+			};
+		}
+		return new Predicate<ITuple>() {
+			public boolean test(ITuple t) {
+				for (int i = 0; i < ops.length; i++)
+					if (!ops[i].test(t))
+						return false;
+				return true;
+			}
+		};
+	}
+
+	private static Predicate<ITuple> orMatcher(final Predicate<ITuple> [] ops) {
+		if (ops.length == 0)
+			return NEVER;
+		if (ops.length == 1)
+			return ops[0];
+		if (ops.length == 2) {
+			final Predicate<ITuple> a = ops[0], b = ops[1];
+			return new Predicate<ITuple>() {
+				public boolean test(ITuple t) { return a.test(t) || b.test(t); }
+			};
+		}
+		return new Predicate<ITuple>() {
+			public boolean test(ITuple t) {
+				for (int i = 0; i < ops.length; i++)
+					if (ops[i].test(t))
+						return true;
+				return false;
+			}
+		};
+	}
+
+	/**
+	 * LogicElementImpl's NOT is true when any operand fails,
+	 * and false with no operands
+	 */
+	private static Predicate<ITuple> notMatcher(final Predicate<ITuple> [] ops) {
+		if (ops.length == 0)
+			return NEVER;
+		final Predicate<ITuple> all = andMatcher(ops);
+		return new Predicate<ITuple>() {
+			public boolean test(ITuple t) { return !all.test(t); }
+		};
+	}
+}
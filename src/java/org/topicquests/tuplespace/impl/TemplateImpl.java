@@ -7,15 +7,25 @@ package org.topicquests.tuplespace.impl;
 
 import java.util.Iterator;
 import java.util.Map;
+import java.util.function.Predicate;
 
 import org.topicquests.tuplespace.api.ILogicElement;
 import org.topicquests.tuplespace.api.ITemplate;
+import org.topicquests.tuplespace.api.ITuple;
 
 /**
  * @author jackpark
  */
 public class TemplateImpl extends TupleImpl implements ITemplate {
 	private ILogicElement constraint;
+	/**
+	 * <code>constraint</code> compiled by TemplateCompiler
+	 */
+	private Predicate<ITuple> matcher;
+	/**
+	 * Last plan made for this template by a space
+	 */
+	private volatile QueryPlan plan;
 	/**
 	 * 
 	 */
@@ -33,10 +43,24 @@ public class TemplateImpl extends TupleImpl implements ITemplate {
 		return constraint;
 	}
 
+	@Override
+	public void setConstraint(ILogicElement constraint) {
+		this.constraint = (constraint == null) ? null : LogicElementImpl.frozenCopy(constraint);
+		this.matcher = TemplateCompiler.compile(this.constraint);
+		this.plan = null;
+	}
+
+	/**
+	 * @return the compiled constraint, or {@code null} if not compiled
+	 */
+	public Predicate<ITuple> getMatcher() {
+		return matcher;
+	}
+
 	@Override
 	public void compile() {
-		constraint = new LogicElementImpl();
-		constraint.isAndType();
+		LogicElementImpl root = new LogicElementImpl();
+		root.isAndType();
 		Map<String,Object> data = this.getFields();
 		String key;
 		Object val;
@@ -49,10 +73,20 @@ public class TemplateImpl extends TupleImpl implements ITemplate {
 			x.isEqualsType();
 			x.setFieldName(key);
 			x.setLiteral(val);
-			constraint.addElement(x);
+			root.addElement(x);
 		}
+		root.freeze();
+		constraint = root;
+		matcher = TemplateCompiler.compile(constraint);
+		plan = null;
+	}
 
+	QueryPlan getPlan() {
+		return plan;
+	}
 
+	void setPlan(QueryPlan plan) {
+		this.plan = plan;
 	}
 
 }
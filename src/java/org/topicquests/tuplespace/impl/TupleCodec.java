@@ -0,0 +1,443 @@
+/*
+ * Copyright 2024 TopicQuests Foundation
+ *  This source code is available under the terms of the Affero General Public License v3.
+ *  Please see LICENSE.txt for full license terms, including the availability of proprietary exceptions.
+ */
+package org.topicquests.tuplespace.impl;
+
+import java.nio.BufferOverflowException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.sql.Timestamp;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+
+import org.topicquests.tuplespace.api.ITuple;
+
+/**
+ * Compact binary form of a tuple, for the log, checkpoints and the wire.
+ * <p>A tuple is a flags byte saying which headers follow; the tag; the
+ * priority; the id, space, command, request id and created time when
+ * present; then a count and each field as a name reference and a typed
+ * value. Lengths and integers are varints, signed ones zigzag encoded.</p>
+ * <p>Field names and tags go through a dictionary: the first time a
+ * stream uses a name it is sent with its number, after that just the
+ * number. A codec
+ * is therefore one end of one stream, such as a log file or one direction
+ * of a connection; encoder and decoder each keep their own, and a
+ * decoder learns names from the stream. Not thread-safe.</p>
+ * <p>The decoder trusts no count or length it reads: each is checked
+ * against the bytes left before anything is allocated for it, so
+ * damaged or hostile input fails with a {@link TupleCodecException}
+ * rather than exhausting memory.</p>
+ * @author jackpark
+ */
+public final class TupleCodec {
+	/** Header flags */
+	private static final int HAS_TAG = 1, HAS_ID = 2, HAS_SPACE = 4, HAS_COMMAND = 8,
+			HAS_REQUEST = 16, HAS_CREATED = 32;
+	/** Value types */
+	private static final byte NULL = 0, STRING = 1, LONG = 2, INTEGER = 3, DOUBLE = 4,
+			FLOAT = 5, TRUE = 6, FALSE = 7, BYTES = 8;
+	/**
+	 * Most names one stream may define; an encode that would define
+	 * more is refused, so no stream holds a name its decoder rejects
+	 */
+	public static final int MAX_NAMES = 1 << 20;
+
+	/**
+	 * Encoder: name -> number
+	 */
+	private final Map<String, Integer> numbers = new HashMap<String, Integer>();
+	/**
+	 * Encoder: numbers already sent on this stream
+	 */
+	private boolean [] sent = new boolean[16];
+	/**
+	 * Decoder: number -> name
+	 */
+	private String [] names = new String[16];
+	/**
+	 * Numbers an encode in progress defined, committed when it completes
+	 */
+	private int [] defined = new int[16];
+
+	/**
+	 * @param t
+	 * @throws IllegalArgumentException unless every field value is a
+	 *  <code>String</code>, <code>Long</code>, <code>Integer</code>,
+	 *  <code>Double</code>, <code>Float</code>, <code>Boolean</code>,
+	 *  <code>byte[]</code> or {@code null}
+	 */
+	public static void check(ITuple t) {
+		Iterator<Map.Entry<String, Object>> itr = t.getFields().entrySet().iterator();
+		Map.Entry<String, Object> e;
+		Object v;
+		while (itr.hasNext()) {
+			e = itr.next();
+			v = e.getValue();
+			if (!(v == null || v instanceof String || v instanceof Long || v instanceof Integer ||
+					v instanceof Double || v instanceof Float || v instanceof Boolean ||
+					v instanceof byte[]))
+				throw new IllegalArgumentException("Cannot encode field "+e.getKey()+
+						" of type "+v.getClass().getName());
+		}
+	}
+
+	/**
+	 * Check that <code>header</code> and <code>body</code> can all be
+	 * encoded on this stream, so that a frame of several fails before
+	 * any is written
+	 * @param header may be {@code null}
+	 * @param body
+	 * @throws IllegalArgumentException if they would take the stream
+	 *  past {@link #MAX_NAMES} names
+	 */
+	public void checkNames(ITuple header, Collection<? extends ITuple> body) {
+		long most = numbers.size();
+		if (header != null)
+			most += header.numFields() + 1;
+		Iterator<? extends ITuple> itr = body.iterator();
+		while (itr.hasNext())
+			most += itr.next().numFields() + 1;
+		if (most <= MAX_NAMES)
+			return;
+		Set<String> fresh = new HashSet<String>();
+		if (header != null)
+			addFresh(header, fresh);
+		itr = body.iterator();
+		while (itr.hasNext())
+			addFresh(itr.next(), fresh);
+		if (numbers.size() + fresh.size() > MAX_NAMES)
+			throw new IllegalArgumentException("Stream would define more than "+MAX_NAMES+" names");
+	}
+
+	private void addFresh(ITuple t, Set<String> fresh) {
+		if (t.getTag() != null && !numbers.containsKey(t.getTag()))
+			fresh.add(t.getTag());
+		Iterator<String> itr = t.getFields().keySet().iterator();
+		String name;
+		while (itr.hasNext()) {
+			name = itr.next();
+			if (!numbers.containsKey(name))
+				fresh.add(name);
+		}
+	}
+
+	/**
+	 * Write <code>t</code> at the position of <code>out</code>
+	 * @param t
+	 * @param out
+	 * @throws BufferOverflowException if <code>out</code> fills; the
+	 *  codec is unchanged, and the caller can retry with more room
+	 *  from the same position
+	 * @throws IllegalArgumentException for a value {@link #check(ITuple)}
+	 *  rejects, or a name past {@link #MAX_NAMES}; nothing counts as sent
+	 */
+	public void encode(ITuple t, ByteBuffer out) {
+		encode(t, t.getPriority(), out);
+	}
+
+	/**
+	 * @param t
+	 * @param priority written in place of <code>t</code>'s own
+	 * @param out
+	 */
+	public void encode(ITuple t, int priority, ByteBuffer out) {
+		TupleImpl ti = (t instanceof TupleImpl) ? (TupleImpl)t : null;
+		String tag = t.getTag(), id = t.getID(), space = t.getSpace();
+		String command = (ti != null) ? ti.getCommand() : null;
+		String request = (ti != null) ? ti.getRequestId() : null;
+		Timestamp created = (ti != null) ? ti.getCreated() : null;
+		int flags = (tag != null ? HAS_TAG : 0) | (id != null ? HAS_ID : 0) |
+				(space != null ? HAS_SPACE : 0) | (command != null ? HAS_COMMAND : 0) |
+				(request != null ? HAS_REQUEST : 0) | (created != null ? HAS_CREATED : 0);
+		out.put((byte)flags);
+		int nDefined = 0;
+		if (tag != null)
+			nDefined = putName(out, tag, nDefined);
+		putVarLong(out, zigzag(priority));
+		if (id != null)
+			putString(out, id);
+		if (space != null)
+			putString(out, space);
+		if (command != null)
+			putString(out, command);
+		if (request != null)
+			putString(out, request);
+		if (created != null) {
+			putVarLong(out, zigzag(created.getTime()));
+			putVarLong(out, created.getNanos());
+		}
+		if (ti != null) {
+			TupleImpl fields = ti.fieldSnapshot();
+			TupleShape s = fields.getShape();
+			int n = s.size();
+			putVarLong(out, n);
+			for (int i = 0; i < n; i++)
+				nDefined = putField(out, s.nameAt(i), fields.valueAt(i), nDefined);
+		} else {
+			Map<String, Object> fields = t.getFields();
+			putVarLong(out, fields.size());
+			Iterator<Map.Entry<String, Object>> itr = fields.entrySet().iterator();
+			Map.Entry<String, Object> e;
+			while (itr.hasNext()) {
+				e = itr.next();
+				nDefined = putField(out, e.getKey(), e.getValue(), nDefined);
+			}
+		}
+		// the encode is complete: the names it defined are now sent
+		for (int i = 0; i < nDefined; i++)
+			sent[defined[i]] = true;
+	}
+
+	private int putField(ByteBuffer out, String name, Object value, int nDefined) {
+		nDefined = putName(out, name, nDefined);
+		putValue(out, name, value);
+		return nDefined;
+	}
+
+	/**
+	 * Write a reference to <code>name</code>, defining it if this
+	 * stream has not had it yet
+	 * @return the number of names this encode has defined
+	 */
+	private int putName(ByteBuffer out, String name, int nDefined) {
+		Integer num = numbers.get(name);
+		if (num == null) {
+			if (numbers.size() >= MAX_NAMES)
+				throw new IllegalArgumentException("Stream has defined "+MAX_NAMES+" names, refusing "+name);
+			num = numbers.size();
+			numbers.put(name, num);
+		}
+		int n = num.intValue();
+		if (n >= sent.length)
+			sent = Arrays.copyOf(sent, Math.max(n + 1, sent.length * 2));
+		boolean known = sent[n];
+		for (int i = 0; !known && i < nDefined; i++)
+			known = (defined[i] == n);
+		if (known)
+			putVarLong(out, (long)n << 1);
+		else {
+			putVarLong(out, ((long)n << 1) | 1);
+			putString(out, name);
+			if (nDefined == defined.length)
+				defined = Arrays.copyOf(defined, nDefined * 2);
+			defined[nDefined++] = n;
+		}
+		return nDefined;
+	}
+
+	private static void putValue(ByteBuffer out, String field, Object v) {
+		if (v == null)
+			out.put(NULL);
+		else if (v instanceof String) {
+			out.put(STRING);
+			putString(out, (String)v);
+		} else if (v instanceof Long) {
+			out.put(LONG);
+			putVarLong(out, zigzag((Long)v));
+		} else if (v instanceof Integer) {
+			out.put(INTEGER);
+			putVarLong(out, zigzag((Integer)v));
+		} else if (v instanceof Double) {
+			out.put(DOUBLE);
+			out.putDouble((Double)v);
+		} else if (v instanceof Float) {
+			out.put(FLOAT);
+			out.putFloat((Float)v);
+		} else if (v instanceof Boolean)
+			out.put(((Boolean)v).booleanValue() ? TRUE : FALSE);
+		else if (v instanceof byte[]) {
+			byte [] b = (byte[])v;
+			out.put(BYTES);
+			putVarLong(out, b.length);
+			out.put(b);
+		} else
+			throw new IllegalArgumentException("Cannot encode field "+field+" of type "+v.getClass().getName());
+	}
+
+	/**
+	 * Read a tuple from the position of <code>in</code>
+	 * @param in
+	 * @return a new, mutable tuple
+	 * @throws TupleCodecException if <code>in</code> does not hold one
+	 */
+	public TupleImpl decode(ByteBuffer in) {
+		try {
+			int flags = in.get();
+			String tag = ((flags & HAS_TAG) != 0) ? getName(in) : null;
+			int priority = (int)unzigzag(getVarLong(in));
+			String id = ((flags & HAS_ID) != 0) ? getString(in) : null;
+			String space = ((flags & HAS_SPACE) != 0) ? getString(in) : null;
+			String command = ((flags & HAS_COMMAND) != 0) ? getString(in) : null;
+			String request = ((flags & HAS_REQUEST) != 0) ? getString(in) : null;
+			Timestamp created = null;
+			if ((flags & HAS_CREATED) != 0) {
+				created = new Timestamp(unzigzag(getVarLong(in)));
+				created.setNanos(getLength(in, 999999999));
+			}
+			// each field takes at least a name reference and a type byte
+			int n = getLength(in, in.remaining() / 2);
+			TupleShape s = TupleShape.EMPTY;
+			String [] names = new String[n];
+			Object [] read = new Object[n];
+			for (int i = 0; i < n; i++) {
+				names[i] = getName(in);
+				if (s.slotOf(names[i]) > -1)
+					throw new TupleCodecException("Duplicate field "+names[i]);
+				s = s.with(names[i]);
+				read[i] = getValue(in);
+			}
+			// encoders write slot order, but any order decodes
+			Object [] v = new Object[n];
+			for (int i = 0; i < n; i++)
+				v[s.slotOf(names[i])] = read[i];
+			TupleImpl t = new TupleImpl(tag, s, v);
+			t.setPriority(priority);
+			t.setID(id);
+			t.setSpace(space);
+			t.setCommand(command);
+			t.setRequestId(request);
+			t.setCreated(created);
+			return t;
+		} catch (BufferUnderflowException e) {
+			throw new TupleCodecException("Truncated tuple", e);
+		} catch (TupleCodecException e) {
+			throw e;
+		} catch (RuntimeException e) {
+			// e.g. a created time out of range
+			throw new TupleCodecException("Damaged tuple", e);
+		}
+	}
+
+	/**
+	 * Read a name reference, learning the name if it is defined here
+	 */
+	private String getName(ByteBuffer in) {
+		long ref = getVarLong(in);
+		if ((ref >>> 1) >= MAX_NAMES)
+			throw new TupleCodecException("Name number "+(ref >>> 1)+" out of range");
+		int num = (int)(ref >>> 1);
+		String name;
+		if ((ref & 1) != 0) {
+			name = getString(in);
+			if (num >= names.length)
+				names = Arrays.copyOf(names, Math.max(num + 1, names.length * 2));
+			names[num] = name;
+		} else if (num >= names.length || (name = names[num]) == null)
+			throw new TupleCodecException("Undefined name number "+num);
+		return name;
+	}
+
+	private static Object getValue(ByteBuffer in) {
+		byte type = in.get();
+		switch (type) {
+		case NULL: return null;
+		case STRING: return getString(in);
+		case LONG: return unzigzag(getVarLong(in));
+		case INTEGER: return (int)unzigzag(getVarLong(in));
+		case DOUBLE: return in.getDouble();
+		case FLOAT: return in.getFloat();
+		case TRUE: return Boolean.TRUE;
+		case FALSE: return Boolean.FALSE;
+		case BYTES:
+			byte [] b = new byte[getLength(in, in.remaining())];
+			in.get(b);
+			return b;
+		default:
+			throw new TupleCodecException("Unknown value type "+type);
+		}
+	}
+
+	/**
+	 * Start a new stream: names are sent again on first use
+	 */
+	public void reset() {
+		Arrays.fill(sent, false);
+		Arrays.fill(names, null);
+	}
+
+	static long zigzag(long v) {
+		return (v << 1) ^ (v >> 63);
+	}
+
+	static long unzigzag(long v) {
+		return (v >>> 1) ^ -(v & 1);
+	}
+
+	static void putVarLong(ByteBuffer out, long v) {
+		while ((v & ~0x7FL) != 0) {
+			out.put((byte)((v & 0x7F) | 0x80));
+			v >>>= 7;
+		}
+		out.put((byte)v);
+	}
+
+	static long getVarLong(ByteBuffer in) {
+		long v = 0;
+		byte b;
+		for (int shift = 0; shift < 64; shift += 7) {
+			b = in.get();
+			v |= (long)(b & 0x7F) << shift;
+			if (b >= 0)
+				return v;
+		}
+		throw new TupleCodecException("Malformed varint");
+	}
+
+	/**
+	 * Read a count or length
+	 * @param in
+	 * @param max the most it can be
+	 * @throws TupleCodecException if it is more
+	 */
+	static int getLength(ByteBuffer in, int max) {
+		long n = getVarLong(in);
+		if (n < 0 || n > max)
+			throw new TupleCodecException("Length "+n+" out of range, at most "+max);
+		return (int)n;
+	}
+
+	/**
+	 * A varint byte length, then UTF-8; ASCII is copied without
+	 * an intermediate array
+	 */
+	static void putString(ByteBuffer out, String s) {
+		int len = s.length();
+		boolean ascii = true;
+		for (int i = 0; ascii && i < len; i++)
+			ascii = s.charAt(i) < 0x80;
+		if (ascii) {
+			putVarLong(out, len);
+			if (out.remaining() < len)
+				throw new BufferOverflowException();
+			for (int i = 0; i < len; i++)
+				out.put((byte)s.charAt(i));
+		} else {
+			byte [] b = s.getBytes(StandardCharsets.UTF_8);
+			putVarLong(out, b.length);
+			out.put(b);
+		}
+	}
+
+	static String getString(ByteBuffer in) {
+		int len = getLength(in, in.remaining());
+		String result;
+		if (in.hasArray())
+			result = new String(in.array(), in.arrayOffset() + in.position(), len, StandardCharsets.UTF_8);
+		else {
+			byte [] b = new byte[len];
+			in.get(b);
+			return new String(b, StandardCharsets.UTF_8);
+		}
+		in.position(in.position() + len);
+		return result;
+	}
+}
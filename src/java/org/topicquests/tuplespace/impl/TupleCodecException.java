@@ -0,0 +1,24 @@
+/*
+ * Copyright 2024 TopicQuests Foundation
+ *  This source code is available under the terms of the Affero General Public License v3.
+ *  Please see LICENSE.txt for full license terms, including the availability of proprietary exceptions.
+ */
+package org.topicquests.tuplespace.impl;
+
+/**
+ * Thrown by {@link TupleCodec#decode(java.nio.ByteBuffer)} for bytes that
+ * do not hold a tuple: truncated, damaged, or with a count or length
+ * larger than what is left to read
+ * @author jackpark
+ */
+public class TupleCodecException extends IllegalArgumentException {
+	private static final long serialVersionUID = 1L;
+
+	public TupleCodecException(String message) {
+		super(message);
+	}
+
+	public TupleCodecException(String message, Throwable cause) {
+		super(message, cause);
+	}
+}
@@ -0,0 +1,64 @@
+/*
+ * Copyright 2024 TopicQuests Foundation
+ *  This source code is available under the terms of the Affero General Public License v3.
+ *  Please see LICENSE.txt for full license terms, including the availability of proprietary exceptions.
+ */
+package org.topicquests.tuplespace.impl;
+
+/**
+ * A stored tuple's entry in a {@link TupleQueue}.
+ * <p>The queue orders handles by (key descending, seq ascending),
+ * so tuples of equal priority never collide and come out first in,
+ * first out. The key is the priority the tuple would have had if the
+ * queue had never decayed; its effective priority is the key less the
+ * queue's decay offset.</p>
+ * @author jackpark
+ */
+class TupleHandle {
+	/**
+	 * The stored tuple
+	 */
+	final TupleImpl tuple;
+	/**
+	 * Insertion sequence; unique across all spaces
+	 */
+	final long seq;
+	/**
+	 * The queue holding this handle
+	 */
+	final TupleQueue queue;
+	/**
+	 * Ordering key; only changed by the owning {@link TupleQueue}
+	 */
+	volatile long key;
+	/**
+	 * <code>false</code> once removed from the queue; lock-free
+	 * readers check it before returning the tuple
+	 */
+	volatile boolean live = true;
+	/**
+	 * Dense slot number in the space's {@link BitmapIndex}, or -1;
+	 * guarded by the space lock
+	 */
+	int slot = -1;
+	/**
+	 * The id the space gave the tuple, which change listeners know it
+	 * by: in a durable space, the lsn of its INSERT record; guarded by
+	 * the space lock
+	 */
+	long logId = -1;
+
+	TupleHandle(TupleImpl tuple, long seq, TupleQueue queue, long key) {
+		this.tuple = tuple;
+		this.seq = seq;
+		this.queue = queue;
+		this.key = key;
+	}
+
+	/**
+	 * @return the effective priority
+	 */
+	int getPriority() {
+		return queue.effective(key);
+	}
+}
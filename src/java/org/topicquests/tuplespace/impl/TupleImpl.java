@@ -56,11 +56,13 @@ package org.topicquests.tuplespace.impl;
  * $Id: TupleImpl.java,v 1.3 2001/07/08 16:16:08 vwilliams Exp $
  */
 
-import java.util.HashMap;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
 import java.util.Iterator;
 import java.util.Map;
+import java.util.NoSuchElementException;
 import java.util.Set;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Predicate;
 
 import org.topicquests.tuplespace.api.IConstants;
 import org.topicquests.tuplespace.api.ILogicElement;
@@ -77,8 +79,11 @@ import com.sun.java.util.collections.Set;
 
 
 /**
-* Default, minimalist implementation of a Tuple. Uses a List to
-* store the tuple's fields.
+* Default, minimalist implementation of a Tuple. Stores the tuple's
+* fields in a flat array laid out by an interned TupleShape. Shape and
+* array are never changed in place, only replaced together through one
+* volatile reference, so a reader racing a set() sees the fields as
+* they were before it or after it, never a mix.
 *
 * TO DO:
 *	- improve hash() so we can be sure we aren't comparing apples to oranges
@@ -120,13 +125,45 @@ public class TupleImpl implements ITuple, IConstants {
      */
     private String id = null;
 
+    /**
+     * Sequence number assigned by the TupleSpace holding this tuple,
+     * carried by copies so they can address the stored original;
+     * -1 if never stored
+     */
+    private long seq = -1;
+
+    /**
+     * Handle in the TupleQueue storing this tuple, if any.
+     * While attached, priority is read through the handle so that
+     * a channel-wide decay never has to touch the tuple.
+     */
+    private volatile TupleHandle handle = null;
+
     /**
      * Internal store for all fields
-     * except tag (group) and priority
+     * except tag (group) and priority; shared by copies, since
+     * nothing writes it
      */
-	private Map<String, Object> tupleFields = null;
+	private volatile Fields fields = Fields.EMPTY;
 
-	private int fieldCount = 0;
+	/**
+	 * An interned layout and one value per slot of it; immutable
+	 */
+	private static final class Fields {
+		static final Fields EMPTY = new Fields(TupleShape.EMPTY, new Object[0]);
+		final TupleShape shape;
+		final Object [] values;
+
+		Fields(TupleShape shape, Object [] values) {
+			this.shape = shape;
+			this.values = values;
+		}
+	}
+
+	/**
+	 * A frozen tuple refuses every mutator; see {@link #freeze()}
+	 */
+	private volatile boolean frozen = false;
 
     protected boolean allowPartialMatch = false;
 
@@ -145,6 +182,7 @@ public class TupleImpl implements ITuple, IConstants {
       return command;
     }
     public void setCommand(String cmd) {
+      checkMutable();
       command = cmd;
     }
     /**
@@ -156,17 +194,52 @@ public class TupleImpl implements ITuple, IConstants {
       return mySpace;
     }
     public void setSpace(String space) {
+      checkMutable();
       mySpace = space;
     }
     /**
      * Identity for each Tuple
      */
     public void setID(String id) {
+      checkMutable();
       this.id = id;
     }
     public String getID() {
       return this.id;
     }
+    /**
+     * Make this tuple immutable. A TupleSpace freezes the copies it
+     * stores, so it can hand the same instance to every reader;
+     * <code>copy()</code> gives a mutable tuple sharing the field
+     * values until it is first changed.
+     */
+    public void freeze() {
+      this.frozen = true;
+    }
+    public boolean isFrozen() {
+      return this.frozen;
+    }
+    private void checkMutable() {
+      if (frozen)
+        throw new IllegalStateException("Tuple is frozen; modify a copy()");
+    }
+    long getSeq() {
+      return this.seq;
+    }
+    void setSeq(long seq) {
+      this.seq = seq;
+    }
+    void attach(TupleHandle h) {
+      this.handle = h;
+    }
+    /**
+     * Called when the tuple leaves its queue
+     * @param effectivePriority priority at the time it left
+     */
+    void detach(int effectivePriority) {
+      this.priority = effectivePriority;
+      this.handle = null;
+    }
     /**
      * Timestamp support
      */
@@ -174,6 +247,7 @@ public class TupleImpl implements ITuple, IConstants {
       return this.created;
     }
     public void setCreated(Timestamp ts) {
+      checkMutable();
       this.created = ts;
     }
     /**
@@ -183,6 +257,7 @@ public class TupleImpl implements ITuple, IConstants {
       return this.requestId;
     }
     public void setRequestId(String id) {
+      checkMutable();
       this.requestId = id;
     }
 
@@ -192,24 +267,48 @@ public class TupleImpl implements ITuple, IConstants {
 	*/
 	public TupleImpl(String tag) {
 		this.tag = tag;
-		this.tupleFields = new ConcurrentHashMap<String, Object>();
 	}
 
+	/**
+	 * @param tag
+	 * @param fields copied into the tuple; later changes
+	 *  to <code>fields</code> are not seen
+	 */
 	public TupleImpl(String tag, Map<String, Object> fields) {
 		this.tag = tag;
-		this.tupleFields = fields;
+		TupleShape s = TupleShape.EMPTY;
+		Iterator<String> names = fields.keySet().iterator();
+		while (names.hasNext())
+			s = s.with(names.next());
+		Object [] v = new Object[s.size()];
+		for (int i = 0; i < v.length; i++)
+			v[i] = fields.get(s.nameAt(i));
+		this.fields = new Fields(s, v);
+	}
+
+	/**
+	 * Used by {@link TupleCodec}
+	 * @param tag
+	 * @param shape
+	 * @param values one per slot of <code>shape</code>; not copied
+	 */
+	TupleImpl(String tag, TupleShape shape, Object [] values) {
+		this.tag = tag;
+		this.fields = new Fields(shape, values);
 	}
 
 	public ITuple copy() {
 
 		TupleImpl newTup = new TupleImpl(this.tag);
-		newTup.tupleFields = new HashMap(this.tupleFields);
-		newTup.fieldCount = newTup.tupleFields.size();
-		newTup.priority = this.priority;
+		newTup.fields = this.fields;
+		newTup.priority = this.getPriority();
                 newTup.requestId = this.requestId;
                 newTup.tag = this.tag;
                 newTup.id = this.id;
+                newTup.seq = this.seq;
                 newTup.mySpace = this.mySpace;
+                newTup.command = this.command;
+                newTup.created = (this.created == null) ? null : (Timestamp)this.created.clone();
                 newTup.allowPartialMatch = this.allowPartialMatch;
 		return (ITuple)newTup;
 	}
@@ -218,33 +317,81 @@ public class TupleImpl implements ITuple, IConstants {
 		return this.tag;
 	}
 
-	public void set(String name, Object f) {
-		synchronized(tupleFields) {
-			tupleFields.put(name, f);
+	public synchronized void set(String name, Object f) {
+		checkMutable();
+		Fields old = this.fields;
+		int slot = old.shape.slotOf(name);
+		Object [] v;
+		if (slot < 0) {
+			TupleShape s = old.shape.with(name);
+			slot = s.slotOf(name);
+			v = new Object[s.size()];
+			System.arraycopy(old.values, 0, v, 0, slot);
+			v[slot] = f;
+			System.arraycopy(old.values, slot, v, slot + 1, old.values.length - slot);
+			this.fields = new Fields(s, v);
+		} else {
+			v = old.values.clone();
+			v[slot] = f;
+			this.fields = new Fields(old.shape, v);
 		}
-		this.fieldCount++;
 	}
 
 	public Object get(String name) {
-		return this.tupleFields.get(name);
+		Fields f = this.fields;
+		int slot = f.shape.slotOf(name);
+		return (slot < 0) ? null : f.values[slot];
 	}
 
 	public int numFields() {
-		return this.fieldCount;
+		return this.fields.shape.size();
 	}
 
 	public Set<String> fieldNames() {
-		return this.tupleFields.keySet();
+		return this.fields.shape.names();
+	}
+
+	/**
+	 * @return the interned layout of this tuple's fields
+	 */
+	public TupleShape getShape() {
+		return this.fields.shape;
+	}
+
+	/**
+	 * @return this tuple if frozen, otherwise a tuple holding its
+	 *  fields as of now, so <code>getShape()</code> and
+	 *  <code>valueAt(int)</code> agree while this one changes
+	 */
+	TupleImpl fieldSnapshot() {
+		if (frozen)
+			return this;
+		Fields f = this.fields;
+		return new TupleImpl(tag, f.shape, f.values);
+	}
+
+	/**
+	 * @param slot a slot of <code>getShape()</code>, read from a tuple
+	 *  nothing is changing; see {@link #fieldSnapshot()}
+	 * @return the value there, or {@code null}
+	 */
+	Object valueAt(int slot) {
+		Object [] v = this.fields.values;
+		return (slot < v.length) ? v[slot] : null;
 	}
 
 	public boolean matches(final ITemplate template){
+		// use the compiled form when there is one
+		if (template instanceof TemplateImpl) {
+			Predicate<ITuple> matcher = ((TemplateImpl)template).getMatcher();
+			if (matcher != null)
+				return matcher.test(this);
+		}
 		// if this is a constraint-based match, return that
 		ILogicElement tupleConstraint = template.getConstraint();
-		System.out.println("StartingMatch "+tupleConstraint);
 		if (tupleConstraint != null) {
 			return tupleConstraint.eval(this);
 		}
-		System.out.println("Should not be here/n"+this.toString());
 		return false;
 	}
 
@@ -252,13 +399,16 @@ public class TupleImpl implements ITuple, IConstants {
 	 * Priority support
 	 */
 	public void setPriority(int newPriority) {
+		checkMutable();
 		this.priority = newPriority;
 	}
 	public int getPriority() {
-		return this.priority;
+		TupleHandle h = this.handle;
+		return (h != null) ? h.getPriority() : this.priority;
 	}
 
 	public void setTag(String newTag) {
+		checkMutable();
 		this.tag = newTag;
 	}
 
@@ -284,16 +434,16 @@ public class TupleImpl implements ITuple, IConstants {
         buf.append("  <"+DO+">"+command+"</"+DO+">\n");
       if (allowPartialMatch)
         buf.append("  <"+PARTIAL_MATCH+"/>\n");
-      Set keys = tupleFields.keySet();
-      Iterator itr = keys.iterator();
-      String n = null;
-      while (itr.hasNext()) {
-        n = (String)itr.next();
+      Fields f = fields;
+      TupleShape s = f.shape;
+      Object [] v = f.values;
+      for (int i = 0; i < s.size(); i++) {
         buf.append("  <"+FIELD+">\n");
-        buf.append("    <"+NAME+">"+n+"</"+NAME+">\n");
-        buf.append("    <"+VALUE+">"+(String)tupleFields.get(n)+"</"+VALUE+">\n");
+        buf.append("    <"+NAME+">"+s.nameAt(i)+"</"+NAME+">\n");
+        buf.append("    <"+VALUE+">"+v[i]+"</"+VALUE+">\n");
         buf.append("  </"+FIELD+">\n");
       }
+      int priority = getPriority();
       if (priority > -1)
         buf.append("  <"+PRIORITY+">"+Integer.toString(priority)+"</"+PRIORITY+">\n");
       buf.append("</"+TUPLE+">\n");
@@ -305,9 +455,68 @@ public class TupleImpl implements ITuple, IConstants {
 //		System.out.println("Comparing "+this.getPriority()+" to "+pri);
 		return pri - this.getPriority();
 	}
+	/**
+	 * @return a live view of the fields; <code>put</code> is
+	 *  <code>set</code>, and fields cannot be removed
+	 */
 	@Override
 	public Map<String, Object> getFields() {
-		return tupleFields;
+		return new FieldMap();
+	}
+
+	/**
+	 * Map view over the fields
+	 */
+	private class FieldMap extends AbstractMap<String, Object> {
+		@Override
+		public Object get(Object key) {
+			return (key instanceof String) ? TupleImpl.this.get((String)key) : null;
+		}
+
+		@Override
+		public boolean containsKey(Object key) {
+			return (key instanceof String) && fields.shape.slotOf((String)key) > -1;
+		}
+
+		@Override
+		public Object put(String key, Object value) {
+			Object result = TupleImpl.this.get(key);
+			set(key, value);
+			return result;
+		}
+
+		@Override
+		public int size() {
+			return fields.shape.size();
+		}
+
+		@Override
+		public Set<Map.Entry<String, Object>> entrySet() {
+			return new AbstractSet<Map.Entry<String, Object>>() {
+				public int size() {
+					return fields.shape.size();
+				}
+				public Iterator<Map.Entry<String, Object>> iterator() {
+					final Fields f = fields;
+					final TupleShape s = f.shape;
+					final Object [] v = f.values;
+					return new Iterator<Map.Entry<String, Object>>() {
+						int i = 0;
+						public boolean hasNext() {
+							return i < s.size();
+						}
+						public Map.Entry<String, Object> next() {
+							if (!hasNext())
+								throw new NoSuchElementException();
+							Map.Entry<String, Object> e =
+								new AbstractMap.SimpleImmutableEntry<String, Object>(s.nameAt(i), v[i]);
+							i++;
+							return e;
+						}
+					};
+				}
+			};
+		}
 	}
 
 }
\ No newline at end of file
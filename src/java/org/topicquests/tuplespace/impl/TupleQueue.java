@@ -0,0 +1,279 @@
+/*
+ * Copyright 2024 TopicQuests Foundation
+ *  This source code is available under the terms of the Affero General Public License v3.
+ *  Please see LICENSE.txt for full license terms, including the availability of proprietary exceptions.
+ */
+package org.topicquests.tuplespace.impl;
+
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.topicquests.tuplespace.api.ITuple;
+
+/**
+ * Addressable priority queue of stored tuples.
+ * <p>Handles are kept in a concurrent skip list ordered by
+ * (priority descending, insertion sequence ascending), and are
+ * addressable by sequence number. Insert, take-max, remove-by-handle
+ * and priority changes are all O(log n); iteration is in priority order.</p>
+ * <p>Decay is lazy: handles store a key, and the effective priority is
+ * the key less a queue-wide offset, so a uniform decay only moves the
+ * offset and never reorders anything. Keys are rebased if the offset
+ * grows large enough to threaten overflow.</p>
+ * <p>Reads (iteration, <code>get</code>, <code>peek</code>, effective
+ * priorities) need no lock and are weakly consistent; the owning
+ * TupleSpace serializes every mutation.</p>
+ * @author jackpark
+ */
+class TupleQueue implements Iterable<TupleHandle> {
+	/**
+	 * Sequence numbers are global so a tuple copied out of one
+	 * space can never address a handle in another
+	 */
+	private static final AtomicLong nextSeq = new AtomicLong();
+
+	static final Comparator<TupleHandle> ORDER = new Comparator<TupleHandle>() {
+		@Override
+		public int compare(TupleHandle a, TupleHandle b) {
+			if (a.key != b.key)
+				return (a.key > b.key) ? -1 : 1;
+			return (a.seq < b.seq) ? -1 : (a.seq == b.seq ? 0 : 1);
+		}
+	};
+
+	/**
+	 * Rebase keys once the offset passes this magnitude. Far below
+	 * overflow, yet each O(n) rebase is paid for by at least 2^9
+	 * decays of the largest int amount, so it is cheap enough to reach
+	 * in ordinary use and in tests.
+	 */
+	private static final long REBASE_AT = 1L << 40;
+
+	private ConcurrentSkipListSet<TupleHandle> order;
+	private Map<Long, TupleHandle> bySeq;
+	/**
+	 * Decay applied to this queue since the last rebase;
+	 * effective priority = key - offset
+	 */
+	private volatile long offset = 0;
+	/**
+	 * Decay folded into the keys by rebases so far
+	 */
+	private volatile long base = 0;
+	/**
+	 * Rebases started so far; see {@link #rebases()}
+	 */
+	private volatile int rebases = 0;
+
+	TupleQueue() {
+		order = new ConcurrentSkipListSet<TupleHandle>(ORDER);
+		bySeq = new ConcurrentHashMap<Long, TupleHandle>();
+	}
+
+	/**
+	 * @return a fresh sequence number
+	 */
+	static long newSeq() {
+		return nextSeq.incrementAndGet();
+	}
+
+	/**
+	 * Add <code>tuple</code> at its current priority
+	 * @param tuple
+	 * @param seq from {@link #newSeq()}
+	 * @return its handle
+	 */
+	TupleHandle insert(TupleImpl tuple, long seq) {
+		TupleHandle h = new TupleHandle(tuple, seq, this, keyFor(tuple.getPriority()));
+		order.add(h);
+		bySeq.put(seq, h);
+		tuple.attach(h);
+		return h;
+	}
+
+	/**
+	 * @return the highest priority handle or {@code null}
+	 */
+	TupleHandle peek() {
+		Iterator<TupleHandle> itr = order.iterator();
+		return itr.hasNext() ? itr.next() : null;
+	}
+
+	/**
+	 * Remove and return the highest priority handle
+	 * @return handle or {@code null}
+	 */
+	TupleHandle poll() {
+		TupleHandle h = order.pollFirst();
+		if (h != null) {
+			h.live = false;
+			bySeq.remove(h.seq);
+			h.tuple.detach(h.getPriority());
+		}
+		return h;
+	}
+
+	/**
+	 * @param seq
+	 * @return the live handle with that sequence number, or {@code null}
+	 */
+	TupleHandle get(long seq) {
+		return bySeq.get(seq);
+	}
+
+	/**
+	 * @param h
+	 * @return <code>true</code> if <code>h</code> was in the queue
+	 */
+	boolean remove(TupleHandle h) {
+		if (bySeq.remove(h.seq) == null)
+			return false;
+		h.live = false;
+		order.remove(h);
+		h.tuple.detach(h.getPriority());
+		return true;
+	}
+
+	/**
+	 * Reposition <code>h</code> at <code>newPriority</code>
+	 * @param h
+	 * @param newPriority
+	 */
+	void changePriority(TupleHandle h, int newPriority) {
+		long key = keyFor(newPriority);
+		if (h.key == key)
+			return;
+		order.remove(h);
+		h.key = key;
+		order.add(h);
+	}
+
+	/**
+	 * Lower every effective priority by <code>howMuch</code> in O(1)
+	 * @param howMuch
+	 */
+	void decay(int howMuch) {
+		offset += howMuch;
+		if (offset > REBASE_AT || offset < -REBASE_AT)
+			rebase();
+	}
+
+	/**
+	 * @param key
+	 * @return the effective priority for <code>key</code>, clamped to int
+	 */
+	int effective(long key) {
+		return clamp(key - offset);
+	}
+
+	/**
+	 * Total decay applied to this queue, which a rebase does not change;
+	 * caller must hold the space lock
+	 */
+	long totalDecay() {
+		return base + offset;
+	}
+
+	/**
+	 * Keys read lock-free between two equal counts were all made under
+	 * the same {@link #base()}
+	 * @return the number of rebases started
+	 */
+	int rebases() {
+		return rebases;
+	}
+
+	/**
+	 * @return the decay folded into keys so far
+	 */
+	long base() {
+		return base;
+	}
+
+	/**
+	 * @param key made under <code>base</code>
+	 * @param totalDecay from {@link #totalDecay()}
+	 * @param base from {@link #base()}
+	 * @return the effective priority <code>key</code> had when the
+	 *  queue's total decay was <code>totalDecay</code>
+	 */
+	static int effective(long key, long totalDecay, long base) {
+		return clamp(key - (totalDecay - base));
+	}
+
+	private static int clamp(long p) {
+		if (p > Integer.MAX_VALUE)
+			return Integer.MAX_VALUE;
+		if (p < Integer.MIN_VALUE)
+			return Integer.MIN_VALUE;
+		return (int)p;
+	}
+
+	private long keyFor(int priority) {
+		return priority + offset;
+	}
+
+	/**
+	 * Fold the offset into every key. Ordering is unchanged,
+	 * so handles are rewritten in place.
+	 */
+	private void rebase() {
+		// counted first, so a reader that sees a rewritten key sees the count
+		rebases++;
+		Iterator<TupleHandle> itr = order.iterator();
+		while (itr.hasNext())
+			itr.next().key -= offset;
+		base += offset;
+		offset = 0;
+	}
+
+	/**
+	 * Compare two handles under the queue's ordering
+	 */
+	static boolean before(TupleHandle a, TupleHandle b) {
+		return ORDER.compare(a, b) < 0;
+	}
+
+	/**
+	 * @return the number of stored tuples; O(1), unlike counting the skip list
+	 */
+	int size() {
+		return bySeq.size();
+	}
+
+	/**
+	 * @return handles in priority order; does not support <code>remove()</code>
+	 */
+	@Override
+	public Iterator<TupleHandle> iterator() {
+		final Iterator<TupleHandle> itr = order.iterator();
+		return new Iterator<TupleHandle>() {
+			public boolean hasNext() { return itr.hasNext(); }
+			public TupleHandle next() { return itr.next(); }
+		};
+	}
+
+	/**
+	 * @return the handles in no particular order; each handle stored
+	 *  throughout the iteration is returned exactly once, even if its
+	 *  priority changes meanwhile
+	 */
+	Iterator<TupleHandle> unordered() {
+		return bySeq.values().iterator();
+	}
+
+	/**
+	 * @return the stored tuples in priority order
+	 */
+	Iterator<ITuple> tuples() {
+		final Iterator<TupleHandle> itr = order.iterator();
+		return new Iterator<ITuple>() {
+			public boolean hasNext() { return itr.hasNext(); }
+			public ITuple next() { return itr.next().tuple; }
+		};
+	}
+}
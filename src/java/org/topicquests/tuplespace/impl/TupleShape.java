@@ -0,0 +1,240 @@
+/*
+ * Copyright 2024 TopicQuests Foundation
+ *  This source code is available under the terms of the Affero General Public License v3.
+ *  Please see LICENSE.txt for full license terms, including the availability of proprietary exceptions.
+ */
+package org.topicquests.tuplespace.impl;
+
+import java.util.AbstractSet;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Interned layout shared by all tuples with the same field names,
+ * whatever order the fields were added in.
+ * <p>A shape maps each field name to a slot in the tuple's value array,
+ * with the names in sorted order. Shapes form a tree rooted at
+ * {@link #EMPTY} in which each child appends a name greater than its
+ * parent's; {@link #with(String)} finds the canonical shape by walking
+ * that tree along the sorted names, and remembers the answer. So equal
+ * name sets are the same instance and field names are held once per
+ * shape rather than once per tuple. The tree is never pruned, so it
+ * stops growing at {@link #MAX_INTERNED} shapes: past that, a name set
+ * not already in it gets a shape of its own, which is neither shared
+ * nor remembered and goes when its tuples do.</p>
+ * <p>Each shape also carries a presence mask: one bit per field name,
+ * numbered globally the first time a name is seen. A template that
+ * needs certain fields can reject a tuple whose shape lacks one of them
+ * with a single AND. Only the first 64 names get a bit; a later name
+ * has mask 0, so tests on it are never pruned this way and always
+ * fall through to matching the value.</p>
+ * @author jackpark
+ */
+public final class TupleShape {
+	/**
+	 * Shapes this wide or wider get a hash lookup; narrower ones scan
+	 */
+	private static final int HASHED_AT = 9;
+	/**
+	 * Most shapes the tree holds
+	 */
+	public static final int MAX_INTERNED = 1 << 16;
+	private static final AtomicInteger interned = new AtomicInteger();
+
+	private static final ConcurrentHashMap<String, Integer> BITS = new ConcurrentHashMap<String, Integer>();
+	private static final AtomicInteger nextBit = new AtomicInteger();
+
+	public static final TupleShape EMPTY = new TupleShape(new String[0], 0L, true);
+
+	private final String [] names;
+	private final Map<String, Integer> slots;
+	private final Set<String> nameSet;
+	/**
+	 * name -> child appending it; only names greater than the last one
+	 */
+	private final ConcurrentHashMap<String, TupleShape> children;
+	/**
+	 * name -> canonical shape with it added
+	 */
+	private final ConcurrentHashMap<String, TupleShape> transitions;
+	/**
+	 * Bits of the field names in this shape
+	 */
+	private final long mask;
+	/**
+	 * <code>true</code> if this shape is in the tree
+	 */
+	private final boolean shared;
+
+	private TupleShape(String [] names, long mask, boolean shared) {
+		this.names = names;
+		this.mask = mask;
+		this.shared = shared;
+		if (names.length >= HASHED_AT) {
+			slots = new HashMap<String, Integer>();
+			for (int i = 0; i < names.length; i++)
+				slots.put(names[i], i);
+		} else
+			slots = null;
+		nameSet = new NameSet();
+		children = new ConcurrentHashMap<String, TupleShape>();
+		transitions = new ConcurrentHashMap<String, TupleShape>();
+	}
+
+	/**
+	 * @param name
+	 * @return the slot holding <code>name</code>, or -1
+	 */
+	public int slotOf(String name) {
+		if (slots != null) {
+			Integer result = slots.get(name);
+			return (result == null) ? -1 : result.intValue();
+		}
+		for (int i = 0; i < names.length; i++)
+			if (names[i] == name)
+				return i;
+		for (int i = 0; i < names.length; i++)
+			if (names[i].equals(name))
+				return i;
+		return -1;
+	}
+
+	/**
+	 * @param name not already in this shape
+	 * @return the shape with <code>name</code> added, at
+	 *  <code>slotOf(name)</code>; the fields after it move up one slot
+	 */
+	public TupleShape with(String name) {
+		TupleShape result = transitions.get(name);
+		if (result == null) {
+			int at = names.length;
+			while (at > 0 && names[at - 1].compareTo(name) > 0)
+				at--;
+			result = EMPTY;
+			for (int i = 0; i < at; i++)
+				result = result.append(names[i]);
+			result = result.append(name);
+			for (int i = at; i < names.length; i++)
+				result = result.append(names[i]);
+			if (shared && result.shared)
+				transitions.putIfAbsent(name, result);
+		}
+		return result;
+	}
+
+	/**
+	 * @param name greater than every name in this shape
+	 * @return the child shape with <code>name</code> appended; not
+	 *  shared if this one is not, or the tree is full
+	 */
+	private TupleShape append(String name) {
+		TupleShape result = children.get(name);
+		if (result == null) {
+			String [] n = new String[names.length + 1];
+			System.arraycopy(names, 0, n, 0, names.length);
+			n[names.length] = name;
+			if (!shared || interned.get() >= MAX_INTERNED)
+				return new TupleShape(n, mask | maskOf(name), false);
+			TupleShape s = new TupleShape(n, mask | maskOf(name), true);
+			result = children.putIfAbsent(name, s);
+			if (result == null) {
+				interned.incrementAndGet();
+				result = s;
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * @param slot
+	 * @return the field name in <code>slot</code>
+	 */
+	public String nameAt(int slot) {
+		return names[slot];
+	}
+
+	public int size() {
+		return names.length;
+	}
+
+	/**
+	 * @param required a mask from {@link #knownMask(String)}
+	 * @return <code>true</code> if this shape has every field in <code>required</code>
+	 */
+	public boolean hasAll(long required) {
+		return (mask & required) == required;
+	}
+
+	/**
+	 * Look up, without assigning, the presence bit for <code>name</code>
+	 * @param name
+	 * @return the bit, or 0 if no shape has used <code>name</code>
+	 *  or names have run out of bits
+	 */
+	public static long knownMask(String name) {
+		Integer bit = BITS.get(name);
+		return (bit == null) ? 0 : 1L << bit.intValue();
+	}
+
+	/**
+	 * @param name
+	 * @return the presence bit for <code>name</code>, assigning one if
+	 *  needed; 0 if names have run out of bits
+	 */
+	private static long maskOf(String name) {
+		Integer bit = BITS.get(name);
+		if (bit == null) {
+			if (nextBit.get() >= 64)
+				return 0;
+			synchronized (BITS) {
+				bit = BITS.get(name);
+				if (bit == null) {
+					int b = nextBit.get();
+					if (b >= 64)
+						return 0;
+					bit = b;
+					BITS.put(name, bit);
+					nextBit.set(b + 1);
+				}
+			}
+		}
+		return 1L << bit.intValue();
+	}
+
+	/**
+	 * @return the field names, in slot order, which is sorted; unmodifiable
+	 */
+	public Set<String> names() {
+		return nameSet;
+	}
+
+	private class NameSet extends AbstractSet<String> {
+		@Override
+		public Iterator<String> iterator() {
+			return new Iterator<String>() {
+				int i = 0;
+				public boolean hasNext() { return i < names.length; }
+				public String next() {
+					if (i >= names.length)
+						throw new NoSuchElementException();
+					return names[i++];
+				}
+			};
+		}
+
+		@Override
+		public int size() {
+			return names.length;
+		}
+
+		@Override
+		public boolean contains(Object o) {
+			return (o instanceof String) && slotOf((String)o) > -1;
+		}
+	}
+}
@@ -57,15 +57,34 @@ package org.topicquests.tuplespace.impl;
  *  @author Jack Park -- modifications
  */
 
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.BiConsumer;
+import java.util.function.Predicate;
 
+import org.topicquests.tuplespace.api.IChangeListener;
+import org.topicquests.tuplespace.api.ILogicElement;
+import org.topicquests.tuplespace.api.IQueryPlan;
+import org.topicquests.tuplespace.api.ISubscription;
 import org.topicquests.tuplespace.api.ITemplate;
 import org.topicquests.tuplespace.api.ITuple;
 import org.topicquests.tuplespace.api.ITupleSpace;
-import java.util.SortedSet;
-import java.util.TreeSet;
+import org.topicquests.tuplespace.api.ITupleSpaceListener;
 
 /**
 * This class implements a TupleSpace. This is the default
@@ -85,7 +104,8 @@ import java.util.TreeSet;
  *		prioritized (sorted by priority)
  *	Major revision to handle IFieldLogic (First Order Logic) matching
  *
- *	note: prioritized space uses only Tuple.priority for matching
+ *	note: prioritized space orders by Tuple.priority, then by
+ *	insertion order among equal priorities
  */
 public final class TupleSpaceImpl implements ITupleSpace {
 
@@ -94,8 +114,83 @@ public final class TupleSpaceImpl implements ITupleSpace {
 	*/
 	private String spaceName;
 
-	
-	private SortedSet<ITuple> myTuples;
+	/**
+	 * Stored tuples in priority order. Also the space's monitor:
+	 * every mutation holds it, while reads go straight to the
+	 * concurrent structures and never take it.
+	 */
+	private TupleQueue myTuples;
+
+	/**
+	 * (field name, value) index over <code>myTuples</code>;
+	 * written under <code>myTuples</code>
+	 */
+	private FieldIndex myIndex;
+
+	/**
+	 * Ordered indexes on chosen fields; written under <code>myTuples</code>
+	 */
+	private SortedIndex mySortedIndex;
+
+	/**
+	 * Picks access paths from the indexes' statistics
+	 */
+	private QueryPlanner myPlanner;
+
+	/**
+	 * Bitmaps over dense slots for chosen fields;
+	 * written under <code>myTuples</code>, read without it
+	 */
+	private BitmapIndex myBitmaps;
+
+	/**
+	 * Blocked takes and reads, in arrival order;
+	 * guarded by <code>myTuples</code>
+	 */
+	private MatchNetwork<Waiter> myWaiters;
+
+	/**
+	 * Standing templates; guarded by <code>myTuples</code>
+	 */
+	private MatchNetwork<Subscription> mySubscriptions;
+
+	/**
+	 * Collects that would test at least this many tuples
+	 * match them in parallel
+	 */
+	private volatile int parallelThreshold = DEFAULT_PARALLEL_THRESHOLD;
+
+	public static final int DEFAULT_PARALLEL_THRESHOLD = 50000;
+
+	/**
+	 * Change log of a durable space, or {@code null};
+	 * appended to under <code>myTuples</code>
+	 */
+	private volatile WriteAheadLog myLog = null;
+	private File myLogFile = null;
+	private File myCheckpointFile = null;
+	/**
+	 * Held while taking a checkpoint, so only one runs at a time
+	 */
+	private final Object myCheckpointLock = new Object();
+	/**
+	 * The last id given a stored tuple of a space without a log;
+	 * guarded by <code>myTuples</code>
+	 */
+	private long myLastId = 0;
+	/**
+	 * Told of every change; guarded by <code>myTuples</code>
+	 */
+	private final List<IChangeListener> myChangeListeners = new ArrayList<IChangeListener>();
+	/**
+	 * Waiters handed a tuple whose futures are not yet completed;
+	 * guarded by <code>myTuples</code>, and completed after it is released
+	 */
+	private List<Waiter> myDeliveries = new ArrayList<Waiter>();
+	/**
+	 * A replica refuses changes but those its {@link #applier()} makes
+	 */
+	private volatile boolean readOnly = false;
 
     /**
      * Shutdown for all threads
@@ -107,67 +202,532 @@ public final class TupleSpaceImpl implements ITupleSpace {
 	*/
 	public TupleSpaceImpl(String name) {
 		this.spaceName = name;
-		this.myTuples = new TreeSet<ITuple>();
+		this.myTuples = new TupleQueue();
+		this.myIndex = new FieldIndex();
+		this.mySortedIndex = new SortedIndex();
+		this.myBitmaps = new BitmapIndex();
+		this.myPlanner = new QueryPlanner(myTuples, myIndex, mySortedIndex, myBitmaps);
+		this.myWaiters = new MatchNetwork<Waiter>();
+		this.mySubscriptions = new MatchNetwork<Subscription>();
+	}
+
+	/**
+	 * A durable space: loads <code>checkpointFile</code>, replays the
+	 * records of <code>logFile</code> after it, then logs every change.
+	 * @param name
+	 * @param logFile created if it does not exist; rolled segments
+	 *  sit beside it
+	 * @param checkpointFile written by {@link #checkpoint()}; need not exist
+	 * @throws UncheckedIOException if the files cannot be read or written
+	 */
+	public TupleSpaceImpl(String name, File logFile, File checkpointFile) {
+		this(name);
+		this.myLogFile = logFile;
+		this.myCheckpointFile = checkpointFile;
+		Applier replay = new Applier();
+		List<String> sorted = new ArrayList<String>();
+		List<String> bitmaps = new ArrayList<String>();
+		synchronized (myTuples) {
+			try {
+				long lsn = Checkpoint.load(checkpointFile, replay, sorted, bitmaps);
+				Iterator<String> itr = sorted.iterator();
+				while (itr.hasNext())
+					mySortedIndex.addField(itr.next(), myTuples.iterator());
+				itr = bitmaps.iterator();
+				while (itr.hasNext())
+					myBitmaps.addField(itr.next(), myTuples.iterator());
+				lsn = WriteAheadLog.replay(logFile, lsn, replay);
+				myLog = new WriteAheadLog(logFile, lsn + 1);
+			} catch (IOException e) {
+				throw new UncheckedIOException("Cannot restore "+name+" from "+logFile, e);
+			}
+		}
+	}
+
+	/**
+	 * Write a checkpoint of a durable space while it keeps serving;
+	 * does nothing for other spaces. The space lock is held only to cut
+	 * the log and note the queue's total decay, which fixes the lsn the
+	 * checkpoint covers. The log segment is then written and forced,
+	 * and the tuples read, without the lock: the snapshot holds each
+	 * tuple logged by the cut and still stored, at its priority as of
+	 * the cut. Changes the scan overlaps are in the log after the cut,
+	 * and replaying them over the snapshot is harmless: removes of
+	 * tuples it missed are ignored and priority records set absolute
+	 * values. Log segments the checkpoint covers are then deleted.
+	 * @throws UncheckedIOException if the checkpoint cannot be written
+	 */
+	@Override
+	public void checkpoint() {
+		synchronized (myCheckpointLock) {
+			WriteAheadLog log;
+			long lsn, decay;
+			List<String> sorted, bitmaps;
+			synchronized (myTuples) {
+				log = myLog;
+				if (log == null)
+					return;
+				lsn = log.cut();
+				decay = myTuples.totalDecay();
+				sorted = mySortedIndex.fieldNames();
+				bitmaps = myBitmaps.fieldNames();
+			}
+			log.roll();
+			Checkpoint cp = snapshot(lsn, decay, sorted, bitmaps);
+			try {
+				cp.write(myCheckpointFile);
+				WriteAheadLog.dropSegments(myLogFile, cp.lsn);
+			} catch (IOException e) {
+				throw new UncheckedIOException("Cannot checkpoint "+spaceName, e);
+			}
+		}
+	}
+
+	/**
+	 * Read the stored tuples without the lock, again if a rebase
+	 * rewrote keys meanwhile
+	 * @param lsn the log cut
+	 * @param decay the queue's total decay at the cut
+	 * @param sorted
+	 * @param bitmaps
+	 * @return the tuples logged by <code>lsn</code>, in insertion order
+	 */
+	private Checkpoint snapshot(long lsn, long decay, List<String> sorted, List<String> bitmaps) {
+		List<TupleHandle> handles = new ArrayList<TupleHandle>();
+		long [] keys;
+		long base;
+		int rebases;
+		do {
+			handles.clear();
+			rebases = myTuples.rebases();
+			base = myTuples.base();
+			Iterator<TupleHandle> itr = myTuples.unordered();
+			TupleHandle h;
+			while (itr.hasNext()) {
+				h = itr.next();
+				// logged after the cut, or stored too recently to say: replayed
+				if (h.logId > 0 && h.logId <= lsn)
+					handles.add(h);
+			}
+			keys = new long[handles.size()];
+			for (int i = 0; i < keys.length; i++)
+				keys[i] = handles.get(i).key;
+		} while (rebases != myTuples.rebases());
+		// insertion order, so equal priorities reload first in, first out
+		Integer [] order = new Integer[keys.length];
+		for (int i = 0; i < order.length; i++)
+			order[i] = i;
+		final List<TupleHandle> hs = handles;
+		Arrays.sort(order, new Comparator<Integer>() {
+			public int compare(Integer a, Integer b) {
+				return Long.compare(hs.get(a).seq, hs.get(b).seq);
+			}
+		});
+		int n = order.length;
+		long [] ids = new long[n];
+		TupleImpl [] tuples = new TupleImpl[n];
+		int [] priorities = new int[n];
+		TupleHandle h;
+		for (int i = 0; i < n; i++) {
+			h = handles.get(order[i]);
+			ids[i] = h.logId;
+			tuples[i] = h.tuple;
+			priorities[i] = TupleQueue.effective(keys[order[i]], decay, base);
+		}
+		return new Checkpoint(lsn, ids, tuples, priorities, sorted, bitmaps);
+	}
+
+	/**
+	 * Wait until the changes made so far are durable; called
+	 * after a change, outside <code>myTuples</code>, so that
+	 * concurrent writers share the flush
+	 */
+	private void sync() {
+		WriteAheadLog log = myLog;
+		if (log != null)
+			log.sync();
+	}
+
+	@Override
+	public void close() {
+		WriteAheadLog log;
+		synchronized (myTuples) {
+			log = myLog;
+			myLog = null;
+		}
+		if (log != null)
+			log.close();
 	}
 
     /**
-     * @return list of Tuple IDs
+     * @return the stored tuples in priority order
      */
-    public Iterator tuples() {
+    public Iterator<ITuple> tuples() {
       if (myTuples==null) return null;
-      return myTuples.iterator();
+      return myTuples.tuples();
     }
 
     /**
-     * @param Tuple to insert into this TupleSpace
-     *
+     * @param Tuple to insert into this TupleSpace; a frozen copy
+     *  is stored, sharing its field values
      */
 	public void insert(final ITuple tup) {
-System.out.println("INSERTING "+tup.toString());
-		// make a defensive copy of the template tuple
-		ITuple insertTup = tup.copy();
+		checkWritable();
+		List<Waiter> delivered;
+		synchronized(this.myTuples) {
+			store(tup, -1);
+			delivered = deliveries();
+		}
+		complete(delivered);
+		sync();
+	}
 
+	/**
+	 * Insert a batch under one acquisition of the space lock
+	 * @param tuples each is copied, as by <code>insert</code>
+	 */
+	public void putAll(final Collection<? extends ITuple> tuples) {
+		checkWritable();
+		Iterator<? extends ITuple> itr = tuples.iterator();
+		List<Waiter> delivered;
 		synchronized(this.myTuples) {
-			myTuples.add(tup);
-			myTuples.notify();
+			while (itr.hasNext())
+				store(itr.next(), -1);
+			delivered = deliveries();
 		}
+		complete(delivered);
+		sync();
 	}
 
+	/**
+	 * Freeze a copy of <code>tup</code> and hand it to a waiter or store it.
+	 * It gets its id and sequence number first, and a durable space logs
+	 * it first, so subscribers and waiters never see a tuple the log
+	 * refused; see {@link #complete(List)} for one a taker consumes.
+	 * Caller must hold <code>myTuples</code>.
+	 * @param tup
+	 * @param id the id to store it under, or -1 for the next one: its
+	 *  log record's lsn in a durable space
+	 * @return its handle, or {@code null} if a waiter took it
+	 * @throws IllegalArgumentException if the space is durable and
+	 *  <code>tup</code> has a field value or name it cannot log;
+	 *  nothing is changed
+	 */
+	private TupleHandle store(final ITuple tup, long id) {
+		TupleImpl stored = asStored(tup);
+		if (myLog != null)
+			TupleCodec.check(stored);
+		stored.freeze();
+		if (id < 0)
+			id = (myLog != null) ? myLog.insert(stored) : ++myLastId;
+		else if (id > myLastId)
+			myLastId = id;
+		stored.setSeq(TupleQueue.newSeq());
+		publish(stored);
+		if (deliver(stored, id))
+			return null;
+		return attach(stored, id);
+	}
+
+	/**
+	 * Put <code>stored</code> in the queue and the indexes under the
+	 * sequence number it carries, and tell the change listeners.
+	 * Caller must hold <code>myTuples</code>.
+	 * @param stored frozen
+	 * @param id
+	 * @return its handle
+	 */
+	private TupleHandle attach(TupleImpl stored, long id) {
+		TupleHandle h = myTuples.insert(stored, stored.getSeq());
+		h.logId = id;
+		myIndex.add(h);
+		mySortedIndex.add(h);
+		myBitmaps.add(h);
+		if (!myChangeListeners.isEmpty()) {
+			int p = h.getPriority();
+			for (int i = 0; i < myChangeListeners.size(); i++)
+				myChangeListeners.get(i).inserted(id, stored, p);
+		}
+		return h;
+	}
+
+	/**
+	 * Make the instance to store for an inserted tuple, so the
+	 * caller's own is never frozen or attached
+	 * @param tup the inserted tuple
+	 * @return a TupleImpl free to attach to <code>myTuples</code>
+	 */
+	private TupleImpl asStored(ITuple tup) {
+		// a copy shares the values, however many fields there are
+		if (tup instanceof TupleImpl)
+			return (TupleImpl)tup.copy();
+		TupleImpl result = new TupleImpl(tup.getTag(), new HashMap<String, Object>(tup.getFields()));
+		result.setPriority(tup.getPriority());
+		result.setID(tup.getID());
+		result.setSpace(tup.getSpace());
+		return result;
+	}
 
 	/**
 	 * Extract a Tuple matching the template.
-	 * This method "subscribes" a TupleSpaceListener
+	 * If none is present, registers a Waiter which <code>insert</code>
+	 * hands the next matching tuple to, and blocks on it.
+	 * For a standing interest in matching tuples, see <code>subscribe</code>.
 	 */
 	public ITuple take(final ITemplate template, long t) {
+		return await(template, t, true);
+	}
 
-		ITuple match = null;
-		boolean firstTry = true;
-		synchronized (myTuples) {
-			while ((match = getMatch(template, true)) == null) {
-				if (firstTry) {
-					firstTry = false;
-					try {
-						template.wait(t); 	// wait as long as required...
-					} catch (Exception e) { }
-				} else
-					return match;
+	public ITuple read(final ITemplate template, long t) {
+		return await(template, t, false);
+	}
+
+	@Override
+	public CompletableFuture<ITuple> takeAsync(final ITemplate template, long t) {
+		return submit(template, t, true, true);
+	}
+
+	@Override
+	public CompletableFuture<ITuple> readAsync(final ITemplate template, long t) {
+		return submit(template, t, false, true);
+	}
+
+	/**
+	 * Match now, or block on a Waiter for up to <code>t</code> milliseconds
+	 * @param template
+	 * @param t
+	 * @param destroy <code>true</code> for take
+	 * @return ITuple or {@code null}
+	 */
+	private ITuple await(final ITemplate template, long t, boolean destroy) {
+		CompletableFuture<ITuple> f = submit(template, t, destroy, false);
+		if (!f.isDone()) {
+			try {
+				return f.get(t, TimeUnit.MILLISECONDS);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			} catch (TimeoutException e) {
+			} catch (ExecutionException e) {
+				return null;
 			}
+			// give up, unless an insert got there first
+			f.complete(null);
 		}
-		return match;
+		return f.getNow(null);
 	}
 
-	public ITuple read(final ITemplate template, long t) {
+	/**
+	 * Match now, or register a Waiter whose future an insert completes
+	 * @param template
+	 * @param t milliseconds to wait
+	 * @param destroy <code>true</code> for take
+	 * @param timed <code>true</code> to complete the future with
+	 *  {@code null} when <code>t</code> expires; otherwise the caller must
+	 * @return a future, already complete if there was nothing to wait for
+	 */
+	private CompletableFuture<ITuple> submit(final ITemplate template, long t,
+			boolean destroy, boolean timed) {
+		if (destroy)
+			checkWritable();
+		ITuple match = getMatch(template, destroy);
+		if (match != null || t <= 0)
+			return CompletableFuture.completedFuture(match);
+		final Waiter w;
+		synchronized (myTuples) {
+			// look again with inserts held off, so none slips past the waiter
+			TupleHandle h = findMatch(template);
+			if (h != null) {
+				match = h.tuple;
+				if (destroy) {
+					removeHandle(h);
+					match = match.copy();
+				}
+				w = null;
+			} else {
+				w = new Waiter(template, destroy);
+				w.entry = myWaiters.add(template, w);
+			}
+		}
+		if (w == null) {
+			if (destroy)
+				sync();
+			return CompletableFuture.completedFuture(match);
+		}
+		final ScheduledFuture<?> timer = (timed && t < Long.MAX_VALUE) ?
+			Waiter.TIMER.schedule(new Runnable() {
+				public void run() { w.future.complete(null); }
+			}, t, TimeUnit.MILLISECONDS) : null;
+		w.future.whenComplete(new BiConsumer<ITuple, Throwable>() {
+			public void accept(ITuple result, Throwable ex) {
+				if (timer != null)
+					timer.cancel(false);
+				if (result == null) {
+					// timed out or cancelled: deregister
+					synchronized (myTuples) {
+						myWaiters.remove(w.entry);
+					}
+				}
+			}
+		});
+		return w.future;
+	}
 
-		ITuple match = null;
-		synchronized (template) {
-			if ((match = getMatch(template, false)) == null) {				
-				try {
-						template.wait(t);
-						return getMatch(template, false); // we only get one try
-				} catch (Exception e) { }
+	/**
+	 * Offer a newly inserted, frozen tuple to the registered waiters in
+	 * arrival order: every matching reader and the first matching taker
+	 * get the tuple itself. Only waiters the network finds as candidates
+	 * are tested. Waiters that have timed out or been cancelled are
+	 * dropped. The waiters served are deregistered and queued on
+	 * <code>myDeliveries</code>; their futures are completed by
+	 * {@link #complete(List)} once the lock is released, so work a caller
+	 * chains to a future never runs inside it.
+	 * Caller must hold <code>myTuples</code>.
+	 * @param tup
+	 * @return <code>true</code> if a taker consumed <code>tup</code>
+	 */
+	private boolean deliver(ITuple tup, long id) {
+		if (myWaiters.isEmpty())
+			return false;
+		Iterator<MatchNetwork.Entry<Waiter>> itr = myWaiters.candidates(tup).iterator();
+		MatchNetwork.Entry<Waiter> e;
+		Waiter w;
+		boolean taken = false;
+		while (itr.hasNext()) {
+			e = itr.next();
+			w = e.value;
+			if (w.future.isDone()) {
+				myWaiters.remove(e);
+				continue;
+			}
+			if (w.isTake && taken)
+				continue;
+			if (tup.matches(w.template)) {
+				myWaiters.remove(e);
+				if (w.deliver(tup, id)) {
+					myDeliveries.add(w);
+					if (w.isTake)
+						taken = true;
+				}
 			}
 		}
-		return match;
+		return taken;
+	}
+
+	/**
+	 * Caller must hold <code>myTuples</code>
+	 * @return the waiters served since the last call, or {@code null}
+	 */
+	private List<Waiter> deliveries() {
+		if (myDeliveries.isEmpty())
+			return null;
+		List<Waiter> result = myDeliveries;
+		myDeliveries = new ArrayList<Waiter>();
+		return result;
+	}
+
+	/**
+	 * Complete the futures of waiters served under the lock; called
+	 * without holding it, and before the inserting call syncs the log.
+	 * A tuple a taker consumed is then logged as removed, so it replays
+	 * to nothing. A taker that gave up in between, by timing out or
+	 * being cancelled, loses its tuple back to the space.
+	 * @param delivered from {@link #deliveries()}, may be {@code null}
+	 */
+	private void complete(List<Waiter> delivered) {
+		if (delivered == null)
+			return;
+		Waiter w;
+		WriteAheadLog log;
+		for (int i = 0; i < delivered.size(); i++) {
+			w = delivered.get(i);
+			if (w.complete()) {
+				log = myLog;
+				if (w.isTake && log != null)
+					log.remove(w.deliveredId);
+			} else if (w.isTake)
+				giveBack(w);
+		}
+	}
+
+	/**
+	 * Put back the tuple handed to a taker that gave up, under the id
+	 * and sequence number it arrived with: it keeps its place among
+	 * tuples of its priority, and log records and replicas know it as
+	 * before. Subscribers saw it arrive and are not told again.
+	 * @param w
+	 */
+	private void giveBack(Waiter w) {
+		TupleImpl t = (TupleImpl)w.delivered;
+		List<Waiter> delivered;
+		synchronized (myTuples) {
+			if (!deliver(t, w.deliveredId))
+				attach(t, w.deliveredId);
+			delivered = deliveries();
+		}
+		complete(delivered);
+	}
+
+	@Override
+	public void addBitmapIndex(String field) {
+		synchronized (myTuples) {
+			myBitmaps.addField(field, myTuples.iterator());
+		}
+	}
+
+	@Override
+	public IQueryPlan explain(final ITemplate template) {
+		return myPlanner.plan(template);
+	}
+
+	@Override
+	public void addSortedIndex(String field) {
+		synchronized (myTuples) {
+			mySortedIndex.addField(field, myTuples.iterator());
+		}
+	}
+
+	@Override
+	public ISubscription subscribe(final ITemplate template, ITupleSpaceListener listener) {
+		Subscription s = new Subscription(this, template, listener,
+				Subscription.DELIVERY, Subscription.DEFAULT_CAPACITY);
+		synchronized (myTuples) {
+			s.entry = mySubscriptions.add(template, s);
+		}
+		return s;
+	}
+
+	void unsubscribe(Subscription s) {
+		synchronized (myTuples) {
+			mySubscriptions.remove(s.entry);
+		}
+	}
+
+	/**
+	 * Queue a newly inserted, frozen tuple for each subscription whose
+	 * template it matches. Never blocks on a listener.
+	 * Caller must hold <code>myTuples</code>, which keeps each
+	 * subscriber's queue in insert order.
+	 * @param tup
+	 */
+	private void publish(ITuple tup) {
+		if (mySubscriptions.isEmpty())
+			return;
+		Iterator<MatchNetwork.Entry<Subscription>> itr = mySubscriptions.candidates(tup).iterator();
+		MatchNetwork.Entry<Subscription> e;
+		while (itr.hasNext()) {
+			e = itr.next();
+			if (tup.matches(e.template))
+				e.value.offer(tup);
+		}
+	}
+
+	/**
+	 * @param threshold collects that would test at least this many
+	 *  tuples match them in parallel, on the common fork/join pool;
+	 *  <code>Integer.MAX_VALUE</code> never does
+	 */
+	public void setParallelThreshold(int threshold) {
+		this.parallelThreshold = threshold;
 	}
 
     /**
@@ -175,7 +735,50 @@ System.out.println("INSERTING "+tup.toString());
      * @return List of matching Tuples or empty list
      */
     public List<ITuple> collect(final ITemplate template) {
-    	return getMatches(template);
+    	return getMatches(template, Integer.MAX_VALUE);
+    }
+
+    /**
+     * @param template ITuple
+     * @param limit most tuples to return
+     * @return the <code>limit</code> best matches in priority order
+     */
+    public List<ITuple> collect(final ITemplate template, int limit) {
+    	return getMatches(template, limit);
+    }
+
+    /**
+     * Remove up to <code>n</code> matches under one acquisition of
+     * the space lock and one index probe
+     * @param template
+     * @param n
+     * @param waitTime if nothing matches, how long to wait for a first match
+     * @return matches in priority order; empty if none arrived in time
+     */
+    public List<ITuple> takeN(final ITemplate template, int n, long waitTime) {
+    	checkWritable();
+    	List<ITuple> result = new ArrayList<ITuple>();
+    	if (n <= 0)
+    		return result;
+    	synchronized(myTuples) {
+    		Iterator<TupleHandle> itr = findMatches(template, n).iterator();
+    		TupleHandle h;
+    		while (itr.hasNext()) {
+    			h = itr.next();
+    			if (removeHandle(h))
+    				result.add(h.tuple.copy());
+    		}
+    	}
+    	if (!result.isEmpty())
+    		sync();
+    	if (result.isEmpty() && waitTime > 0) {
+    		ITuple first = take(template, waitTime);
+    		if (first != null) {
+    			result.add(first);
+    			result.addAll(takeN(template, n - 1, 0));
+    		}
+    	}
+    	return result;
     }
 
     /**
@@ -191,49 +794,401 @@ System.out.println("INSERTING "+tup.toString());
 	/************************* Private methods *************************/
 
 
+	/**
+	 * Find the best match without locking; to take it, claim it
+	 * under <code>myTuples</code> and search again if another
+	 * taker got there first. A read gets the stored, frozen tuple;
+	 * a take gets a copy it may change and put back.
+	 */
 	private ITuple getMatch(final ITemplate template, boolean destroy) {
+		if (destroy)
+			checkWritable();
+		TupleHandle h;
+		while ((h = findMatch(template)) != null) {
+			if (!destroy)
+				return h.tuple;
+			boolean removed;
+			synchronized(myTuples) {
+				removed = removeHandle(h);
+			}
+			if (removed) {
+				sync();
+				return h.tuple.copy();
+			}
+		}
+		return null;
+	}
 
-		synchronized(myTuples) {
-			Iterator<ITuple> tuples = myTuples.iterator();
-			ITuple curTuple = null;
-			while (tuples.hasNext()) {
-				curTuple = tuples.next();
-    System.out.println("MATCHING "+curTuple.toString());
-    System.out.println("MATCHING To "+template.toString());
-				if (curTuple.matches(template)) {
-    System.out.println("MATCHING GOT MATCH");
-					if (destroy)
-						myTuples.remove(curTuple); // extract the tuple if appropriate
-					
-                    return curTuple.copy();
+	/**
+	 * Lock-free search for the best live match
+	 * @param template
+	 * @return handle or {@code null}
+	 */
+	private TupleHandle findMatch(final ITemplate template) {
+		QueryPlan plan = myPlanner.plan(template);
+		Predicate<ITuple> matcher = plan.matcher;
+		TupleHandle h = null;
+		boolean scan = plan.scans(1, myTuples.size());
+		if (!scan && plan.exact)
+			return myBitmaps.best(myBitmaps.eval(plan.bitmapTests), matcher);
+		List<TupleHandle> candidates = scan ? null : candidates(plan);
+		if (candidates != null) {
+			// candidates are unordered; keep the first match in queue order
+			TupleHandle best = null;
+			Iterator<TupleHandle> itr = candidates.iterator();
+			while (itr.hasNext()) {
+				h = itr.next();
+				if (h.live && (best == null || TupleQueue.before(h, best)) &&
+						matcher.test(h.tuple))
+					best = h;
+			}
+			return best;
+		}
+		Iterator<TupleHandle> tuples = myTuples.iterator();
+		ITuple curTuple = null;
+		while (tuples.hasNext()) {
+			h = tuples.next();
+			curTuple = h.tuple;
+			if (h.live && matcher.test(curTuple))
+				return h;
+		}
+		// no match found
+		return null;
+	}
+
+	/**
+	 * Lock-free; a weakly consistent view of the space
+	 */
+	private List<ITuple> getMatches(final ITemplate template, int limit) {
+		List<TupleHandle> hits = findMatches(template, limit);
+		List<ITuple> result = new ArrayList<ITuple>(hits.size());
+		Iterator<TupleHandle> itr = hits.iterator();
+		while (itr.hasNext())
+			result.add(itr.next().tuple);
+		return result;
+	}
+
+	/**
+	 * Lock-free search for the best <code>limit</code> live matches
+	 * @param template
+	 * @param limit
+	 * @return handles in priority order
+	 */
+	private List<TupleHandle> findMatches(final ITemplate template, int limit) {
+		QueryPlan plan = myPlanner.plan(template);
+		Predicate<ITuple> matcher = plan.matcher;
+		List<TupleHandle> result = new ArrayList<TupleHandle>();
+		int n = myTuples.size();
+		boolean scan = plan.scans(limit, n);
+		List<TupleHandle> candidates = scan ? null : candidates(plan);
+		if (scan && plan.scanned(limit, n) >= parallelThreshold) {
+			// snapshot in priority order; the chunks' hits keep it
+			candidates = new ArrayList<TupleHandle>(n);
+			Iterator<TupleHandle> itr = myTuples.iterator();
+			while (itr.hasNext())
+				candidates.add(itr.next());
+			result = MatchTask.match(candidates, matcher);
+			if (result.size() > limit)
+				result = new ArrayList<TupleHandle>(result.subList(0, limit));
+			return result;
+		}
+		TupleHandle h;
+		if (candidates != null) {
+			if (candidates.size() >= parallelThreshold)
+				result = MatchTask.match(candidates, matcher);
+			else {
+				Iterator<TupleHandle> itr = candidates.iterator();
+				while (itr.hasNext()) {
+					h = itr.next();
+					if (h.live && matcher.test(h.tuple))
+						result.add(h);
 				}
 			}
-			// no match found
-    System.out.println("MATCHING NO MATCH");
+			// restore priority order over the index hits
+			result = inQueueOrder(result);
+			if (result.size() > limit)
+				result = new ArrayList<TupleHandle>(result.subList(0, limit));
+			return result;
+		}
+		Iterator<TupleHandle> tuples = myTuples.iterator();
+		ITuple curTuple = null;
+		while (result.size() < limit && tuples.hasNext()) {
+			h = tuples.next();
+			curTuple = h.tuple;
+			if (h.live && matcher.test(curTuple))
+				result.add(h);
+		}
+		return result;
+	}
+
+	/**
+	 * Sort handles into queue order. Keys can move under a concurrent
+	 * priority change, so sort on a snapshot of them.
+	 * @param handles
+	 * @return a new sorted list
+	 */
+	private static List<TupleHandle> inQueueOrder(List<TupleHandle> handles) {
+		int len = handles.size();
+		final long [] keys = new long[len];
+		Integer [] idx = new Integer[len];
+		for (int i = 0; i < len; i++) {
+			keys[i] = handles.get(i).key;
+			idx[i] = i;
+		}
+		final List<TupleHandle> hs = handles;
+		Arrays.sort(idx, new Comparator<Integer>() {
+			public int compare(Integer a, Integer b) {
+				long ka = keys[a], kb = keys[b];
+				if (ka != kb)
+					return (ka > kb) ? -1 : 1;
+				long sa = hs.get(a).seq, sb = hs.get(b).seq;
+				return (sa < sb) ? -1 : (sa == sb ? 0 : 1);
+			}
+		});
+		List<TupleHandle> result = new ArrayList<TupleHandle>(len);
+		for (int i = 0; i < len; i++)
+			result.add(handles.get(idx[i]));
+		return result;
+	}
+
+	/**
+	 * Candidates for an INDEX, RANGE, BITMAP or EMPTY plan: the driving
+	 * test's index hits which are also on the posting lists of the plan's
+	 * other EQUALS tests. The lists and bitmaps are read now, not when
+	 * planned, and without the lock. Candidates must still be matched,
+	 * and may include handles removed while they were read.
+	 * @param plan
+	 * @return candidate tuples, or {@code null} if the index cannot help
+	 */
+	private List<TupleHandle> candidates(QueryPlan plan) {
+		ILogicElement driver = plan.driver;
+		if (driver == null)
+			return (plan.access == IQueryPlan.EMPTY) ? new ArrayList<TupleHandle>() : null;
+		Iterator<TupleHandle> tups;
+		if (plan.access == IQueryPlan.BITMAP)
+			tups = myBitmaps.handles(myBitmaps.eval(plan.bitmapTests)).iterator();
+		else if (QueryPlanner.isRange(driver)) {
+			List<TupleHandle> range = mySortedIndex.range(driver);
+			if (range == null)
+				return null;
+			tups = range.iterator();
+		} else
+			tups = myIndex.lookup(driver.getFieldName(), driver.getLiteral()).iterator();
+		List<Set<TupleHandle>> postings = new ArrayList<Set<TupleHandle>>(plan.postings.size());
+		Iterator<ILogicElement> eitr = plan.postings.iterator();
+		ILogicElement el;
+		Set<TupleHandle> posting;
+		while (eitr.hasNext()) {
+			el = eitr.next();
+			posting = myIndex.lookup(el.getFieldName(), el.getLiteral());
+			if (posting.isEmpty())
+				return new ArrayList<TupleHandle>();
+			postings.add(posting);
+		}
+		List<TupleHandle> result = new ArrayList<TupleHandle>();
+		Iterator<Set<TupleHandle>> pitr;
+		TupleHandle t;
+		boolean inAll;
+		while (tups.hasNext()) {
+			t = tups.next();
+			inAll = true;
+			pitr = postings.iterator();
+			while (inAll && pitr.hasNext())
+				inAll = pitr.next().contains(t);
+			if (inAll)
+				result.add(t);
+		}
+		return result;
+	}
+
+	/**
+	 * Find the handle of the stored tuple <code>tuple</code> refers to:
+	 * the stored instance itself, or a copy made from it.
+	 * Caller must hold <code>myTuples</code>.
+	 * @param tuple
+	 * @return handle or {@code null}
+	 */
+	private TupleHandle findHandle(ITuple tuple) {
+		if (!(tuple instanceof TupleImpl))
 			return null;
+		long seq = ((TupleImpl)tuple).getSeq();
+		return (seq < 0) ? null : myTuples.get(seq);
+	}
+
+	/**
+	 * Remove <code>h</code> from the queue and the index.
+	 * Caller must hold <code>myTuples</code>.
+	 * @param h
+	 * @return <code>true</code> if something was removed
+	 */
+	private boolean removeHandle(TupleHandle h) {
+		if (!myTuples.remove(h))
+			return false;
+		if (myLog != null)
+			myLog.remove(h.logId);
+		myIndex.remove(h);
+		mySortedIndex.remove(h);
+		myBitmaps.remove(h);
+		for (int i = 0; i < myChangeListeners.size(); i++)
+			myChangeListeners.get(i).removed(h.logId);
+		return true;
+	}
+
+	@Override
+	public boolean internalRemove(ITuple tuple) {
+		checkWritable();
+		boolean removed;
+		synchronized(myTuples) {
+			TupleHandle h = findHandle(tuple);
+			removed = (h != null) && removeHandle(h);
 		}
+		if (removed)
+			sync();
+		return removed;
 	}
-	private List<ITuple> getMatches(final ITemplate template) {
-          List<ITuple> result = new ArrayList<ITuple>();
+
+	@Override
+	public boolean changePriority(ITuple tuple, int newPriority) {
+		checkWritable();
 		synchronized(myTuples) {
-			Iterator<ITuple> tuples = myTuples.iterator();
-			ITuple curTuple = null;
-			while (tuples.hasNext()) {
-				curTuple = tuples.next();
-    System.out.println("MATCHING "+curTuple.toString());
-    System.out.println("MATCHING To "+template.toString());
-				if (curTuple.matches(template)) {
-    System.out.println("MATCHING GOT MATCH");
-                    result.add(curTuple.copy());
-				}
-			}	
+			TupleHandle h = findHandle(tuple);
+			if (h == null)
+				return false;
+			myTuples.changePriority(h, newPriority);
+			if (myLog != null)
+				myLog.priority(h.logId, newPriority);
+			for (int i = 0; i < myChangeListeners.size(); i++)
+				myChangeListeners.get(i).priorityChanged(h.logId, newPriority);
 		}
-        return result;
+		sync();
+		return true;
 	}
 
 	@Override
-	public boolean internalRemove(ITuple tuple) {
-		return myTuples.remove(tuple);
+	public void decay(int howMuch) {
+		checkWritable();
+		synchronized(myTuples) {
+			myTuples.decay(howMuch);
+			if (myLog != null)
+				myLog.decay(howMuch);
+			for (int i = 0; i < myChangeListeners.size(); i++)
+				myChangeListeners.get(i).decayed(howMuch);
+		}
+		sync();
+	}
+
+	/**
+	 * Tell <code>listener</code> of every change from now on, first
+	 * handing it each stored tuple, in priority order, as if inserted;
+	 * both under the space lock, so it misses nothing and sees nothing twice
+	 * @param listener
+	 */
+	public void addChangeListener(IChangeListener listener) {
+		synchronized (myTuples) {
+			Iterator<TupleHandle> itr = myTuples.iterator();
+			TupleHandle h;
+			while (itr.hasNext()) {
+				h = itr.next();
+				listener.inserted(h.logId, h.tuple, h.getPriority());
+			}
+			myChangeListeners.add(listener);
+		}
+	}
+
+	public void removeChangeListener(IChangeListener listener) {
+		synchronized (myTuples) {
+			myChangeListeners.remove(listener);
+		}
+	}
+
+	/**
+	 * @param readOnly if <code>true</code>, inserts, takes and priority
+	 *  changes throw <code>IllegalStateException</code>; reads still work
+	 */
+	public void setReadOnly(boolean readOnly) {
+		this.readOnly = readOnly;
+	}
+
+	public boolean isReadOnly() {
+		return readOnly;
+	}
+
+	private void checkWritable() {
+		if (readOnly)
+			throw new IllegalStateException("Channel "+spaceName+" is a read-only replica");
+	}
+
+	/**
+	 * @return a listener that makes the changes it hears of to this space,
+	 *  even when it is read-only, keeping the ids it is given; so this
+	 *  space follows the one it listens to
+	 */
+	public IChangeListener applier() {
+		return new Applier();
+	}
+
+	/**
+	 * Makes changes heard of, or read back from a log, to this space,
+	 * mapping the ids they name to handles
+	 */
+	private class Applier implements WriteAheadLog.Replay, IChangeListener {
+		private final Map<Long, TupleHandle> handles = new HashMap<Long, TupleHandle>();
+
+		public void insert(long lsn, TupleImpl tuple) {
+			TupleHandle h = store(tuple, lsn);
+			if (h != null)
+				handles.put(lsn, h);
+		}
+
+		public void remove(long id) {
+			TupleHandle h = handles.remove(id);
+			if (h != null)
+				removeHandle(h);
+		}
+
+		public void priority(long id, int newPriority) {
+			TupleHandle h = handles.get(id);
+			if (h != null)
+				myTuples.changePriority(h, newPriority);
+		}
+
+		public void decay(int howMuch) {
+			myTuples.decay(howMuch);
+		}
+
+		public void inserted(long id, ITuple tuple, int priority) {
+			TupleImpl t = asStored(tuple);
+			if (!t.isFrozen())
+				t.setPriority(priority);
+			List<Waiter> delivered;
+			synchronized (myTuples) {
+				insert(id, t);
+				delivered = deliveries();
+			}
+			complete(delivered);
+		}
+
+		public void removed(long id) {
+			synchronized (myTuples) {
+				remove(id);
+			}
+		}
+
+		public void priorityChanged(long id, int newPriority) {
+			synchronized (myTuples) {
+				priority(id, newPriority);
+				for (int i = 0; i < myChangeListeners.size(); i++)
+					myChangeListeners.get(i).priorityChanged(id, newPriority);
+			}
+		}
+
+		public void decayed(int howMuch) {
+			synchronized (myTuples) {
+				decay(howMuch);
+				for (int i = 0; i < myChangeListeners.size(); i++)
+					myChangeListeners.get(i).decayed(howMuch);
+			}
+		}
 	}
 
 }
\ No newline at end of file
@@ -0,0 +1,149 @@
+/*
+ * Copyright 2024 TopicQuests Foundation
+ *  This source code is available under the terms of the Affero General Public License v3.
+ *  Please see LICENSE.txt for full license terms, including the availability of proprietary exceptions.
+ */
+package org.topicquests.tuplespace.impl;
+
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.util.Comparator;
+
+/**
+ * Ordering of field values for comparison tests and sorted indexes.
+ * <p>Numbers compare by numeric value whatever their boxed type, so
+ * <code>3</code> and <code>2.5d</code> are ordered. Other values compare
+ * only with values of a compatible Comparable class; anything else
+ * is unordered, and comparison tests on it fail.</p>
+ * <p>Sorted index keys need a total order that agrees with those
+ * tests, so {@link #KEYS} groups other values by family, the topmost
+ * Comparable superclass of their class, and orders each family as the
+ * tests do: a <code>java.sql.Timestamp</code> sorts among the
+ * <code>java.util.Date</code>s it compares with.</p>
+ * @author jackpark
+ */
+final class ValueOrder {
+
+	/**
+	 * Total order over indexable values, for sorted index keys:
+	 * numbers, then strings, then other Comparables grouped by family
+	 */
+	static final Comparator<Object> KEYS = new Comparator<Object>() {
+		public int compare(Object a, Object b) {
+			int ra = rank(a), rb = rank(b);
+			if (ra != rb)
+				return (ra < rb) ? -1 : 1;
+			if (ra == 2) {
+				Class<?> fa = FAMILY.get(a.getClass()), fb = FAMILY.get(b.getClass());
+				if (fa != fb)
+					return fa.getName().compareTo(fb.getName());
+			}
+			return ValueOrder.compare(a, b);
+		}
+	};
+
+	/**
+	 * class -> the topmost superclass still Comparable, or for an enum
+	 * its enum type, whose constants compare only with each other
+	 */
+	private static final ClassValue<Class<?>> FAMILY = new ClassValue<Class<?>>() {
+		protected Class<?> computeValue(Class<?> type) {
+			Class<?> c = type, s = c.getSuperclass();
+			while (s != null && s != Enum.class && Comparable.class.isAssignableFrom(s)) {
+				c = s;
+				s = c.getSuperclass();
+			}
+			return c;
+		}
+	};
+
+	private ValueOrder() {}
+
+	/**
+	 * @param v
+	 * @return <code>true</code> if <code>v</code> can be a sorted index key
+	 */
+	static boolean isIndexable(Object v) {
+		return v instanceof Number || v instanceof Comparable;
+	}
+
+	/**
+	 * @param a
+	 * @param b
+	 * @return <code>true</code> if <code>compare(a, b)</code> is defined
+	 */
+	static boolean comparable(Object a, Object b) {
+		if (a == null || b == null)
+			return false;
+		if (a instanceof Number && b instanceof Number)
+			return true;
+		if (!(a instanceof Comparable) || !(b instanceof Comparable))
+			return false;
+		Class<?> ca = a.getClass(), cb = b.getClass();
+		return ca.isAssignableFrom(cb) || cb.isAssignableFrom(ca);
+	}
+
+	/**
+	 * @param a indexable
+	 * @param b indexable
+	 * @return <code>true</code> if {@link #KEYS} puts <code>a</code> and
+	 *  <code>b</code> in the same run: both numbers, both strings, or
+	 *  of one family. Values comparable with each other always are.
+	 */
+	static boolean sameRun(Object a, Object b) {
+		int ra = rank(a);
+		if (ra != rank(b))
+			return false;
+		return ra < 2 || FAMILY.get(a.getClass()) == FAMILY.get(b.getClass());
+	}
+
+	/**
+	 * Caller must check <code>comparable(a, b)</code>
+	 * @param a
+	 * @param b
+	 * @return negative, zero or positive as <code>a</code> is
+	 *  less than, equal to or greater than <code>b</code>
+	 */
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	static int compare(Object a, Object b) {
+		if (a instanceof Number && b instanceof Number)
+			return compareNumbers((Number)a, (Number)b);
+		return ((Comparable)a).compareTo(b);
+	}
+
+	private static int compareNumbers(Number a, Number b) {
+		if (isIntegral(a) && isIntegral(b))
+			return Long.compare(a.longValue(), b.longValue());
+		double da = a.doubleValue(), db = b.doubleValue();
+		if (Double.isInfinite(da) || Double.isNaN(da) ||
+				Double.isInfinite(db) || Double.isNaN(db))
+			return Double.compare(da, db);
+		if (a instanceof BigDecimal || b instanceof BigDecimal ||
+				a instanceof BigInteger || b instanceof BigInteger)
+			return toBig(a).compareTo(toBig(b));
+		return Double.compare(da, db);
+	}
+
+	private static boolean isIntegral(Number n) {
+		return n instanceof Integer || n instanceof Long ||
+				n instanceof Short || n instanceof Byte;
+	}
+
+	private static BigDecimal toBig(Number n) {
+		if (n instanceof BigDecimal)
+			return (BigDecimal)n;
+		if (n instanceof BigInteger)
+			return new BigDecimal((BigInteger)n);
+		if (isIntegral(n))
+			return BigDecimal.valueOf(n.longValue());
+		return new BigDecimal(n.doubleValue());
+	}
+
+	private static int rank(Object v) {
+		if (v instanceof Number)
+			return 0;
+		if (v instanceof String)
+			return 1;
+		return 2;
+	}
+}
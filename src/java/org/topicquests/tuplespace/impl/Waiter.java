@@ -0,0 +1,92 @@
+/*
+ * Copyright 2024 TopicQuests Foundation
+ *  This source code is available under the terms of the Affero General Public License v3.
+ *  Please see LICENSE.txt for full license terms, including the availability of proprietary exceptions.
+ */
+package org.topicquests.tuplespace.impl;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+
+import org.topicquests.tuplespace.api.ITemplate;
+import org.topicquests.tuplespace.api.ITuple;
+
+/**
+ * A pending <code>take</code> or <code>read</code> registered with
+ * a TupleSpace. The inserting thread hands the waiter a matching tuple
+ * under the space lock and completes its future after releasing it;
+ * nothing else is woken.
+ * <p>The future completes with {@code null} on timeout. Whoever
+ * completes it first wins, so a tuple is never handed to a waiter
+ * that has already given up.</p>
+ * @author jackpark
+ */
+class Waiter {
+	/**
+	 * Completes timed-out async waiters; holds no thread per waiter
+	 */
+	static final ScheduledExecutorService TIMER;
+	static {
+		ScheduledThreadPoolExecutor x = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "tuplespace-timer");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		x.setRemoveOnCancelPolicy(true);
+		TIMER = x;
+	}
+
+	final ITemplate template;
+	/**
+	 * <code>true</code> for take, <code>false</code> for read
+	 */
+	final boolean isTake;
+	final CompletableFuture<ITuple> future;
+	/**
+	 * Where the waiter is registered; set under the space lock
+	 */
+	MatchNetwork.Entry<Waiter> entry;
+	/**
+	 * The tuple handed over, set under the space lock
+	 */
+	ITuple delivered;
+	/**
+	 * The id <code>delivered</code> arrived with, so a taker that gave
+	 * up can put it back as it was
+	 */
+	long deliveredId;
+
+	Waiter(ITemplate template, boolean isTake) {
+		this.template = template;
+		this.isTake = isTake;
+		this.future = new CompletableFuture<ITuple>();
+	}
+
+	/**
+	 * Hand <code>tup</code> to this waiter; called under the space lock
+	 * @param tup
+	 * @param id its id in the space
+	 * @return <code>false</code> if the waiter had already timed out
+	 *  or been cancelled
+	 */
+	boolean deliver(ITuple tup, long id) {
+		if (future.isDone())
+			return false;
+		delivered = tup;
+		deliveredId = id;
+		return true;
+	}
+
+	/**
+	 * Complete the future with the tuple handed over, or for a take
+	 * with a copy the taker may change; called without the space lock
+	 * @return <code>false</code> if the waiter gave up meanwhile
+	 */
+	boolean complete() {
+		return future.complete(isTake ? delivered.copy() : delivered);
+	}
+}
@@ -0,0 +1,477 @@
+/*
+ * Copyright 2024 TopicQuests Foundation
+ *  This source code is available under the terms of the Affero General Public License v3.
+ *  Please see LICENSE.txt for full license terms, including the availability of proprietary exceptions.
+ */
+package org.topicquests.tuplespace.impl;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+import org.topicquests.tuplespace.api.ITuple;
+
+/**
+ * Append-only log of a durable space's changes.
+ * <p>Records are appended to an in-memory buffer under the space lock,
+ * so the log has the space's order. {@link #sync(long)} makes them
+ * durable with group commit: one caller writes and forces everything
+ * appended so far while the others wait for it, so concurrent writers
+ * share each <code>force</code>.</p>
+ * <p>A record is <code>[int length][int crc32][long lsn][byte type][body]</code>;
+ * length and crc cover the lsn, type and body. Replay stops at the first
+ * short or damaged record, which is a write torn by a crash. A stored
+ * tuple is known by the lsn of its INSERT record, which, unlike its
+ * sequence number, survives a restart.</p>
+ * <p>{@link #cut()} ends the current file after the last record appended,
+ * in memory; the next flush writes and forces the records up to the cut,
+ * closes the file as a segment named for its last lsn, so segments a
+ * checkpoint covers can be deleted, and continues in a new file.</p>
+ * @author jackpark
+ */
+final class WriteAheadLog {
+	static final byte INSERT = 1, REMOVE = 2, PRIORITY = 3, DECAY = 4;
+	private static final int HEADER = 8, INITIAL = 64 * 1024;
+
+	/**
+	 * Receives the records of a log being replayed
+	 */
+	interface Replay {
+		/**
+		 * @param lsn identifies <code>tuple</code> in later records
+		 * @param tuple
+		 */
+		void insert(long lsn, TupleImpl tuple);
+		void remove(long id);
+		void priority(long id, int newPriority);
+		void decay(int howMuch);
+	}
+
+	private final File file;
+	private FileChannel channel;
+	private final CRC32 crc = new CRC32();
+	/**
+	 * Encodes INSERT bodies; the field dictionary starts afresh in each file
+	 */
+	private final TupleCodec codec = new TupleCodec();
+	/** Records appended but not yet handed to a flush */
+	private ByteBuffer pending;
+	/** The buffer not being filled; {@code null} while a flush holds it */
+	private ByteBuffer spare;
+	/**
+	 * Records up to <code>cutLsn</code>, for the current file, when a
+	 * {@link #cut()} is waiting for the next flush; otherwise {@code null}
+	 */
+	private ByteBuffer cut;
+	private long cutLsn;
+	/** Offset in <code>pending</code> of the record being appended */
+	private int recordStart;
+	private long nextLsn;
+	private long appendedLsn;
+	private long durableLsn;
+	private boolean flushing = false;
+	private IOException failure = null;
+
+	/**
+	 * Open <code>file</code> for appending, creating it if needed
+	 * @param file
+	 * @param nextLsn the sequence number for the first record appended
+	 * @throws IOException
+	 */
+	WriteAheadLog(File file, long nextLsn) throws IOException {
+		this.file = file;
+		this.channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE,
+				StandardOpenOption.WRITE);
+		channel.position(channel.size());
+		this.pending = ByteBuffer.allocate(INITIAL);
+		this.spare = ByteBuffer.allocate(INITIAL);
+		this.nextLsn = nextLsn;
+		this.appendedLsn = nextLsn - 1;
+		this.durableLsn = appendedLsn;
+	}
+
+	/**
+	 * @param tuple checked by {@link TupleCodec#check(ITuple)}
+	 * @return the record's lsn, which identifies the tuple from now on
+	 * @throws IllegalArgumentException if the segment has defined
+	 *  {@link TupleCodec#MAX_NAMES} field names; nothing is appended
+	 */
+	synchronized long insert(TupleImpl tuple) {
+		while (true) {
+			ByteBuffer b = begin(INSERT, 64);
+			try {
+				codec.encode(tuple, b);
+				return end();
+			} catch (BufferOverflowException e) {
+				// encoded in place, so make room and start the record again
+				b.position(recordStart);
+				ensure(pending.capacity());
+			} catch (IllegalArgumentException e) {
+				b.position(recordStart);
+				throw e;
+			}
+		}
+	}
+
+	/**
+	 * @param id the lsn of the tuple's INSERT record
+	 * @return the record's lsn
+	 */
+	synchronized long remove(long id) {
+		begin(REMOVE, 8).putLong(id);
+		return end();
+	}
+
+	synchronized long priority(long id, int newPriority) {
+		begin(PRIORITY, 12).putLong(id).putInt(newPriority);
+		return end();
+	}
+
+	synchronized long decay(int howMuch) {
+		begin(DECAY, 4).putInt(howMuch);
+		return end();
+	}
+
+	/**
+	 * Start a record with room for a <code>bodyLength</code> byte body
+	 */
+	private ByteBuffer begin(byte type, int bodyLength) {
+		ensure(HEADER + 9 + bodyLength);
+		recordStart = pending.position();
+		pending.position(recordStart + HEADER);
+		pending.putLong(nextLsn);
+		pending.put(type);
+		return pending;
+	}
+
+	/**
+	 * Make room for <code>need</code> more bytes in <code>pending</code>
+	 */
+	private void ensure(int need) {
+		if (pending.remaining() >= need)
+			return;
+		ByteBuffer b = ByteBuffer.allocate(Math.max(pending.capacity() * 2, pending.position() + need));
+		pending.flip();
+		b.put(pending);
+		pending = b;
+	}
+
+	/**
+	 * Fill in the length and crc of the record <code>begin</code> started
+	 */
+	private long end() {
+		int len = pending.position() - recordStart - HEADER;
+		crc.reset();
+		crc.update(pending.array(), pending.arrayOffset() + recordStart + HEADER, len);
+		pending.putInt(recordStart, len);
+		pending.putInt(recordStart + 4, (int)crc.getValue());
+		appendedLsn = nextLsn++;
+		return appendedLsn;
+	}
+
+	/**
+	 * Wait until everything appended so far is durable
+	 */
+	void sync() {
+		long lsn;
+		synchronized (this) {
+			lsn = appendedLsn;
+		}
+		sync(lsn);
+	}
+
+	/**
+	 * Wait until the record <code>lsn</code> is durable, flushing it and
+	 * every record appended with it unless another caller already is
+	 * @param lsn
+	 * @throws UncheckedIOException if the log cannot be written; the
+	 *  log accepts no more syncs after that
+	 */
+	void sync(long lsn) {
+		flush(lsn, false);
+	}
+
+	/**
+	 * @param lsn
+	 * @param roll <code>true</code> to flush a waiting {@link #cut()}
+	 *  even if <code>lsn</code> is already durable
+	 */
+	private void flush(long lsn, boolean roll) {
+		ByteBuffer out, before;
+		long upTo, beforeLsn;
+		boolean interrupted = false;
+		synchronized (this) {
+			while (true) {
+				if (failure != null)
+					throw new UncheckedIOException("Log write failed", failure);
+				if (durableLsn >= lsn && (!roll || cut == null))
+					break;
+				if (!flushing)
+					break;
+				try {
+					wait();
+				} catch (InterruptedException e) {
+					interrupted = true;
+				}
+			}
+			if (durableLsn >= lsn && (!roll || cut == null)) {
+				if (interrupted)
+					Thread.currentThread().interrupt();
+				return;
+			}
+			flushing = true;
+			before = cut;
+			beforeLsn = cutLsn;
+			cut = null;
+			out = pending;
+			pending = spare;
+			spare = null;
+			upTo = appendedLsn;
+		}
+		try {
+			if (before != null) {
+				before.flip();
+				while (before.hasRemaining())
+					channel.write(before);
+				channel.force(false);
+				channel.close();
+				Files.move(file.toPath(), segment(file, beforeLsn).toPath(),
+						StandardCopyOption.ATOMIC_MOVE);
+				channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE_NEW,
+						StandardOpenOption.WRITE);
+			}
+			out.flip();
+			while (out.hasRemaining())
+				channel.write(out);
+			channel.force(false);
+		} catch (IOException e) {
+			synchronized (this) {
+				failure = e;
+				flushing = false;
+				notifyAll();
+			}
+			throw new UncheckedIOException("Log write failed", e);
+		} finally {
+			if (interrupted)
+				Thread.currentThread().interrupt();
+		}
+		synchronized (this) {
+			out.clear();
+			spare = out;
+			durableLsn = upTo;
+			flushing = false;
+			notifyAll();
+		}
+	}
+
+	/**
+	 * @return the lsn of the last record appended
+	 */
+	synchronized long lastLsn() {
+		return appendedLsn;
+	}
+
+	/**
+	 * End the current file after the last record appended; records
+	 * appended from now on go to a new file. Does no I/O, so it can be
+	 * called under the space lock to fix the lsn a checkpoint covers;
+	 * {@link #roll()} then writes the segment.
+	 * @return the last lsn in the segment
+	 * @throws IllegalStateException if an earlier cut is not yet rolled
+	 */
+	synchronized long cut() {
+		if (cut != null)
+			throw new IllegalStateException("Log cut at "+cutLsn+" not yet rolled");
+		cut = pending;
+		cutLsn = appendedLsn;
+		pending = ByteBuffer.allocate(INITIAL);
+		codec.reset();
+		return cutLsn;
+	}
+
+	/**
+	 * Write and force the records up to the last {@link #cut()}, close
+	 * that file as a segment and continue in a new one; called
+	 * without the space lock. Waits for a flush in progress, but
+	 * appends go on meanwhile.
+	 * @throws UncheckedIOException if the log cannot be written
+	 */
+	void roll() {
+		long lsn;
+		synchronized (this) {
+			lsn = (cut == null) ? durableLsn : cutLsn;
+		}
+		flush(lsn, true);
+	}
+
+	private static File segment(File file, long lastLsn) {
+		return new File(file.getPath()+"."+lastLsn);
+	}
+
+	/**
+	 * @param file
+	 * @return the segments rolled from <code>file</code>, oldest first,
+	 *  then <code>file</code> itself
+	 */
+	static List<File> files(File file) {
+		final String prefix = file.getName()+".";
+		File dir = file.getAbsoluteFile().getParentFile();
+		File [] found = dir.listFiles();
+		List<File> result = new ArrayList<File>();
+		final Map<File, Long> lastLsn = new HashMap<File, Long>();
+		String suffix;
+		for (int i = 0; found != null && i < found.length; i++) {
+			if (!found[i].getName().startsWith(prefix))
+				continue;
+			suffix = found[i].getName().substring(prefix.length());
+			try {
+				lastLsn.put(found[i], Long.parseLong(suffix));
+				result.add(found[i]);
+			} catch (NumberFormatException e) {
+				// not a segment
+			}
+		}
+		Collections.sort(result, new Comparator<File>() {
+			public int compare(File a, File b) {
+				return lastLsn.get(a).compareTo(lastLsn.get(b));
+			}
+		});
+		result.add(file);
+		return result;
+	}
+
+	/**
+	 * Delete the segments whose records all precede <code>upTo</code>
+	 * @param file
+	 * @param upTo inclusive
+	 */
+	static void dropSegments(File file, long upTo) throws IOException {
+		String prefix = file.getName()+".";
+		Iterator<File> itr = files(file).iterator();
+		File f;
+		while (itr.hasNext()) {
+			f = itr.next();
+			if (f.equals(file))
+				break;
+			if (Long.parseLong(f.getName().substring(prefix.length())) <= upTo)
+				Files.deleteIfExists(f.toPath());
+		}
+	}
+
+	/**
+	 * Make everything appended durable and close the file
+	 */
+	void close() {
+		roll();
+		sync();
+		try {
+			channel.close();
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	/**
+	 * Apply the records after <code>afterLsn</code> in <code>file</code>
+	 * and its segments, in order, to <code>replay</code>. A torn tail
+	 * is cut from <code>file</code>, so records appended next follow
+	 * the last good one.
+	 * @param file need not exist
+	 * @param afterLsn the lsn a checkpoint covers, or 0
+	 * @param replay
+	 * @return the lsn of the last good record, or <code>afterLsn</code>
+	 * @throws IOException
+	 */
+	static long replay(File file, long afterLsn, Replay replay) throws IOException {
+		long lsn = afterLsn;
+		Iterator<File> itr = files(file).iterator();
+		File f;
+		while (itr.hasNext()) {
+			f = itr.next();
+			if (f.exists())
+				lsn = Math.max(lsn, replayFile(f, afterLsn, replay, f.equals(file)));
+		}
+		return lsn;
+	}
+
+	private static long replayFile(File file, long afterLsn, Replay replay, boolean repair) throws IOException {
+		long lsn = 0, good = 0;
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), INITIAL));
+		TupleCodec decoder = new TupleCodec();
+		try {
+			CRC32 check = new CRC32();
+			int len, sum;
+			byte [] body;
+			while (true) {
+				try {
+					len = in.readInt();
+					sum = in.readInt();
+					if (len < 9 || len > file.length() - good - HEADER)
+						break;
+					body = new byte[len];
+					in.readFully(body);
+				} catch (EOFException e) {
+					break;
+				}
+				check.reset();
+				check.update(body, 0, len);
+				if ((int)check.getValue() != sum)
+					break;
+				good += HEADER + len;
+				ByteBuffer b = ByteBuffer.wrap(body);
+				lsn = b.getLong();
+				byte type = b.get();
+				// decoded even if a checkpoint covers it, for the field names it defines
+				TupleImpl tuple = (type == INSERT) ? decoder.decode(b) : null;
+				if (lsn <= afterLsn)
+					continue;
+				switch (type) {
+				case INSERT:
+					replay.insert(lsn, tuple);
+					break;
+				case REMOVE:
+					replay.remove(b.getLong());
+					break;
+				case PRIORITY:
+					replay.priority(b.getLong(), b.getInt());
+					break;
+				case DECAY:
+					replay.decay(b.getInt());
+					break;
+				default:
+					throw new IOException("Unknown log record type "+type+" in "+file);
+				}
+			}
+		} finally {
+			in.close();
+		}
+		if (repair && good < file.length()) {
+			FileChannel c = FileChannel.open(file.toPath(), StandardOpenOption.WRITE);
+			try {
+				c.truncate(good);
+				c.force(false);
+			} finally {
+				c.close();
+			}
+		}
+		return lsn;
+	}
+}
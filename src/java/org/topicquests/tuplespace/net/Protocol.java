@@ -0,0 +1,378 @@
+/*
+ * Copyright 2024 TopicQuests Foundation
+ *  This source code is available under the terms of the Affero General Public License v3.
+ *  Please see LICENSE.txt for full license terms, including the availability of proprietary exceptions.
+ */
+package org.topicquests.tuplespace.net;
+
+import java.io.IOException;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+import org.topicquests.tuplespace.api.IConstants;
+import org.topicquests.tuplespace.api.ILogicElement;
+import org.topicquests.tuplespace.api.IQueryPlan;
+import org.topicquests.tuplespace.api.ITemplate;
+import org.topicquests.tuplespace.api.ITuple;
+import org.topicquests.tuplespace.impl.LogicElementImpl;
+import org.topicquests.tuplespace.impl.TemplateImpl;
+import org.topicquests.tuplespace.impl.TupleCodec;
+import org.topicquests.tuplespace.impl.TupleCodecException;
+import org.topicquests.tuplespace.impl.TupleImpl;
+
+/**
+ * Framing of the tuple-space wire protocol.
+ * <p>Each request and each response is one frame: a four byte length,
+ * then a <code>&lt;message&gt;</code> header tuple and the tuples it
+ * carries, all {@link TupleCodec} encoded. The header holds the command
+ * ({@link IConstants#PUT} and the rest), the request id the response
+ * echoes, the channel as its space, and, as its priority, the number of
+ * tuples that follow; {@link IConstants#WAIT}, {@link IConstants#LIMIT}
+ * and {@link IConstants#ERROR} are header fields. A request for a match
+ * carries its template's fields as the first tuple and, if it has a
+ * constraint, the constraint's elements after it, one
+ * <code>&lt;constraint&gt;</code> tuple each in prefix order, so range,
+ * OR and NOT templates match on the server as they would locally.
+ * A query plan comes back as a <code>&lt;plan&gt;</code> tuple, followed
+ * by its driving test as a constraint.
+ * Each direction of a connection
+ * has its own codec, so field names are sent once per connection.</p>
+ * @author jackpark
+ */
+public final class Protocol implements IConstants {
+	/**
+	 * Largest frame either side accepts
+	 */
+	public static final int MAX_FRAME = 64 * 1024 * 1024;
+	/**
+	 * Tag of a constraint element, and its fields: the logic type, the
+	 * field name ({@link IConstants#FIELD}), the literal
+	 * ({@link IConstants#VALUE}), the upper literal and how many operands follow
+	 */
+	static final String CONSTRAINT = "constraint", TYPE = "type", UPPER = "upper",
+		OPERANDS = "operands";
+	/**
+	 * Tag of a query plan, and its fields: the access path and the estimates
+	 */
+	static final String PLAN = "plan", PATH = "path", EXAMINED = "examined", MATCHES = "matches";
+
+	private Protocol() {
+	}
+
+	/**
+	 * @param command
+	 * @param requestId
+	 * @param space the channel
+	 * @return a header to add fields to
+	 */
+	public static TupleImpl header(String command, String requestId, String space) {
+		TupleImpl h = new TupleImpl(MESSAGE);
+		h.setCommand(command);
+		h.setRequestId(requestId);
+		h.setSpace(space);
+		return h;
+	}
+
+	/**
+	 * Append a frame to <code>out</code>, which is in write mode
+	 * @param codec this direction's encoder
+	 * @param header its priority is set to the number of tuples
+	 * @param body may be empty
+	 * @param out
+	 * @return <code>out</code>, or a larger copy of it if it filled
+	 * @throws IllegalArgumentException if a tuple holds a value the codec
+	 *  cannot send, or the frame would define more names than a stream
+	 *  may; nothing is written
+	 */
+	public static ByteBuffer writeFrame(TupleCodec codec, TupleImpl header,
+			List<? extends ITuple> body, ByteBuffer out) {
+		TupleCodec.check(header);
+		Iterator<? extends ITuple> itr = body.iterator();
+		while (itr.hasNext())
+			TupleCodec.check(itr.next());
+		codec.checkNames(header, body);
+		header.setPriority(body.size());
+		while (out.remaining() < 4)
+			out = grow(out);
+		int start = out.position();
+		out.position(start + 4);
+		out = append(codec, header, out);
+		itr = body.iterator();
+		while (itr.hasNext())
+			out = append(codec, itr.next(), out);
+		out.putInt(start, out.position() - start - 4);
+		return out;
+	}
+
+	/**
+	 * Encode one tuple, growing <code>out</code> until it fits; a tuple
+	 * that did not fit left the codec as it was, so the tuples already
+	 * in the frame stay valid
+	 */
+	private static ByteBuffer append(TupleCodec codec, ITuple t, ByteBuffer out) {
+		int pos = out.position();
+		while (true) {
+			try {
+				codec.encode(t, out);
+				return out;
+			} catch (BufferOverflowException e) {
+				out.position(pos);
+				out = grow(out);
+			}
+		}
+	}
+
+	private static ByteBuffer grow(ByteBuffer out) {
+		ByteBuffer b = ByteBuffer.allocate(out.capacity() * 2);
+		out.flip();
+		b.put(out);
+		return b;
+	}
+
+	/**
+	 * Decode the frame <code>frame</code> holds between its position and
+	 * limit, less the length prefix
+	 * @param codec this direction's decoder
+	 * @param frame
+	 * @param body receives the tuples after the header
+	 * @return the header
+	 * @throws IOException if the frame does not decode; the codec has
+	 *  checked every count and length, so a hostile frame costs no more
+	 *  memory than its own size
+	 */
+	public static TupleImpl readFrame(TupleCodec codec, ByteBuffer frame, List<ITuple> body)
+			throws IOException {
+		TupleImpl header;
+		try {
+			header = codec.decode(frame);
+			int n = header.getPriority();
+			if (n < 0 || n > frame.remaining())
+				throw new IOException("Bad tuple count "+n);
+			for (int i = 0; i < n; i++)
+				body.add(codec.decode(frame));
+		} catch (TupleCodecException e) {
+			throw new IOException("Bad frame: "+e.getMessage(), e);
+		}
+		if (frame.hasRemaining())
+			throw new IOException("Frame has "+frame.remaining()+" bytes left over");
+		return header;
+	}
+
+	/**
+	 * @param channelName
+	 * @param template
+	 * @return the tuples that carry <code>template</code> in a request
+	 * @throws IllegalArgumentException if a literal is of a type the
+	 *  codec cannot send
+	 */
+	public static List<ITuple> templateBody(String channelName, ITemplate template) {
+		List<ITuple> body = new ArrayList<ITuple>();
+		body.add(new TupleImpl(channelName, template.getFields()));
+		if (template.getConstraint() != null)
+			addConstraint(template.getConstraint(), body);
+		return body;
+	}
+
+	private static void addConstraint(Object operand, List<ITuple> body) {
+		TupleImpl t = new TupleImpl(CONSTRAINT);
+		body.add(t);
+		if (!(operand instanceof ILogicElement)) {
+			// a raw operand is its own value
+			t.set(TYPE, Integer.valueOf(ILogicElement.LITERAL));
+			t.set(VALUE, operand);
+			TupleCodec.check(t);
+			return;
+		}
+		ILogicElement e = (ILogicElement)operand;
+		t.set(TYPE, Integer.valueOf(e.getLogicType()));
+		if (e.getFieldName() != null)
+			t.set(FIELD, e.getFieldName());
+		if (e.getLiteral() != null)
+			t.set(VALUE, e.getLiteral());
+		if (e.getUpperLiteral() != null)
+			t.set(UPPER, e.getUpperLiteral());
+		List<Object> operands = e.getElements();
+		t.set(OPERANDS, Integer.valueOf(operands.size()));
+		TupleCodec.check(t);
+		Iterator<Object> itr = operands.iterator();
+		while (itr.hasNext())
+			addConstraint(itr.next(), body);
+	}
+
+	/**
+	 * @param body a request's tuples, as {@link #templateBody(String, ITemplate)} made them
+	 * @return the template they carry; with no constraint, one compiled
+	 *  from its fields; with no tuples, one that matches everything
+	 * @throws IllegalArgumentException if the constraint tuples are malformed
+	 */
+	public static TemplateImpl template(List<ITuple> body) {
+		TemplateImpl t = body.isEmpty() ? new TemplateImpl() : new TemplateImpl(body.get(0).getFields());
+		if (body.size() > 1) {
+			int [] next = {1};
+			ILogicElement c = constraint(body, next);
+			if (next[0] != body.size())
+				throw new IllegalArgumentException("Template has "+(body.size() - next[0])+" tuples left over");
+			t.setConstraint(c);
+		} else
+			t.compile();
+		return t;
+	}
+
+	/**
+	 * @param plan
+	 * @return the tuples that carry <code>plan</code> in a response
+	 */
+	public static List<ITuple> planBody(IQueryPlan plan) {
+		List<ITuple> body = new ArrayList<ITuple>();
+		TupleImpl t = new TupleImpl(PLAN);
+		t.set(PATH, plan.getAccessPath());
+		t.set(EXAMINED, Long.valueOf(plan.getEstimatedExamined()));
+		t.set(MATCHES, Long.valueOf(plan.getEstimatedMatches()));
+		body.add(t);
+		if (plan.getDrivingTest() != null)
+			addConstraint(plan.getDrivingTest(), body);
+		return body;
+	}
+
+	/**
+	 * @param body a response's tuples, as {@link #planBody(IQueryPlan)} made them
+	 * @return the plan they carry
+	 * @throws IllegalArgumentException if they are malformed
+	 */
+	public static IQueryPlan plan(List<ITuple> body) {
+		if (body.isEmpty() || !PLAN.equals(body.get(0).getTag()))
+			throw new IllegalArgumentException("Not a query plan");
+		ITuple t = body.get(0);
+		Object path = t.get(PATH), examined = t.get(EXAMINED), matches = t.get(MATCHES);
+		if (!(path instanceof String) || !(examined instanceof Long) || !(matches instanceof Long))
+			throw new IllegalArgumentException("Query plan lacks its path or estimates");
+		ILogicElement driver = null;
+		if (body.size() > 1) {
+			int [] next = {1};
+			driver = constraint(body, next);
+			if (next[0] != body.size())
+				throw new IllegalArgumentException("Query plan has "+(body.size() - next[0])+" tuples left over");
+		}
+		return new Plan((String)path, driver, ((Long)examined).longValue(), ((Long)matches).longValue());
+	}
+
+	/**
+	 * A plan made on the server
+	 */
+	private static class Plan implements IQueryPlan {
+		private final String path;
+		private final ILogicElement driver;
+		private final long examined, matches;
+
+		Plan(String path, ILogicElement driver, long examined, long matches) {
+			this.path = path;
+			this.driver = driver;
+			this.examined = examined;
+			this.matches = matches;
+		}
+
+		@Override
+		public String getAccessPath() {
+			return path;
+		}
+
+		@Override
+		public ILogicElement getDrivingTest() {
+			return driver;
+		}
+
+		@Override
+		public long getEstimatedExamined() {
+			return examined;
+		}
+
+		@Override
+		public long getEstimatedMatches() {
+			return matches;
+		}
+
+		@Override
+		public String toString() {
+			StringBuilder buf = new StringBuilder(path);
+			if (driver != null)
+				buf.append(" on "+((driver.getFieldName() != null) ? driver.getFieldName() : "compound test"));
+			buf.append(": examine ~"+examined+", ~"+matches+" matching");
+			return buf.toString();
+		}
+	}
+
+	/**
+	 * Rebuild the element at <code>next[0]</code> and its operands
+	 */
+	private static ILogicElement constraint(List<ITuple> body, int [] next) {
+		if (next[0] >= body.size())
+			throw new IllegalArgumentException("Template constraint is truncated");
+		ITuple t = body.get(next[0]++);
+		Object type = t.get(TYPE), operands = t.get(OPERANDS);
+		if (!CONSTRAINT.equals(t.getTag()) || !(type instanceof Integer))
+			throw new IllegalArgumentException("Not a constraint element: "+t.getTag());
+		LogicElementImpl e = new LogicElementImpl();
+		switch (((Integer)type).intValue()) {
+		case ILogicElement.AND: e.isAndType(); break;
+		case ILogicElement.OR: e.isOrType(); break;
+		case ILogicElement.NOT: e.isNotType(); break;
+		case ILogicElement.EQUALS: e.isEqualsType(); break;
+		case ILogicElement.LITERAL: e.isLiteralType(); break;
+		case ILogicElement.FETCH: e.isFetchType(); break;
+		case ILogicElement.LT: e.isLessThanType(); break;
+		case ILogicElement.LE: e.isLessOrEqualType(); break;
+		case ILogicElement.GT: e.isGreaterThanType(); break;
+		case ILogicElement.GE: e.isGreaterOrEqualType(); break;
+		case ILogicElement.BETWEEN: e.isBetweenType(); break;
+		case -1: break;
+		default:
+			throw new IllegalArgumentException("Unknown constraint type "+type);
+		}
+		Object field = t.get(FIELD);
+		if (field != null)
+			e.setFieldName(field.toString());
+		e.setLiteral(t.get(VALUE));
+		e.setUpperLiteral(t.get(UPPER));
+		int n = (operands instanceof Integer) ? ((Integer)operands).intValue() : 0;
+		if (n < 0 || n > body.size() - next[0])
+			throw new IllegalArgumentException("Bad operand count "+n);
+		for (int i = 0; i < n; i++)
+			e.addElement(constraint(body, next));
+		return e;
+	}
+
+	/**
+	 * Read one frame from <code>in</code>, which is in read mode
+	 * @param in
+	 * @return the frame less its length prefix, consumed from <code>in</code>,
+	 *  or {@code null} if <code>in</code> does not yet hold all of it
+	 * @throws IOException if the length is out of range
+	 */
+	public static ByteBuffer nextFrame(ByteBuffer in) throws IOException {
+		if (in.remaining() < 4)
+			return null;
+		int p = in.position();
+		int len = in.getInt(p);
+		if (len < 0 || len > MAX_FRAME)
+			throw new IOException("Bad frame length "+len);
+		if (in.remaining() < 4 + len)
+			return null;
+		ByteBuffer frame = in.duplicate();
+		frame.position(p + 4);
+		frame.limit(p + 4 + len);
+		in.position(p + 4 + len);
+		return frame;
+	}
+
+	/**
+	 * @param in in read mode
+	 * @return the size <code>in</code> must have to hold the frame it
+	 *  starts with, or 0 if its length is not yet read
+	 */
+	public static int frameSize(ByteBuffer in) {
+		return (in.remaining() < 4) ? 0 : 4 + in.getInt(in.position());
+	}
+}
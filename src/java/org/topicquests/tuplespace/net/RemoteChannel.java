@@ -0,0 +1,143 @@
+/*
+ * Copyright 2024 TopicQuests Foundation
+ *  This source code is available under the terms of the Affero General Public License v3.
+ *  Please see LICENSE.txt for full license terms, including the availability of proprietary exceptions.
+ */
+package org.topicquests.tuplespace.net;
+
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+import org.topicquests.tuplespace.api.IQueryPlan;
+import org.topicquests.tuplespace.api.ISubscription;
+import org.topicquests.tuplespace.api.ITemplate;
+import org.topicquests.tuplespace.api.ITuple;
+import org.topicquests.tuplespace.api.ITupleSpace;
+import org.topicquests.tuplespace.api.ITupleSpaceListener;
+
+/**
+ * A channel on a {@link TupleSpaceServer}, as {@link
+ * RemoteDynamicAgenda#getChannel(String)} hands it out: each call is
+ * the agenda's call on this channel.
+ * <p>Tuples read or taken are copies the server cannot tell from
+ * others, so {@link #internalRemove(ITuple)} and {@link
+ * #changePriority(ITuple, int)} throw
+ * <code>UnsupportedOperationException</code>. The channel is the
+ * server's, so {@link #close()} leaves it open.</p>
+ * @author jackpark
+ */
+class RemoteChannel implements ITupleSpace {
+	private final RemoteDynamicAgenda agenda;
+	private final String name;
+
+	RemoteChannel(RemoteDynamicAgenda agenda, String name) {
+		this.agenda = agenda;
+		this.name = name;
+	}
+
+	@Override
+	public void insert(ITuple tuple) {
+		agenda.put(name, tuple);
+	}
+
+	@Override
+	public void putAll(Collection<? extends ITuple> tuples) {
+		agenda.putAll(name, tuples);
+	}
+
+	@Override
+	public ITuple noWaitRead(ITemplate template) {
+		return agenda.read(name, template, 0);
+	}
+
+	@Override
+	public ITuple read(ITemplate template, long waitTime) {
+		return agenda.read(name, template, waitTime);
+	}
+
+	@Override
+	public ITuple take(ITemplate template, long waitTime) {
+		return agenda.take(name, template, waitTime);
+	}
+
+	@Override
+	public List<ITuple> takeN(ITemplate template, int n, long waitTime) {
+		return agenda.takeN(name, template, n, waitTime);
+	}
+
+	@Override
+	public CompletableFuture<ITuple> readAsync(ITemplate template, long waitTime) {
+		return agenda.readAsync(name, template, waitTime);
+	}
+
+	@Override
+	public CompletableFuture<ITuple> takeAsync(ITemplate template, long waitTime) {
+		return agenda.takeAsync(name, template, waitTime);
+	}
+
+	@Override
+	public ISubscription subscribe(ITemplate template, ITupleSpaceListener listener) {
+		return agenda.subscribe(name, template, listener);
+	}
+
+	@Override
+	public void addSortedIndex(String field) {
+		agenda.addSortedIndex(name, field);
+	}
+
+	@Override
+	public void addBitmapIndex(String field) {
+		agenda.addBitmapIndex(name, field);
+	}
+
+	@Override
+	public IQueryPlan explain(ITemplate template) {
+		return agenda.explain(name, template);
+	}
+
+	@Override
+	public boolean internalRemove(ITuple tuple) {
+		throw new UnsupportedOperationException("A remote tuple cannot be told from others to remove");
+	}
+
+	@Override
+	public boolean changePriority(ITuple tuple, int newPriority) {
+		throw new UnsupportedOperationException("A remote tuple cannot be told from others to change");
+	}
+
+	@Override
+	public void decay(int howMuch) {
+		agenda.decay(name, howMuch);
+	}
+
+	@Override
+	public void close() {
+	}
+
+	@Override
+	public void checkpoint() {
+		agenda.checkpoint(name);
+	}
+
+	@Override
+	public Iterator<ITuple> tuples() {
+		return agenda.listTuples(name);
+	}
+
+	@Override
+	public List<ITuple> collect(ITemplate template) {
+		return agenda.collect(name, template, Integer.MAX_VALUE);
+	}
+
+	@Override
+	public List<ITuple> collect(ITemplate template, int limit) {
+		return agenda.collect(name, template, limit);
+	}
+
+	@Override
+	public String toString() {
+		return "RemoteChannel "+name;
+	}
+}
@@ -0,0 +1,698 @@
+/*
+ * Copyright 2024 TopicQuests Foundation
+ *  This source code is available under the terms of the Affero General Public License v3.
+ *  Please see LICENSE.txt for full license terms, including the availability of proprietary exceptions.
+ */
+package org.topicquests.tuplespace.net;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.topicquests.tuplespace.api.IConstants;
+import org.topicquests.tuplespace.api.IDynamicAgenda;
+import org.topicquests.tuplespace.api.IQueryPlan;
+import org.topicquests.tuplespace.api.ISubscription;
+import org.topicquests.tuplespace.api.ITemplate;
+import org.topicquests.tuplespace.api.ITuple;
+import org.topicquests.tuplespace.api.ITupleSpace;
+import org.topicquests.tuplespace.api.ITupleSpaceListener;
+import org.topicquests.tuplespace.impl.TemplateImpl;
+import org.topicquests.tuplespace.impl.TupleCodec;
+import org.topicquests.tuplespace.impl.TupleImpl;
+
+/**
+ * An {@link IDynamicAgenda} whose channels live behind a
+ * {@link TupleSpaceServer}.
+ * <p>Every call is one request on a single connection, and any number
+ * may be in flight at once: each carries a fresh request id, and one
+ * reader thread completes the call its response names, whatever order
+ * responses come in. A waiting take or read is parked by the server, so
+ * it holds up neither the connection nor other callers. Requests are
+ * framed into a shared buffer; the caller that finds no write under way
+ * writes out everything buffered, and callers arriving meanwhile leave
+ * theirs for it, so small requests from many threads go out together.</p>
+ * <p>The futures of the asynchronous calls complete on the reader
+ * thread; work chained to them must not wait on this agenda. Cancelling
+ * a waiting take or read, or interrupting its caller, cancels it on the
+ * server too, and a tuple a take brings back after it was given up is
+ * put back in its channel. A
+ * template's constraint travels with it, so literals must be values the
+ * {@link TupleCodec} can send. Decay, addValue, the index calls and
+ * checkpoints are sent to the server's agenda, and query plans are made
+ * there. A subscription's matches stream back under its request id and
+ * are handed to its listener on one event thread for this agenda, in
+ * the order they came. {@link #getChannel(String)} returns a view that
+ * sends its calls through this agenda; tuples come back as copies the
+ * server cannot tell from others, so the view cannot remove them or
+ * change their priority.</p>
+ * @author jackpark
+ */
+public class RemoteDynamicAgenda implements IDynamicAgenda, IConstants {
+	private static final int BUFFER = 16 * 1024;
+	private static final Logger LOG = Logger.getLogger(RemoteDynamicAgenda.class.getName());
+	/**
+	 * How many takes {@link #takeN(String, ITemplate, int, long)} keeps in flight
+	 */
+	private static final int TAKE_BATCH = 64;
+	private final SocketChannel channel;
+	private final TupleCodec encoder = new TupleCodec(), decoder = new TupleCodec();
+	/**
+	 * Calls awaiting a response, by request id
+	 */
+	private final Map<String, CompletableFuture<List<ITuple>>> calls =
+		new ConcurrentHashMap<String, CompletableFuture<List<ITuple>>>();
+	/**
+	 * Live subscriptions, by the request id their matches come under
+	 */
+	private final Map<String, RemoteSubscription> subscriptions =
+		new ConcurrentHashMap<String, RemoteSubscription>();
+	/**
+	 * Runs subscription listeners; made by the first subscribe, guarded by this
+	 */
+	private ExecutorService events = null;
+	private final AtomicLong nextId = new AtomicLong();
+	private final Object writeLock = new Object();
+	/**
+	 * Frames not yet written, in write mode; guarded by writeLock
+	 */
+	private ByteBuffer out = ByteBuffer.allocate(BUFFER);
+	/**
+	 * The buffer the writer is not filling; guarded by writeLock
+	 */
+	private ByteBuffer spare = ByteBuffer.allocate(BUFFER);
+	/**
+	 * A caller is writing; guarded by writeLock
+	 */
+	private boolean writing = false;
+	private volatile IOException failure = null;
+	private final Thread reader;
+
+	/**
+	 * Connect and start reading
+	 * @param address the server's
+	 * @throws IOException
+	 */
+	public RemoteDynamicAgenda(InetSocketAddress address) throws IOException {
+		channel = SocketChannel.open(address);
+		channel.setOption(StandardSocketOptions.TCP_NODELAY, Boolean.TRUE);
+		reader = new Thread("tuplespace-client-"+address) {
+			public void run() {
+				readResponses();
+			}
+		};
+		reader.setDaemon(true);
+		reader.start();
+	}
+
+	/**
+	 * Send a request
+	 * @param command
+	 * @param channelName
+	 * @param header the header, or {@code null} for one with no fields
+	 * @param body
+	 * @return completes with the response's tuples
+	 */
+	private CompletableFuture<List<ITuple>> call(String command, String channelName,
+			TupleImpl header, List<? extends ITuple> body) {
+		return call(nextId(), command, channelName, header, body);
+	}
+
+	private String nextId() {
+		return Long.toString(nextId.incrementAndGet(), 36);
+	}
+
+	/**
+	 * Send a request under <code>id</code>
+	 */
+	private CompletableFuture<List<ITuple>> call(String id, String command, String channelName,
+			TupleImpl header, List<? extends ITuple> body) {
+		TupleImpl h = (header == null) ? Protocol.header(command, id, channelName) : header;
+		h.setRequestId(id);
+		CompletableFuture<List<ITuple>> f = new CompletableFuture<List<ITuple>>();
+		calls.put(id, f);
+		try {
+			write(h, body);
+		} catch (IOException e) {
+			calls.remove(id);
+			f.completeExceptionally(e);
+		} catch (RuntimeException e) {
+			calls.remove(id);
+			throw e;
+		}
+		return f;
+	}
+
+	/**
+	 * Buffer a frame and, unless another caller is writing, write out
+	 * the buffer until it is empty. An interrupt pending on the caller
+	 * is held off meanwhile, since it would close the connection.
+	 */
+	private void write(TupleImpl header, List<? extends ITuple> body) throws IOException {
+		ByteBuffer b;
+		synchronized (writeLock) {
+			if (failure != null)
+				throw failure;
+			out = Protocol.writeFrame(encoder, header, body, out);
+			if (writing)
+				return;
+			writing = true;
+		}
+		boolean interrupted = Thread.interrupted();
+		try {
+			while (true) {
+				synchronized (writeLock) {
+					if (out.position() == 0) {
+						writing = false;
+						return;
+					}
+					b = out;
+					out = spare;
+					spare = null;
+				}
+				b.flip();
+				while (b.hasRemaining())
+					channel.write(b);
+				b.clear();
+				synchronized (writeLock) {
+					spare = b;
+				}
+			}
+		} catch (IOException e) {
+			fail(e);
+			throw e;
+		} finally {
+			if (interrupted)
+				Thread.currentThread().interrupt();
+		}
+	}
+
+	private void readResponses() {
+		ByteBuffer in = ByteBuffer.allocate(BUFFER);
+		ByteBuffer frame;
+		List<ITuple> body;
+		TupleImpl header;
+		CompletableFuture<List<ITuple>> f;
+		int need;
+		try {
+			in.flip();
+			while (true) {
+				while ((frame = Protocol.nextFrame(in)) == null) {
+					need = Protocol.frameSize(in);
+					in.compact();
+					if (need > in.capacity()) {
+						ByteBuffer b = ByteBuffer.allocate(need);
+						in.flip();
+						b.put(in);
+						in = b;
+					}
+					if (channel.read(in) < 0)
+						throw new IOException("Server closed the connection");
+					in.flip();
+				}
+				body = new ArrayList<ITuple>();
+				header = Protocol.readFrame(decoder, frame, body);
+				if (header.getRequestId() == null)
+					// the server could not read a request and hung up
+					throw new IOException("Server refused the connection: "+header.get(ERROR));
+				if (MATCHED.equals(header.getCommand())) {
+					RemoteSubscription s = subscriptions.get(header.getRequestId());
+					if (s != null)
+						s.matched(header, body);
+					continue;
+				}
+				f = calls.remove(header.getRequestId());
+				if (f == null)
+					continue;
+				if (header.get(ERROR) != null)
+					f.completeExceptionally(new IllegalStateException((String)header.get(ERROR)));
+				else
+					f.complete(body);
+			}
+		} catch (IOException e) {
+			fail(e);
+		}
+	}
+
+	/**
+	 * Fail every call in flight and every later one
+	 */
+	private void fail(IOException e) {
+		synchronized (writeLock) {
+			if (failure == null)
+				failure = e;
+		}
+		try {
+			channel.close();
+		} catch (IOException x) {
+		}
+		Iterator<CompletableFuture<List<ITuple>>> itr = calls.values().iterator();
+		while (itr.hasNext()) {
+			itr.next().completeExceptionally(failure);
+			itr.remove();
+		}
+		Iterator<RemoteSubscription> subs = subscriptions.values().iterator();
+		while (subs.hasNext()) {
+			subs.next().cancelled = true;
+			subs.remove();
+		}
+	}
+
+	/**
+	 * Wait for a call; an interrupt cancels it unless it was answered
+	 * meanwhile
+	 * @throws IllegalStateException for an error from the server
+	 * @throws RuntimeException wrapping the failure if the connection failed,
+	 *  or the interrupt
+	 */
+	private static <T> T await(CompletableFuture<T> f) {
+		try {
+			return f.get();
+		} catch (InterruptedException e) {
+			boolean cancelled = f.cancel(false);
+			Thread.currentThread().interrupt();
+			if (cancelled)
+				throw new RuntimeException(e);
+			return await(f);
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof RuntimeException)
+				throw (RuntimeException)e.getCause();
+			throw new RuntimeException(e.getCause());
+		}
+	}
+
+	private static final Function<List<ITuple>, ITuple> FIRST = new Function<List<ITuple>, ITuple>() {
+		public ITuple apply(List<ITuple> body) {
+			return body.isEmpty() ? null : body.get(0);
+		}
+	};
+
+	/**
+	 * @param channelName
+	 * @param template
+	 * @return the template and its constraint as the tuples of a request
+	 * @throws IllegalArgumentException if a literal cannot be sent
+	 */
+	private static List<ITuple> template(String channelName, ITemplate template) {
+		return Protocol.templateBody(channelName, template);
+	}
+
+	/**
+	 * A take or read: at once if <code>waitTime</code> is not positive,
+	 * otherwise parked on the server. Cancelling the result cancels a
+	 * parked request on the server, and a tuple taken for a result
+	 * already cancelled is put back.
+	 */
+	private CompletableFuture<ITuple> match(String now, String later, final String channelName,
+			ITemplate template, long waitTime) {
+		List<ITuple> body = template(channelName, template);
+		final boolean take = TAKE.equals(now);
+		final String id = nextId();
+		TupleImpl h;
+		if (waitTime <= 0)
+			h = Protocol.header(now, id, channelName);
+		else {
+			h = Protocol.header(later, id, channelName);
+			h.set(WAIT, Long.valueOf(waitTime));
+		}
+		final CompletableFuture<ITuple> result = new CompletableFuture<ITuple>();
+		call(id, h.getCommand(), channelName, h, body).whenComplete(new BiConsumer<List<ITuple>, Throwable>() {
+			public void accept(List<ITuple> response, Throwable ex) {
+				if (ex != null) {
+					result.completeExceptionally(ex);
+					return;
+				}
+				ITuple t = FIRST.apply(response);
+				if (!result.complete(t) && take && t != null)
+					giveBack(channelName, Collections.singletonList(t));
+			}
+		});
+		if (waitTime > 0)
+			result.whenComplete(new BiConsumer<ITuple, Throwable>() {
+				public void accept(ITuple t, Throwable ex) {
+					if (result.isCancelled())
+						cancel(id);
+				}
+			});
+		return result;
+	}
+
+	/**
+	 * Put back, without waiting, tuples taken for a caller that has gone;
+	 * lost only if the connection fails first
+	 */
+	private void giveBack(String channelName, List<ITuple> tuples) {
+		if (!tuples.isEmpty())
+			call(PUT, channelName, null, tuples);
+	}
+
+	/**
+	 * Ask the server, without waiting, to give up a parked request
+	 */
+	private void cancel(String id) {
+		TupleImpl h = Protocol.header(CANCEL, null, null);
+		h.set(TARGET, id);
+		call(CANCEL, null, h, Collections.<ITuple>emptyList());
+	}
+
+	@Override
+	public void createChannel(String name) {
+		createChannel(name, false);
+	}
+
+	/**
+	 * Creates the channel on the server unless it exists there
+	 */
+	@Override
+	public void createChannel(String name, boolean durable) {
+		TupleImpl h = Protocol.header(CREATE, null, name);
+		if (durable)
+			h.set(DURABLE, Boolean.TRUE);
+		await(call(CREATE, name, h, Collections.<ITuple>emptyList()));
+	}
+
+	/**
+	 * @return a view of the server's channel, or {@code null} if it has none
+	 */
+	@Override
+	public ITupleSpace getChannel(String name) {
+		// a collect of nothing is refused only if there is no such channel
+		TupleImpl h = Protocol.header(COLLECT, null, name);
+		h.set(LIMIT, Integer.valueOf(0));
+		try {
+			await(call(COLLECT, name, h, Collections.<ITuple>emptyList()));
+		} catch (IllegalStateException e) {
+			return null;
+		}
+		return new RemoteChannel(this, name);
+	}
+
+	@Override
+	public ITuple newTuple(String channelName) {
+		return new TupleImpl(channelName);
+	}
+
+	@Override
+	public ITemplate newTemplate() {
+		return new TemplateImpl();
+	}
+
+	@Override
+	public ITuple newTuple(String channelName, Map<String, Object> properties) {
+		return new TupleImpl(channelName, properties);
+	}
+
+	@Override
+	public void put(String channelName, ITuple tuple) {
+		await(call(PUT, channelName, null, Collections.singletonList(tuple)));
+	}
+
+	@Override
+	public void putAll(String channelName, Collection<? extends ITuple> tuples) {
+		await(call(PUT, channelName, null, new ArrayList<ITuple>(tuples)));
+	}
+
+	@Override
+	public ITuple read(String channelName, ITemplate template, long waitTime) {
+		return await(readAsync(channelName, template, waitTime));
+	}
+
+	@Override
+	public ITuple take(String channelName, ITemplate template, long waitTime) {
+		return await(takeAsync(channelName, template, waitTime));
+	}
+
+	/**
+	 * Waits for the first match, then pipelines takes for the rest;
+	 * unlike a local channel's, the takes are not one atomic step
+	 */
+	@Override
+	public List<ITuple> takeN(String channelName, ITemplate template, int n, long waitTime) {
+		List<ITuple> result = new ArrayList<ITuple>();
+		if (n <= 0)
+			return result;
+		ITuple t = take(channelName, template, waitTime);
+		if (t == null)
+			return result;
+		result.add(t);
+		List<CompletableFuture<ITuple>> batch = new ArrayList<CompletableFuture<ITuple>>();
+		CompletableFuture<ITuple> f;
+		int next = 0;
+		try {
+			while (result.size() < n) {
+				batch.clear();
+				for (int i = Math.min(TAKE_BATCH, n - result.size()); i > 0; i--)
+					batch.add(takeAsync(channelName, template, 0));
+				boolean more = true;
+				for (next = 0; next < batch.size(); next++) {
+					t = await(batch.get(next));
+					if (t == null)
+						more = false;
+					else
+						result.add(t);
+				}
+				if (!more)
+					break;
+			}
+		} catch (RuntimeException e) {
+			// interrupted or failed: what was taken goes back, and so
+			// do takes answered but not yet collected
+			for (int i = next + 1; i < batch.size(); i++) {
+				f = batch.get(i);
+				if (!f.cancel(false) && !f.isCompletedExceptionally() && (t = f.getNow(null)) != null)
+					result.add(t);
+			}
+			giveBack(channelName, result);
+			throw e;
+		}
+		return result;
+	}
+
+	@Override
+	public List<ITuple> collect(String channelName, ITemplate template, int limit) {
+		TupleImpl h = Protocol.header(COLLECT, null, channelName);
+		h.set(LIMIT, Integer.valueOf(limit));
+		return await(call(COLLECT, channelName, h, template(channelName, template)));
+	}
+
+	@Override
+	public CompletableFuture<ITuple> readAsync(String channelName, ITemplate template, long waitTime) {
+		return match(READ, READ_WAIT, channelName, template, waitTime);
+	}
+
+	@Override
+	public CompletableFuture<ITuple> takeAsync(String channelName, ITemplate template, long waitTime) {
+		return match(TAKE, TAKE_WAIT, channelName, template, waitTime);
+	}
+
+	/**
+	 * The server counts matches dropped because this client fell
+	 * behind, and each match brings the count
+	 */
+	@Override
+	public ISubscription subscribe(String channelName, ITemplate template, ITupleSpaceListener listener) {
+		String id = nextId();
+		RemoteSubscription s = new RemoteSubscription(id, template, listener);
+		// matches can come before the response
+		subscriptions.put(id, s);
+		try {
+			await(call(id, SUBSCRIBE, channelName, null, template(channelName, template)));
+		} catch (RuntimeException e) {
+			subscriptions.remove(id);
+			throw e;
+		}
+		return s;
+	}
+
+	private synchronized ExecutorService events() {
+		if (events == null)
+			events = Executors.newSingleThreadExecutor(new ThreadFactory() {
+				public Thread newThread(Runnable r) {
+					Thread t = new Thread(r, reader.getName()+"-events");
+					t.setDaemon(true);
+					return t;
+				}
+			});
+		return events;
+	}
+
+	/**
+	 * A snapshot of the channel, fetched whole
+	 */
+	@Override
+	public Iterator<ITuple> listTuples(String channelName) {
+		return await(call(LIST, channelName, null, Collections.<ITuple>emptyList())).iterator();
+	}
+
+	@Override
+	public void addSortedIndex(String channelName, String field) {
+		index(channelName, field, false);
+	}
+
+	@Override
+	public void addBitmapIndex(String channelName, String field) {
+		index(channelName, field, true);
+	}
+
+	private void index(String channelName, String field, boolean bitmap) {
+		TupleImpl h = Protocol.header(INDEX, null, channelName);
+		h.set(FIELD, field);
+		if (bitmap)
+			h.set(BITMAP, Boolean.TRUE);
+		await(call(INDEX, channelName, h, Collections.<ITuple>emptyList()));
+	}
+
+	/**
+	 * @return the plan the server made; its driving test is a copy
+	 */
+	@Override
+	public IQueryPlan explain(String channelName, ITemplate template) {
+		return Protocol.plan(await(call(EXPLAIN, channelName, null, template(channelName, template))));
+	}
+
+	@Override
+	public void decayAll(int howMuch) {
+		TupleImpl h = Protocol.header(DECAY, null, null);
+		h.set(AMOUNT, Integer.valueOf(howMuch));
+		await(call(DECAY, null, h, Collections.<ITuple>emptyList()));
+	}
+
+	/**
+	 * The server waits for a match as a local agenda does
+	 * @throws IllegalStateException if none comes
+	 */
+	@Override
+	public void addValue(String channelName, ITemplate template, int howMuch) {
+		TupleImpl h = Protocol.header(ADD_VALUE, null, channelName);
+		h.set(AMOUNT, Integer.valueOf(howMuch));
+		await(call(ADD_VALUE, channelName, h, template(channelName, template)));
+	}
+
+	@Override
+	public void checkpointAll() {
+		await(call(CHECKPOINT, null, null, Collections.<ITuple>emptyList()));
+	}
+
+	/**
+	 * Decay one channel on the server
+	 */
+	void decay(String channelName, int howMuch) {
+		TupleImpl h = Protocol.header(DECAY, null, channelName);
+		h.set(AMOUNT, Integer.valueOf(howMuch));
+		await(call(DECAY, channelName, h, Collections.<ITuple>emptyList()));
+	}
+
+	/**
+	 * Checkpoint one channel on the server
+	 */
+	void checkpoint(String channelName) {
+		await(call(CHECKPOINT, channelName, null, Collections.<ITuple>emptyList()));
+	}
+
+	/**
+	 * Close the connection; calls in flight fail
+	 */
+	@Override
+	public void shutDown() {
+		fail(new IOException("Agenda shut down"));
+		synchronized (this) {
+			if (events != null)
+				events.shutdown();
+		}
+		try {
+			reader.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * A subscription on the server: its matches come to the reader,
+	 * which hands them to the event thread
+	 */
+	private class RemoteSubscription implements ISubscription {
+		private final String id;
+		private final ITemplate template;
+		private final ITupleSpaceListener listener;
+		volatile boolean cancelled = false;
+		private volatile long dropped = 0;
+
+		RemoteSubscription(String id, ITemplate template, ITupleSpaceListener listener) {
+			this.id = id;
+			this.template = template;
+			this.listener = listener;
+		}
+
+		/**
+		 * On the reader: a match, and the server's count of those dropped
+		 */
+		void matched(TupleImpl header, List<ITuple> body) {
+			Object n = header.get(DROPPED);
+			if (n instanceof Long)
+				dropped = ((Long)n).longValue();
+			if (cancelled || body.isEmpty())
+				return;
+			final TupleImpl t = (TupleImpl)body.get(0);
+			t.freeze();
+			try {
+				events().execute(new Runnable() {
+					public void run() {
+						if (cancelled)
+							return;
+						try {
+							listener.tupleInserted(t);
+						} catch (RuntimeException e) {
+							LOG.log(Level.WARNING, "Subscription listener failed", e);
+						}
+					}
+				});
+			} catch (RejectedExecutionException e) {
+				// shut down
+			}
+		}
+
+		@Override
+		public ITemplate getTemplate() {
+			return template;
+		}
+
+		@Override
+		public void cancel() {
+			if (cancelled)
+				return;
+			cancelled = true;
+			if (subscriptions.remove(id) != null)
+				RemoteDynamicAgenda.this.cancel(id);
+		}
+
+		@Override
+		public boolean isCancelled() {
+			return cancelled;
+		}
+
+		@Override
+		public long getDroppedCount() {
+			return dropped;
+		}
+	}
+}
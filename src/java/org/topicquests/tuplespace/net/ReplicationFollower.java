@@ -0,0 +1,252 @@
+/*
+ * Copyright 2024 TopicQuests Foundation
+ *  This source code is available under the terms of the Affero General Public License v3.
+ *  Please see LICENSE.txt for full license terms, including the availability of proprietary exceptions.
+ */
+package org.topicquests.tuplespace.net;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import org.topicquests.tuplespace.DynamicAgenda;
+import org.topicquests.tuplespace.api.IChangeListener;
+import org.topicquests.tuplespace.api.ITuple;
+import org.topicquests.tuplespace.impl.TupleCodec;
+import org.topicquests.tuplespace.impl.TupleImpl;
+import org.topicquests.tuplespace.impl.TupleSpaceImpl;
+
+/**
+ * Keeps read-only replicas of a {@link ReplicationPrimary}'s channels in
+ * a local {@link DynamicAgenda}, which can serve reads, for example
+ * through a {@link TupleSpaceServer}; inserts, takes and priority changes
+ * on a replica throw <code>IllegalStateException</code>.
+ * <p>A reset from the primary replaces the channel with an empty replica
+ * that the snapshot and later changes are applied to, keeping the
+ * primary's tuple ids. If the connection drops, the follower keeps
+ * serving what it has and reconnects, starting over from snapshots.
+ * Lag is how many changes the primary had queued for this follower, as
+ * of its last frame or heartbeat, that are not yet applied, and how old
+ * the change last applied was; a heartbeat that finds the follower caught up
+ * makes it 0. {@link #promote()} stops following and makes the
+ * replicas writable, so that the follower can take over from a lost
+ * primary.</p>
+ * @author jackpark
+ */
+public class ReplicationFollower {
+	private static final long RETRY_MILLIS = 200;
+	private final DynamicAgenda agenda;
+	private final InetSocketAddress primary;
+	/**
+	 * Applies changes to each replica, by channel name; reader thread only
+	 */
+	private final Map<String, IChangeListener> appliers = new HashMap<String, IChangeListener>();
+	private volatile long applied = 0, primaryPosition = 0, lagMillis = 0;
+	private volatile boolean connected = false, running = false;
+	private volatile SocketChannel channel = null;
+	private Thread reader;
+
+	/**
+	 * @param agenda holds the replicas
+	 * @param primary the primary's address
+	 */
+	public ReplicationFollower(DynamicAgenda agenda, InetSocketAddress primary) {
+		this.agenda = agenda;
+		this.primary = primary;
+	}
+
+	public synchronized void start() {
+		running = true;
+		reader = new Thread("tuplespace-follower-"+primary) {
+			public void run() {
+				while (running) {
+					try {
+						follow();
+					} catch (IOException e) {
+						// the primary went away; retry
+					}
+					connected = false;
+					if (running) {
+						try {
+							Thread.sleep(RETRY_MILLIS);
+						} catch (InterruptedException e) {
+							return;
+						}
+					}
+				}
+			}
+		};
+		reader.setDaemon(true);
+		reader.start();
+	}
+
+	/**
+	 * @return whether a connection to the primary is open
+	 */
+	public boolean isConnected() {
+		return connected;
+	}
+
+	/**
+	 * @return changes applied on this connection
+	 */
+	public long getAppliedPosition() {
+		return applied;
+	}
+
+	/**
+	 * @return changes the primary is known to have queued that are not yet applied
+	 */
+	public long getLagChanges() {
+		return Math.max(0, primaryPosition - applied);
+	}
+
+	/**
+	 * @return how long ago the primary made the change last applied,
+	 *  or 0 once a heartbeat finds nothing pending; primary and follower
+	 *  clocks are assumed to agree
+	 */
+	public long getLagMillis() {
+		return lagMillis;
+	}
+
+	/**
+	 * Stop following; the replicas keep what they have
+	 */
+	public void stop() {
+		Thread t;
+		synchronized (this) {
+			if (!running)
+				return;
+			running = false;
+			t = reader;
+		}
+		SocketChannel ch = channel;
+		if (ch != null) {
+			try {
+				ch.close();
+			} catch (IOException e) {
+			}
+		}
+		t.interrupt();
+		try {
+			t.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Stop following and make every replica writable; its tuples keep
+	 * their ids, and new ones continue after them, so the agenda can
+	 * in turn be a primary
+	 */
+	public void promote() {
+		stop();
+		Iterator<String> itr = appliers.keySet().iterator();
+		while (itr.hasNext()) {
+			TupleSpaceImpl space = (TupleSpaceImpl)agenda.getChannel(itr.next());
+			if (space != null)
+				space.setReadOnly(false);
+		}
+	}
+
+	private void follow() throws IOException {
+		SocketChannel ch = SocketChannel.open(primary);
+		channel = ch;
+		try {
+			if (!running)
+				return;
+			applied = 0;
+			primaryPosition = 0;
+			connected = true;
+			TupleCodec decoder = new TupleCodec();
+			ByteBuffer in = ByteBuffer.allocate(64 * 1024);
+			ByteBuffer frame;
+			List<ITuple> body = new ArrayList<ITuple>();
+			TupleImpl header;
+			int need;
+			in.flip();
+			while (running) {
+				while ((frame = Protocol.nextFrame(in)) == null) {
+					need = Protocol.frameSize(in);
+					in.compact();
+					if (need > in.capacity()) {
+						ByteBuffer b = ByteBuffer.allocate(need);
+						in.flip();
+						b.put(in);
+						in = b;
+					}
+					if (ch.read(in) < 0)
+						throw new IOException("Primary closed the connection");
+					in.flip();
+				}
+				body.clear();
+				header = Protocol.readFrame(decoder, frame, body);
+				long position = ((Long)header.get(ReplicationPrimary.POSITION)).longValue();
+				long queued = ((Long)header.get(ReplicationPrimary.QUEUED)).longValue();
+				long time = ((Long)header.get(ReplicationPrimary.TIME)).longValue();
+				if (ReplicationPrimary.CHANGES.equals(header.getCommand())) {
+					apply(header.getSpace(), body);
+					applied = position;
+					lagMillis = Math.max(0, System.currentTimeMillis() - time);
+				} else if (queued == applied)
+					lagMillis = 0;
+				if (queued > primaryPosition)
+					primaryPosition = queued;
+			}
+		} finally {
+			channel = null;
+			ch.close();
+		}
+	}
+
+	/**
+	 * Apply a frame of one channel's changes
+	 */
+	private void apply(String name, List<ITuple> body) throws IOException {
+		IChangeListener a = appliers.get(name);
+		ITuple c;
+		String tag;
+		for (int i = 0; i < body.size(); i++) {
+			c = body.get(i);
+			tag = c.getTag();
+			if (ReplicationPrimary.RESET.equals(tag)) {
+				agenda.createChannel(name);
+				TupleSpaceImpl space = (TupleSpaceImpl)agenda.getChannel(name);
+				space.setReadOnly(true);
+				a = space.applier();
+				appliers.put(name, a);
+				continue;
+			}
+			if (a == null)
+				throw new IOException("Changes to "+name+" before its reset");
+			if (ReplicationPrimary.INSERT.equals(tag))
+				a.inserted(id(c), body.get(++i), n(c));
+			else if (ReplicationPrimary.REMOVE.equals(tag))
+				a.removed(id(c));
+			else if (ReplicationPrimary.PRIORITY.equals(tag))
+				a.priorityChanged(id(c), n(c));
+			else if (ReplicationPrimary.DECAY.equals(tag))
+				a.decayed(n(c));
+			else
+				throw new IOException("Unknown change "+tag);
+		}
+	}
+
+	private static long id(ITuple c) {
+		Object v = c.get(ReplicationPrimary.ID);
+		return (v == null) ? 0 : ((Long)v).longValue();
+	}
+
+	private static int n(ITuple c) {
+		Object v = c.get(ReplicationPrimary.N);
+		return (v == null) ? 0 : ((Integer)v).intValue();
+	}
+}
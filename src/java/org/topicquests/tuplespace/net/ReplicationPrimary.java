@@ -0,0 +1,377 @@
+/*
+ * Copyright 2024 TopicQuests Foundation
+ *  This source code is available under the terms of the Affero General Public License v3.
+ *  Please see LICENSE.txt for full license terms, including the availability of proprietary exceptions.
+ */
+package org.topicquests.tuplespace.net;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import org.topicquests.tuplespace.DynamicAgenda;
+import org.topicquests.tuplespace.api.IChangeListener;
+import org.topicquests.tuplespace.api.ITuple;
+import org.topicquests.tuplespace.api.ITupleSpace;
+import org.topicquests.tuplespace.impl.TupleCodec;
+import org.topicquests.tuplespace.impl.TupleImpl;
+import org.topicquests.tuplespace.impl.TupleSpaceImpl;
+
+/**
+ * Ships the changes to every channel of a {@link DynamicAgenda} to
+ * {@link ReplicationFollower}s, which keep read-only replicas.
+ * <p>Each follower that connects gets, for each channel, a reset and a
+ * snapshot of its tuples, then every change after it, as heard by an
+ * {@link IChangeListener} on the channel; channels created later are
+ * picked up at the next heartbeat. Changes are queued under the channel
+ * lock and sent by a thread per follower in {@link Protocol} frames, so
+ * writers never wait on a follower; replication is asynchronous. The
+ * changes shipped to a follower are numbered from 1, and frames and
+ * heartbeats carry the number reached, the number queued and the time,
+ * so a follower knows how far behind it is. A follower that falls more than
+ * {@link #MAX_BACKLOG} changes behind is dropped: its socket is closed,
+ * which also ends a write it is stuck in, and nothing more is queued for
+ * it. It starts over with snapshots when it reconnects.</p>
+ * @author jackpark
+ */
+public class ReplicationPrimary {
+	/**
+	 * Changes queued for a follower before it is dropped
+	 */
+	public static final int MAX_BACKLOG = 1 << 20;
+	/**
+	 * Frame commands
+	 */
+	static final String CHANGES = "changes", HEARTBEAT = "heartbeat";
+	/**
+	 * Change tags; an insert is followed by the inserted tuple
+	 */
+	static final String RESET = "reset", INSERT = "insert", REMOVE = "remove",
+		PRIORITY = "priority", DECAY = "decay";
+	/**
+	 * Fields: a change's tuple id and number; a frame's position, the
+	 * changes queued by then, and its time
+	 */
+	static final String ID = "lsn", N = "n", POSITION = "position", QUEUED = "queued", TIME = "time";
+	private static final int FRAME_CHANGES = 1024;
+
+	private final DynamicAgenda agenda;
+	private final InetSocketAddress address;
+	private final long heartbeatMillis;
+	private final int maxBacklog;
+	private final Set<Shipper> shippers =
+		Collections.newSetFromMap(new ConcurrentHashMap<Shipper, Boolean>());
+	private ServerSocketChannel server;
+	private Thread acceptor;
+	private volatile boolean running = false;
+
+	/**
+	 * @param agenda
+	 * @param address 0 as the port picks a free one
+	 * @param heartbeatMillis how often an idle follower hears from this primary
+	 */
+	public ReplicationPrimary(DynamicAgenda agenda, InetSocketAddress address, long heartbeatMillis) {
+		this(agenda, address, heartbeatMillis, MAX_BACKLOG);
+	}
+
+	/**
+	 * @param agenda
+	 * @param address 0 as the port picks a free one
+	 * @param heartbeatMillis how often an idle follower hears from this primary
+	 * @param maxBacklog changes queued for a follower before it is dropped
+	 */
+	public ReplicationPrimary(DynamicAgenda agenda, InetSocketAddress address, long heartbeatMillis,
+			int maxBacklog) {
+		this.agenda = agenda;
+		this.address = address;
+		this.heartbeatMillis = heartbeatMillis;
+		this.maxBacklog = maxBacklog;
+	}
+
+	/**
+	 * Bind and accept followers
+	 * @throws IOException
+	 */
+	public synchronized void start() throws IOException {
+		server = ServerSocketChannel.open();
+		server.setOption(StandardSocketOptions.SO_REUSEADDR, Boolean.TRUE);
+		server.bind(address);
+		running = true;
+		acceptor = new Thread("tuplespace-primary-accept") {
+			public void run() {
+				while (running) {
+					try {
+						SocketChannel ch = server.accept();
+						ch.setOption(StandardSocketOptions.TCP_NODELAY, Boolean.TRUE);
+						Shipper s = new Shipper(ch);
+						shippers.add(s);
+						s.start();
+					} catch (IOException e) {
+						// closed by stop
+					}
+				}
+			}
+		};
+		acceptor.setDaemon(true);
+		acceptor.start();
+	}
+
+	/**
+	 * @return the port bound, for when 0 was asked for
+	 */
+	public int getPort() {
+		return server.socket().getLocalPort();
+	}
+
+	/**
+	 * @return how many followers are connected
+	 */
+	public int getFollowerCount() {
+		return shippers.size();
+	}
+
+	/**
+	 * Stop accepting and disconnect every follower
+	 */
+	public synchronized void stop() {
+		if (!running)
+			return;
+		running = false;
+		try {
+			server.close();
+		} catch (IOException e) {
+		}
+		Iterator<Shipper> itr = shippers.iterator();
+		while (itr.hasNext())
+			itr.next().close();
+		try {
+			acceptor.join();
+			itr = shippers.iterator();
+			while (itr.hasNext())
+				itr.next().join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * A change queued for a follower
+	 */
+	static final class Change {
+		final String channel;
+		final String tag;
+		final long id;
+		final int n;
+		final ITuple tuple;
+		final long time = System.currentTimeMillis();
+
+		Change(String channel, String tag, long id, int n, ITuple tuple) {
+			this.channel = channel;
+			this.tag = tag;
+			this.id = id;
+			this.n = n;
+			this.tuple = tuple;
+		}
+	}
+
+	/**
+	 * One follower: queues the changes its listeners hear and sends them
+	 */
+	private class Shipper extends Thread {
+		private final SocketChannel channel;
+		private final ConcurrentLinkedQueue<Change> queue = new ConcurrentLinkedQueue<Change>();
+		/**
+		 * Changes queued so far; the number of the last
+		 */
+		private final AtomicLong queued = new AtomicLong();
+		private volatile long shipped = 0;
+		private volatile boolean closed = false;
+		/**
+		 * The listener on each channel followed, by name
+		 */
+		private final Map<String, Feed> feeds = new HashMap<String, Feed>();
+		private final TupleCodec encoder = new TupleCodec();
+		private ByteBuffer out = ByteBuffer.allocate(64 * 1024);
+
+		Shipper(SocketChannel channel) {
+			super("tuplespace-primary-ship-"+channel.socket().getRemoteSocketAddress());
+			setDaemon(true);
+			this.channel = channel;
+		}
+
+		void enqueue(Change c) {
+			if (closed)
+				return;
+			queue.add(c);
+			if (queued.incrementAndGet() - shipped > maxBacklog) {
+				// too far behind; run() unhooks the feeds once its write fails
+				close();
+				queue.clear();
+				return;
+			}
+			LockSupport.unpark(this);
+		}
+
+		void close() {
+			closed = true;
+			LockSupport.unpark(this);
+			// also ends a write the follower is not reading
+			try {
+				channel.close();
+			} catch (IOException e) {
+			}
+		}
+
+		public void run() {
+			long lastSent = 0, now;
+			try {
+				watch();
+				while (running && !closed) {
+					if (ship()) {
+						lastSent = System.currentTimeMillis();
+						continue;
+					}
+					now = System.currentTimeMillis();
+					if (now - lastSent >= heartbeatMillis) {
+						watch();
+						TupleImpl h = Protocol.header(HEARTBEAT, null, null);
+						h.set(POSITION, Long.valueOf(shipped));
+						h.set(QUEUED, Long.valueOf(queued.get()));
+						h.set(TIME, Long.valueOf(now));
+						send(h, new ArrayList<ITuple>());
+						lastSent = now;
+						continue;
+					}
+					LockSupport.parkNanos(this, TimeUnit.MILLISECONDS.toNanos(heartbeatMillis));
+				}
+			} catch (IOException e) {
+				// the follower went away
+			} finally {
+				Iterator<Feed> itr = feeds.values().iterator();
+				Feed f;
+				while (itr.hasNext()) {
+					f = itr.next();
+					f.space.removeChangeListener(f);
+				}
+				queue.clear();
+				try {
+					channel.close();
+				} catch (IOException e) {
+				}
+				shippers.remove(this);
+			}
+		}
+
+		/**
+		 * Start following channels not yet followed: a reset, then a
+		 * snapshot and every change after it
+		 */
+		private void watch() {
+			Iterator<String> itr = agenda.channelNames().iterator();
+			String name;
+			ITupleSpace space;
+			Feed f;
+			while (itr.hasNext()) {
+				name = itr.next();
+				space = agenda.getChannel(name);
+				f = feeds.get(name);
+				if (f != null && f.space == space)
+					continue;
+				if (!(space instanceof TupleSpaceImpl))
+					continue;
+				if (f != null)
+					f.space.removeChangeListener(f);
+				f = new Feed(name, (TupleSpaceImpl)space);
+				enqueue(new Change(name, RESET, 0, 0, null));
+				f.space.addChangeListener(f);
+				feeds.put(name, f);
+			}
+		}
+
+		/**
+		 * Send what is queued, a run of one channel's changes per frame
+		 * @return <code>false</code> if nothing was queued
+		 */
+		private boolean ship() throws IOException {
+			Change c = queue.peek();
+			if (c == null)
+				return false;
+			String name = c.channel;
+			long time = c.time;
+			List<ITuple> body = new ArrayList<ITuple>();
+			int n = 0;
+			TupleImpl t;
+			while (n < FRAME_CHANGES && (c = queue.peek()) != null && c.channel.equals(name)) {
+				queue.poll();
+				t = new TupleImpl(c.tag);
+				if (c.id != 0)
+					t.set(ID, Long.valueOf(c.id));
+				if (c.n != 0)
+					t.set(N, Integer.valueOf(c.n));
+				body.add(t);
+				if (c.tuple != null)
+					body.add(c.tuple);
+				n++;
+			}
+			TupleImpl h = Protocol.header(CHANGES, null, name);
+			h.set(POSITION, Long.valueOf(shipped + n));
+			h.set(QUEUED, Long.valueOf(queued.get()));
+			h.set(TIME, Long.valueOf(time));
+			send(h, body);
+			shipped += n;
+			return true;
+		}
+
+		private void send(TupleImpl header, List<ITuple> body) throws IOException {
+			out.clear();
+			out = Protocol.writeFrame(encoder, header, body, out);
+			out.flip();
+			while (out.hasRemaining())
+				channel.write(out);
+		}
+
+		/**
+		 * Hears one channel's changes for this follower
+		 */
+		private class Feed implements IChangeListener {
+			final String name;
+			final TupleSpaceImpl space;
+
+			Feed(String name, TupleSpaceImpl space) {
+				this.name = name;
+				this.space = space;
+			}
+
+			public void inserted(long id, ITuple tuple, int priority) {
+				enqueue(new Change(name, INSERT, id, priority, tuple));
+			}
+
+			public void removed(long id) {
+				enqueue(new Change(name, REMOVE, id, 0, null));
+			}
+
+			public void priorityChanged(long id, int newPriority) {
+				enqueue(new Change(name, PRIORITY, id, newPriority, null));
+			}
+
+			public void decayed(int howMuch) {
+				enqueue(new Change(name, DECAY, 0, howMuch, null));
+			}
+		}
+	}
+}
@@ -0,0 +1,762 @@
+/*
+ * Copyright 2024 TopicQuests Foundation
+ *  This source code is available under the terms of the Affero General Public License v3.
+ *  Please see LICENSE.txt for full license terms, including the availability of proprietary exceptions.
+ */
+package org.topicquests.tuplespace.net;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.topicquests.tuplespace.api.IConstants;
+import org.topicquests.tuplespace.api.IDynamicAgenda;
+import org.topicquests.tuplespace.api.ISubscription;
+import org.topicquests.tuplespace.api.ITemplate;
+import org.topicquests.tuplespace.api.ITuple;
+import org.topicquests.tuplespace.api.ITupleSpace;
+import org.topicquests.tuplespace.api.ITupleSpaceListener;
+import org.topicquests.tuplespace.impl.TupleCodec;
+import org.topicquests.tuplespace.impl.TupleImpl;
+
+/**
+ * Serves the channels of an {@link IDynamicAgenda} over TCP, speaking
+ * the {@link IConstants} command set in {@link Protocol} frames.
+ * <p>Sockets are non-blocking and shared among a few reactor threads,
+ * each with its own selector; the first also accepts. Reads are
+ * answered on the reactor that read them. Commands that may block on
+ * the disk or hold a channel lock for long (puts and takes, which wait
+ * for a durable channel's log, and create, decay, checkpoint, index and
+ * addvalue) are handed to a worker, which posts the response back to
+ * the reactor to write. A connection's requests are handled in the
+ * order they arrive: once one is with a worker, later ones queue behind
+ * it. Besides, <code>twait</code>
+ * and <code>rwait</code> park on the space's futures and are answered
+ * by whichever thread completes them, so a waiting request holds no
+ * thread, until they are answered or a <code>cancel</code> names their
+ * request id. A response echoes its request's id; responses to parked
+ * requests can overtake later ones. Each request gets exactly one
+ * response, so the mailbox commands <code>tpost</code> and
+ * <code>rpost</code>, which would answer twice, are refused as unknown.
+ * The one stream is a <code>subscribe</code>: its response is followed
+ * by a <code>matched</code> frame under its id for each tuple it
+ * matches, until a <code>cancel</code> names it; matches for a client
+ * that has stopped reading are dropped and counted, not buffered.
+ * A tuple taken for a connection that has since closed goes back
+ * into its channel. A connection that sends a frame that does not
+ * decode gets a last response with no request id, carrying the
+ * {@link IConstants#ERROR}, and is closed.</p>
+ * @author jackpark
+ */
+public class TupleSpaceServer implements IConstants {
+	private static final int BUFFER = 16 * 1024;
+	/**
+	 * How long an addvalue waits for its tuple, as a local agenda's does
+	 */
+	private static final long ADD_VALUE_WAIT = 10000;
+	/**
+	 * Output a connection may have waiting before its subscriptions
+	 * drop matches rather than buffer more
+	 */
+	private static final int MAX_PENDING = 4 * 1024 * 1024;
+	private static final Logger LOG = Logger.getLogger(TupleSpaceServer.class.getName());
+	private final IDynamicAgenda agenda;
+	private final InetSocketAddress address;
+	private final Reactor [] reactors;
+	/**
+	 * Runs the commands that may block, so no reactor does
+	 */
+	private ExecutorService workers;
+	private ServerSocketChannel server;
+	private int next = 0;
+	private volatile boolean running = false;
+
+	/**
+	 * @param agenda
+	 * @param address 0 as the port picks a free one
+	 * @param ioThreads how many reactors
+	 */
+	public TupleSpaceServer(IDynamicAgenda agenda, InetSocketAddress address, int ioThreads) {
+		this.agenda = agenda;
+		this.address = address;
+		this.reactors = new Reactor[Math.max(1, ioThreads)];
+	}
+
+	/**
+	 * One reactor per processor
+	 * @param agenda
+	 * @param port
+	 */
+	public TupleSpaceServer(IDynamicAgenda agenda, int port) {
+		this(agenda, new InetSocketAddress(port), Runtime.getRuntime().availableProcessors());
+	}
+
+	/**
+	 * Bind and start the reactors
+	 * @throws IOException
+	 */
+	public synchronized void start() throws IOException {
+		server = ServerSocketChannel.open();
+		server.setOption(StandardSocketOptions.SO_REUSEADDR, Boolean.TRUE);
+		server.bind(address, 4096);
+		server.configureBlocking(false);
+		for (int i = 0; i < reactors.length; i++)
+			reactors[i] = new Reactor(i);
+		server.register(reactors[0].selector, SelectionKey.OP_ACCEPT);
+		final AtomicInteger n = new AtomicInteger();
+		workers = Executors.newCachedThreadPool(new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "tuplespace-worker-"+n.getAndIncrement());
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		running = true;
+		for (int i = 0; i < reactors.length; i++)
+			reactors[i].start();
+	}
+
+	/**
+	 * @return the port bound, for when 0 was asked for
+	 */
+	public int getPort() {
+		return server.socket().getLocalPort();
+	}
+
+	/**
+	 * Close the listening socket and every connection
+	 */
+	public synchronized void stop() {
+		if (!running)
+			return;
+		running = false;
+		try {
+			server.close();
+		} catch (IOException e) {
+		}
+		for (int i = 0; i < reactors.length; i++)
+			reactors[i].selector.wakeup();
+		for (int i = 0; i < reactors.length; i++) {
+			try {
+				reactors[i].join();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+		workers.shutdown();
+	}
+
+	/**
+	 * Reactor 0 calls this when the server socket is ready
+	 */
+	private void accept() {
+		SocketChannel ch;
+		while (true) {
+			try {
+				ch = server.accept();
+				if (ch == null)
+					return;
+				ch.configureBlocking(false);
+				ch.setOption(StandardSocketOptions.TCP_NODELAY, Boolean.TRUE);
+			} catch (IOException e) {
+				// out of descriptors, or the peer already gone
+				return;
+			}
+			reactors[next].register(ch);
+			next = (next + 1) % reactors.length;
+		}
+	}
+
+	/**
+	 * @param command
+	 * @return <code>true</code> if the command may block on the disk,
+	 *  or hold a channel lock for long, so is handled by a worker
+	 */
+	private static boolean blocks(String command) {
+		return PUT.equals(command) || TAKE.equals(command) || TAKE_WAIT.equals(command) ||
+			CREATE.equals(command) || DECAY.equals(command) || CHECKPOINT.equals(command) ||
+			INDEX.equals(command) || ADD_VALUE.equals(command);
+	}
+
+	/**
+	 * Answer one request; runs on the connection's reactor, or on a
+	 * worker if it {@link #blocks(String)} or follows one that does
+	 */
+	void handle(Connection c, TupleImpl request, List<ITuple> body) {
+		String command = request.getCommand();
+		TupleImpl response = Protocol.header(command, request.getRequestId(), request.getSpace());
+		List<ITuple> result = Collections.<ITuple>emptyList();
+		try {
+			if (CREATE.equals(command)) {
+				create(request.getSpace(), Boolean.TRUE.equals(request.get(DURABLE)));
+				c.send(response, result);
+				return;
+			}
+			if ((DECAY.equals(command) || CHECKPOINT.equals(command)) && request.getSpace() == null) {
+				if (DECAY.equals(command))
+					agenda.decayAll(amount(request));
+				else
+					agenda.checkpointAll();
+				c.send(response, result);
+				return;
+			}
+			if (CANCEL.equals(command)) {
+				Object target = request.get(TARGET);
+				CompletableFuture<ITuple> f = (target == null) ? null : c.parked.get(target);
+				if (f != null)
+					f.cancel(false);
+				ISubscription s = (target == null) ? null : c.subscriptions.remove(target);
+				if (s != null)
+					s.cancel();
+				c.send(response, result);
+				return;
+			}
+			ITupleSpace space = (request.getSpace() == null) ? null : agenda.getChannel(request.getSpace());
+			if (space == null)
+				throw new IllegalArgumentException("No channel "+request.getSpace());
+			ITuple t;
+			if (PUT.equals(command)) {
+				if (body.size() == 1)
+					space.insert(body.get(0));
+				else
+					space.putAll(body);
+			} else if (TAKE.equals(command)) {
+				t = space.take(template(body), 0);
+				if (t != null)
+					result = Collections.singletonList(t);
+			} else if (READ.equals(command)) {
+				t = space.noWaitRead(template(body));
+				if (t != null)
+					result = Collections.singletonList(t);
+			} else if (TAKE_WAIT.equals(command) || READ_WAIT.equals(command)) {
+				park(c, space, request, response, body);
+				return;
+			} else if (COLLECT.equals(command)) {
+				Object limit = request.get(LIMIT);
+				result = space.collect(template(body),
+						(limit instanceof Integer) ? ((Integer)limit).intValue() : Integer.MAX_VALUE);
+			} else if (ADD_VALUE.equals(command)) {
+				addValue(c, space, amount(request), request, response, body);
+				return;
+			} else if (INDEX.equals(command)) {
+				Object field = request.get(FIELD);
+				if (!(field instanceof String))
+					throw new IllegalArgumentException("No field to index");
+				if (Boolean.TRUE.equals(request.get(BITMAP)))
+					agenda.addBitmapIndex(request.getSpace(), (String)field);
+				else
+					agenda.addSortedIndex(request.getSpace(), (String)field);
+			} else if (DECAY.equals(command)) {
+				space.decay(amount(request));
+			} else if (CHECKPOINT.equals(command)) {
+				space.checkpoint();
+			} else if (EXPLAIN.equals(command)) {
+				result = Protocol.planBody(space.explain(template(body)));
+			} else if (SUBSCRIBE.equals(command)) {
+				subscribe(c, space, request, template(body));
+			} else if (LIST.equals(command)) {
+				result = new ArrayList<ITuple>();
+				Iterator<ITuple> itr = space.tuples();
+				while (itr.hasNext())
+					result.add(itr.next());
+			} else
+				throw new IllegalArgumentException("Unknown command "+command);
+		} catch (RuntimeException e) {
+			response.set(ERROR, String.valueOf(e.getMessage()));
+			result = Collections.<ITuple>emptyList();
+		}
+		c.send(response, result);
+	}
+
+	/**
+	 * Create a channel unless it exists; reactors may race to create the same one
+	 */
+	private synchronized void create(String name, boolean durable) {
+		if (name == null)
+			throw new IllegalArgumentException("No channel name");
+		if (agenda.getChannel(name) == null)
+			agenda.createChannel(name, durable);
+	}
+
+	/**
+	 * Register a waiting take or read and answer it when its future completes
+	 */
+	private void park(final Connection c, final ITupleSpace space, TupleImpl request,
+			final TupleImpl response, List<ITuple> body) {
+		String command = request.getCommand();
+		final boolean take = TAKE_WAIT.equals(command);
+		Object wait = request.get(WAIT);
+		long t = (wait instanceof Long) ? ((Long)wait).longValue() : Long.MAX_VALUE;
+		ITemplate template = template(body);
+		final CompletableFuture<ITuple> f = take ? space.takeAsync(template, t) : space.readAsync(template, t);
+		final Object key = c.park(request, f);
+		f.whenComplete(new BiConsumer<ITuple, Throwable>() {
+			public void accept(ITuple result, Throwable ex) {
+				c.parked.remove(key, f);
+				List<ITuple> body = (result == null) ? Collections.<ITuple>emptyList() :
+					Collections.singletonList(result);
+				if (!c.send(response, body) && take && result != null)
+					space.insert(result);
+			}
+		});
+		if (c.closed)
+			f.cancel(false);
+	}
+
+	/**
+	 * Wait, without a thread, for a tuple to change the priority of
+	 */
+	private void addValue(final Connection c, final ITupleSpace space, final int howMuch,
+			TupleImpl request, final TupleImpl response, List<ITuple> body) {
+		final CompletableFuture<ITuple> f = space.readAsync(template(body), ADD_VALUE_WAIT);
+		final Object key = c.park(request, f);
+		f.whenComplete(new BiConsumer<ITuple, Throwable>() {
+			public void accept(ITuple t, Throwable ex) {
+				c.parked.remove(key, f);
+				if (t == null || !space.changePriority(t, t.getPriority() + howMuch))
+					response.set(ERROR, "Add Value missing tuple match");
+				c.send(response, Collections.<ITuple>emptyList());
+			}
+		});
+		if (c.closed)
+			f.cancel(false);
+	}
+
+	/**
+	 * Send each tuple inserted from now on that matches, under the
+	 * request's id, until cancelled or the connection closes
+	 */
+	private void subscribe(Connection c, ITupleSpace space, TupleImpl request, ITemplate template) {
+		String id = request.getRequestId();
+		if (id == null)
+			throw new IllegalArgumentException("A subscription needs a request id");
+		Subscriber listener = new Subscriber(c, id, request.getSpace());
+		listener.subscription = space.subscribe(template, listener);
+		ISubscription old = c.subscriptions.put(id, listener.subscription);
+		if (old != null)
+			old.cancel();
+		if (c.closed)
+			listener.subscription.cancel();
+	}
+
+	/**
+	 * Sends a subscription's matches to its connection; runs on the
+	 * space's delivery thread, one match at a time
+	 */
+	private static class Subscriber implements ITupleSpaceListener {
+		final Connection c;
+		final String id, channelName;
+		volatile ISubscription subscription;
+		/**
+		 * Matches dropped because the client was not reading
+		 */
+		private long lost = 0;
+
+		Subscriber(Connection c, String id, String channelName) {
+			this.c = c;
+			this.id = id;
+			this.channelName = channelName;
+		}
+
+		public void tupleInserted(ITuple tuple) {
+			if (c.pending() > MAX_PENDING) {
+				lost++;
+				return;
+			}
+			ISubscription s = subscription;
+			TupleImpl h = Protocol.header(MATCHED, id, channelName);
+			h.set(DROPPED, Long.valueOf(lost + ((s == null) ? 0 : s.getDroppedCount())));
+			if (!c.send(h, Collections.singletonList(tuple)) && s != null)
+				s.cancel();
+		}
+	}
+
+	private static int amount(TupleImpl request) {
+		Object n = request.get(AMOUNT);
+		if (!(n instanceof Integer))
+			throw new IllegalArgumentException("No amount");
+		return ((Integer)n).intValue();
+	}
+
+	/**
+	 * @param body the template, if any, and its constraint
+	 * @return the template, or one that matches everything
+	 * @throws IllegalArgumentException if the constraint is malformed
+	 */
+	private static ITemplate template(List<ITuple> body) {
+		return Protocol.template(body);
+	}
+
+	/**
+	 * A selector and the thread that runs it
+	 */
+	private class Reactor extends Thread {
+		final Selector selector;
+		/**
+		 * Work for this reactor from other threads
+		 */
+		final ConcurrentLinkedQueue<Runnable> tasks = new ConcurrentLinkedQueue<Runnable>();
+		/**
+		 * Every connection of this reactor reads into this, and keeps
+		 * only a partial frame left over in a buffer of its own
+		 */
+		final ByteBuffer input = ByteBuffer.allocate(BUFFER);
+
+		Reactor(int n) throws IOException {
+			super("tuplespace-io-"+n);
+			setDaemon(true);
+			selector = Selector.open();
+		}
+
+		void register(final SocketChannel ch) {
+			execute(new Runnable() {
+				public void run() {
+					try {
+						Connection c = new Connection(ch, Reactor.this);
+						c.key = ch.register(selector, SelectionKey.OP_READ, c);
+					} catch (IOException e) {
+						close(ch);
+					}
+				}
+			});
+		}
+
+		void execute(Runnable r) {
+			if (Thread.currentThread() == this)
+				r.run();
+			else {
+				tasks.add(r);
+				selector.wakeup();
+			}
+		}
+
+		public void run() {
+			try {
+				while (running) {
+					selector.select();
+					Runnable r;
+					while ((r = tasks.poll()) != null)
+						r.run();
+					Iterator<SelectionKey> itr = selector.selectedKeys().iterator();
+					SelectionKey k;
+					while (itr.hasNext()) {
+						k = itr.next();
+						itr.remove();
+						if (!k.isValid())
+							continue;
+						if (k.isAcceptable()) {
+							accept();
+							continue;
+						}
+						Connection c = (Connection)k.attachment();
+						if (k.isWritable())
+							c.flush();
+						if (k.isValid() && k.isReadable())
+							c.read();
+					}
+				}
+			} catch (IOException e) {
+				// the selector failed; this reactor's connections close
+				LOG.log(Level.SEVERE, getName()+" stopped", e);
+			} catch (ClosedSelectorException e) {
+			} finally {
+				Iterator<SelectionKey> itr = selector.keys().iterator();
+				Object a;
+				while (itr.hasNext()) {
+					a = itr.next().attachment();
+					if (a instanceof Connection)
+						((Connection)a).close();
+				}
+				try {
+					selector.close();
+				} catch (IOException e) {
+				}
+			}
+		}
+	}
+
+	private static void close(SocketChannel ch) {
+		try {
+			ch.close();
+		} catch (IOException e) {
+		}
+	}
+
+	/**
+	 * One client. Reads happen on the reactor; responses are framed by
+	 * whichever thread has them, under the connection's lock, and the
+	 * reactor writes them out, so responses that arrive together go out
+	 * in one write. An idle connection holds no buffers: input is read
+	 * into the reactor's buffer, and output is buffered only until it
+	 * is written.
+	 */
+	private class Connection {
+		final SocketChannel channel;
+		final Reactor reactor;
+		SelectionKey key;
+		/**
+		 * The start of a frame not yet read whole, or {@code null}
+		 */
+		private ByteBuffer in = null;
+		private final TupleCodec decoder = new TupleCodec();
+		/**
+		 * Guarded by this
+		 */
+		private final TupleCodec encoder = new TupleCodec();
+		/**
+		 * In write mode, or {@code null} if nothing is waiting to be
+		 * written; guarded by this
+		 */
+		private ByteBuffer out = null;
+		/**
+		 * Futures of parked requests by request id, or by themselves for
+		 * a request without one; cancelled on close
+		 */
+		final Map<Object, CompletableFuture<ITuple>> parked =
+			new ConcurrentHashMap<Object, CompletableFuture<ITuple>>();
+		/**
+		 * Subscriptions by request id, cancelled on close
+		 */
+		final Map<String, ISubscription> subscriptions = new ConcurrentHashMap<String, ISubscription>();
+		volatile boolean closed = false;
+		/**
+		 * Set by the reactor while it handles what it read, so those
+		 * responses are written together afterwards
+		 */
+		private boolean reading = false;
+		private final Runnable flusher = new Runnable() {
+			public void run() {
+				flush();
+			}
+		};
+		/**
+		 * Requests, each a header and its body, waiting for a worker;
+		 * guarded by this
+		 */
+		private final ArrayDeque<Object []> backlog = new ArrayDeque<Object []>();
+		/**
+		 * <code>true</code> while a worker has this connection's requests;
+		 * guarded by this
+		 */
+		private boolean working = false;
+		private final Runnable worker = new Runnable() {
+			public void run() {
+				work();
+			}
+		};
+
+		Connection(SocketChannel channel, Reactor reactor) {
+			this.channel = channel;
+			this.reactor = reactor;
+		}
+
+		/**
+		 * Keep a parked request's future, to cancel
+		 * @return its key in {@link #parked}
+		 */
+		Object park(TupleImpl request, CompletableFuture<ITuple> f) {
+			Object key = (request.getRequestId() == null) ? f : request.getRequestId();
+			parked.put(key, f);
+			return key;
+		}
+
+		/**
+		 * @return bytes framed and not yet written
+		 */
+		synchronized int pending() {
+			return (out == null) ? 0 : out.position();
+		}
+
+		/**
+		 * Frame a response and see that it is written
+		 * @return <code>false</code> if the connection has closed
+		 */
+		boolean send(TupleImpl header, List<ITuple> body) {
+			boolean first;
+			synchronized (this) {
+				if (closed)
+					return false;
+				first = out == null;
+				if (first)
+					out = ByteBuffer.allocate(BUFFER);
+				try {
+					out = Protocol.writeFrame(encoder, header, body, out);
+				} catch (IllegalArgumentException e) {
+					TupleImpl h = Protocol.header(header.getCommand(), header.getRequestId(), header.getSpace());
+					h.set(ERROR, e.getMessage());
+					out = Protocol.writeFrame(encoder, h, Collections.<ITuple>emptyList(), out);
+				}
+			}
+			// later responses ride along with the first
+			if (first && !(reading && Thread.currentThread() == reactor))
+				reactor.execute(flusher);
+			return true;
+		}
+
+		/**
+		 * On the reactor: write what is buffered, and ask to hear
+		 * when more can be written if the socket is full
+		 */
+		void flush() {
+			try {
+				synchronized (this) {
+					if (closed || out == null)
+						return;
+					out.flip();
+					channel.write(out);
+					if (out.hasRemaining()) {
+						out.compact();
+						key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+					} else {
+						out = null;
+						key.interestOps(SelectionKey.OP_READ);
+					}
+				}
+			} catch (IOException e) {
+				close();
+			}
+		}
+
+		/**
+		 * On the reactor: read and handle every complete frame
+		 */
+		void read() {
+			try {
+				ByteBuffer buf = in;
+				if (buf == null) {
+					buf = reactor.input;
+					buf.clear();
+				}
+				if (channel.read(buf) < 0) {
+					close();
+					return;
+				}
+				buf.flip();
+				ByteBuffer frame;
+				List<ITuple> body;
+				TupleImpl request;
+				reading = true;
+				try {
+					while (!closed && (frame = Protocol.nextFrame(buf)) != null) {
+						body = new ArrayList<ITuple>();
+						request = Protocol.readFrame(decoder, frame, body);
+						if (!queue(request, body))
+							handle(this, request, body);
+					}
+				} catch (IOException e) {
+					reject(e);
+					return;
+				} finally {
+					reading = false;
+				}
+				flush();
+				// frames were decoded, so only a partial one is kept
+				if (!buf.hasRemaining()) {
+					in = null;
+					return;
+				}
+				int need = Math.max(Protocol.frameSize(buf), BUFFER);
+				if (buf == in && need <= in.capacity())
+					in.compact();
+				else {
+					ByteBuffer b = ByteBuffer.allocate(need);
+					b.put(buf);
+					in = b;
+				}
+			} catch (IOException e) {
+				close();
+			}
+		}
+
+		/**
+		 * On the reactor: hand a request to a worker if it may block,
+		 * or if a worker still has earlier ones
+		 * @return <code>false</code> if the reactor should handle it
+		 */
+		private boolean queue(TupleImpl request, List<ITuple> body) {
+			synchronized (this) {
+				if (!working && !blocks(request.getCommand()))
+					return false;
+				backlog.add(new Object [] {request, body});
+				if (working)
+					return true;
+				working = true;
+			}
+			workers.execute(worker);
+			return true;
+		}
+
+		/**
+		 * On a worker: handle the backlog in order
+		 */
+		@SuppressWarnings("unchecked")
+		private void work() {
+			Object [] next;
+			while (true) {
+				synchronized (this) {
+					next = backlog.poll();
+					if (next == null) {
+						working = false;
+						return;
+					}
+				}
+				handle(this, (TupleImpl)next[0], (List<ITuple>)next[1]);
+			}
+		}
+
+		/**
+		 * On the reactor: the client sent something that is not a frame;
+		 * tell it why, without a request id, and hang up
+		 */
+		void reject(IOException e) {
+			TupleImpl h = Protocol.header(null, null, null);
+			h.set(ERROR, String.valueOf(e.getMessage()));
+			synchronized (this) {
+				if (!closed)
+					out = Protocol.writeFrame(encoder, h, Collections.<ITuple>emptyList(),
+							(out == null) ? ByteBuffer.allocate(BUFFER) : out);
+			}
+			flush();
+			close();
+		}
+
+		void close() {
+			synchronized (this) {
+				if (closed)
+					return;
+				closed = true;
+			}
+			if (key != null)
+				key.cancel();
+			TupleSpaceServer.close(channel);
+			Iterator<CompletableFuture<ITuple>> itr = parked.values().iterator();
+			while (itr.hasNext())
+				itr.next().cancel(false);
+			Iterator<ISubscription> subs = subscriptions.values().iterator();
+			while (subs.hasNext())
+				subs.next().cancel();
+		}
+	}
+}
@@ -0,0 +1,145 @@
+/**
+ *
+ */
+package org.topicquests.tuplespace.test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import org.topicquests.tuplespace.DynamicAgenda;
+import org.topicquests.tuplespace.api.IDynamicAgenda;
+import org.topicquests.tuplespace.api.ILogicElement;
+import org.topicquests.tuplespace.api.IQueryPlan;
+import org.topicquests.tuplespace.api.ITemplate;
+import org.topicquests.tuplespace.api.ITuple;
+import org.topicquests.tuplespace.impl.LogicElementImpl;
+
+/**
+ * Checkpoints: taken while the channel serves writes, loaded on
+ * restart with only the log tail replayed
+ */
+public class EighteenthTest extends BaseTest {
+	private static final int TUPLES = 20000, DURING = 2000;
+	private final String durable = "Checkpointed";
+
+	/**
+	 *
+	 */
+	public EighteenthTest() {
+		File dir;
+		try {
+			dir = Files.createTempDirectory("tuplespace").toFile();
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+		final IDynamicAgenda first = new DynamicAgenda(dir);
+		first.createChannel(durable, true);
+		first.addSortedIndex(durable, FLD_2);
+		List<ITuple> batch = new ArrayList<ITuple>();
+		for (int i = 0; i < TUPLES; i++) {
+			Map<String, Object> p = TupleUtil.newProperties();
+			p.put(FLD_1, (i % 2 == 0) ? VAL_1 : VAL_2);
+			p.put(FLD_2, i);
+			batch.add(TupleUtil.createTuple(durable, i % 1000, p));
+			if (batch.size() == 1000) {
+				first.putAll(durable, batch);
+				batch.clear();
+			}
+		}
+		// the snapshot is read without the lock: puts, takes and decays
+		// it overlaps must replay over it to the same listing
+		Map<String, Object> odd = TupleUtil.newProperties();
+		odd.put(FLD_1, VAL_2);
+		final ITemplate ox = TupleUtil.createTemplate(odd);
+		ox.compile();
+		Thread writer = new Thread() {
+			public void run() {
+				for (int i = 0; i < DURING; i++) {
+					Map<String, Object> q = TupleUtil.newProperties();
+					q.put(FLD_3, "during-"+i);
+					first.put(durable, TupleUtil.createTuple(durable, -1, q));
+					if (i % 10 == 0)
+						first.take(durable, ox, 0);
+					if (i % 100 == 0)
+						first.decayAll(1);
+				}
+			}
+		};
+		writer.start();
+		long start = System.currentTimeMillis();
+		first.checkpointAll();
+		System.out.println("CHECKPOINT IN "+(System.currentTimeMillis() - start));
+		try {
+			writer.join(60000);
+		} catch (InterruptedException e) {
+			throw new RuntimeException(e);
+		}
+		// the log tail
+		Map<String, Object> p = TupleUtil.newProperties();
+		p.put(FLD_1, VAL_1);
+		ITemplate tx = TupleUtil.createTemplate(p);
+		tx.compile();
+		if (first.take(durable, tx, 0).getPriority() != 998 - DURING / 100)
+			throw new RuntimeException("EighteenthTest take");
+		first.decayAll(5);
+		List<String> before = listing(first);
+		first.shutDown();
+		String [] files = dir.list();
+		if (files.length != 2)
+			throw new RuntimeException("EighteenthTest segments left "+files.length);
+		IDynamicAgenda second = new DynamicAgenda(dir);
+		start = System.currentTimeMillis();
+		second.createChannel(durable, true);
+		System.out.println("RESTORED "+before.size()+" IN "+(System.currentTimeMillis() - start));
+		if (!before.equals(listing(second)))
+			throw new RuntimeException("EighteenthTest restored "+listing(second).size()+" of "+before.size());
+		ILogicElement lt = new LogicElementImpl();
+		lt.isLessThanType();
+		lt.setFieldName(FLD_2);
+		lt.setLiteral(100);
+		ITemplate rx = second.newTemplate();
+		rx.setConstraint(lt);
+		if (!IQueryPlan.RANGE.equals(second.explain(durable, rx).getAccessPath()))
+			throw new RuntimeException("EighteenthTest sorted index not restored");
+		second.shutDown();
+		// periodic checkpoints
+		IDynamicAgenda third = new DynamicAgenda(dir, 50);
+		third.createChannel(durable, true);
+		File ckpt = new File(dir, durable+".ckpt");
+		long length = ckpt.length();
+		for (int i = 0; i < 100; i++) {
+			p = TupleUtil.newProperties();
+			p.put(FLD_3, "later-"+i);
+			third.put(durable, TupleUtil.createTuple(durable, 1, p));
+		}
+		try {
+			Thread.sleep(500);
+		} catch (InterruptedException e) {
+			throw new RuntimeException(e);
+		}
+		third.shutDown();
+		if (ckpt.length() <= length)
+			throw new RuntimeException("EighteenthTest no periodic checkpoint");
+		File [] all = dir.listFiles();
+		for (int i = 0; i < all.length; i++)
+			all[i].delete();
+		dir.delete();
+	}
+
+	private List<String> listing(IDynamicAgenda a) {
+		List<String> result = new ArrayList<String>();
+		Iterator<ITuple> itr = a.listTuples(durable);
+		ITuple t;
+		while (itr.hasNext()) {
+			t = itr.next();
+			result.add(t.get(FLD_2)+"@"+t.getPriority()+":"+t.get(FLD_3));
+		}
+		return result;
+	}
+
+}
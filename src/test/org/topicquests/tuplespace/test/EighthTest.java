@@ -0,0 +1,89 @@
+/**
+ *
+ */
+package org.topicquests.tuplespace.test;
+
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.topicquests.tuplespace.api.ITemplate;
+import org.topicquests.tuplespace.api.ITuple;
+
+/**
+ * Concurrent producers, takers and readers on one channel:
+ * every tuple is taken exactly once
+ */
+public class EighthTest extends BaseTest {
+	private static final int PRODUCERS = 4, TAKERS = 4, READERS = 4, EACH = 500;
+	private final Set<String> taken = ConcurrentHashMap.newKeySet();
+	private final AtomicInteger duplicates = new AtomicInteger();
+	private final AtomicInteger reads = new AtomicInteger();
+	private volatile boolean done = false;
+
+	/**
+	 *
+	 */
+	public EighthTest() {
+		Map<String, Object> p = TupleUtil.newProperties();
+		p.put(FLD_1, VAL_1);
+		final ITemplate tx = TupleUtil.createTemplate(p);
+		tx.compile();
+		Thread [] threads = new Thread[PRODUCERS + TAKERS + READERS];
+		int n = 0;
+		for (int i = 0; i < PRODUCERS; i++) {
+			final int id = i;
+			threads[n++] = new Thread() {
+				public void run() {
+					for (int j = 0; j < EACH; j++) {
+						Map<String, Object> q = TupleUtil.newProperties();
+						q.put(FLD_1, VAL_1);
+						q.put(FLD_2, id+"-"+j);
+						agenda.put(name, TupleUtil.createTuple(name, j % 7, q));
+					}
+				}
+			};
+		}
+		for (int i = 0; i < TAKERS; i++) {
+			threads[n++] = new Thread() {
+				public void run() {
+					ITuple t;
+					while (taken.size() < PRODUCERS * EACH) {
+						t = agenda.take(name, tx, 50);
+						if (t != null && !taken.add((String)t.get(FLD_2)))
+							duplicates.incrementAndGet();
+					}
+					done = true;
+				}
+			};
+		}
+		for (int i = 0; i < READERS; i++) {
+			threads[n++] = new Thread() {
+				public void run() {
+					while (!done) {
+						channel.collect(tx);
+						if (channel.noWaitRead(tx) != null)
+							reads.incrementAndGet();
+					}
+				}
+			};
+		}
+		long start = System.currentTimeMillis();
+		for (int i = 0; i < threads.length; i++)
+			threads[i].start();
+		try {
+			for (int i = 0; i < threads.length; i++)
+				threads[i].join(30000);
+		} catch (InterruptedException e) {
+			throw new RuntimeException(e);
+		}
+		System.out.println("CONCURRENT TAKEN "+taken.size()+" DUPLICATES "+duplicates.get()+
+				" READS "+reads.get()+" IN "+(System.currentTimeMillis() - start));
+		if (taken.size() != PRODUCERS * EACH || duplicates.get() != 0)
+			throw new RuntimeException("EighthTest lost or duplicated tuples");
+		if (channel.noWaitRead(tx) != null)
+			throw new RuntimeException("EighthTest channel not drained");
+	}
+
+}
@@ -0,0 +1,91 @@
+/**
+ *
+ */
+package org.topicquests.tuplespace.test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.topicquests.tuplespace.api.ILogicElement;
+import org.topicquests.tuplespace.api.ITemplate;
+import org.topicquests.tuplespace.api.ITuple;
+import org.topicquests.tuplespace.impl.LogicElementImpl;
+
+/**
+ * Many standing templates: an insert reaches only the waiters
+ * that can match it, still in arrival order
+ */
+public class EleventhTest extends BaseTest {
+	private static final int WAITERS = 5000, INSERTS = 2000;
+
+	/**
+	 *
+	 */
+	public EleventhTest() {
+		// residual: no EQUALS at the top, so the network cannot file it
+		ILogicElement or = new LogicElementImpl();
+		or.isOrType();
+		or.addElement(equalsElement(FLD_3, VAL_1));
+		or.addElement(equalsElement(FLD_3, VAL_2));
+		ITemplate rx = agenda.newTemplate();
+		rx.setConstraint(or);
+		CompletableFuture<ITuple> residual = agenda.takeAsync(name, rx, 60000);
+		Map<String, Object> p = TupleUtil.newProperties();
+		p.put(FLD_3, VAL_1);
+		ITemplate fx = TupleUtil.createTemplate(p);
+		fx.compile();
+		CompletableFuture<ITuple> filed = agenda.takeAsync(name, fx, 60000);
+		List<CompletableFuture<ITuple>> pending = new ArrayList<CompletableFuture<ITuple>>();
+		for (int i = 0; i < WAITERS; i++) {
+			p = TupleUtil.newProperties();
+			p.put(FLD_1, VAL_1);
+			p.put(FLD_2, Integer.toString(i));
+			ITemplate tx = TupleUtil.createTemplate(p);
+			tx.compile();
+			pending.add(agenda.readAsync(name, tx, 60000));
+		}
+		long start = System.currentTimeMillis();
+		for (int i = 0; i < INSERTS; i++) {
+			p = TupleUtil.newProperties();
+			p.put(FLD_1, VAL_1);
+			p.put(FLD_2, Integer.toString(i));
+			agenda.put(name, TupleUtil.createTuple(name, i, p));
+		}
+		System.out.println("NETWORK "+INSERTS+" INSERTS OVER "+WAITERS+" WAITERS IN "+
+				(System.currentTimeMillis() - start));
+		try {
+			for (int i = 0; i < WAITERS; i++) {
+				if (pending.get(i).isDone() != (i < INSERTS))
+					throw new RuntimeException("EleventhTest waiter "+i+" done "+pending.get(i).isDone());
+				if (i < INSERTS && !Integer.toString(i).equals(pending.get(i).get().get(FLD_2)))
+					throw new RuntimeException("EleventhTest waiter "+i+" got the wrong tuple");
+			}
+			if (residual.isDone() || filed.isDone())
+				throw new RuntimeException("EleventhTest unrelated waiter woken");
+			// both match; the residual taker arrived first
+			p = TupleUtil.newProperties();
+			p.put(FLD_3, VAL_1);
+			agenda.put(name, TupleUtil.createTuple(name, 1, p));
+			if (residual.get(1, TimeUnit.SECONDS) == null || filed.isDone())
+				throw new RuntimeException("EleventhTest arrival order not kept");
+			agenda.put(name, TupleUtil.createTuple(name, 2, p));
+			if (filed.get(1, TimeUnit.SECONDS) == null)
+				throw new RuntimeException("EleventhTest filed taker missed");
+		} catch (Exception e) {
+			throw new RuntimeException(e);
+		}
+		for (int i = INSERTS; i < WAITERS; i++)
+			pending.get(i).cancel(true);
+	}
+
+	ILogicElement equalsElement(String field, Object value) {
+		ILogicElement result = new LogicElementImpl();
+		result.isEqualsType();
+		result.setFieldName(field);
+		result.setLiteral(value);
+		return result;
+	}
+}
@@ -0,0 +1,72 @@
+/**
+ *
+ */
+package org.topicquests.tuplespace.test;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import org.topicquests.tuplespace.api.ILogicElement;
+import org.topicquests.tuplespace.api.ITemplate;
+import org.topicquests.tuplespace.api.ITuple;
+import org.topicquests.tuplespace.impl.LogicElementImpl;
+
+/**
+ * A collect over a large channel runs on the fork/join pool
+ * and returns what a sequential scan would, in priority order
+ */
+public class FifteenthTest extends BaseTest {
+	private static final int SIZE = 200000;
+
+	/**
+	 *
+	 */
+	public FifteenthTest() {
+		List<ITuple> batch = new ArrayList<ITuple>(SIZE);
+		for (int i = 0; i < SIZE; i++) {
+			Map<String, Object> p = TupleUtil.newProperties();
+			p.put(FLD_1, (i % 3 == 0) ? VAL_1 : VAL_2);
+			p.put(FLD_2, i % 1000);
+			batch.add(TupleUtil.createTuple(name, i % 5000, p));
+		}
+		agenda.putAll(name, batch);
+		// no index can drive an OR, so collect scans every tuple
+		ILogicElement or = new LogicElementImpl();
+		or.isOrType();
+		or.addElement(compare(FLD_2, 10, true));
+		or.addElement(compare(FLD_2, 990, false));
+		ITemplate tx = agenda.newTemplate();
+		tx.setConstraint(or);
+		long start = System.currentTimeMillis();
+		List<ITuple> hits = channel.collect(tx);
+		System.out.println("PARALLEL COLLECT "+hits.size()+" IN "+(System.currentTimeMillis() - start));
+		int expected = 0;
+		Iterator<ITuple> itr = agenda.listTuples(name);
+		while (itr.hasNext())
+			if (or.eval(itr.next()))
+				expected++;
+		if (hits.size() != expected || expected != 3800)
+			throw new RuntimeException("FifteenthTest parallel collect "+hits.size()+" expected "+expected);
+		for (int i = 1; i < hits.size(); i++)
+			if (hits.get(i).getPriority() > hits.get(i - 1).getPriority())
+				throw new RuntimeException("FifteenthTest parallel hits out of order at "+i);
+		// a small limit stops a sequential scan early instead
+		List<ITuple> top = channel.collect(tx, 10);
+		for (int i = 0; i < top.size(); i++)
+			if (top.get(i) != hits.get(i))
+				throw new RuntimeException("FifteenthTest top-k differs at "+i);
+	}
+
+	ILogicElement compare(String field, Object value, boolean less) {
+		ILogicElement result = new LogicElementImpl();
+		if (less)
+			result.isLessThanType();
+		else
+			result.isGreaterThanType();
+		result.setFieldName(field);
+		result.setLiteral(value);
+		return result;
+	}
+}
@@ -0,0 +1,62 @@
+/**
+ *
+ */
+package org.topicquests.tuplespace.test;
+
+import java.util.Iterator;
+import java.util.Map;
+
+import org.topicquests.tuplespace.api.ITemplate;
+import org.topicquests.tuplespace.api.ITuple;
+
+/**
+ * Priority handling: equal priorities, priority changes
+ */
+public class FifthTest extends BaseTest {
+
+	/**
+	 *
+	 */
+	public FifthTest() {
+		// equal priorities must all be kept, first in first out
+		for (int i = 0; i < 5; i++) {
+			Map<String, Object> p = TupleUtil.newProperties();
+			p.put(FLD_1, Integer.toString(i));
+			agenda.put(name, TupleUtil.createTuple(name, 10, p));
+		}
+		if (count() != 5)
+			throw new RuntimeException("FifthTest lost equal priority tuples "+count());
+		Map<String, Object> p = TupleUtil.newProperties();
+		ITemplate any = TupleUtil.createTemplate(p);
+		any.compile();
+		ITuple first = agenda.read(name, any, 0);
+		if (!"0".equals(first.get(FLD_1)))
+			throw new RuntimeException("FifthTest not FIFO among equals "+first.get(FLD_1));
+		// bump the last one over the others
+		p = TupleUtil.newProperties();
+		p.put(FLD_1, "4");
+		ITemplate tx = TupleUtil.createTemplate(p);
+		tx.compile();
+		agenda.addValue(name, tx, 5);
+		first = agenda.read(name, any, 0);
+		System.out.println("FIRST "+first.get(FLD_1)+" "+first.getPriority());
+		if (!"4".equals(first.get(FLD_1)) || first.getPriority() != 15)
+			throw new RuntimeException("FifthTest addValue did not reorder");
+		agenda.decayAll(3);
+		first = agenda.take(name, any, 0);
+		if (first.getPriority() != 12)
+			throw new RuntimeException("FifthTest decay "+first.getPriority());
+		if (count() != 4)
+			throw new RuntimeException("FifthTest take left "+count());
+	}
+
+	int count() {
+		int result = 0;
+		Iterator<ITuple> itr = agenda.listTuples(name);
+		while (itr.hasNext()) {
+			itr.next();
+			result++;
+		}
+		return result;
+	}
+}
@@ -0,0 +1,152 @@
+/**
+ *
+ */
+package org.topicquests.tuplespace.test;
+
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import org.topicquests.tuplespace.api.ILogicElement;
+import org.topicquests.tuplespace.api.IQueryPlan;
+import org.topicquests.tuplespace.api.ITemplate;
+import org.topicquests.tuplespace.api.ITuple;
+import org.topicquests.tuplespace.impl.LogicElementImpl;
+
+/**
+ * Bitmap indexes: boolean templates over low-cardinality fields
+ * answered bitwise, and kept current as slots are recycled
+ */
+public class FourteenthTest extends BaseTest {
+	private static final String STATE = "state", KIND = "kind";
+	private static final String [] STATES = {"open", "closed", "pending"};
+	private static final String [] KINDS = {"a", "b", "c"};
+
+	/**
+	 *
+	 */
+	public FourteenthTest() {
+		for (int i = 0; i < 10000; i++)
+			agenda.put(name, tuple(i));
+		agenda.addBitmapIndex(name, STATE);
+		agenda.addBitmapIndex(name, KIND);
+		// (state = failed OR state = stuck) AND NOT (kind = a): rare, so bitmaps beat a scan
+		ILogicElement or = new LogicElementImpl();
+		or.isOrType();
+		or.addElement(equalsElement(STATE, "failed"));
+		or.addElement(equalsElement(STATE, "stuck"));
+		ILogicElement not = new LogicElementImpl();
+		not.isNotType();
+		not.addElement(equalsElement(KIND, "a"));
+		ILogicElement and = new LogicElementImpl();
+		and.isAndType();
+		and.addElement(or);
+		and.addElement(not);
+		ITemplate tx = agenda.newTemplate();
+		tx.setConstraint(and);
+		IQueryPlan plan = agenda.explain(name, tx);
+		System.out.println("PLAN "+plan);
+		if (!IQueryPlan.BITMAP.equals(plan.getAccessPath()))
+			throw new RuntimeException("FourteenthTest boolean template not on bitmaps "+plan);
+		check(and, tx);
+		ITuple best = agenda.read(name, tx, 0);
+		if (best == null || !and.eval(best) || best.getPriority() != 9800)
+			throw new RuntimeException("FourteenthTest best bitmap match "+best);
+		// take, and refill into the recycled slots
+		List<ITuple> taken = agenda.takeN(name, tx, 20, 0);
+		if (taken.size() != 20 || taken.get(0).getPriority() != 9800)
+			throw new RuntimeException("FourteenthTest bitmap takeN "+taken.size());
+		for (int i = 10000; i < 12000; i++)
+			agenda.put(name, tuple(i));
+		check(and, tx);
+		// partly covered: the bitmaps narrow, the rest is matched
+		ILogicElement lt = new LogicElementImpl();
+		lt.isLessThanType();
+		lt.setFieldName(FLD_2);
+		lt.setLiteral(100);
+		ILogicElement mixed = new LogicElementImpl();
+		mixed.isAndType();
+		mixed.addElement(not);
+		mixed.addElement(lt);
+		ITemplate mx = agenda.newTemplate();
+		mx.setConstraint(mixed);
+		System.out.println("PLAN "+agenda.explain(name, mx));
+		check(mixed, mx);
+		concurrent(and, tx);
+	}
+
+	/**
+	 * Bitmap reads take no lock: while a writer takes matches and
+	 * recycles their slots, readers still see only matching tuples
+	 */
+	void concurrent(final ILogicElement el, final ITemplate tx) {
+		final boolean [] done = new boolean[1];
+		final RuntimeException [] failed = new RuntimeException[1];
+		Thread writer = new Thread() {
+			public void run() {
+				// tuple(100 * k) is failed, and not kind a unless k % 3 == 0
+				for (int k = 120; k < 20120; k++) {
+					if (k % 3 == 0)
+						continue;
+					agenda.take(name, tx, 0);
+					agenda.put(name, tuple(100 * k));
+				}
+				done[0] = true;
+			}
+		};
+		writer.start();
+		int reads = 0;
+		ITuple t;
+		List<ITuple> hits;
+		while (!done[0] && failed[0] == null) {
+			t = agenda.read(name, tx, 0);
+			if (t != null && !el.eval(t))
+				failed[0] = new RuntimeException("FourteenthTest concurrent read "+t);
+			hits = channel.collect(tx);
+			for (int i = 0; i < hits.size(); i++)
+				if (!el.eval(hits.get(i)))
+					failed[0] = new RuntimeException("FourteenthTest concurrent collect "+hits.get(i));
+			reads++;
+		}
+		try {
+			writer.join();
+		} catch (InterruptedException e) {
+			throw new RuntimeException(e);
+		}
+		System.out.println("CONCURRENT BITMAP READS "+reads);
+		if (failed[0] != null)
+			throw failed[0];
+		check(el, tx);
+	}
+
+	void check(ILogicElement el, ITemplate tx) {
+		int expected = 0;
+		Iterator<ITuple> itr = agenda.listTuples(name);
+		while (itr.hasNext())
+			if (el.eval(itr.next()))
+				expected++;
+		List<ITuple> hits = channel.collect(tx);
+		System.out.println("BITMAP HITS "+hits.size()+" EVAL "+expected);
+		if (hits.size() != expected || expected == 0)
+			throw new RuntimeException("FourteenthTest bitmap and eval disagree "+hits.size()+" "+expected);
+		for (int i = 1; i < hits.size(); i++)
+			if (hits.get(i).getPriority() > hits.get(i - 1).getPriority())
+				throw new RuntimeException("FourteenthTest hits out of order");
+	}
+
+	ITuple tuple(int i) {
+		Map<String, Object> p = TupleUtil.newProperties();
+		p.put(STATE, (i % 100 == 0) ? "failed" : STATES[i % STATES.length]);
+		p.put(KIND, KINDS[(i / 4) % KINDS.length]);
+		p.put(FLD_2, i % 1000);
+		return TupleUtil.createTuple(name, i, p);
+	}
+
+	ILogicElement equalsElement(String field, Object value) {
+		ILogicElement result = new LogicElementImpl();
+		result.isEqualsType();
+		result.setFieldName(field);
+		result.setLiteral(value);
+		return result;
+	}
+}
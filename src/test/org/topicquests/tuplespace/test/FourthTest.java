@@ -0,0 +1,101 @@
+/**
+ *
+ */
+package org.topicquests.tuplespace.test;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+
+import org.topicquests.tuplespace.api.ITemplate;
+import org.topicquests.tuplespace.api.ITuple;
+
+/**
+ * Indexed matching: EQUALS templates answered from the field index
+ */
+public class FourthTest extends BaseTest {
+
+	/**
+	 *
+	 */
+	public FourthTest() {
+		for (int i = 0; i < 100; i++) {
+			Map<String, Object> p = TupleUtil.newProperties();
+			p.put(FLD_1, (i % 2 == 0) ? VAL_1 : VAL_2);
+			p.put(FLD_2, Integer.toString(i % 10));
+			agenda.put(name, TupleUtil.createTuple(name, i, p));
+		}
+		Map<String, Object> p = TupleUtil.newProperties();
+		p.put(FLD_1, VAL_1);
+		p.put(FLD_2, "4");
+		ITemplate tx = TupleUtil.createTemplate(p);
+		tx.compile();
+		List<ITuple> hits = channel.collect(tx);
+		System.out.println("COLLECTED "+hits.size());
+		if (hits.size() != 10)
+			throw new RuntimeException("FourthTest expected 10 hits, got "+hits.size());
+		if (hits.get(0).getPriority() != 94)
+			throw new RuntimeException("FourthTest collect out of order "+hits.get(0).getPriority());
+		ITuple mx = agenda.take(name, tx, 1000);
+		System.out.println("TOOK "+mx.getPriority());
+		if (mx.getPriority() != 94)
+			throw new RuntimeException("FourthTest take missed highest priority "+mx.getPriority());
+		mx = agenda.take(name, tx, 1000);
+		if (mx.getPriority() != 84)
+			throw new RuntimeException("FourthTest second take "+mx.getPriority());
+		p = TupleUtil.newProperties();
+		p.put(FLD_1, VAL_1);
+		p.put(FLD_2, "5");
+		tx = TupleUtil.createTemplate(p);
+		tx.compile();
+		if (channel.noWaitRead(tx) != null)
+			throw new RuntimeException("FourthTest matched disjoint postings");
+		// reads share the stored, frozen instance; copies are writable
+		p = TupleUtil.newProperties();
+		p.put(FLD_2, "3");
+		tx = TupleUtil.createTemplate(p);
+		tx.compile();
+		mx = channel.noWaitRead(tx);
+		if (!mx.isFrozen() || mx != channel.noWaitRead(tx))
+			throw new RuntimeException("FourthTest read did not share frozen tuple");
+		ITuple cp = mx.copy();
+		cp.set(FLD_2, "33");
+		if (!"3".equals(mx.get(FLD_2)) || !"33".equals(cp.get(FLD_2)))
+			throw new RuntimeException("FourthTest copy wrote through");
+		try {
+			mx.set(FLD_2, "x");
+			throw new RuntimeException("FourthTest frozen tuple accepted set");
+		} catch (IllegalStateException e) { }
+		// a taken tuple is the taker's own: change it and put it back
+		ITuple taken = agenda.take(name, tx, 0);
+		if (taken.isFrozen() || taken.getPriority() != mx.getPriority())
+			throw new RuntimeException("FourthTest taken tuple frozen or reprioritized");
+		taken.set(FLD_2, "333");
+		agenda.put(name, taken);
+		p = TupleUtil.newProperties();
+		p.put(FLD_2, "333");
+		ITemplate back = TupleUtil.createTemplate(p);
+		back.compile();
+		ITuple again = channel.noWaitRead(back);
+		if (again == null || !again.isFrozen() || again.getPriority() != mx.getPriority())
+			throw new RuntimeException("FourthTest put back "+again);
+		// the caller's tuple stays its own once put
+		if (taken.isFrozen() || taken == again)
+			throw new RuntimeException("FourthTest put froze the caller's tuple");
+		taken.set(FLD_3, VAL_3);
+		// so is one a waiting take is handed
+		p = TupleUtil.newProperties();
+		p.put(FLD_2, "4444");
+		tx = TupleUtil.createTemplate(p);
+		tx.compile();
+		CompletableFuture<ITuple> waiting = agenda.takeAsync(name, tx, 5000);
+		if (waiting.isDone())
+			throw new RuntimeException("FourthTest take did not wait");
+		agenda.put(name, TupleUtil.createTuple(name, 500, p));
+		taken = waiting.join();
+		if (taken == null || taken.isFrozen())
+			throw new RuntimeException("FourthTest waiting take got "+taken);
+		taken.set(FLD_2, "333");
+	}
+
+}
@@ -0,0 +1,181 @@
+/**
+ *
+ */
+package org.topicquests.tuplespace.test;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.sql.Timestamp;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Map;
+
+import org.topicquests.tuplespace.api.ITuple;
+import org.topicquests.tuplespace.impl.TupleCodec;
+import org.topicquests.tuplespace.impl.TupleCodecException;
+import org.topicquests.tuplespace.impl.TupleImpl;
+
+/**
+ * Binary tuple codec: round trips every value type and header, is
+ * much smaller and faster than the XML form, and refuses to define
+ * more names than a decoder accepts
+ */
+public class NineteenthTest extends BaseTest {
+	private static final int N = 20000;
+
+	/**
+	 *
+	 */
+	public NineteenthTest() {
+		Map<String, Object> p = TupleUtil.newProperties();
+		p.put(FLD_1, VAL_1);
+		p.put(FLD_2, -42);
+		p.put(FLD_3, Long.MAX_VALUE);
+		p.put("double", 2.5d);
+		p.put("float", -1.25f);
+		p.put("flag", Boolean.TRUE);
+		p.put("bytes", new byte[] {1, 2, 3});
+		p.put("text", "na\u00efve \u2603");
+		TupleImpl t = (TupleImpl)TupleUtil.createTuple(name, -7, p);
+		t.set("none", null);
+		t.setID("id-1");
+		t.setSpace(name);
+		t.setCommand("put");
+		t.setRequestId("r-9");
+		t.setCreated(new Timestamp(1234567890123L));
+		TupleCodec out = new TupleCodec(), in = new TupleCodec();
+		ByteBuffer buf = ByteBuffer.allocateDirect(1024);
+		out.encode(t, buf);
+		int first = buf.position();
+		out.encode(t, buf);
+		int second = buf.position() - first;
+		buf.flip();
+		check(t, in.decode(buf));
+		check(t, in.decode(buf));
+		System.out.println("CODEC FIRST "+first+" THEN "+second+" XML "+
+				t.toString().getBytes(StandardCharsets.UTF_8).length);
+		if (second >= first)
+			throw new RuntimeException("NineteenthTest field names not from the dictionary");
+		// overflow leaves the dictionary as it was
+		TupleCodec small = new TupleCodec();
+		try {
+			small.encode(t, ByteBuffer.allocate(20));
+			throw new RuntimeException("NineteenthTest overflow not reported");
+		} catch (java.nio.BufferOverflowException e) { }
+		buf = ByteBuffer.allocate(1024);
+		small.encode(t, buf);
+		buf.flip();
+		check(t, new TupleCodec().decode(buf));
+		compare();
+		hostile();
+		names();
+	}
+
+	/**
+	 * A stream that has defined {@link TupleCodec#MAX_NAMES} names
+	 * refuses a new one, before anything of its frame is written, and
+	 * still encodes those it has
+	 */
+	void names() {
+		TupleCodec codec = new TupleCodec();
+		ByteBuffer buf = ByteBuffer.allocate(64);
+		for (int i = 0; i < TupleCodec.MAX_NAMES; i++) {
+			buf.clear();
+			codec.encode(new TupleImpl("n"+i), buf);
+		}
+		ITuple fresh = new TupleImpl("fresh");
+		try {
+			codec.checkNames(new TupleImpl("n1"), Arrays.asList(new TupleImpl("n2"), fresh));
+			throw new RuntimeException("NineteenthTest frame past MAX_NAMES not refused");
+		} catch (IllegalArgumentException e) { }
+		codec.checkNames(null, Collections.singletonList(new TupleImpl("n3")));
+		buf.clear();
+		try {
+			codec.encode(fresh, buf);
+			throw new RuntimeException("NineteenthTest name past MAX_NAMES encoded");
+		} catch (IllegalArgumentException e) { }
+		buf.clear();
+		codec.encode(new TupleImpl("n7"), buf);
+		System.out.println("CODEC REFUSED NAME "+(TupleCodec.MAX_NAMES + 1));
+	}
+
+	/**
+	 * Counts and lengths larger than the input fail cleanly, before
+	 * anything is allocated for them
+	 */
+	void hostile() {
+		// flags, priority, then a field count of 2^31 - 1
+		reject("count", new byte[] {0, 0, (byte)0xFF, (byte)0xFF, (byte)0xFF, (byte)0xFF, 0x07});
+		// one field "a", of type bytes, 2^31 - 1 long
+		reject("bytes", new byte[] {0, 0, 1, 1, 1, 'a', 8, (byte)0xFF, (byte)0xFF, (byte)0xFF, (byte)0xFF, 0x07});
+		// a negative string length
+		reject("string", new byte[] {0, 0, 1, 1, 1, 'a', 1, (byte)0xFF, (byte)0xFF, (byte)0xFF,
+				(byte)0xFF, (byte)0xFF, (byte)0xFF, (byte)0xFF, (byte)0xFF, (byte)0xFF, 0x01});
+		// a name number far past any the stream could have defined
+		reject("name", new byte[] {0, 0, 1, (byte)0xFF, (byte)0xFF, (byte)0xFF, (byte)0x7F, 1, 'a', 0});
+		reject("truncated", new byte[] {0, 0, 2, 1, 1, 'a', 0});
+	}
+
+	void reject(String what, byte [] bytes) {
+		try {
+			new TupleCodec().decode(ByteBuffer.wrap(bytes));
+		} catch (TupleCodecException e) {
+			return;
+		}
+		throw new RuntimeException("NineteenthTest decoded a bad "+what);
+	}
+
+	void check(ITuple a, ITuple b) {
+		TupleImpl x = (TupleImpl)a, y = (TupleImpl)b;
+		if (!x.getTag().equals(y.getTag()) || x.getPriority() != y.getPriority() ||
+				!x.getID().equals(y.getID()) || !x.getSpace().equals(y.getSpace()) ||
+				!x.getCommand().equals(y.getCommand()) || !x.getRequestId().equals(y.getRequestId()) ||
+				!x.getCreated().equals(y.getCreated()))
+			throw new RuntimeException("NineteenthTest headers "+y);
+		Map<String, Object> fa = a.getFields(), fb = b.getFields();
+		if (!fa.keySet().equals(fb.keySet()))
+			throw new RuntimeException("NineteenthTest field names "+fb.keySet());
+		for (String k : fa.keySet()) {
+			Object va = fa.get(k), vb = fb.get(k);
+			boolean same = (va instanceof byte[]) ? Arrays.equals((byte[])va, (byte[])vb) :
+				(va == null ? vb == null : va.equals(vb));
+			if (!same)
+				throw new RuntimeException("NineteenthTest field "+k+" "+va+" != "+vb);
+		}
+	}
+
+	/**
+	 * Typical tuples: codec against the XML form
+	 */
+	void compare() {
+		ITuple [] tuples = new ITuple[N];
+		for (int i = 0; i < N; i++) {
+			Map<String, Object> p = TupleUtil.newProperties();
+			p.put(FLD_1, (i % 2 == 0) ? VAL_1 : VAL_2);
+			p.put(FLD_2, i);
+			p.put(FLD_3, "item-"+i);
+			tuples[i] = TupleUtil.createTuple(name, i % 100, p);
+		}
+		long xmlBytes = 0, codecBytes = 0;
+		long start = System.nanoTime();
+		for (int i = 0; i < N; i++)
+			xmlBytes += tuples[i].toString().getBytes(StandardCharsets.UTF_8).length;
+		long xmlTime = System.nanoTime() - start;
+		TupleCodec codec = new TupleCodec(), decoder = new TupleCodec();
+		ByteBuffer buf = ByteBuffer.allocate(N * 64);
+		start = System.nanoTime();
+		for (int i = 0; i < N; i++)
+			codec.encode(tuples[i], buf);
+		long codecTime = System.nanoTime() - start;
+		codecBytes = buf.position();
+		buf.flip();
+		for (int i = 0; i < N; i++)
+			if (!tuples[i].getFields().equals(decoder.decode(buf).getFields()))
+				throw new RuntimeException("NineteenthTest round trip "+i);
+		System.out.println("CODEC "+codecBytes+" BYTES "+(codecTime / 1000000)+" MS; XML "+
+				xmlBytes+" BYTES "+(xmlTime / 1000000)+" MS");
+		if (codecBytes * 8 > xmlBytes)
+			throw new RuntimeException("NineteenthTest codec not compact "+codecBytes+" vs "+xmlBytes);
+	}
+
+}
@@ -0,0 +1,52 @@
+/**
+ *
+ */
+package org.topicquests.tuplespace.test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import org.topicquests.tuplespace.api.ITemplate;
+import org.topicquests.tuplespace.api.ITuple;
+
+/**
+ * Batch put, take-N and top-k collect
+ */
+public class NinthTest extends BaseTest {
+
+	/**
+	 *
+	 */
+	public NinthTest() {
+		List<ITuple> batch = new ArrayList<ITuple>();
+		for (int i = 0; i < 100; i++) {
+			Map<String, Object> p = TupleUtil.newProperties();
+			p.put(FLD_1, (i % 2 == 0) ? VAL_1 : VAL_2);
+			batch.add(TupleUtil.createTuple(name, i, p));
+		}
+		agenda.putAll(name, batch);
+		Map<String, Object> p = TupleUtil.newProperties();
+		p.put(FLD_1, VAL_1);
+		ITemplate tx = TupleUtil.createTemplate(p);
+		tx.compile();
+		List<ITuple> top = agenda.collect(name, tx, 5);
+		if (top.size() != 5 || top.get(0).getPriority() != 98 || top.get(4).getPriority() != 90)
+			throw new RuntimeException("NinthTest top-k "+top.size());
+		List<ITuple> taken = agenda.takeN(name, tx, 10, 0);
+		if (taken.size() != 10 || taken.get(0).getPriority() != 98 || taken.get(9).getPriority() != 80)
+			throw new RuntimeException("NinthTest takeN "+taken.size());
+		if (channel.collect(tx).size() != 40)
+			throw new RuntimeException("NinthTest takeN left "+channel.collect(tx).size());
+		// scan path: empty template matches everything
+		ITemplate any = TupleUtil.createTemplate(TupleUtil.newProperties());
+		any.compile();
+		taken = agenda.takeN(name, any, 1000, 0);
+		System.out.println("BATCH TAKEN "+taken.size());
+		if (taken.size() != 90)
+			throw new RuntimeException("NinthTest drain "+taken.size());
+		if (!agenda.takeN(name, any, 5, 100).isEmpty())
+			throw new RuntimeException("NinthTest empty channel takeN");
+	}
+
+}
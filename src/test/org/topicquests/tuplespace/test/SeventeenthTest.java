@@ -0,0 +1,156 @@
+/**
+ *
+ */
+package org.topicquests.tuplespace.test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.topicquests.tuplespace.DynamicAgenda;
+import org.topicquests.tuplespace.api.IDynamicAgenda;
+import org.topicquests.tuplespace.api.ITemplate;
+import org.topicquests.tuplespace.api.ITuple;
+
+/**
+ * Durable channels: changes survive closing and reopening the agenda,
+ * and concurrent writers share log flushes
+ */
+public class SeventeenthTest extends BaseTest {
+	private static final int WRITERS = 4, EACH = 250;
+	private final String durable = "Durable/Channel";
+
+	/**
+	 *
+	 */
+	public SeventeenthTest() {
+		File dir;
+		try {
+			dir = Files.createTempDirectory("tuplespace").toFile();
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+		final IDynamicAgenda first = new DynamicAgenda(dir);
+		first.createChannel(durable, true);
+		for (int i = 0; i < 100; i++) {
+			Map<String, Object> p = TupleUtil.newProperties();
+			p.put(FLD_1, (i % 2 == 0) ? VAL_1 : VAL_2);
+			p.put(FLD_2, i);
+			first.put(durable, TupleUtil.createTuple(durable, i, p));
+		}
+		Map<String, Object> p = TupleUtil.newProperties();
+		p.put(FLD_1, VAL_1);
+		ITemplate tx = TupleUtil.createTemplate(p);
+		tx.compile();
+		if (first.take(durable, tx, 0).getPriority() != 98)
+			throw new RuntimeException("SeventeenthTest take");
+		p = TupleUtil.newProperties();
+		p.put(FLD_2, 5);
+		ITemplate fx = TupleUtil.createTemplate(p);
+		fx.compile();
+		if (!first.getChannel(durable).changePriority(first.read(durable, fx, 0), 500))
+			throw new RuntimeException("SeventeenthTest changePriority");
+		first.decayAll(10);
+		p = TupleUtil.newProperties();
+		p.put(FLD_2, 7);
+		ITemplate rx = TupleUtil.createTemplate(p);
+		rx.compile();
+		first.getChannel(durable).internalRemove(first.read(durable, rx, 0));
+		p = TupleUtil.newProperties();
+		p.put(FLD_3, new Object());
+		try {
+			first.put(durable, TupleUtil.createTuple(durable, 1, p));
+			throw new RuntimeException("SeventeenthTest logged an unsupported value");
+		} catch (IllegalArgumentException e) { }
+		Thread [] writers = new Thread[WRITERS];
+		for (int i = 0; i < WRITERS; i++) {
+			final int id = i;
+			writers[i] = new Thread() {
+				public void run() {
+					for (int j = 0; j < EACH; j++) {
+						Map<String, Object> q = TupleUtil.newProperties();
+						q.put(FLD_3, id+"-"+j);
+						first.put(durable, TupleUtil.createTuple(durable, -1, q));
+					}
+				}
+			};
+		}
+		long start = System.currentTimeMillis();
+		for (int i = 0; i < WRITERS; i++)
+			writers[i].start();
+		try {
+			for (int i = 0; i < WRITERS; i++)
+				writers[i].join(60000);
+		} catch (InterruptedException e) {
+			throw new RuntimeException(e);
+		}
+		System.out.println("DURABLE PUTS "+(WRITERS * EACH)+" IN "+(System.currentTimeMillis() - start));
+		// a tuple a waiting taker consumes on arrival is not restored
+		p = TupleUtil.newProperties();
+		p.put(FLD_1, "handoff");
+		ITemplate hx = TupleUtil.createTemplate(p);
+		hx.compile();
+		CompletableFuture<ITuple> handoff = first.getChannel(durable).takeAsync(hx, 60000);
+		first.put(durable, TupleUtil.createTuple(durable, 1, p));
+		try {
+			if (handoff.get(60, TimeUnit.SECONDS) == null)
+				throw new RuntimeException("SeventeenthTest handoff");
+		} catch (Exception e) {
+			throw new RuntimeException(e);
+		}
+		List<String> before = listing(first);
+		first.shutDown();
+		if (before.size() != 98 + WRITERS * EACH || !before.get(0).startsWith("5@490"))
+			throw new RuntimeException("SeventeenthTest before close "+before.size()+" "+before.get(0));
+		// a write torn by a crash is ignored
+		try {
+			FileOutputStream torn = new FileOutputStream(new File(dir, "Durable%2FChannel.wal"), true);
+			torn.write(new byte[] {0, 0, 1, 0, 7, 7});
+			torn.close();
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+		IDynamicAgenda second = new DynamicAgenda(dir);
+		second.createChannel(durable, true);
+		List<String> after = listing(second);
+		if (!before.equals(after))
+			throw new RuntimeException("SeventeenthTest restored "+after.size()+" of "+before.size());
+		second.take(durable, fx, 0);
+		second.shutDown();
+		IDynamicAgenda third = new DynamicAgenda(dir);
+		third.createChannel(durable, true);
+		after = listing(third);
+		third.shutDown();
+		if (!before.subList(1, before.size()).equals(after))
+			throw new RuntimeException("SeventeenthTest reopened twice "+after.size());
+		System.out.println("DURABLE RESTORED "+after.size());
+		File [] files = dir.listFiles();
+		for (int i = 0; i < files.length; i++)
+			files[i].delete();
+		dir.delete();
+	}
+
+	/**
+	 * @param a
+	 * @return the durable channel's tuples, in order, as
+	 *  <code>fieldB@priority:fieldC</code>
+	 */
+	private List<String> listing(IDynamicAgenda a) {
+		List<String> result = new ArrayList<String>();
+		Iterator<ITuple> itr = a.listTuples(durable);
+		ITuple t;
+		while (itr.hasNext()) {
+			t = itr.next();
+			result.add(t.get(FLD_2)+"@"+t.getPriority()+":"+t.get(FLD_3));
+		}
+		return result;
+	}
+
+}
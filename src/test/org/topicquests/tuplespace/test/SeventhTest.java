@@ -0,0 +1,89 @@
+/**
+ *
+ */
+package org.topicquests.tuplespace.test;
+
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import org.topicquests.tuplespace.api.ILogicElement;
+import org.topicquests.tuplespace.api.ITemplate;
+import org.topicquests.tuplespace.api.ITuple;
+import org.topicquests.tuplespace.impl.LogicElementImpl;
+
+/**
+ * Hand-built OR/NOT constraints: compiled matching agrees with eval
+ */
+public class SeventhTest extends BaseTest {
+
+	/**
+	 *
+	 */
+	public SeventhTest() {
+		String [] vals = {VAL_1, VAL_2, VAL_3};
+		for (int i = 0; i < 30; i++) {
+			Map<String, Object> p = TupleUtil.newProperties();
+			p.put(FLD_1, vals[i % 3]);
+			p.put(FLD_2, vals[(i / 3) % 3]);
+			agenda.put(name, TupleUtil.createTuple(name, i, p));
+		}
+		// (fieldA = foo OR fieldA = bar) AND NOT (fieldB = bah)
+		ILogicElement or = new LogicElementImpl();
+		or.isOrType();
+		or.addElement(equalsElement(FLD_1, VAL_1));
+		or.addElement(equalsElement(FLD_1, VAL_2));
+		ILogicElement not = new LogicElementImpl();
+		not.isNotType();
+		not.addElement(equalsElement(FLD_2, VAL_3));
+		ILogicElement and = new LogicElementImpl();
+		and.isAndType();
+		and.addElement(or);
+		and.addElement(not);
+		ITemplate tx = agenda.newTemplate();
+		tx.setConstraint(and);
+		List<ITuple> hits = channel.collect(tx);
+		int expected = 0;
+		Iterator<ITuple> itr = agenda.listTuples(name);
+		while (itr.hasNext())
+			if (and.eval(itr.next()))
+				expected++;
+		System.out.println("COMPILED HITS "+hits.size()+" EVAL HITS "+expected);
+		if (hits.size() != expected || expected == 0)
+			throw new RuntimeException("SeventhTest compiled and interpreted disagree");
+		itr = hits.iterator();
+		ITuple t;
+		while (itr.hasNext()) {
+			t = itr.next();
+			if (VAL_3.equals(t.get(FLD_1)) || VAL_3.equals(t.get(FLD_2)))
+				throw new RuntimeException("SeventhTest bad hit "+t);
+		}
+		// the template keeps a frozen copy: changing the tree later
+		// neither stales its compiled matcher nor changes what it holds
+		not.getElements().clear();
+		if (channel.collect(tx).size() != hits.size())
+			throw new RuntimeException("SeventhTest constraint changed after setConstraint");
+		try {
+			tx.getConstraint().addElement(equalsElement(FLD_1, VAL_3));
+			throw new RuntimeException("SeventhTest held constraint not frozen");
+		} catch (IllegalStateException e) {
+			// expected
+		}
+		tx.setConstraint(and);
+		expected = 0;
+		itr = agenda.listTuples(name);
+		while (itr.hasNext())
+			if (and.eval(itr.next()))
+				expected++;
+		if (channel.collect(tx).size() != expected || expected == hits.size())
+			throw new RuntimeException("SeventhTest constraint not reset");
+	}
+
+	ILogicElement equalsElement(String field, Object value) {
+		ILogicElement result = new LogicElementImpl();
+		result.isEqualsType();
+		result.setFieldName(field);
+		result.setLiteral(value);
+		return result;
+	}
+}
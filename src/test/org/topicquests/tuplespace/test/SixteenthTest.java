@@ -0,0 +1,81 @@
+/**
+ *
+ */
+package org.topicquests.tuplespace.test;
+
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import org.topicquests.tuplespace.api.ILogicElement;
+import org.topicquests.tuplespace.api.ITemplate;
+import org.topicquests.tuplespace.api.ITuple;
+import org.topicquests.tuplespace.impl.LogicElementImpl;
+
+/**
+ * Heterogeneous channel: tuples lacking a template's fields
+ * simply fail to match, interpreted or compiled
+ */
+public class SixteenthTest extends BaseTest {
+	private static final String RARE = "rareField";
+
+	/**
+	 *
+	 */
+	public SixteenthTest() {
+		for (int i = 0; i < 300; i++) {
+			Map<String, Object> p = TupleUtil.newProperties();
+			switch (i % 3) {
+			case 0:
+				p.put(FLD_1, VAL_1);
+				break;
+			case 1:
+				p.put(FLD_2, VAL_2);
+				break;
+			default:
+				p.put(FLD_1, VAL_1);
+				p.put(RARE, i);
+			}
+			agenda.put(name, TupleUtil.createTuple(name, i, p));
+		}
+		// rareField > 100 AND NOT (fieldA = bar): fieldA is missing from a third
+		ILogicElement gt = new LogicElementImpl();
+		gt.isGreaterThanType();
+		gt.setFieldName(RARE);
+		gt.setLiteral(100);
+		ILogicElement eq = new LogicElementImpl();
+		eq.isEqualsType();
+		eq.setFieldName(FLD_1);
+		eq.setLiteral(VAL_2);
+		ILogicElement not = new LogicElementImpl();
+		not.isNotType();
+		not.addElement(eq);
+		ILogicElement and = new LogicElementImpl();
+		and.isAndType();
+		and.addElement(gt);
+		and.addElement(not);
+		int expected = 0;
+		Iterator<ITuple> itr = agenda.listTuples(name);
+		try {
+			while (itr.hasNext())
+				if (and.eval(itr.next()))
+					expected++;
+		} catch (NullPointerException e) {
+			throw new RuntimeException("SixteenthTest eval failed on a missing field", e);
+		}
+		ITemplate tx = agenda.newTemplate();
+		tx.setConstraint(and);
+		List<ITuple> hits = channel.collect(tx);
+		System.out.println("HETEROGENEOUS HITS "+hits.size()+" EVAL "+expected);
+		if (hits.size() != expected || expected != 67)
+			throw new RuntimeException("SixteenthTest missing-field matching "+hits.size()+" "+expected);
+		// a field no stored tuple has
+		Map<String, Object> p = TupleUtil.newProperties();
+		p.put("neverSeen", VAL_3);
+		ITemplate none = TupleUtil.createTemplate(p);
+		none.compile();
+		if (agenda.read(name, none, 0) != null || !channel.collect(none).isEmpty())
+			throw new RuntimeException("SixteenthTest matched an absent field");
+	}
+
+}
@@ -0,0 +1,190 @@
+/**
+ *
+ */
+package org.topicquests.tuplespace.test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+import org.topicquests.tuplespace.api.ITemplate;
+import org.topicquests.tuplespace.api.ITuple;
+
+/**
+ * Blocked take and read are woken by a matching insert
+ */
+public class SixthTest extends BaseTest {
+	private ITuple taken = null, read = null;
+
+	/**
+	 *
+	 */
+	public SixthTest() {
+		Map<String, Object> p = TupleUtil.newProperties();
+		p.put(FLD_1, VAL_1);
+		final ITemplate tx = TupleUtil.createTemplate(p);
+		tx.compile();
+		Thread reader = new Thread() {
+			public void run() {
+				read = agenda.read(name, tx, 5000);
+			}
+		};
+		Thread taker = new Thread() {
+			public void run() {
+				taken = agenda.take(name, tx, 5000);
+			}
+		};
+		reader.start();
+		taker.start();
+		try {
+			Thread.sleep(200);
+			long start = System.currentTimeMillis();
+			p = TupleUtil.newProperties();
+			p.put(FLD_1, VAL_2);
+			agenda.put(name, TupleUtil.createTuple(name, 1, p));
+			p = TupleUtil.newProperties();
+			p.put(FLD_1, VAL_1);
+			agenda.put(name, TupleUtil.createTuple(name, 2, p));
+			reader.join();
+			taker.join();
+			long elapsed = System.currentTimeMillis() - start;
+			System.out.println("WOKEN IN "+elapsed);
+			if (elapsed > 1000)
+				throw new RuntimeException("SixthTest waiters slept through insert "+elapsed);
+		} catch (InterruptedException e) {
+			throw new RuntimeException(e);
+		}
+		if (read == null || taken == null || taken.getPriority() != 2)
+			throw new RuntimeException("SixthTest missing delivery "+read+" "+taken);
+		// the taker consumed it; the non-matching one remains
+		if (channel.noWaitRead(tx) != null)
+			throw new RuntimeException("SixthTest taken tuple was stored");
+		if (agenda.take(name, tx, 100) != null)
+			throw new RuntimeException("SixthTest timed take returned a tuple");
+		testAsync();
+		testCallbacks();
+		testGiveBack();
+	}
+
+	/**
+	 * A tuple handed to a taker that gives up before its future is
+	 * completed goes back in its place, ahead of a later tuple of the
+	 * same priority
+	 */
+	void testGiveBack() {
+		Map<String, Object> p = TupleUtil.newProperties();
+		p.put(FLD_1, "giveback");
+		ITemplate gx = TupleUtil.createTemplate(p);
+		gx.compile();
+		// the earlier reader is completed first, and gives up the take
+		CompletableFuture<ITuple> reader = agenda.readAsync(name, gx, 60000);
+		final CompletableFuture<ITuple> lost = agenda.takeAsync(name, gx, 60000);
+		CompletableFuture<Void> read = reader.thenRun(new Runnable() {
+			public void run() {
+				lost.cancel(true);
+				agenda.put(name, giveBack("later"));
+			}
+		});
+		agenda.put(name, giveBack("first"));
+		read.join();
+		ITuple first = agenda.take(name, gx, 0), later = agenda.take(name, gx, 0);
+		if (first == null || later == null || !"first".equals(first.get(FLD_3)) ||
+				!"later".equals(later.get(FLD_3)))
+			throw new RuntimeException("SixthTest given back out of place "+first+" "+later);
+		System.out.println("GIVEN BACK IN PLACE");
+	}
+
+	private ITuple giveBack(String which) {
+		Map<String, Object> p = TupleUtil.newProperties();
+		p.put(FLD_1, "giveback");
+		p.put(FLD_3, which);
+		return TupleUtil.createTuple(name, 5, p);
+	}
+
+	/**
+	 * Work chained to a waiter's future runs after the inserting thread
+	 * has released the channel, so it may use the channel from another thread
+	 */
+	void testCallbacks() {
+		Map<String, Object> p = TupleUtil.newProperties();
+		p.put(FLD_3, "chain");
+		ITemplate cx = TupleUtil.createTemplate(p);
+		cx.compile();
+		final boolean [] free = {false};
+		CompletableFuture<Void> chained = agenda.takeAsync(name, cx, 60000).thenAccept(new Consumer<ITuple>() {
+			public void accept(ITuple t) {
+				Thread other = new Thread() {
+					public void run() {
+						Map<String, Object> q = TupleUtil.newProperties();
+						q.put(FLD_3, "chained");
+						agenda.put(name, TupleUtil.createTuple(name, 1, q));
+					}
+				};
+				other.start();
+				try {
+					other.join(2000);
+				} catch (InterruptedException e) {
+					throw new RuntimeException(e);
+				}
+				free[0] = !other.isAlive();
+			}
+		});
+		agenda.put(name, TupleUtil.createTuple(name, 1, p));
+		chained.join();
+		if (!free[0])
+			throw new RuntimeException("SixthTest callback ran holding the channel lock");
+	}
+
+	/**
+	 * Many pending async takes hold no threads; timeouts and
+	 * cancellation complete or withdraw them
+	 */
+	void testAsync() {
+		int n = 1000;
+		List<CompletableFuture<ITuple>> pending = new ArrayList<CompletableFuture<ITuple>>();
+		for (int i = 0; i < n; i++) {
+			Map<String, Object> p = TupleUtil.newProperties();
+			p.put(FLD_2, Integer.toString(i));
+			ITemplate tx = TupleUtil.createTemplate(p);
+			tx.compile();
+			pending.add(agenda.takeAsync(name, tx, 60000));
+		}
+		Map<String, Object> p = TupleUtil.newProperties();
+		p.put(FLD_2, "cancelled");
+		ITemplate cx = TupleUtil.createTemplate(p);
+		cx.compile();
+		CompletableFuture<ITuple> cancelled = agenda.takeAsync(name, cx, 60000);
+		cancelled.cancel(true);
+		p = TupleUtil.newProperties();
+		p.put(FLD_2, "never");
+		ITemplate nx = TupleUtil.createTemplate(p);
+		nx.compile();
+		CompletableFuture<ITuple> timed = agenda.readAsync(name, nx, 100);
+		for (int i = n - 1; i >= 0; i--) {
+			p = TupleUtil.newProperties();
+			p.put(FLD_2, Integer.toString(i));
+			agenda.put(name, TupleUtil.createTuple(name, i, p));
+		}
+		p = TupleUtil.newProperties();
+		p.put(FLD_2, "cancelled");
+		agenda.put(name, TupleUtil.createTuple(name, 1, p));
+		try {
+			for (int i = 0; i < n; i++) {
+				ITuple t = pending.get(i).get(1, TimeUnit.SECONDS);
+				if (!Integer.toString(i).equals(t.get(FLD_2)))
+					throw new RuntimeException("SixthTest async take got "+t);
+			}
+			if (timed.get(1, TimeUnit.SECONDS) != null)
+				throw new RuntimeException("SixthTest timed async read matched");
+		} catch (Exception e) {
+			throw new RuntimeException(e);
+		}
+		if (agenda.read(name, cx, 0) == null)
+			throw new RuntimeException("SixthTest cancelled take consumed its tuple");
+		System.out.println("ASYNC DELIVERED "+n);
+	}
+
+}
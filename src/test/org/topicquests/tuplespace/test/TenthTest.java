@@ -0,0 +1,105 @@
+/**
+ *
+ */
+package org.topicquests.tuplespace.test;
+
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.topicquests.tuplespace.api.ISubscription;
+import org.topicquests.tuplespace.api.ITemplate;
+import org.topicquests.tuplespace.api.ITuple;
+import org.topicquests.tuplespace.api.ITupleSpaceListener;
+
+/**
+ * Subscriptions: matching inserts are pushed to listeners;
+ * a stalled listener drops tuples instead of blocking inserts
+ */
+public class TenthTest extends BaseTest {
+	private final AtomicInteger heard = new AtomicInteger();
+	private final AtomicInteger outOfOrder = new AtomicInteger();
+
+	/**
+	 *
+	 */
+	public TenthTest() {
+		Map<String, Object> p = TupleUtil.newProperties();
+		p.put(FLD_1, VAL_1);
+		ITemplate tx = TupleUtil.createTemplate(p);
+		tx.compile();
+		final CountDownLatch all = new CountDownLatch(50);
+		ISubscription sub = agenda.subscribe(name, tx, new ITupleSpaceListener() {
+			int last = -1;
+			public void tupleInserted(ITuple tuple) {
+				if (tuple.getPriority() <= last)
+					outOfOrder.incrementAndGet();
+				last = tuple.getPriority();
+				heard.incrementAndGet();
+				all.countDown();
+			}
+		});
+		final CountDownLatch release = new CountDownLatch(1);
+		ISubscription stalled = agenda.subscribe(name, tx, new ITupleSpaceListener() {
+			public void tupleInserted(ITuple tuple) {
+				try {
+					release.await();
+				} catch (InterruptedException e) { }
+			}
+		});
+		long start = System.currentTimeMillis();
+		for (int i = 0; i < 100; i++) {
+			p = TupleUtil.newProperties();
+			p.put(FLD_1, (i % 2 == 0) ? VAL_1 : VAL_2);
+			agenda.put(name, TupleUtil.createTuple(name, i, p));
+		}
+		final ITemplate tk = tx;
+		Thread taker = new Thread() {
+			public void run() {
+				agenda.take(name, tk, 5000);
+			}
+		};
+		try {
+			if (!all.await(5, TimeUnit.SECONDS))
+				throw new RuntimeException("TenthTest heard only "+heard.get());
+			System.out.println("SUBSCRIBED HEARD "+heard.get()+" IN "+(System.currentTimeMillis() - start));
+			if (outOfOrder.get() != 0)
+				throw new RuntimeException("TenthTest delivered out of insert order");
+			// a tuple handed straight to a waiting taker is still published
+			taker.start();
+			Thread.sleep(200);
+			p = TupleUtil.newProperties();
+			p.put(FLD_1, VAL_1);
+			agenda.put(name, TupleUtil.createTuple(name, 5000, p));
+			taker.join();
+			for (int i = 0; i < 50 && heard.get() < 51; i++)
+				Thread.sleep(10);
+			if (heard.get() != 51)
+				throw new RuntimeException("TenthTest handoff not published "+heard.get());
+			// flood the stalled subscriber past its queue
+			for (int i = 0; i < 2000; i++) {
+				p = TupleUtil.newProperties();
+				p.put(FLD_1, VAL_1);
+				agenda.put(name, TupleUtil.createTuple(name, 6000 + i, p));
+			}
+			if (stalled.getDroppedCount() == 0)
+				throw new RuntimeException("TenthTest stalled subscriber dropped nothing");
+			System.out.println("STALLED DROPPED "+stalled.getDroppedCount());
+			stalled.cancel();
+			release.countDown();
+			sub.cancel();
+			Thread.sleep(100);
+			int before = heard.get();
+			p = TupleUtil.newProperties();
+			p.put(FLD_1, VAL_1);
+			agenda.put(name, TupleUtil.createTuple(name, 9000, p));
+			Thread.sleep(100);
+			if (heard.get() != before || outOfOrder.get() != 0)
+				throw new RuntimeException("TenthTest cancelled subscription still delivered");
+		} catch (InterruptedException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+}
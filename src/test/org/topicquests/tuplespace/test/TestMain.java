@@ -17,6 +17,29 @@ public class TestMain {
 		
 		//new SecondTest();
 		new ThirdTest();
+		new FourthTest();
+		new FifthTest();
+		new SixthTest();
+		new SeventhTest();
+		new EighthTest();
+		new NinthTest();
+		new TenthTest();
+		new EleventhTest();
+		new TwelfthTest();
+		new ThirteenthTest();
+		new FourteenthTest();
+		new FifteenthTest();
+		new SixteenthTest();
+		new SeventeenthTest();
+		new EighteenthTest();
+		new NineteenthTest();
+		new TwentiethTest();
+		new TwentyFirstTest();
+		new TwentySecondTest();
+		new TwentyThirdTest();
+		new TwentyFourthTest();
+		new TwentyFifthTest();
+		new TwentySixthTest();
 	}
 
 }
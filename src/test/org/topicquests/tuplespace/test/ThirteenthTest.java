@@ -0,0 +1,112 @@
+/**
+ *
+ */
+package org.topicquests.tuplespace.test;
+
+import java.util.Iterator;
+import java.util.Map;
+
+import org.topicquests.tuplespace.api.ILogicElement;
+import org.topicquests.tuplespace.api.IQueryPlan;
+import org.topicquests.tuplespace.api.ITemplate;
+import org.topicquests.tuplespace.api.ITuple;
+import org.topicquests.tuplespace.impl.LogicElementImpl;
+
+/**
+ * Query plans: the most selective index drives, a scan wins
+ * when matches are dense, and reordered operands match as before
+ */
+public class ThirteenthTest extends BaseTest {
+	private static final String STATUS = "status", SCORE = "score";
+
+	/**
+	 *
+	 */
+	public ThirteenthTest() {
+		// planned against an empty space; must still see later inserts
+		Map<String, Object> p = TupleUtil.newProperties();
+		p.put(FLD_2, "7");
+		ITemplate early = TupleUtil.createTemplate(p);
+		early.compile();
+		if (!IQueryPlan.EMPTY.equals(agenda.explain(name, early).getAccessPath()))
+			throw new RuntimeException("ThirteenthTest empty space plan "+agenda.explain(name, early));
+		for (int i = 0; i < 1000; i++) {
+			p = TupleUtil.newProperties();
+			p.put(STATUS, (i % 10 == 0) ? VAL_2 : VAL_1);
+			p.put(FLD_2, Integer.toString(i % 100));
+			p.put(SCORE, i);
+			agenda.put(name, TupleUtil.createTuple(name, i, p));
+		}
+		if (agenda.read(name, early, 0) == null)
+			throw new RuntimeException("ThirteenthTest stale plan missed a match");
+		agenda.addSortedIndex(name, SCORE);
+
+		p = TupleUtil.newProperties();
+		p.put(STATUS, VAL_1);
+		p.put(FLD_2, "7");
+		ITemplate both = TupleUtil.createTemplate(p);
+		both.compile();
+		IQueryPlan plan = agenda.explain(name, both);
+		System.out.println("PLAN "+plan);
+		if (!IQueryPlan.INDEX.equals(plan.getAccessPath()) ||
+				!FLD_2.equals(plan.getDrivingTest().getFieldName()) || plan.getEstimatedExamined() != 10)
+			throw new RuntimeException("ThirteenthTest did not drive from the selective field "+plan);
+		if (channel.collect(both).size() != 10)
+			throw new RuntimeException("ThirteenthTest indexed collect "+channel.collect(both).size());
+
+		p = TupleUtil.newProperties();
+		p.put(STATUS, VAL_1);
+		ITemplate dense = TupleUtil.createTemplate(p);
+		dense.compile();
+		plan = agenda.explain(name, dense);
+		System.out.println("PLAN "+plan);
+		if (!IQueryPlan.SCAN.equals(plan.getAccessPath()) || plan.getEstimatedExamined() > 2)
+			throw new RuntimeException("ThirteenthTest dense match should scan "+plan);
+		ITuple t = agenda.read(name, dense, 0);
+		if (t.getPriority() != 999 || channel.collect(dense).size() != 900)
+			throw new RuntimeException("ThirteenthTest dense read "+t.getPriority());
+
+		p = TupleUtil.newProperties();
+		p.put(STATUS, VAL_3);
+		ITemplate none = TupleUtil.createTemplate(p);
+		none.compile();
+		plan = agenda.explain(name, none);
+		if (!IQueryPlan.EMPTY.equals(plan.getAccessPath()) || plan.getEstimatedExamined() != 0)
+			throw new RuntimeException("ThirteenthTest absent value "+plan);
+
+		// score >= 990 AND (status = bah OR status = bar): the range drives
+		ILogicElement ge = new LogicElementImpl();
+		ge.isGreaterOrEqualType();
+		ge.setFieldName(SCORE);
+		ge.setLiteral(990);
+		ILogicElement or = new LogicElementImpl();
+		or.isOrType();
+		or.addElement(equalsElement(STATUS, VAL_3));
+		or.addElement(equalsElement(STATUS, VAL_2));
+		ILogicElement and = new LogicElementImpl();
+		and.isAndType();
+		and.addElement(or);
+		and.addElement(ge);
+		ITemplate ranged = agenda.newTemplate();
+		ranged.setConstraint(and);
+		plan = agenda.explain(name, ranged);
+		System.out.println("PLAN "+plan);
+		if (!IQueryPlan.RANGE.equals(plan.getAccessPath()))
+			throw new RuntimeException("ThirteenthTest range did not drive "+plan);
+		int expected = 0;
+		Iterator<ITuple> itr = agenda.listTuples(name);
+		while (itr.hasNext())
+			if (and.eval(itr.next()))
+				expected++;
+		if (expected != 1 || channel.collect(ranged).size() != expected)
+			throw new RuntimeException("ThirteenthTest reordered match disagrees "+expected);
+	}
+
+	ILogicElement equalsElement(String field, Object value) {
+		ILogicElement result = new LogicElementImpl();
+		result.isEqualsType();
+		result.setFieldName(field);
+		result.setLiteral(value);
+		return result;
+	}
+}
@@ -0,0 +1,143 @@
+/**
+ *
+ */
+package org.topicquests.tuplespace.test;
+
+import java.sql.Timestamp;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import org.topicquests.tuplespace.api.ILogicElement;
+import org.topicquests.tuplespace.api.ITemplate;
+import org.topicquests.tuplespace.api.ITuple;
+import org.topicquests.tuplespace.impl.LogicElementImpl;
+
+/**
+ * Comparison tests, with and without a sorted index
+ */
+public class TwelfthTest extends BaseTest {
+	private static final String
+		CONFIDENCE	= "confidence",
+		TIMESTAMP	= "timestamp",
+		WHEN		= "when";
+
+	/**
+	 *
+	 */
+	public TwelfthTest() {
+		for (int i = 0; i < 1000; i++) {
+			Map<String, Object> p = TupleUtil.newProperties();
+			p.put(FLD_1, (i % 2 == 0) ? VAL_1 : VAL_2);
+			p.put(CONFIDENCE, (i % 100) / 100.0);
+			p.put(TIMESTAMP, 1000000L + i);
+			agenda.put(name, TupleUtil.createTuple(name, i, p));
+		}
+		// an unordered value on the same field never matches a comparison
+		Map<String, Object> p = TupleUtil.newProperties();
+		p.put(FLD_1, VAL_1);
+		p.put(CONFIDENCE, "high");
+		agenda.put(name, TupleUtil.createTuple(name, 5000, p));
+
+		ILogicElement gt = compare(CONFIDENCE, 0.8);
+		gt.isGreaterThanType();
+		ILogicElement between = compare(TIMESTAMP, 1000100);
+		between.isBetweenType();
+		between.setUpperLiteral(1000199L);
+		ILogicElement and = new LogicElementImpl();
+		and.isAndType();
+		and.addElement(equalsElement(FLD_1, VAL_1));
+		and.addElement(gt);
+		and.addElement(between);
+		// operand form: confidence <= 0.05
+		ILogicElement fetch = new LogicElementImpl();
+		fetch.isFetchType();
+		fetch.setFieldName(CONFIDENCE);
+		ILogicElement lit = new LogicElementImpl();
+		lit.isLiteralType();
+		lit.setLiteral(0.05f);
+		ILogicElement le = new LogicElementImpl();
+		le.isLessOrEqualType();
+		le.addElement(fetch);
+		le.addElement(lit);
+
+		int [] scanned = {check(gt, 190), check(and, 9), check(le, 60)};
+		agenda.addSortedIndex(name, CONFIDENCE);
+		agenda.addSortedIndex(name, TIMESTAMP);
+		int [] indexed = {check(gt, 190), check(and, 9), check(le, 60)};
+		System.out.println("RANGE HITS "+scanned[0]+" "+scanned[1]+" "+scanned[2]);
+		// indexed results in priority order; later inserts are indexed too
+		List<ITuple> hits = channel.collect(template(and));
+		if (hits.get(0).getPriority() != 198 || hits.get(8).getPriority() != 182)
+			throw new RuntimeException("TwelfthTest range hits out of order");
+		p = TupleUtil.newProperties();
+		p.put(FLD_1, VAL_1);
+		p.put(CONFIDENCE, 0.99);
+		p.put(TIMESTAMP, 1000150);
+		agenda.put(name, TupleUtil.createTuple(name, 6000, p));
+		ITuple t = agenda.take(name, template(and), 0);
+		if (t == null || t.getPriority() != 6000)
+			throw new RuntimeException("TwelfthTest missed new tuple "+t);
+		t = agenda.take(name, template(and), 0);
+		if (t == null || t.getPriority() != 198 || check(and, 8) != 8)
+			throw new RuntimeException("TwelfthTest take did not update index");
+		families();
+	}
+
+	/**
+	 * Values of related classes compare with each other, and the index
+	 * finds them all: Timestamps among Dates
+	 */
+	void families() {
+		for (int i = 0; i < 100; i++) {
+			Map<String, Object> p = TupleUtil.newProperties();
+			p.put(WHEN, (i % 2 == 0) ? new Date(i) : new Timestamp(i));
+			agenda.put(name, TupleUtil.createTuple(name, i, p));
+		}
+		ILogicElement ge = compare(WHEN, new Date(50));
+		ge.isGreaterOrEqualType();
+		ILogicElement lt = compare(WHEN, new Timestamp(50));
+		lt.isLessThanType();
+		check(ge, 50);
+		check(lt, 50);
+		agenda.addSortedIndex(name, WHEN);
+		check(ge, 50);
+		check(lt, 50);
+		System.out.println("RANGE OVER DATES AND TIMESTAMPS");
+	}
+
+	/**
+	 * @return hits, after checking them against eval over the whole space
+	 */
+	int check(ILogicElement el, int expected) {
+		List<ITuple> hits = channel.collect(template(el));
+		int count = 0;
+		Iterator<ITuple> itr = agenda.listTuples(name);
+		while (itr.hasNext())
+			if (el.eval(itr.next()))
+				count++;
+		if (hits.size() != expected || count != expected)
+			throw new RuntimeException("TwelfthTest expected "+expected+" got "+hits.size()+" eval "+count);
+		return hits.size();
+	}
+
+	ITemplate template(ILogicElement el) {
+		ITemplate result = agenda.newTemplate();
+		result.setConstraint(el);
+		return result;
+	}
+
+	ILogicElement compare(String field, Object value) {
+		ILogicElement result = new LogicElementImpl();
+		result.setFieldName(field);
+		result.setLiteral(value);
+		return result;
+	}
+
+	ILogicElement equalsElement(String field, Object value) {
+		ILogicElement result = compare(field, value);
+		result.isEqualsType();
+		return result;
+	}
+}
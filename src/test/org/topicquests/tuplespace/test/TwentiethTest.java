@@ -0,0 +1,163 @@
+/**
+ *
+ */
+package org.topicquests.tuplespace.test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PipedInputStream;
+import java.io.PipedOutputStream;
+import java.io.StringReader;
+import java.util.Arrays;
+import java.util.Map;
+
+import javax.xml.stream.XMLStreamException;
+
+import org.topicquests.tuplespace.api.IConstants;
+import org.topicquests.tuplespace.api.ITuple;
+import org.topicquests.tuplespace.impl.TSXReader;
+import org.topicquests.tuplespace.impl.TSXWriter;
+import org.topicquests.tuplespace.impl.TupleImpl;
+
+/**
+ * TSX streaming: typed round trips, the legacy toString() form,
+ * and a large batch parsed as it is produced
+ */
+public class TwentiethTest extends BaseTest {
+	private static final int BATCH = 200000;
+
+	/**
+	 *
+	 */
+	public TwentiethTest() {
+		try {
+			roundTrip();
+			legacy();
+			batch();
+		} catch (XMLStreamException e) {
+			throw new RuntimeException(e);
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	void roundTrip() throws XMLStreamException {
+		Map<String, Object> p = TupleUtil.newProperties();
+		p.put(FLD_1, "a <b> & \"c\"");
+		p.put(FLD_2, 42);
+		p.put(FLD_3, 7L);
+		p.put("flag", Boolean.FALSE);
+		p.put("ratio", 0.5d);
+		p.put("bytes", new byte[] {9, 8, 7});
+		TupleImpl t = (TupleImpl)TupleUtil.createTuple(name, 3, p);
+		t.set("none", null);
+		t.setID("t1");
+		t.setCommand(IConstants.PUT);
+		t.setRequestId("req-1");
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		TSXWriter w = new TSXWriter(bytes);
+		w.startMessage();
+		w.write(t);
+		w.write(t);
+		w.close();
+		TSXReader r = new TSXReader(new ByteArrayInputStream(bytes.toByteArray()));
+		for (int i = 0; i < 2; i++) {
+			TupleImpl u = (TupleImpl)r.next();
+			if (u == null || !"t1".equals(u.getID()) || !IConstants.PUT.equals(u.getCommand()) ||
+					!"req-1".equals(u.getRequestId()) || u.getPriority() != 3 || !name.equals(u.getTag()))
+				throw new RuntimeException("TwentiethTest headers "+u);
+			Map<String, Object> f = u.getFields();
+			if (!p.get(FLD_1).equals(f.get(FLD_1)) || !Integer.valueOf(42).equals(f.get(FLD_2)) ||
+					!Long.valueOf(7).equals(f.get(FLD_3)) || !Boolean.FALSE.equals(f.get("flag")) ||
+					!Double.valueOf(0.5).equals(f.get("ratio")) || f.get("none") != null ||
+					!f.containsKey("none") || !Arrays.equals((byte[])p.get("bytes"), (byte[])f.get("bytes")))
+				throw new RuntimeException("TwentiethTest values "+f);
+		}
+		if (r.next() != null)
+			throw new RuntimeException("TwentiethTest extra tuple");
+	}
+
+	/**
+	 * What toString() emits reads back, values as strings
+	 */
+	void legacy() throws XMLStreamException {
+		Map<String, Object> p = TupleUtil.newProperties();
+		p.put(FLD_1, VAL_1);
+		ITuple t = TupleUtil.createTuple(name, 12, p);
+		TSXReader r = new TSXReader(new StringReader(t.toString()));
+		ITuple u = r.next();
+		if (u == null || !VAL_1.equals(u.get(FLD_1)) || u.getPriority() != 12)
+			throw new RuntimeException("TwentiethTest toString form "+u);
+	}
+
+	/**
+	 * A batch written by one thread is parsed by another as it arrives;
+	 * the document is never held in memory
+	 */
+	void batch() throws IOException, XMLStreamException {
+		final PipedOutputStream pipeOut = new PipedOutputStream();
+		PipedInputStream pipeIn = new PipedInputStream(pipeOut, 64 * 1024);
+		final long [] written = new long[1];
+		Thread producer = new Thread() {
+			public void run() {
+				try {
+					CountingStream counted = new CountingStream(pipeOut);
+					TSXWriter w = new TSXWriter(counted);
+					w.startMessage();
+					for (int i = 0; i < BATCH; i++) {
+						Map<String, Object> p = TupleUtil.newProperties();
+						p.put(FLD_1, (i % 2 == 0) ? VAL_1 : VAL_2);
+						p.put(FLD_2, i);
+						w.write(TupleUtil.createTuple(name, i % 100, p));
+					}
+					w.close();
+					written[0] = counted.count;
+					pipeOut.close();
+				} catch (Exception e) {
+					throw new RuntimeException(e);
+				}
+			}
+		};
+		long start = System.currentTimeMillis();
+		producer.start();
+		TSXReader r = new TSXReader(pipeIn);
+		int n = 0;
+		ITuple t;
+		while ((t = r.next()) != null) {
+			if (!Integer.valueOf(n).equals(t.get(FLD_2)))
+				throw new RuntimeException("TwentiethTest batch order at "+n);
+			n++;
+		}
+		try {
+			producer.join();
+		} catch (InterruptedException e) {
+			throw new RuntimeException(e);
+		}
+		System.out.println("TSX STREAMED "+n+" TUPLES, "+(written[0] >> 20)+" MB IN "+
+				(System.currentTimeMillis() - start));
+		if (n != BATCH)
+			throw new RuntimeException("TwentiethTest batch read "+n);
+	}
+
+	/**
+	 * Counts the bytes passing through
+	 */
+	static class CountingStream extends FilterOutputStream {
+		long count = 0;
+		CountingStream(OutputStream out) {
+			super(out);
+		}
+		public void write(int b) throws IOException {
+			out.write(b);
+			count++;
+		}
+		public void write(byte [] b, int off, int len) throws IOException {
+			out.write(b, off, len);
+			count += len;
+		}
+	}
+
+}
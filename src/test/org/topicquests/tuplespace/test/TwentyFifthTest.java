@@ -0,0 +1,158 @@
+/**
+ *
+ */
+package org.topicquests.tuplespace.test;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.topicquests.tuplespace.api.ITemplate;
+import org.topicquests.tuplespace.api.ITuple;
+import org.topicquests.tuplespace.impl.TupleImpl;
+import org.topicquests.tuplespace.impl.TupleShape;
+
+/**
+ * Tuple shapes: the same field names share one shape whatever order
+ * they were added in, names past the 64 presence bits still match, and
+ * shapes past the interning limit still work without being shared
+ */
+public class TwentyFifthTest extends BaseTest {
+	private static final int NAMES = 70;
+
+	/**
+	 *
+	 */
+	public TwentyFifthTest() {
+		Map<String, Object> p = new LinkedHashMap<String, Object>();
+		p.put(FLD_3, VAL_3);
+		p.put(FLD_1, VAL_1);
+		p.put(FLD_2, VAL_2);
+		TupleImpl a = new TupleImpl(name, p);
+		TupleImpl b = new TupleImpl(name);
+		b.set(FLD_2, VAL_2);
+		b.set(FLD_3, VAL_3);
+		b.set(FLD_1, VAL_1);
+		TupleImpl c = new TupleImpl(name);
+		c.set(FLD_1, VAL_1);
+		c.set(FLD_2, VAL_2);
+		c.set(FLD_3, VAL_3);
+		System.out.println("SHAPE "+a.getShape().names());
+		if (a.getShape() != b.getShape() || b.getShape() != c.getShape())
+			throw new RuntimeException("TwentyFifthTest shapes not interned "+
+					a.getShape().names()+" "+b.getShape().names()+" "+c.getShape().names());
+		if (!FLD_1.equals(a.getShape().nameAt(0)) || !FLD_3.equals(a.getShape().nameAt(2)))
+			throw new RuntimeException("TwentyFifthTest shape not sorted "+a.getShape().names());
+		check(a);
+		check(b);
+		check(c);
+		// a copy changed in the middle of its shape keeps its values
+		ITuple d = a.copy();
+		d.set("fieldAB", VAL_3);
+		if (!VAL_3.equals(d.get("fieldAB")) || d.numFields() != 4)
+			throw new RuntimeException("TwentyFifthTest inserted field "+d);
+		check(d);
+		check(a);
+		if (a.getShape().with("fieldAB") != ((TupleImpl)d).getShape())
+			throw new RuntimeException("TwentyFifthTest transition not canonical");
+		wide();
+		racing();
+		bounded();
+	}
+
+	/**
+	 * A reader racing a writer that adds fields in the middle of the
+	 * shape always sees the fields at either end
+	 */
+	void racing() {
+		final TupleImpl t = new TupleImpl(name);
+		t.set(FLD_1, VAL_1);
+		t.set(FLD_3, VAL_3);
+		final boolean [] done = new boolean[1];
+		Thread writer = new Thread() {
+			public void run() {
+				for (int i = 0; i < 500; i++)
+					t.set("fieldB"+i, VAL_2);
+				synchronized (done) {
+					done[0] = true;
+				}
+			}
+		};
+		writer.start();
+		int reads = 0;
+		while (true) {
+			synchronized (done) {
+				if (done[0])
+					break;
+			}
+			if (!VAL_1.equals(t.get(FLD_1)) || !VAL_3.equals(t.get(FLD_3)))
+				throw new RuntimeException("TwentyFifthTest read a torn tuple after "+reads);
+			reads++;
+		}
+		if (t.numFields() != 502)
+			throw new RuntimeException("TwentyFifthTest racing fields "+t.numFields());
+		System.out.println("RACING READS "+reads);
+	}
+
+	/**
+	 * Fills the shape tree: a name set first seen after that gets a shape
+	 * of its own that still holds and matches its fields
+	 */
+	void bounded() {
+		for (int i = 0; i < TupleShape.MAX_INTERNED; i++)
+			new TupleImpl(name).set("bound"+i, VAL_1);
+		TupleImpl a = new TupleImpl(name);
+		a.set("unbound", VAL_1);
+		a.set(FLD_1, VAL_2);
+		TupleImpl b = new TupleImpl(name);
+		b.set(FLD_1, VAL_2);
+		b.set("unbound", VAL_1);
+		if (a.getShape() == b.getShape() || !a.getShape().names().equals(b.getShape().names()))
+			throw new RuntimeException("TwentyFifthTest shape tree not bounded "+a.getShape().names());
+		agenda.put(name, b);
+		Map<String, Object> p = TupleUtil.newProperties();
+		p.put("unbound", VAL_1);
+		p.put(FLD_1, VAL_2);
+		ITemplate tx = TupleUtil.createTemplate(p);
+		tx.compile();
+		if (agenda.take(name, tx, 0) == null)
+			throw new RuntimeException("TwentyFifthTest missed unshared shape");
+		System.out.println("SHAPES BOUNDED AT "+TupleShape.MAX_INTERNED);
+	}
+
+	/**
+	 * More names than presence bits: a tuple holding all of them
+	 * matches on each
+	 */
+	void wide() {
+		Map<String, Object> p = TupleUtil.newProperties();
+		for (int i = 0; i < NAMES; i++)
+			p.put("wide"+i, Integer.valueOf(i));
+		agenda.put(name, TupleUtil.createTuple(name, 1, p));
+		String unmasked = null;
+		for (int i = 0; i < NAMES && unmasked == null; i++)
+			if (TupleShape.knownMask("wide"+i) == 0)
+				unmasked = "wide"+i;
+		if (unmasked == null)
+			throw new RuntimeException("TwentyFifthTest expected names past 64 to have no bit");
+		for (int i = 0; i < NAMES; i++) {
+			p = TupleUtil.newProperties();
+			p.put("wide"+i, Integer.valueOf(i));
+			ITemplate tx = TupleUtil.createTemplate(p);
+			tx.compile();
+			if (agenda.read(name, tx, 0) == null)
+				throw new RuntimeException("TwentyFifthTest missed wide"+i);
+		}
+		p = TupleUtil.newProperties();
+		p.put(unmasked, Integer.valueOf(-1));
+		ITemplate tx = TupleUtil.createTemplate(p);
+		tx.compile();
+		if (agenda.read(name, tx, 0) != null)
+			throw new RuntimeException("TwentyFifthTest matched wrong value on "+unmasked);
+		System.out.println("WIDE TUPLE MATCHED ON "+NAMES+" NAMES");
+	}
+
+	void check(ITuple t) {
+		if (!VAL_1.equals(t.get(FLD_1)) || !VAL_2.equals(t.get(FLD_2)) || !VAL_3.equals(t.get(FLD_3)))
+			throw new RuntimeException("TwentyFifthTest values moved "+t);
+	}
+}
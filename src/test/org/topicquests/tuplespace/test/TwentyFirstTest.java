@@ -0,0 +1,262 @@
+/**
+ *
+ */
+package org.topicquests.tuplespace.test;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import org.topicquests.tuplespace.api.IConstants;
+import org.topicquests.tuplespace.api.ITuple;
+import org.topicquests.tuplespace.impl.TupleCodec;
+import org.topicquests.tuplespace.impl.TupleImpl;
+import org.topicquests.tuplespace.net.Protocol;
+import org.topicquests.tuplespace.net.TupleSpaceServer;
+
+/**
+ * The NIO server: each command over a socket, parked waits answered
+ * out of order, and thousands of connections parked at once
+ */
+public class TwentyFirstTest extends BaseTest implements IConstants {
+	private static final int CONNECTIONS = 4000;
+	private TupleSpaceServer server;
+	private InetSocketAddress address;
+
+	/**
+	 *
+	 */
+	public TwentyFirstTest() {
+		server = new TupleSpaceServer(agenda, new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 2);
+		try {
+			server.start();
+			address = new InetSocketAddress(InetAddress.getLoopbackAddress(), server.getPort());
+			commands();
+			waiting();
+			hostile();
+			many();
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		} finally {
+			server.stop();
+		}
+	}
+
+	ITuple tuple(String key, int n) {
+		Map<String, Object> p = TupleUtil.newProperties();
+		p.put(FLD_1, key);
+		p.put(FLD_2, n);
+		return TupleUtil.createTuple(name, n, p);
+	}
+
+	List<ITuple> template(String key) {
+		Map<String, Object> p = TupleUtil.newProperties();
+		p.put(FLD_1, key);
+		return Collections.<ITuple>singletonList(new TupleImpl(name, p));
+	}
+
+	void commands() throws IOException {
+		Client c = new Client(address);
+		List<ITuple> batch = new ArrayList<ITuple>();
+		for (int i = 0; i < 10; i++)
+			batch.add(tuple(VAL_1, i));
+		c.send(Protocol.header(PUT, "p1", name), batch);
+		List<ITuple> body = new ArrayList<ITuple>();
+		expect(c.receive(body), "p1");
+		c.send(Protocol.header(READ, "r1", name), template(VAL_1));
+		expect(c.receive(body), "r1");
+		// highest priority first
+		if (body.size() != 1 || !Integer.valueOf(9).equals(body.get(0).get(FLD_2)))
+			throw new RuntimeException("TwentyFirstTest read "+body);
+		body.clear();
+		c.send(Protocol.header(TAKE, "t1", name), template(VAL_1));
+		expect(c.receive(body), "t1");
+		if (body.size() != 1 || !Integer.valueOf(9).equals(body.get(0).get(FLD_2)))
+			throw new RuntimeException("TwentyFirstTest take "+body);
+		body.clear();
+		TupleImpl h = Protocol.header(COLLECT, "c1", name);
+		h.set(LIMIT, 4);
+		c.send(h, template(VAL_1));
+		expect(c.receive(body), "c1");
+		if (body.size() != 4)
+			throw new RuntimeException("TwentyFirstTest collect "+body.size());
+		body.clear();
+		c.send(Protocol.header(LIST, "l1", name), Collections.<ITuple>emptyList());
+		expect(c.receive(body), "l1");
+		if (body.size() != 9)
+			throw new RuntimeException("TwentyFirstTest list "+body.size());
+		body.clear();
+		c.send(Protocol.header(TAKE, "t2", "NoSuchChannel"), template(VAL_1));
+		if (c.receive(body).get(ERROR) == null)
+			throw new RuntimeException("TwentyFirstTest missing channel not reported");
+		// frames many times the read buffer, in and out
+		StringBuilder big = new StringBuilder();
+		while (big.length() < 200000)
+			big.append("large-value-");
+		Map<String, Object> p = TupleUtil.newProperties();
+		p.put(FLD_1, "large");
+		p.put(FLD_3, big.toString());
+		c.send(Protocol.header(PUT, "p2", name),
+				Collections.<ITuple>singletonList(TupleUtil.createTuple(name, 1, p)));
+		c.send(Protocol.header(READ, "r3", name), template("large"));
+		expect(c.receive(body), "p2");
+		expect(c.receive(body), "r3");
+		if (body.size() != 1 || !big.toString().equals(body.get(0).get(FLD_3)))
+			throw new RuntimeException("TwentyFirstTest large frame");
+		body.clear();
+		c.close();
+	}
+
+	/**
+	 * A parked take is overtaken by a later read, then answered when
+	 * another connection puts its match; a tpost, which would need two
+	 * responses, is refused
+	 */
+	void waiting() throws IOException {
+		Client a = new Client(address), b = new Client(address);
+		TupleImpl h = Protocol.header(TAKE_WAIT, "w1", name);
+		h.set(WAIT, 10000L);
+		a.send(h, template(VAL_2));
+		h = Protocol.header(TAKE_POST, "w2", name);
+		h.set(WAIT, 10000L);
+		a.send(h, template(VAL_3));
+		a.send(Protocol.header(READ, "r2", name), template(VAL_1));
+		List<ITuple> body = new ArrayList<ITuple>();
+		h = a.receive(body);
+		if (!"w2".equals(h.getRequestId()) || h.get(ERROR) == null || !body.isEmpty())
+			throw new RuntimeException("TwentyFirstTest tpost not refused "+h);
+		expect(a.receive(body), "r2");
+		body.clear();
+		b.send(Protocol.header(PUT, "p2", name), Collections.singletonList(tuple(VAL_2, 100)));
+		expect(b.receive(body), "p2");
+		expect(a.receive(body), "w1");
+		if (body.size() != 1 || !Integer.valueOf(100).equals(body.get(0).get(FLD_2)))
+			throw new RuntimeException("TwentyFirstTest twait "+body);
+		body.clear();
+		// a timed out wait answers empty
+		h = Protocol.header(READ_WAIT, "w3", name);
+		h.set(WAIT, 50L);
+		a.send(h, template("nothing"));
+		expect(a.receive(body), "w3");
+		if (!body.isEmpty())
+			throw new RuntimeException("TwentyFirstTest rwait timeout "+body);
+		a.close();
+		b.close();
+	}
+
+	/**
+	 * A frame that claims more than it holds gets an error with no
+	 * request id and a closed connection; the server serves on
+	 */
+	void hostile() throws IOException {
+		Client c = new Client(address);
+		// a header with no fields, then a field count of 2^31 - 1
+		byte [] bad = {0, 0, (byte)0xFF, (byte)0xFF, (byte)0xFF, (byte)0xFF, 0x07};
+		ByteBuffer out = ByteBuffer.allocate(4 + bad.length);
+		out.putInt(bad.length).put(bad).flip();
+		while (out.hasRemaining())
+			c.channel.write(out);
+		List<ITuple> body = new ArrayList<ITuple>();
+		TupleImpl h = c.receive(body);
+		if (h.getRequestId() != null || h.get(ERROR) == null)
+			throw new RuntimeException("TwentyFirstTest bad frame answered "+h);
+		try {
+			c.receive(body);
+			throw new RuntimeException("TwentyFirstTest bad frame left the connection open");
+		} catch (IOException e) { }
+		c.close();
+		c = new Client(address);
+		c.send(Protocol.header(LIST, "l2", name), Collections.<ITuple>emptyList());
+		expect(c.receive(body), "l2");
+		c.close();
+	}
+
+	/**
+	 * Thousands of rwaits parked at once, all woken by one put
+	 */
+	void many() throws IOException {
+		long start = System.currentTimeMillis();
+		Client [] clients = new Client[CONNECTIONS];
+		TupleImpl h;
+		for (int i = 0; i < CONNECTIONS; i++) {
+			clients[i] = new Client(address);
+			h = Protocol.header(READ_WAIT, "m"+i, name);
+			h.set(WAIT, 30000L);
+			clients[i].send(h, template("go"));
+			clients[i].send(Protocol.header(READ, "a"+i, name), template("go"));
+		}
+		// a read answered after the rwait on the same connection means it is parked
+		List<ITuple> body = new ArrayList<ITuple>();
+		for (int i = 0; i < CONNECTIONS; i++)
+			expect(clients[i].receive(body), "a"+i);
+		Client last = new Client(address);
+		last.send(Protocol.header(PUT, "go", name), Collections.singletonList(tuple("go", 1)));
+		expect(last.receive(body), "go");
+		for (int i = 0; i < CONNECTIONS; i++) {
+			body.clear();
+			expect(clients[i].receive(body), "m"+i);
+			if (body.size() != 1)
+				throw new RuntimeException("TwentyFirstTest connection "+i+" not woken");
+			clients[i].close();
+		}
+		last.close();
+		System.out.println("SERVER WOKE "+CONNECTIONS+" PARKED CONNECTIONS IN "+
+				(System.currentTimeMillis() - start));
+	}
+
+	void expect(TupleImpl h, String requestId) {
+		if (!requestId.equals(h.getRequestId()) || h.get(ERROR) != null)
+			throw new RuntimeException("TwentyFirstTest expected "+requestId+" got "+h);
+	}
+
+	/**
+	 * A blocking client speaking the frames directly
+	 */
+	static class Client {
+		final SocketChannel channel;
+		private final TupleCodec encoder = new TupleCodec(), decoder = new TupleCodec();
+		private ByteBuffer in = ByteBuffer.allocate(1024);
+
+		Client(InetSocketAddress address) throws IOException {
+			channel = SocketChannel.open(address);
+			in.flip();
+		}
+
+		void send(TupleImpl header, List<ITuple> body) throws IOException {
+			ByteBuffer out = Protocol.writeFrame(encoder, header, body, ByteBuffer.allocate(256));
+			out.flip();
+			while (out.hasRemaining())
+				channel.write(out);
+		}
+
+		TupleImpl receive(List<ITuple> body) throws IOException {
+			ByteBuffer frame;
+			int need;
+			while ((frame = Protocol.nextFrame(in)) == null) {
+				need = Protocol.frameSize(in);
+				in.compact();
+				if (need > in.capacity()) {
+					ByteBuffer b = ByteBuffer.allocate(need);
+					in.flip();
+					b.put(in);
+					in = b;
+				}
+				if (channel.read(in) < 0)
+					throw new IOException("Server closed the connection");
+				in.flip();
+			}
+			return Protocol.readFrame(decoder, frame, body);
+		}
+
+		void close() throws IOException {
+			channel.close();
+		}
+	}
+
+}
@@ -0,0 +1,273 @@
+/**
+ *
+ */
+package org.topicquests.tuplespace.test;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+
+import org.topicquests.tuplespace.ClusteredDynamicAgenda;
+import org.topicquests.tuplespace.DynamicAgenda;
+import org.topicquests.tuplespace.api.ITemplate;
+import org.topicquests.tuplespace.api.ITuple;
+import org.topicquests.tuplespace.impl.TemplateImpl;
+import org.topicquests.tuplespace.net.RemoteDynamicAgenda;
+import org.topicquests.tuplespace.net.TupleSpaceServer;
+
+/**
+ * A cluster of two local nodes and a remote one: channels spread evenly,
+ * a node joining or leaving moves only the channels it gains or loses,
+ * with their contents, and waiting takes follow their channels
+ */
+public class TwentyFourthTest extends BaseTest {
+	private static final int CHANNELS = 300, PER_CHANNEL = 5, WAITERS = 300;
+
+	/**
+	 *
+	 */
+	public TwentyFourthTest() {
+		TupleSpaceServer server = new TupleSpaceServer(new DynamicAgenda(),
+				new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 2);
+		ClusteredDynamicAgenda cluster = new ClusteredDynamicAgenda();
+		try {
+			server.start();
+			cluster.addNode("n1", new DynamicAgenda());
+			cluster.addNode("n2", new DynamicAgenda());
+			cluster.addNode("n3", new RemoteDynamicAgenda(
+					new InetSocketAddress(InetAddress.getLoopbackAddress(), server.getPort())));
+			for (int i = 0; i < CHANNELS; i++) {
+				cluster.createChannel(channel(i));
+				for (int j = 0; j < PER_CHANNEL; j++)
+					cluster.put(channel(i), tuple(channel(i), j));
+			}
+			Map<String, Integer> spread = spread(cluster);
+			System.out.println("CLUSTER SPREAD "+spread);
+			if (spread.size() != 3)
+				throw new RuntimeException("TwentyFourthTest spread "+spread);
+			Iterator<Integer> counts = spread.values().iterator();
+			while (counts.hasNext()) {
+				if (counts.next().intValue() < CHANNELS / 6)
+					throw new RuntimeException("TwentyFourthTest uneven spread "+spread);
+			}
+			Map<String, List<String>> before = contents(cluster);
+			join(cluster, before);
+			leave(cluster, before);
+			failures(cluster, before);
+			waiters(cluster);
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		} finally {
+			cluster.shutDown();
+			server.stop();
+		}
+	}
+
+	/**
+	 * A fourth node takes about a quarter of the channels, from the others
+	 */
+	void join(ClusteredDynamicAgenda cluster, Map<String, List<String>> before) {
+		Map<String, String> owners = owners(cluster);
+		long start = System.currentTimeMillis();
+		int moved = cluster.addNode("n4", new DynamicAgenda());
+		System.out.println("JOIN MOVED "+moved+" CHANNELS IN "+(System.currentTimeMillis() - start));
+		if (moved < CHANNELS / 8 || moved > CHANNELS / 2)
+			throw new RuntimeException("TwentyFourthTest join moved "+moved);
+		int changed = 0;
+		for (int i = 0; i < CHANNELS; i++) {
+			if (!owners.get(channel(i)).equals(cluster.nodeFor(channel(i)))) {
+				changed++;
+				if (!"n4".equals(cluster.nodeFor(channel(i))))
+					throw new RuntimeException("TwentyFourthTest "+channel(i)+" moved to "+
+							cluster.nodeFor(channel(i)));
+			}
+		}
+		if (changed != moved)
+			throw new RuntimeException("TwentyFourthTest changed "+changed+" moved "+moved);
+		if (!before.equals(contents(cluster)))
+			throw new RuntimeException("TwentyFourthTest join lost tuples");
+	}
+
+	/**
+	 * A node leaving hands only its own channels on
+	 */
+	void leave(ClusteredDynamicAgenda cluster, Map<String, List<String>> before) {
+		Map<String, String> owners = owners(cluster);
+		int n2 = spread(cluster).get("n2").intValue();
+		int moved = cluster.removeNode("n2");
+		System.out.println("LEAVE MOVED "+moved+" CHANNELS");
+		if (moved != n2)
+			throw new RuntimeException("TwentyFourthTest leave moved "+moved+" of "+n2);
+		for (int i = 0; i < CHANNELS; i++) {
+			String was = owners.get(channel(i));
+			if (!was.equals("n2") && !was.equals(cluster.nodeFor(channel(i))))
+				throw new RuntimeException("TwentyFourthTest "+channel(i)+" left "+was);
+		}
+		if (spread(cluster).containsKey("n2"))
+			throw new RuntimeException("TwentyFourthTest n2 still owns channels");
+		if (!before.equals(contents(cluster)))
+			throw new RuntimeException("TwentyFourthTest leave lost tuples");
+	}
+
+	/**
+	 * A node whose puts fail part way through a join, and whose takes
+	 * fail part way through a leave: no tuple is lost, and every
+	 * channel is found where its tuples are
+	 */
+	void failures(ClusteredDynamicAgenda cluster, Map<String, List<String>> before) {
+		FailingNode bad = new FailingNode();
+		bad.puts = 10;
+		try {
+			cluster.addNode("bad", bad);
+			throw new RuntimeException("TwentyFourthTest failing join succeeded");
+		} catch (IllegalStateException e) { }
+		int onBad = spread(cluster).containsKey("bad") ? spread(cluster).get("bad").intValue() : 0;
+		if (onBad != 10)
+			throw new RuntimeException("TwentyFourthTest failed join left "+onBad+" channels on the node");
+		if (!before.equals(contents(cluster)))
+			throw new RuntimeException("TwentyFourthTest failed join lost tuples");
+		bad.puts = Integer.MAX_VALUE;
+		bad.takes = 5;
+		try {
+			cluster.removeNode("bad");
+			throw new RuntimeException("TwentyFourthTest failing leave succeeded");
+		} catch (IllegalStateException e) { }
+		if (!before.equals(contents(cluster)))
+			throw new RuntimeException("TwentyFourthTest failed leave lost tuples");
+		bad.takes = Integer.MAX_VALUE;
+		int moved = cluster.removeNode("bad");
+		if (spread(cluster).containsKey("bad") || !before.equals(contents(cluster)))
+			throw new RuntimeException("TwentyFourthTest leave after failures "+spread(cluster));
+		System.out.println("FAILED MOVES LOST NOTHING; "+moved+" CHANNELS LEFT THE NODE");
+	}
+
+	/**
+	 * A node whose putAll and takeN fail once they have been called
+	 * so many times
+	 */
+	static class FailingNode extends DynamicAgenda {
+		volatile int puts = Integer.MAX_VALUE, takes = Integer.MAX_VALUE;
+
+		@Override
+		public void putAll(String channelName, Collection<? extends ITuple> tuples) {
+			if (puts-- <= 0)
+				throw new IllegalStateException("Node failed");
+			super.putAll(channelName, tuples);
+		}
+
+		@Override
+		public List<ITuple> takeN(String channelName, ITemplate template, int n, long waitTime) {
+			if (takes-- <= 0)
+				throw new IllegalStateException("Node failed");
+			return super.takeN(channelName, template, n, waitTime);
+		}
+	}
+
+	/**
+	 * Takes waiting on every channel keep waiting through a join, and
+	 * are woken by puts on the channels' new owners
+	 */
+	void waiters(ClusteredDynamicAgenda cluster) {
+		List<CompletableFuture<ITuple>> waiting = new ArrayList<CompletableFuture<ITuple>>();
+		for (int i = 0; i < WAITERS; i++)
+			waiting.add(cluster.takeAsync(channel(i), template(-1), 20000));
+		sleep(50);
+		int moved = cluster.addNode("n5", new DynamicAgenda());
+		for (int i = 0; i < WAITERS; i++) {
+			if (waiting.get(i).isDone())
+				throw new RuntimeException("TwentyFourthTest waiter "+i+" done early");
+			cluster.put(channel(i), tuple(channel(i), -1));
+		}
+		ITuple t;
+		for (int i = 0; i < WAITERS; i++) {
+			t = waiting.get(i).join();
+			if (t == null || !Integer.valueOf(-1).equals(t.get(FLD_2)))
+				throw new RuntimeException("TwentyFourthTest waiter "+i+" got "+t);
+		}
+		System.out.println("WAITERS WOKEN AFTER "+moved+" CHANNELS MOVED");
+		// a sync take with a wait, and a waiting take that times out
+		cluster.put(channel(0), tuple(channel(0), -2));
+		t = cluster.take(channel(0), template(-2), 1000);
+		if (t == null)
+			throw new RuntimeException("TwentyFourthTest sync take");
+		long start = System.currentTimeMillis();
+		t = cluster.take(channel(0), template(-3), 250);
+		long took = System.currentTimeMillis() - start;
+		if (t != null || took < 250)
+			throw new RuntimeException("TwentyFourthTest timed take "+t+" in "+took);
+	}
+
+	String channel(int i) {
+		return "Cluster"+i;
+	}
+
+	ITuple tuple(String channelName, int n) {
+		Map<String, Object> p = TupleUtil.newProperties();
+		p.put(FLD_1, VAL_1);
+		p.put(FLD_2, n);
+		return TupleUtil.createTuple(channelName, 10 + n, p);
+	}
+
+	ITemplate template(int n) {
+		Map<String, Object> p = TupleUtil.newProperties();
+		p.put(FLD_2, n);
+		TemplateImpl t = new TemplateImpl(p);
+		t.compile();
+		return t;
+	}
+
+	Map<String, String> owners(ClusteredDynamicAgenda cluster) {
+		Map<String, String> result = new HashMap<String, String>();
+		for (int i = 0; i < CHANNELS; i++)
+			result.put(channel(i), cluster.nodeFor(channel(i)));
+		return result;
+	}
+
+	Map<String, Integer> spread(ClusteredDynamicAgenda cluster) {
+		Map<String, Integer> result = new HashMap<String, Integer>();
+		String node;
+		Integer n;
+		for (int i = 0; i < CHANNELS; i++) {
+			node = cluster.nodeFor(channel(i));
+			n = result.get(node);
+			result.put(node, Integer.valueOf(n == null ? 1 : n.intValue() + 1));
+		}
+		return result;
+	}
+
+	/**
+	 * Each channel's tuples in order, with their priorities
+	 */
+	Map<String, List<String>> contents(ClusteredDynamicAgenda cluster) {
+		Map<String, List<String>> result = new HashMap<String, List<String>>();
+		List<String> l;
+		Iterator<ITuple> itr;
+		ITuple t;
+		for (int i = 0; i < CHANNELS; i++) {
+			l = new ArrayList<String>();
+			itr = cluster.listTuples(channel(i));
+			while (itr.hasNext()) {
+				t = itr.next();
+				l.add(t.get(FLD_2)+"/"+t.getPriority());
+			}
+			result.put(channel(i), l);
+		}
+		return result;
+	}
+
+	void sleep(long millis) {
+		try {
+			Thread.sleep(millis);
+		} catch (InterruptedException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+}
@@ -0,0 +1,377 @@
+/**
+ *
+ */
+package org.topicquests.tuplespace.test;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+
+import org.topicquests.tuplespace.api.ILogicElement;
+import org.topicquests.tuplespace.api.IQueryPlan;
+import org.topicquests.tuplespace.api.ISubscription;
+import org.topicquests.tuplespace.api.ITemplate;
+import org.topicquests.tuplespace.api.ITuple;
+import org.topicquests.tuplespace.api.ITupleSpace;
+import org.topicquests.tuplespace.api.ITupleSpaceListener;
+import org.topicquests.tuplespace.impl.LogicElementImpl;
+import org.topicquests.tuplespace.impl.TemplateImpl;
+import org.topicquests.tuplespace.net.RemoteDynamicAgenda;
+import org.topicquests.tuplespace.net.TupleSpaceServer;
+
+/**
+ * The pipelined client: the agenda calls over one connection, a long
+ * take that does not hold up others, and many calls in flight at once
+ */
+public class TwentySecondTest extends BaseTest {
+	private static final int THREADS = 4, PER_THREAD = 2500, IN_FLIGHT = 20000;
+	private final String remote = "RemoteChannel";
+
+	/**
+	 *
+	 */
+	public TwentySecondTest() {
+		TupleSpaceServer server = new TupleSpaceServer(agenda,
+				new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 2);
+		RemoteDynamicAgenda client = null;
+		try {
+			server.start();
+			client = new RemoteDynamicAgenda(new InetSocketAddress(InetAddress.getLoopbackAddress(), server.getPort()));
+			calls(client);
+			constraints(client);
+			agendaCalls(client);
+			planAndChannel(client);
+			subscription(client);
+			longTake(client);
+			abandoned(client);
+			pipelined(client);
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		} finally {
+			if (client != null)
+				client.shutDown();
+			server.stop();
+		}
+	}
+
+	ITuple tuple(String key, int n) {
+		Map<String, Object> p = TupleUtil.newProperties();
+		p.put(FLD_1, key);
+		p.put(FLD_2, n);
+		return TupleUtil.createTuple(remote, n, p);
+	}
+
+	ITemplate template(String key) {
+		Map<String, Object> p = TupleUtil.newProperties();
+		p.put(FLD_1, key);
+		TemplateImpl t = new TemplateImpl(p);
+		t.compile();
+		return t;
+	}
+
+	void calls(RemoteDynamicAgenda client) {
+		client.createChannel(remote);
+		if (agenda.getChannel(remote) == null)
+			throw new RuntimeException("TwentySecondTest channel not created");
+		List<ITuple> batch = new ArrayList<ITuple>();
+		for (int i = 0; i < 10; i++)
+			batch.add(tuple(VAL_1, i));
+		client.putAll(remote, batch);
+		client.put(remote, tuple(VAL_2, 50));
+		ITuple t = client.read(remote, template(VAL_1), 0);
+		if (t == null || !Integer.valueOf(9).equals(t.get(FLD_2)))
+			throw new RuntimeException("TwentySecondTest read "+t);
+		t = client.take(remote, template(VAL_2), 0);
+		if (t == null || client.read(remote, template(VAL_2), 0) != null)
+			throw new RuntimeException("TwentySecondTest take "+t);
+		List<ITuple> taken = client.takeN(remote, template(VAL_1), 3, 0);
+		if (taken.size() != 3 || !Integer.valueOf(7).equals(taken.get(2).get(FLD_2)))
+			throw new RuntimeException("TwentySecondTest takeN "+taken);
+		if (client.collect(remote, template(VAL_1), 100).size() != 7)
+			throw new RuntimeException("TwentySecondTest collect");
+		int n = 0;
+		Iterator<ITuple> itr = client.listTuples(remote);
+		while (itr.hasNext()) {
+			itr.next();
+			n++;
+		}
+		if (n != 7)
+			throw new RuntimeException("TwentySecondTest list "+n);
+		try {
+			client.read("NoSuchChannel", template(VAL_1), 0);
+			throw new RuntimeException("TwentySecondTest missing channel not reported");
+		} catch (IllegalStateException e) { }
+		if (client.read(remote, template("nothing"), 50) != null)
+			throw new RuntimeException("TwentySecondTest timed read");
+	}
+
+	/**
+	 * Range and OR templates, which have no fields, match on the server
+	 * as they would locally, rather than matching everything
+	 */
+	void constraints(RemoteDynamicAgenda client) {
+		// the channel holds foo 0 to 6
+		ILogicElement ge = new LogicElementImpl();
+		ge.isGreaterOrEqualType();
+		ge.setFieldName(FLD_2);
+		ge.setLiteral(5);
+		TemplateImpl range = new TemplateImpl();
+		range.setConstraint(ge);
+		if (client.collect(remote, range, 100).size() != 2)
+			throw new RuntimeException("TwentySecondTest remote range collect");
+		ITuple t = client.take(remote, range, 0);
+		if (t == null || !Integer.valueOf(6).equals(t.get(FLD_2)))
+			throw new RuntimeException("TwentySecondTest remote range take "+t);
+		ILogicElement or = new LogicElementImpl();
+		or.isOrType();
+		for (int i = 0; i < 2; i++) {
+			ILogicElement eq = new LogicElementImpl();
+			eq.isEqualsType();
+			eq.setFieldName(FLD_2);
+			eq.setLiteral(i);
+			or.addElement(eq);
+		}
+		TemplateImpl either = new TemplateImpl();
+		either.setConstraint(or);
+		List<ITuple> taken = client.takeN(remote, either, 5, 0);
+		if (taken.size() != 2)
+			throw new RuntimeException("TwentySecondTest remote OR takeN "+taken);
+		client.put(remote, t);
+		client.putAll(remote, taken);
+		if (client.collect(remote, template(VAL_1), 100).size() != 7)
+			throw new RuntimeException("TwentySecondTest remote constraint put back");
+		// a literal the codec cannot send is refused before it goes
+		ge.setLiteral(new java.util.Date());
+		range.setConstraint(ge);
+		try {
+			client.collect(remote, range, 100);
+			throw new RuntimeException("TwentySecondTest unsendable literal sent");
+		} catch (IllegalArgumentException e) { }
+	}
+
+	/**
+	 * Index calls, addValue, decay and checkpoints reach the server's agenda
+	 */
+	void agendaCalls(RemoteDynamicAgenda client) {
+		client.addSortedIndex(remote, FLD_2);
+		client.addBitmapIndex(remote, FLD_1);
+		ILogicElement ge = new LogicElementImpl();
+		ge.isGreaterOrEqualType();
+		ge.setFieldName(FLD_2);
+		ge.setLiteral(5);
+		TemplateImpl range = new TemplateImpl();
+		range.setConstraint(ge);
+		if (!IQueryPlan.RANGE.equals(agenda.explain(remote, range).getAccessPath()))
+			throw new RuntimeException("TwentySecondTest remote sorted index "+agenda.explain(remote, range));
+		Map<String, Object> p = TupleUtil.newProperties();
+		p.put(FLD_2, 3);
+		TemplateImpl three = new TemplateImpl(p);
+		three.compile();
+		client.addValue(remote, three, 10);
+		client.decayAll(1);
+		ITuple t = agenda.read(remote, three, 0);
+		if (t == null || t.getPriority() != 12)
+			throw new RuntimeException("TwentySecondTest remote addValue and decay "+t);
+		client.checkpointAll();
+	}
+
+	/**
+	 * Query plans come from the server, and a channel view sends its
+	 * calls through the agenda
+	 */
+	void planAndChannel(RemoteDynamicAgenda client) {
+		ILogicElement ge = new LogicElementImpl();
+		ge.isGreaterOrEqualType();
+		ge.setFieldName(FLD_2);
+		ge.setLiteral(5);
+		TemplateImpl range = new TemplateImpl();
+		range.setConstraint(ge);
+		IQueryPlan local = agenda.explain(remote, range), plan = client.explain(remote, range);
+		if (!local.getAccessPath().equals(plan.getAccessPath()) ||
+				local.getEstimatedMatches() != plan.getEstimatedMatches() ||
+				plan.getDrivingTest() == null || !FLD_2.equals(plan.getDrivingTest().getFieldName()))
+			throw new RuntimeException("TwentySecondTest remote plan "+plan+" against "+local);
+		if (client.getChannel("NoSuchChannel") != null)
+			throw new RuntimeException("TwentySecondTest view of a missing channel");
+		ITupleSpace view = client.getChannel(remote);
+		view.insert(tuple("viewed", 20));
+		view.decay(5);
+		ITuple t = view.noWaitRead(template("viewed"));
+		if (t == null || t.getPriority() != 15 || agenda.read(remote, template("viewed"), 0).getPriority() != 15)
+			throw new RuntimeException("TwentySecondTest view insert and decay "+t);
+		try {
+			view.changePriority(t, 1);
+			throw new RuntimeException("TwentySecondTest view changed a copy's priority");
+		} catch (UnsupportedOperationException e) { }
+		view.checkpoint();
+		if (view.take(template("viewed"), 0) == null || view.noWaitRead(template("viewed")) != null)
+			throw new RuntimeException("TwentySecondTest view take");
+	}
+
+	/**
+	 * A subscription hears matches inserted by any client, in order,
+	 * until it is cancelled
+	 */
+	void subscription(RemoteDynamicAgenda client) {
+		final List<ITuple> heard = Collections.synchronizedList(new ArrayList<ITuple>());
+		ISubscription s = client.subscribe(remote, template("heard"), new ITupleSpaceListener() {
+			public void tupleInserted(ITuple tuple) {
+				heard.add(tuple);
+			}
+		});
+		for (int i = 0; i < 50; i++) {
+			if (i % 2 == 0)
+				client.put(remote, tuple("heard", i));
+			else
+				agenda.put(remote, tuple("heard", i));
+			client.put(remote, tuple("unheard", i));
+		}
+		long start = System.currentTimeMillis();
+		while (heard.size() < 50) {
+			if (System.currentTimeMillis() - start > 5000)
+				throw new RuntimeException("TwentySecondTest heard "+heard.size());
+			sleep(10);
+		}
+		for (int i = 0; i < 50; i++)
+			if (!Integer.valueOf(i).equals(heard.get(i).get(FLD_2)) || !heard.get(i).isFrozen())
+				throw new RuntimeException("TwentySecondTest heard out of order "+heard.get(i));
+		s.cancel();
+		// the cancel is handled before this put, so nothing more comes
+		client.put(remote, tuple("heard", 50));
+		sleep(200);
+		if (heard.size() != 50 || !s.isCancelled() || s.getDroppedCount() != 0)
+			throw new RuntimeException("TwentySecondTest heard after cancel "+heard.size());
+		client.takeN(remote, template("heard"), 51, 0);
+		client.takeN(remote, template("unheard"), 50, 0);
+	}
+
+	void sleep(long millis) {
+		try {
+			Thread.sleep(millis);
+		} catch (InterruptedException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	/**
+	 * A take parked on the server while other calls go through
+	 */
+	void longTake(RemoteDynamicAgenda client) {
+		CompletableFuture<ITuple> f = client.takeAsync(remote, template("later"), 30000);
+		for (int i = 0; i < 1000; i++)
+			if (client.read(remote, template(VAL_1), 0) == null)
+				throw new RuntimeException("TwentySecondTest read behind a waiting take");
+		if (f.isDone())
+			throw new RuntimeException("TwentySecondTest take finished early");
+		client.put(remote, tuple("later", 1));
+		ITuple t = f.join();
+		if (t == null || !"later".equals(t.get(FLD_1)))
+			throw new RuntimeException("TwentySecondTest waiting take "+t);
+	}
+
+	/**
+	 * Takes given up by cancelling or interrupting lose no tuples: the
+	 * server's take is cancelled, or what it took is put back
+	 */
+	void abandoned(RemoteDynamicAgenda client) {
+		int kept = 0;
+		CompletableFuture<ITuple> f;
+		for (int i = 0; i < 200; i++) {
+			f = client.takeAsync(remote, template("abandoned"), 30000);
+			if (i % 2 == 0)
+				f.cancel(false);
+			client.put(remote, tuple("abandoned", i));
+			if (i % 2 == 1)
+				f.cancel(false);
+			if (!f.isCancelled())
+				f.join();
+			else
+				kept++;
+		}
+		final RemoteDynamicAgenda c = client;
+		Thread taker = new Thread() {
+			public void run() {
+				try {
+					c.take(remote, template("interrupted"), 30000);
+				} catch (RuntimeException e) { }
+			}
+		};
+		taker.start();
+		try {
+			Thread.sleep(50);
+			taker.interrupt();
+			taker.join();
+		} catch (InterruptedException e) {
+			throw new RuntimeException(e);
+		}
+		client.put(remote, tuple("interrupted", 0));
+		long start = System.currentTimeMillis();
+		while (client.collect(remote, template("abandoned"), Integer.MAX_VALUE).size() != kept ||
+				client.read(remote, template("interrupted"), 0) == null) {
+			if (System.currentTimeMillis() - start > 5000)
+				throw new RuntimeException("TwentySecondTest abandoned takes lost tuples: "+
+						client.collect(remote, template("abandoned"), Integer.MAX_VALUE).size()+" of "+kept);
+			try {
+				Thread.sleep(10);
+			} catch (InterruptedException e) {
+				throw new RuntimeException(e);
+			}
+		}
+		// none taken for a parked take still on the server
+		client.takeN(remote, template("abandoned"), kept, 0);
+		client.take(remote, template("interrupted"), 0);
+		System.out.println("ABANDONED TAKES KEPT "+kept+" TUPLES");
+	}
+
+	/**
+	 * Puts from several threads share the connection; then many reads
+	 * in flight at once against one at a time
+	 */
+	void pipelined(final RemoteDynamicAgenda client) {
+		Thread [] threads = new Thread[THREADS];
+		long start = System.currentTimeMillis();
+		for (int i = 0; i < THREADS; i++) {
+			final int k = i;
+			threads[i] = new Thread() {
+				public void run() {
+					for (int j = 0; j < PER_THREAD; j++)
+						client.put(remote, tuple("p"+k, j));
+				}
+			};
+			threads[i].start();
+		}
+		for (int i = 0; i < THREADS; i++) {
+			try {
+				threads[i].join();
+			} catch (InterruptedException e) {
+				throw new RuntimeException(e);
+			}
+		}
+		long puts = System.currentTimeMillis() - start;
+		for (int i = 0; i < THREADS; i++)
+			if (client.collect(remote, template("p"+i), Integer.MAX_VALUE).size() != PER_THREAD)
+				throw new RuntimeException("TwentySecondTest puts from thread "+i);
+		ITemplate tpl = template("p0");
+		start = System.nanoTime();
+		for (int i = 0; i < 2000; i++)
+			client.read(remote, tpl, 0);
+		long oneAtATime = (System.nanoTime() - start) / 2000;
+		List<CompletableFuture<ITuple>> futures = new ArrayList<CompletableFuture<ITuple>>(IN_FLIGHT);
+		start = System.nanoTime();
+		for (int i = 0; i < IN_FLIGHT; i++)
+			futures.add(client.readAsync(remote, tpl, 0));
+		for (int i = 0; i < IN_FLIGHT; i++)
+			if (futures.get(i).join() == null)
+				throw new RuntimeException("TwentySecondTest pipelined read "+i);
+		long pipelined = (System.nanoTime() - start) / IN_FLIGHT;
+		System.out.println("REMOTE "+(THREADS * PER_THREAD)+" PUTS FROM "+THREADS+" THREADS IN "+puts+
+				"; READ "+oneAtATime+" NS ONE AT A TIME, "+pipelined+" NS PIPELINED");
+	}
+
+}
@@ -0,0 +1,78 @@
+/**
+ *
+ */
+package org.topicquests.tuplespace.test;
+
+import java.util.Map;
+
+import org.topicquests.tuplespace.api.ITemplate;
+import org.topicquests.tuplespace.api.ITuple;
+
+/**
+ * Lazy decay past the rebase point: decays large enough to make the
+ * queue fold its offset into every key, in both directions, keep take
+ * order and the effective priorities callers see
+ */
+public class TwentySixthTest extends BaseTest {
+	/**
+	 * Full-range decays that carry the offset past 2^40
+	 */
+	private static final int DECAYS = 520;
+
+	/**
+	 *
+	 */
+	public TwentySixthTest() {
+		ITemplate any = TupleUtil.createTemplate(TupleUtil.newProperties());
+		any.compile();
+		// decaying: old tuples bottom out, newer ones keep exact priorities
+		put("old", 30);
+		put("old", 20);
+		put("old", 10);
+		decay(DECAYS / 2, Integer.MAX_VALUE);
+		put("mid", 7);
+		put("mid", 5);
+		decay(DECAYS - DECAYS / 2, Integer.MAX_VALUE);
+		put("new", 1000);
+		put("new", 999);
+		channel.decay(10);
+		expect(any, "new", 990);
+		expect(any, "new", 989);
+		expect(any, "mid", Integer.MIN_VALUE);
+		expect(any, "mid", Integer.MIN_VALUE);
+		expect(any, "old", Integer.MIN_VALUE);
+		expect(any, "old", Integer.MIN_VALUE);
+		expect(any, "old", Integer.MIN_VALUE);
+		if (agenda.take(name, any, 0) != null)
+			throw new RuntimeException("TwentySixthTest decayed queue not empty");
+		// boosting: old tuples top out, newer ones keep exact priorities
+		put("old", 10);
+		decay(DECAYS, -Integer.MAX_VALUE);
+		put("new", 50);
+		put("new", 40);
+		channel.decay(-5);
+		expect(any, "old", Integer.MAX_VALUE);
+		expect(any, "new", 55);
+		expect(any, "new", 45);
+		System.out.println("REBASED TAKES IN ORDER");
+	}
+
+	void put(String age, int priority) {
+		Map<String, Object> p = TupleUtil.newProperties();
+		p.put(FLD_1, age);
+		p.put(FLD_2, Integer.valueOf(priority));
+		agenda.put(name, TupleUtil.createTuple(name, priority, p));
+	}
+
+	void decay(int times, int howMuch) {
+		for (int i = 0; i < times; i++)
+			channel.decay(howMuch);
+	}
+
+	void expect(ITemplate any, String age, int priority) {
+		ITuple t = agenda.take(name, any, 0);
+		if (t == null || !age.equals(t.get(FLD_1)) || t.getPriority() != priority)
+			throw new RuntimeException("TwentySixthTest expected "+age+" at "+priority+", took "+
+					(t == null ? null : t.get(FLD_1)+" at "+t.getPriority()));
+	}
+}
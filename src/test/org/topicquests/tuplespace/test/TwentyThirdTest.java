@@ -0,0 +1,257 @@
+/**
+ *
+ */
+package org.topicquests.tuplespace.test;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+
+import org.topicquests.tuplespace.DynamicAgenda;
+import org.topicquests.tuplespace.api.IDynamicAgenda;
+import org.topicquests.tuplespace.api.ITemplate;
+import org.topicquests.tuplespace.api.ITuple;
+import org.topicquests.tuplespace.api.ITupleSpace;
+import org.topicquests.tuplespace.impl.TemplateImpl;
+import org.topicquests.tuplespace.net.ReplicationFollower;
+import org.topicquests.tuplespace.net.ReplicationPrimary;
+
+/**
+ * Replication: followers load snapshots, follow live changes, refuse
+ * writes and report lag; one is promoted and another follows it
+ */
+public class TwentyThirdTest extends BaseTest {
+	private static final int N = 1000;
+	private final String second = "SecondChannel";
+
+	/**
+	 *
+	 */
+	public TwentyThirdTest() {
+		for (int i = 0; i < N; i++)
+			channel.insert(tuple(i % 2 == 0 ? VAL_1 : VAL_2, i));
+		DynamicAgenda a = new DynamicAgenda(), b = new DynamicAgenda();
+		ReplicationPrimary primary = new ReplicationPrimary((DynamicAgenda)agenda, loopback(0), 20);
+		ReplicationFollower fa = null, fb = null, fb2 = null;
+		ReplicationPrimary promoted = null;
+		try {
+			primary.start();
+			fa = new ReplicationFollower(a, loopback(primary.getPort()));
+			fb = new ReplicationFollower(b, loopback(primary.getPort()));
+			fa.start();
+			fb.start();
+			converge(agenda, a, name);
+			converge(agenda, b, name);
+			live(a, fa);
+			converge(agenda, b, name);
+			converge(agenda, b, second);
+			follower(b);
+			// lose the primary: a takes over, b follows it
+			primary.stop();
+			fa.promote();
+			fb.stop();
+			a.getChannel(name).insert(tuple(VAL_3, 5000));
+			promoted = new ReplicationPrimary(a, loopback(0), 20);
+			promoted.start();
+			fb2 = new ReplicationFollower(b, loopback(promoted.getPort()));
+			fb2.start();
+			a.getChannel(second).insert(tuple(VAL_3, 5001));
+			converge(a, b, name);
+			converge(a, b, second);
+			ITuple t = a.getChannel(name).take(template(VAL_3), 0);
+			if (t == null)
+				throw new RuntimeException("TwentyThirdTest promoted take");
+			converge(a, b, name);
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		} finally {
+			primary.stop();
+			if (promoted != null)
+				promoted.stop();
+			if (fb2 != null)
+				fb2.stop();
+			if (fb != null)
+				fb.stop();
+			if (fa != null)
+				fa.stop();
+		}
+		stalled();
+	}
+
+	/**
+	 * A follower that connects but never reads is dropped once its
+	 * backlog is full, though its shipper is stuck writing to it
+	 */
+	void stalled() {
+		String stall = "StallChannel";
+		DynamicAgenda primaryAgenda = new DynamicAgenda();
+		primaryAgenda.createChannel(stall);
+		ITupleSpace space = primaryAgenda.getChannel(stall);
+		StringBuilder sb = new StringBuilder();
+		while (sb.length() < 1024)
+			sb.append("stalled-");
+		ReplicationPrimary primary = new ReplicationPrimary(primaryAgenda, loopback(0), 20, 1000);
+		SocketChannel silent = null;
+		try {
+			primary.start();
+			silent = SocketChannel.open(loopback(primary.getPort()));
+			long start = System.currentTimeMillis();
+			while (primary.getFollowerCount() == 0)
+				sleep(1);
+			Map<String, Object> p;
+			int n = 0;
+			while (primary.getFollowerCount() != 0) {
+				if (System.currentTimeMillis() - start > 20000)
+					throw new RuntimeException("TwentyThirdTest stalled follower kept after "+n+" inserts");
+				p = TupleUtil.newProperties();
+				p.put(FLD_1, VAL_1);
+				p.put(FLD_3, sb.toString());
+				space.insert(TupleUtil.createTuple(stall, 1, p));
+				space.take(template(VAL_1), 0);
+				n++;
+			}
+			System.out.println("DROPPED STALLED FOLLOWER AFTER "+n+" INSERTS");
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		} finally {
+			primary.stop();
+			if (silent != null) {
+				try {
+					silent.close();
+				} catch (IOException e) { }
+			}
+		}
+	}
+
+	InetSocketAddress loopback(int port) {
+		return new InetSocketAddress(InetAddress.getLoopbackAddress(), port);
+	}
+
+	ITuple tuple(String key, int n) {
+		Map<String, Object> p = TupleUtil.newProperties();
+		p.put(FLD_1, key);
+		p.put(FLD_2, n);
+		return TupleUtil.createTuple(name, n % 50, p);
+	}
+
+	ITemplate template(String key) {
+		Map<String, Object> p = TupleUtil.newProperties();
+		p.put(FLD_1, key);
+		TemplateImpl t = new TemplateImpl(p);
+		t.compile();
+		return t;
+	}
+
+	/**
+	 * Changes of every kind on the primary, while a follower serves reads
+	 */
+	void live(DynamicAgenda a, ReplicationFollower fa) {
+		ITupleSpace replica = a.getChannel(name);
+		try {
+			replica.insert(tuple(VAL_1, -1));
+			throw new RuntimeException("TwentyThirdTest replica took an insert");
+		} catch (IllegalStateException e) { }
+		try {
+			replica.take(template(VAL_1), 0);
+			throw new RuntimeException("TwentyThirdTest replica took a take");
+		} catch (IllegalStateException e) { }
+		// a read waiting on the replica wakes for an insert on the primary
+		CompletableFuture<ITuple> waiting = replica.readAsync(template(VAL_3), 10000);
+		channel.insert(tuple(VAL_3, 2000));
+		ITuple t = waiting.join();
+		if (t == null || !Integer.valueOf(2000).equals(t.get(FLD_2)))
+			throw new RuntimeException("TwentyThirdTest replica read "+t);
+		channel.takeN(template(VAL_1), 100, 0);
+		channel.internalRemove(channel.noWaitRead(template(VAL_2)));
+		t = channel.noWaitRead(template(VAL_2));
+		channel.changePriority(t, 77);
+		channel.decay(3);
+		agenda.createChannel(second);
+		for (int i = 0; i < 100; i++)
+			agenda.getChannel(second).insert(tuple(VAL_2, i));
+		long start = System.currentTimeMillis();
+		long maxLag = 0;
+		for (int i = 0; i < 20000; i++) {
+			channel.insert(tuple(VAL_1, 3000 + i));
+			if (i % 1000 == 0)
+				maxLag = Math.max(maxLag, fa.getLagChanges());
+		}
+		converge(agenda, a, name);
+		converge(agenda, a, second);
+		System.out.println("REPLICATED 20000 INSERTS IN "+(System.currentTimeMillis() - start)+
+				", LAG SEEN "+maxLag+" CHANGES");
+		// a heartbeat reports the follower caught up
+		start = System.currentTimeMillis();
+		while (fa.getLagChanges() != 0 || fa.getLagMillis() != 0) {
+			if (System.currentTimeMillis() - start > 5000)
+				throw new RuntimeException("TwentyThirdTest lag "+fa.getLagChanges()+" "+fa.getLagMillis());
+			sleep(10);
+		}
+		if (fa.getAppliedPosition() < 20000 || !fa.isConnected())
+			throw new RuntimeException("TwentyThirdTest position "+fa.getAppliedPosition());
+	}
+
+	/**
+	 * decayAll on a follower's agenda decays its own channels and
+	 * leaves the replicas to their primary; addValue on a replica is refused
+	 */
+	void follower(DynamicAgenda b) {
+		String local = "LocalChannel";
+		b.createChannel(local);
+		b.put(local, TupleUtil.createTuple(local, 10, TupleUtil.newProperties()));
+		b.decayAll(2);
+		if (b.listTuples(local).next().getPriority() != 8)
+			throw new RuntimeException("TwentyThirdTest follower's own channel not decayed");
+		converge(agenda, b, name);
+		try {
+			b.addValue(name, template(VAL_1), 1);
+			throw new RuntimeException("TwentyThirdTest replica took an addValue");
+		} catch (IllegalStateException e) { }
+	}
+
+	/**
+	 * Wait until <code>replica</code>'s channel holds what <code>source</code>'s
+	 * does, in the same order and at the same priorities
+	 */
+	void converge(IDynamicAgenda source, DynamicAgenda replica, String channelName) {
+		long start = System.currentTimeMillis();
+		List<String> want = null, got = null;
+		while (System.currentTimeMillis() - start < 10000) {
+			want = contents(source.getChannel(channelName));
+			got = contents(replica.getChannel(channelName));
+			if (want.equals(got))
+				return;
+			sleep(10);
+		}
+		throw new RuntimeException("TwentyThirdTest "+channelName+" did not converge: "+
+				want.size()+" against "+(got == null ? 0 : got.size()));
+	}
+
+	List<String> contents(ITupleSpace space) {
+		List<String> result = new ArrayList<String>();
+		if (space == null)
+			return result;
+		Iterator<ITuple> itr = space.tuples();
+		ITuple t;
+		while (itr.hasNext()) {
+			t = itr.next();
+			result.add(t.get(FLD_1)+"/"+t.get(FLD_2)+"/"+t.getPriority());
+		}
+		return result;
+	}
+
+	void sleep(long millis) {
+		try {
+			Thread.sleep(millis);
+		} catch (InterruptedException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+}